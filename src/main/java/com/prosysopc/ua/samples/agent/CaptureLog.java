@@ -0,0 +1,212 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+
+/**
+ * Segmented append log for captured MQTT messages.
+ * <p>
+ * A capture is a directory of segment files named {@code segment-000000.cap},
+ * {@code segment-000001.cap}, ... Each record is written as
+ * {@code [long timestampMillis][UTF topic][int length][payload]}. A new segment is started when the
+ * current one exceeds the segment size, so old segments can be archived or deleted independently.
+ */
+public class CaptureLog {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".cap";
+
+    private CaptureLog() {
+    }
+
+    /**
+     * Opens a writer that appends to the capture in the given directory. Existing segments are kept
+     * and writing continues in a new segment.
+     */
+    public static Writer openWriter(File directory, long segmentSizeBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create capture directory " + directory);
+        }
+        // After the newest segment, even if older ones were archived or deleted
+        int next = 0;
+        for (File segment : listSegments(directory)) {
+            next = Math.max(next, segmentIndex(segment) + 1);
+        }
+        return new Writer(directory, segmentSizeBytes, next);
+    }
+
+    /**
+     * Opens a reader that iterates over all records of the capture in the given directory.
+     */
+    public static Reader openReader(File directory) throws IOException {
+        File[] segments = listSegments(directory);
+        if (segments.length == 0) {
+            throw new IOException("No capture segments found in " + directory);
+        }
+        return new Reader(segments);
+    }
+
+    static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles((dir, name) ->
+                name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) {
+            return new File[0];
+        }
+        // Zero-padded names sort in write order
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @return the index in the name of the segment file, or -1 if the name has no index
+     */
+    private static int segmentIndex(File segment) {
+        String name = segment.getName();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static File segmentFile(File directory, int index) {
+        return new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * One captured message.
+     */
+    public static class Record {
+        private long timestamp;
+        private String topic;
+        private byte[] payload;
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    /**
+     * Appends records to the capture, rolling over to a new segment when the current one is full.
+     */
+    public static class Writer implements Closeable {
+        private final File directory;
+        private final long segmentSizeBytes;
+        private int segmentIndex;
+        private long segmentBytes;
+        private DataOutputStream out;
+
+        private Writer(File directory, long segmentSizeBytes, int firstSegmentIndex) throws IOException {
+            this.directory = directory;
+            this.segmentSizeBytes = segmentSizeBytes;
+            this.segmentIndex = firstSegmentIndex;
+            openSegment();
+        }
+
+        public synchronized void append(long timestamp, String topic, byte[] payload) throws IOException {
+            if (segmentBytes >= segmentSizeBytes) {
+                out.close();
+                segmentIndex++;
+                openSegment();
+            }
+            int before = out.size();
+            out.writeLong(timestamp);
+            out.writeUTF(topic);
+            out.writeInt(payload.length);
+            out.write(payload);
+            segmentBytes += out.size() - before;
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+
+        private void openSegment() throws IOException {
+            File file = segmentFile(directory, segmentIndex);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            segmentBytes = 0;
+            System.out.println("[Capture] Writing segment " + file.getName());
+        }
+    }
+
+    /**
+     * Reads the records of all segments in write order. The returned record is reused between
+     * calls to {@link #next()}. A record that is cut short or corrupt, as the recorder leaves the
+     * last one of a segment if it crashes, ends its segment.
+     */
+    public static class Reader implements Closeable {
+        private final File[] segments;
+        private final Record record = new Record();
+        private int segmentIndex = -1;
+        private DataInputStream in;
+
+        private Reader(File[] segments) {
+            this.segments = segments;
+        }
+
+        /**
+         * @return the next record, or null at the end of the capture
+         */
+        public Record next() throws IOException {
+            while (true) {
+                if (in == null) {
+                    if (++segmentIndex >= segments.length) {
+                        return null;
+                    }
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(segments[segmentIndex]),
+                            64 * 1024));
+                }
+                // The stream is over a file, so available() is the rest of the segment
+                if (in.available() > 0) {
+                    try {
+                        record.timestamp = in.readLong();
+                        record.topic = in.readUTF();
+                        int length = in.readInt();
+                        if ((length < 0) || (length > in.available())) {
+                            throw new EOFException("Payload of " + length + " bytes");
+                        }
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        record.payload = payload;
+                        return record;
+                    } catch (EOFException | UTFDataFormatException e) {
+                        System.out.println("[Capture] Skipping the truncated end of segment "
+                                + segments[segmentIndex].getName());
+                    }
+                }
+                in.close();
+                in = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package com.prosysopc.ua.samples.agent;
 
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
@@ -16,9 +20,19 @@ public class MqttOpcUa {
 
     private static final String MACHINE_NAME = "MyMachine";
 
+    private static final String DEFAULT_OUTBOX_FILE = "mqtt-outbox.dat";
+    private static final int DEFAULT_OUTBOX_CAPACITY = 100_000;
+    private static final int OUTBOX_SLOT_SIZE = 512;
+    private static final int DEFAULT_DRAIN_RATE = 200; // messages per second
+    private static final long MAX_RECONNECT_DELAY_MS = 30_000;
+    private static final long SHUTDOWN_TIMEOUT_MS = 5_000;
+
     private final Random random = new Random();
     private long cycleCounter = 1;
 
+    private OutboundBuffer outbox;
+    private int drainRate;
+
     public static void main(String[] args) {
         try {
             String brokerUrl = System.getenv().getOrDefault("MQTT_BROKER", DEFAULT_BROKER);
@@ -29,54 +43,161 @@ public class MqttOpcUa {
         }
     }
 
-    private void run(String brokerUrl) throws MqttException, InterruptedException {
+    private void run(String brokerUrl) throws MqttException, IOException, InterruptedException {
+        File outboxFile = new File(System.getenv().getOrDefault("OUTBOX_FILE", DEFAULT_OUTBOX_FILE));
+        int outboxCapacity = Integer.parseInt(System.getenv().getOrDefault("OUTBOX_CAPACITY",
+                String.valueOf(DEFAULT_OUTBOX_CAPACITY)));
+        drainRate = Integer.parseInt(System.getenv().getOrDefault("DRAIN_RATE", String.valueOf(DEFAULT_DRAIN_RATE)));
+        outbox = new OutboundBuffer(outboxFile, outboxCapacity, OUTBOX_SLOT_SIZE);
+
+        // Events are only queued by the cycle loop; a separate thread owns the connection and
+        // delivers the queue, so a broker outage never stops the simulation
         MqttClient client = new MqttClient(brokerUrl, MqttClient.generateClientId());
-        client.connect();
-        System.out.println("Connected to broker: " + brokerUrl);
+        Thread drainer = new Thread(() -> drainLoop(client, brokerUrl), "MqttOpcUa-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(drainer, client), "MqttOpcUa-shutdown"));
 
         while (true) {
             String cycleId = "C-" + cycleCounter++;
-            runSingleCycle(client, cycleId);
+            runSingleCycle(cycleId);
+        }
+    }
+
+    /**
+     * Connects to the broker (with exponential backoff) and publishes the queued events in order.
+     * An event is removed from the queue only after the broker has acknowledged it. The drain rate is
+     * limited, so that a backlog collected during an outage does not flood the broker on reconnect.
+     */
+    private void drainLoop(MqttClient client, String brokerUrl) {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        long reconnectDelay = 1000;
+        long windowStart = System.nanoTime();
+        int sentInWindow = 0;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (!client.isConnected()) {
+                    try {
+                        client.connect(options);
+                        reconnectDelay = 1000;
+                        System.out.println("Connected to broker: " + brokerUrl + " (" + outbox.size()
+                                + " queued events)");
+                    } catch (MqttException e) {
+                        System.err.println("Broker not reachable (" + e.getMessage() + "), retrying in "
+                                + reconnectDelay + " ms, " + outbox.size() + " events queued");
+                        TimeUnit.MILLISECONDS.sleep(reconnectDelay);
+                        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MS);
+                        continue;
+                    }
+                }
+
+                OutboundBuffer.Entry entry = outbox.peek();
+                if (entry == null) {
+                    outbox.force();
+                    outbox.awaitNotEmpty(1000);
+                    continue;
+                }
+
+                long elapsed = System.nanoTime() - windowStart;
+                if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+                    windowStart = System.nanoTime();
+                    sentInWindow = 0;
+                } else if (sentInWindow >= drainRate) {
+                    TimeUnit.NANOSECONDS.sleep(TimeUnit.SECONDS.toNanos(1) - elapsed);
+                    continue;
+                }
+
+                MqttMessage message = new MqttMessage(entry.getPayload());
+                message.setQos(1);
+                try {
+                    client.publish(TOPIC, message);
+                    outbox.remove(entry.getSequence());
+                    sentInWindow++;
+                } catch (MqttException e) {
+                    // Keep the event queued and reconnect
+                    System.err.println("Publish failed: " + e.getMessage());
+                    if (client.isConnected()) {
+                        client.disconnectForcibly();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (MqttException e) {
+                System.err.println("Cannot reset the broker connection: " + e.getMessage());
+            }
         }
     }
 
-    private void runSingleCycle(MqttClient client, String cycleId) throws MqttException, InterruptedException {
-        publishEvent(client, buildCycleStartEvent(cycleId));
+    /**
+     * Stops the drainer after the message it is publishing, so that it no longer uses the outbox,
+     * and closes the outbox, which writes the queued events to disk for the next start.
+     */
+    private void shutdown(Thread drainer, MqttClient client) {
+        drainer.interrupt();
+        try {
+            drainer.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int queued = outbox.size();
+        try {
+            outbox.close();
+            System.out.println("Outbox closed, " + queued + " events queued for the next start");
+        } catch (IOException e) {
+            System.err.println("Cannot close the outbox: " + e.getMessage());
+        }
+        try {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+            client.close();
+        } catch (MqttException e) {
+            System.err.println("Cannot close the broker connection: " + e.getMessage());
+        }
+    }
+
+    private void runSingleCycle(String cycleId) throws InterruptedException {
+        publishEvent(buildCycleStartEvent(cycleId));
         TimeUnit.SECONDS.sleep(5);
 
-        publishEvent(client, buildPhaseChangeEvent(cycleId, "Setup", "Roughing"));
+        publishEvent(buildPhaseChangeEvent(cycleId, "Setup", "Roughing"));
         TimeUnit.SECONDS.sleep(10);
 
         for (int step = 1; step <= 2; step++) {
-            publishEvent(client, buildProgressEvent(cycleId, step * 20.0, "Roughing"));
+            publishEvent(buildProgressEvent(cycleId, step * 20.0, "Roughing"));
             TimeUnit.SECONDS.sleep(10);
         }
 
         if (random.nextDouble() < 0.4) {
-            publishEvent(client, buildToolWearEvent(cycleId));
+            publishEvent(buildToolWearEvent(cycleId));
             TimeUnit.SECONDS.sleep(8);
         }
         if (random.nextDouble() < 0.3) {
-            publishEvent(client, buildDimensionDriftEvent(cycleId));
+            publishEvent(buildDimensionDriftEvent(cycleId));
             TimeUnit.SECONDS.sleep(8);
         }
 
-        publishEvent(client, buildPhaseChangeEvent(cycleId, "Roughing", "Finishing"));
+        publishEvent(buildPhaseChangeEvent(cycleId, "Roughing", "Finishing"));
         TimeUnit.SECONDS.sleep(10);
 
         for (int step = 3; step <= 4; step++) {
-            publishEvent(client, buildProgressEvent(cycleId, step * 25.0, "Finishing"));
+            publishEvent(buildProgressEvent(cycleId, step * 25.0, "Finishing"));
             TimeUnit.SECONDS.sleep(10);
         }
 
-        publishEvent(client, buildCycleCompleteEvent(cycleId));
+        publishEvent(buildCycleCompleteEvent(cycleId));
         TimeUnit.SECONDS.sleep(15);
     }
 
-    private void publishEvent(MqttClient client, JSONObject event) throws MqttException {
-        MqttMessage message = new MqttMessage(event.toString().getBytes());
-        message.setQos(1);
-        client.publish(TOPIC, message);
+    private void publishEvent(JSONObject event) {
+        try {
+            outbox.offer(event.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Event dropped: " + e.getMessage());
+            return;
+        }
         System.out.println(event.getString("event") +
                 " (cycle=" + event.optString("cycleId") + "): " + event);
     }
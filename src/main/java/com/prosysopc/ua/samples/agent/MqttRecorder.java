@@ -0,0 +1,76 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Records everything published on the CNC state topic into a {@link CaptureLog}, so that
+ * production traffic can later be replayed with {@link MqttReplayer}.
+ */
+public class MqttRecorder {
+
+    private static final String DEFAULT_MQTT = "tcp://mqtt_broker:1883";
+    private static final String DEFAULT_TOPIC = "machines/cnc/state";
+    private static final String DEFAULT_CAPTURE_DIR = "capture";
+    private static final long DEFAULT_SEGMENT_MB = 64;
+
+    public static void main(String[] args) {
+        String mqttBroker = System.getenv().getOrDefault("MQTT_BROKER", DEFAULT_MQTT);
+        String topic = System.getenv().getOrDefault("CAPTURE_TOPIC", DEFAULT_TOPIC);
+        File captureDir = new File(System.getenv().getOrDefault("CAPTURE_DIR", DEFAULT_CAPTURE_DIR));
+        long segmentBytes = Long.parseLong(System.getenv().getOrDefault("CAPTURE_SEGMENT_MB",
+                String.valueOf(DEFAULT_SEGMENT_MB))) * 1024 * 1024;
+
+        try {
+            CaptureLog.Writer writer = CaptureLog.openWriter(captureDir, segmentBytes);
+            AtomicLong recorded = new AtomicLong();
+
+            // Flush once per second instead of per message, and on shutdown
+            ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+            flusher.scheduleAtFixedRate(() -> {
+                try {
+                    writer.flush();
+                } catch (IOException e) {
+                    System.err.println("[Recorder] Flush failed: " + e.getMessage());
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                flusher.shutdown();
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    System.err.println("[Recorder] Close failed: " + e.getMessage());
+                }
+                System.out.println("[Recorder] Stopped after " + recorded.get() + " messages");
+            }));
+
+            MqttClient mqttClient = new MqttClient(mqttBroker, MqttClient.generateClientId());
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setAutomaticReconnect(true);
+            mqttClient.connect(options);
+            System.out.println("[Recorder] Connected to MQTT: " + mqttBroker + ", recording " + topic
+                    + " to " + captureDir.getAbsolutePath());
+
+            mqttClient.subscribe(topic, 1, (t, message) -> {
+                try {
+                    writer.append(System.currentTimeMillis(), t, message.getPayload());
+                    recorded.incrementAndGet();
+                } catch (IOException ex) {
+                    System.err.println("[Recorder] Error writing message: " + ex.getMessage());
+                }
+            });
+
+        } catch (MqttException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
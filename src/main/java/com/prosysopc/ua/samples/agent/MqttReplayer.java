@@ -0,0 +1,132 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Replays a capture written by {@link MqttRecorder} to a broker.
+ * <p>
+ * REPLAY_SPEED is either a factor (1 = original speed, 10 = ten times faster) or {@code max} to
+ * publish without any delay. With REPLAY_MACHINES greater than one, every message is published
+ * once per synthetic machine, with the {@code machine} field suffixed by the machine number.
+ * <p>
+ * The {@code timestamp} field of a JSON event is moved to the time of the replay: the replay start
+ * plus its offset from the first captured record, divided by the speed factor (the original offset
+ * with {@code max}). Replaying a capture again therefore produces new events instead of repeating
+ * the keys of the rows that the previous replay stored.
+ */
+public class MqttReplayer {
+
+    private static final String DEFAULT_MQTT = "tcp://mqtt_broker:1883";
+    private static final String DEFAULT_CAPTURE_DIR = "capture";
+
+    private final MqttClient client;
+    private final double speed;
+    private final int machines;
+
+    // The capture time of the first record and the wall-clock time the replay started, in ms
+    private long firstRecordTime = -1;
+    private long replayStartMillis;
+
+    public MqttReplayer(MqttClient client, double speed, int machines) {
+        this.client = client;
+        this.speed = speed;
+        this.machines = machines;
+    }
+
+    public static void main(String[] args) {
+        String mqttBroker = System.getenv().getOrDefault("MQTT_BROKER", DEFAULT_MQTT);
+        File captureDir = new File(System.getenv().getOrDefault("CAPTURE_DIR", DEFAULT_CAPTURE_DIR));
+        String speedSetting = System.getenv().getOrDefault("REPLAY_SPEED", "1");
+        double speed = "max".equalsIgnoreCase(speedSetting) ? 0 : Double.parseDouble(speedSetting);
+        int machines = Integer.parseInt(System.getenv().getOrDefault("REPLAY_MACHINES", "1"));
+
+        try {
+            MqttClient client = new MqttClient(mqttBroker, MqttClient.generateClientId());
+            client.connect();
+            System.out.println("[Replayer] Connected to MQTT: " + mqttBroker + ", speed=" + speedSetting
+                    + ", machines=" + machines);
+
+            long published = new MqttReplayer(client, speed, machines).replay(captureDir);
+            System.out.println("[Replayer] Done, published " + published + " messages");
+
+            client.disconnect();
+            client.close();
+        } catch (MqttException | IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Publishes all records of the capture, keeping the original inter-message gaps divided by the
+     * speed factor.
+     *
+     * @return the number of published messages
+     */
+    public long replay(File captureDir) throws IOException, MqttException, InterruptedException {
+        long published = 0;
+        firstRecordTime = -1;
+        replayStartMillis = System.currentTimeMillis();
+        long replayStart = System.nanoTime();
+
+        try (CaptureLog.Reader reader = CaptureLog.openReader(captureDir)) {
+            CaptureLog.Record record;
+            while ((record = reader.next()) != null) {
+                if (firstRecordTime < 0) {
+                    firstRecordTime = record.getTimestamp();
+                }
+                if (speed > 0) {
+                    // Schedule against the replay start so that delays do not accumulate
+                    long dueNanos = (long) ((record.getTimestamp() - firstRecordTime) * 1_000_000L / speed);
+                    long waitNanos = dueNanos - (System.nanoTime() - replayStart);
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    }
+                }
+                published += publish(record);
+            }
+        }
+        return published;
+    }
+
+    private int publish(CaptureLog.Record record) throws MqttException {
+        JSONObject json;
+        try {
+            json = new JSONObject(new String(record.getPayload(), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            // Not a JSON event, neither rebasing nor fan-out is possible
+            client.publish(record.getTopic(), newMessage(record.getPayload()));
+            return 1;
+        }
+        if (json.has("timestamp")) {
+            long offset = json.optLong("timestamp", firstRecordTime) - firstRecordTime;
+            json.put("timestamp", replayStartMillis + Math.round(speed > 0 ? offset / speed : offset));
+        }
+        if (machines <= 1) {
+            client.publish(record.getTopic(), newMessage(json.toString().getBytes(StandardCharsets.UTF_8)));
+            return 1;
+        }
+        String machine = json.optString("machine", "machine");
+        for (int i = 1; i <= machines; i++) {
+            json.put("machine", machine + "-" + i);
+            client.publish(record.getTopic(), newMessage(json.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        return machines;
+    }
+
+    private static MqttMessage newMessage(byte[] payload) {
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(1);
+        return message;
+    }
+}
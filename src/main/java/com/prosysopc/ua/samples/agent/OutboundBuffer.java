@@ -0,0 +1,179 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Bounded FIFO of outbound messages, persisted in a memory-mapped ring file.
+ * <p>
+ * The file holds a small header (head and tail sequence numbers) followed by fixed-size slots of
+ * {@code [int length][payload]}. Messages survive a restart of the agent. When the ring is full the
+ * oldest message is overwritten, so a very long outage loses the oldest data first instead of
+ * blocking the producer.
+ * <p>
+ * The mapping is forced to disk at least every {@value #FORCE_INTERVAL_MILLIS} ms while messages
+ * are offered, so a long outage does not keep the whole backlog only in the page cache.
+ */
+public class OutboundBuffer implements Closeable {
+
+    private static final int MAGIC = 0x4F425546; // "OBUF"
+    private static final int HEADER_SIZE = 32;
+    private static final int OFFSET_HEAD = 16;
+    private static final int OFFSET_TAIL = 24;
+    private static final long FORCE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * A buffered message and its sequence number.
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final byte[] payload;
+
+        private Entry(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private final int capacity;
+    private final int slotSize;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+
+    private long head;
+    private long tail;
+    private long dropped;
+    private long lastForce = System.nanoTime();
+
+    /**
+     * Opens the buffer file, restoring pending messages if it was written with the same layout.
+     *
+     * @param capacity maximum number of buffered messages
+     * @param slotSize maximum size of one message in bytes, including a 4 byte length prefix
+     */
+    public OutboundBuffer(File path, int capacity, int slotSize) throws IOException {
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.file = new RandomAccessFile(path, "rw");
+        long size = HEADER_SIZE + (long) capacity * slotSize;
+        this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        if (map.getInt(0) == MAGIC && map.getInt(4) == capacity && map.getInt(8) == slotSize) {
+            head = map.getLong(OFFSET_HEAD);
+            tail = map.getLong(OFFSET_TAIL);
+            System.out.println("[Outbox] Restored " + size() + " pending messages from " + path);
+        } else {
+            map.putInt(0, MAGIC);
+            map.putInt(4, capacity);
+            map.putInt(8, slotSize);
+            writePositions();
+        }
+    }
+
+    /**
+     * Appends a message, overwriting the oldest one if the buffer is full.
+     *
+     * @throws IllegalArgumentException if the message does not fit into a slot
+     */
+    public synchronized void offer(byte[] payload) {
+        if (payload.length > slotSize - 4) {
+            throw new IllegalArgumentException("Message of " + payload.length + " bytes exceeds slot size " + slotSize);
+        }
+        if (tail - head == capacity) {
+            head++;
+            dropped++;
+        }
+        int offset = slotOffset(tail);
+        map.putInt(offset, payload.length);
+        map.put(offset + 4, payload);
+        tail++;
+        writePositions();
+        if (System.nanoTime() - lastForce >= FORCE_INTERVAL_MILLIS * 1_000_000) {
+            force();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the oldest message without removing it, or null if the buffer is empty
+     */
+    public synchronized Entry peek() {
+        if (head == tail) {
+            return null;
+        }
+        int offset = slotOffset(head);
+        byte[] payload = new byte[map.getInt(offset)];
+        map.get(offset + 4, payload);
+        return new Entry(head, payload);
+    }
+
+    /**
+     * Removes a message that was returned by {@link #peek()}, after it has been delivered. Does
+     * nothing if the message is no longer the oldest one, because it was overwritten while it was
+     * being delivered; the messages after it are then kept.
+     *
+     * @param sequence the sequence number of the delivered message
+     */
+    public synchronized void remove(long sequence) {
+        if ((head == sequence) && (head < tail)) {
+            head++;
+            writePositions();
+        }
+    }
+
+    /**
+     * Waits until the buffer contains a message or the timeout expires.
+     */
+    public synchronized void awaitNotEmpty(long timeoutMillis) throws InterruptedException {
+        if (head == tail) {
+            wait(timeoutMillis);
+        }
+    }
+
+    public synchronized int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return the number of messages overwritten because the buffer was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Writes the buffer contents to disk.
+     */
+    public synchronized void force() {
+        map.force();
+        lastForce = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        file.close();
+    }
+
+    private int slotOffset(long sequence) {
+        return (int) (HEADER_SIZE + (sequence % capacity) * slotSize);
+    }
+
+    private void writePositions() {
+        map.putLong(OFFSET_HEAD, head);
+        map.putLong(OFFSET_TAIL, tail);
+    }
+}
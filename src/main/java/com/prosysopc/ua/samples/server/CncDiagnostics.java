@@ -0,0 +1,100 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.server.nodes.*;
+import com.prosysopc.ua.stack.builtintypes.*;
+import com.prosysopc.ua.stack.core.Identifiers;
+
+import com.prosysopc.ua.samples.server.cnc.TickMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Diagnostics object with the tick statistics of the CNC simulation: tick count, mean, 99th
+ * percentile and maximum duration, overruns, deferred items and schedule drift, for the process
+ * cycle and the axis motion. The variables hold copies of the {@link TickMetrics}, refreshed by
+ * {@link #update(TickMetrics, TickMetrics)}. The Diagnostics object of the whole simulation also
+ * has the numbers of published tag updates and of updates suppressed by the deadbands, refreshed
+ * by {@link #updateTagCounts(long, long)}.
+ */
+class CncDiagnostics {
+
+    private static final String[] SCHEDULERS = {"Cycle", "Motion"};
+    private static final String[] METRICS = {
+            "TickCount", "TickMeanMicros", "TickP99Micros", "TickMaxMicros",
+            "OverrunCount", "DeferredCount", "DriftMicros", "MaxDriftMicros"};
+    private static final String[] TAG_COUNTS = {"TagUpdatesPublishedCount", "TagUpdatesSuppressedCount"};
+
+    private final List<PlainVariable<Object>> variables = new ArrayList<>();
+
+    /**
+     * Creates the Diagnostics object below the parent.
+     *
+     * @param idPrefix the prefix of the NodeIds, unique within the node manager
+     * @param tagCounts whether to add the tag update counts
+     */
+    CncDiagnostics(NodeManagerUaNode nodeManager, UaNode parent, String idPrefix, String browseName,
+                   boolean tagCounts) throws StatusException {
+        int ns = nodeManager.getNamespaceIndex();
+        UaObjectNode diagnostics = new UaObjectNode(nodeManager, new NodeId(ns, idPrefix + browseName),
+                new QualifiedName(ns, browseName), LocalizedText.english(browseName));
+        diagnostics.setTypeDefinition(nodeManager.getServer().getNodeManagerRoot().getType(Identifiers.BaseObjectType));
+        nodeManager.addNodeAndReference(parent, diagnostics, Identifiers.HasComponent);
+
+        for (String scheduler : SCHEDULERS) {
+            for (String metric : METRICS) {
+                addVariable(nodeManager, diagnostics, idPrefix + browseName, scheduler + metric);
+            }
+        }
+        if (tagCounts) {
+            for (String name : TAG_COUNTS) {
+                addVariable(nodeManager, diagnostics, idPrefix + browseName, name);
+            }
+        }
+    }
+
+    private void addVariable(NodeManagerUaNode nodeManager, UaObjectNode diagnostics, String idPrefix, String name)
+            throws StatusException {
+        int ns = nodeManager.getNamespaceIndex();
+        PlainVariable<Object> var = new PlainVariable<>(nodeManager, new NodeId(ns, idPrefix + "." + name),
+                new QualifiedName(ns, name), LocalizedText.english(name));
+        boolean counter = name.endsWith("Count");
+        var.setDataTypeId(counter ? Identifiers.Int64 : Identifiers.Double);
+        var.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
+        var.setCurrentValue(counter ? (Object) 0L : (Object) 0.0);
+        nodeManager.addNodeAndReference(diagnostics, var, Identifiers.HasComponent);
+        variables.add(var);
+    }
+
+    /**
+     * Copies the statistics to the variables.
+     */
+    void update(TickMetrics cycle, TickMetrics motion) {
+        update(0, cycle);
+        update(METRICS.length, motion);
+    }
+
+    /**
+     * Copies the tag update counts to the variables, if they were created.
+     */
+    void updateTagCounts(long published, long suppressed) {
+        int first = SCHEDULERS.length * METRICS.length;
+        if (variables.size() > first) {
+            variables.get(first).setCurrentValue(published);
+            variables.get(first + 1).setCurrentValue(suppressed);
+        }
+    }
+
+    private void update(int first, TickMetrics metrics) {
+        variables.get(first).setCurrentValue(metrics.getCount());
+        variables.get(first + 1).setCurrentValue(metrics.getMeanMicros());
+        variables.get(first + 2).setCurrentValue((double) metrics.getPercentileMicros(99));
+        variables.get(first + 3).setCurrentValue(metrics.getMaxMicros());
+        variables.get(first + 4).setCurrentValue(metrics.getOverrunCount());
+        variables.get(first + 5).setCurrentValue(metrics.getDeferredCount());
+        variables.get(first + 6).setCurrentValue(metrics.getDriftMicros());
+        variables.get(first + 7).setCurrentValue(metrics.getMaxDriftMicros());
+    }
+}
@@ -0,0 +1,87 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.server.NodeManagerUaNode;
+import com.prosysopc.ua.server.nodes.PlainVariable;
+import com.prosysopc.ua.server.nodes.UaObjectNode;
+import com.prosysopc.ua.stack.builtintypes.LocalizedText;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.QualifiedName;
+import com.prosysopc.ua.stack.core.AccessLevelType;
+import com.prosysopc.ua.stack.core.Identifiers;
+
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A CncEventHistory object with the history of the CNC events that the Timescale agent stores in
+ * the {@code cnc_events} table: an object per machine, with a variable per numeric event column.
+ * The variables have no current value; their history is read from the database by
+ * {@link TimescaleValueHistory}, so reading months of it does not go through the memory of the
+ * server.
+ */
+class CncEventHistory implements Closeable {
+
+    private static final int POOL_SIZE = 4;
+    // The event columns and the browse names of their variables
+    private static final Map<String, String> COLUMNS = new LinkedHashMap<>();
+
+    static {
+        COLUMNS.put("spindle_load", "SpindleLoad");
+        COLUMNS.put("surface_finish", "SurfaceFinish");
+        COLUMNS.put("tool_life_remaining", "ToolLifeRemaining");
+        COLUMNS.put("dimension_error", "DimensionError");
+        COLUMNS.put("progress_percent", "ProgressPercent");
+    }
+
+    private final JdbcConnectionPool pool;
+
+    /**
+     * Creates the CncEventHistory object below the parent and registers the histories of its
+     * variables to the historian. Must be called after the server is started.
+     *
+     * @param machineIds the machine_id values of the machines
+     */
+    CncEventHistory(NodeManagerUaNode nodeManager, UaNode parent, MyHistorian historian, String jdbcUrl,
+            String user, String password, List<String> machineIds) throws StatusException {
+        pool = new JdbcConnectionPool(jdbcUrl, user, password, POOL_SIZE);
+        int ns = nodeManager.getNamespaceIndex();
+        String browseName = "CncEventHistory";
+        UaObjectNode events = createObject(nodeManager, parent, new NodeId(ns, browseName), browseName);
+        for (String machineId : machineIds) {
+            String machinePath = browseName + "." + machineId;
+            UaObjectNode machine = createObject(nodeManager, events, new NodeId(ns, machinePath), machineId);
+            for (Map.Entry<String, String> column : COLUMNS.entrySet()) {
+                String name = column.getValue();
+                PlainVariable<Object> var = new PlainVariable<>(nodeManager, new NodeId(ns, machinePath + "." + name),
+                        new QualifiedName(ns, name), LocalizedText.english(name));
+                var.setDataTypeId(Identifiers.Double);
+                var.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
+                var.setAccessLevel(AccessLevelType.of());
+                nodeManager.addNodeAndReference(machine, var, Identifiers.HasComponent);
+                historian.addVariableHistory(var, new TimescaleValueHistory(pool, var, machineId, column.getKey()));
+            }
+        }
+        nodeManager.getHistoryManager().setListener(historian);
+    }
+
+    private static UaObjectNode createObject(NodeManagerUaNode nodeManager, UaNode parent, NodeId nodeId,
+            String browseName) throws StatusException {
+        UaObjectNode object = new UaObjectNode(nodeManager, nodeId,
+                new QualifiedName(nodeManager.getNamespaceIndex(), browseName), LocalizedText.english(browseName));
+        object.setTypeDefinition(nodeManager.getServer().getNodeManagerRoot().getType(Identifiers.BaseObjectType));
+        nodeManager.addNodeAndReference(parent, object, Identifiers.HasComponent);
+        return object;
+    }
+
+    /**
+     * Closes the database connections.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
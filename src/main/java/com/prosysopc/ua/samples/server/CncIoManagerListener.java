@@ -0,0 +1,113 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaMethod;
+import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.nodes.UaValueNode;
+import com.prosysopc.ua.nodes.UaVariable;
+import com.prosysopc.ua.server.ServiceContext;
+import com.prosysopc.ua.server.io.IoManagerListener;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.AccessLevelType;
+import com.prosysopc.ua.stack.core.AttributeWriteMask;
+import com.prosysopc.ua.stack.core.StatusCodes;
+import com.prosysopc.ua.stack.core.TimestampsToReturn;
+import com.prosysopc.ua.stack.utils.NumericRange;
+
+import com.prosysopc.ua.samples.server.cnc.CncTagStore;
+
+/**
+ * Serves the values of the {@link CncTagVariable}s from the {@link CncTagStore}, the same way the
+ * MyBigIoManager serves its DataItems. All other nodes are left to the default handling.
+ */
+public class CncIoManagerListener implements IoManagerListener {
+
+    private final CncTagStore store;
+
+    public CncIoManagerListener(CncTagStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Sets the published value, status and timestamps of the tag in the given slot to the DataValue.
+     */
+    public void getDataValue(int slot, DataValue dataValue) {
+        Object value;
+        int statusCode;
+        long timestamp;
+        synchronized (store.getLock(slot)) {
+            value = store.getValue(slot);
+            statusCode = store.getStatusCode(slot);
+            timestamp = store.getTimestamp(slot);
+        }
+        dataValue.setValue(new Variant(value));
+        dataValue.setStatusCode(statusCode == CncTagStore.GOOD
+                ? StatusCode.GOOD
+                : StatusCode.valueOf(UnsignedInteger.getFromBits(statusCode)));
+        dataValue.setSourceTimestamp(DateTime.fromMillis(timestamp));
+        dataValue.setServerTimestamp(DateTime.currentTime());
+    }
+
+    @Override
+    public AccessLevelType onGetUserAccessLevel(ServiceContext serviceContext, NodeId nodeId, UaVariable node) {
+        // Use the default
+        return null;
+    }
+
+    @Override
+    public Boolean onGetUserExecutable(ServiceContext serviceContext, NodeId nodeId, UaMethod node) {
+        return null;
+    }
+
+    @Override
+    public AttributeWriteMask onGetUserWriteMask(ServiceContext serviceContext, NodeId nodeId, UaNode node) {
+        return null;
+    }
+
+    @Override
+    public boolean onReadNonValue(ServiceContext serviceContext, NodeId nodeId, UaNode node, UnsignedInteger attributeId,
+                                  DataValue dataValue) throws StatusException {
+        return false;
+    }
+
+    @Override
+    public boolean onReadValue(ServiceContext serviceContext, NodeId nodeId, UaValueNode node, NumericRange indexRange,
+                               TimestampsToReturn timestampsToReturn, DateTime minTimestamp, DataValue dataValue)
+            throws StatusException {
+        if (!(node instanceof CncTagVariable)) {
+            return false;
+        }
+        getDataValue(((CncTagVariable) node).getSlot(), dataValue);
+        return true;
+    }
+
+    @Override
+    public boolean onWriteNonValue(ServiceContext serviceContext, NodeId nodeId, UaNode node,
+                                   UnsignedInteger attributeId, DataValue dataValue) throws StatusException {
+        return false;
+    }
+
+    @Override
+    public boolean onWriteValue(ServiceContext serviceContext, NodeId nodeId, UaValueNode node, NumericRange indexRange,
+                                DataValue dataValue) throws StatusException {
+        if (!(node instanceof CncTagVariable)) {
+            return false;
+        }
+        int slot = ((CncTagVariable) node).getSlot();
+        Object value = dataValue.getValue().getValue();
+        long now = System.currentTimeMillis();
+        if (store.getKind(slot) == CncTagStore.STRING) {
+            store.setString(slot, value == null ? "" : value.toString(), now);
+        } else if (value instanceof Number) {
+            store.publishDouble(slot, ((Number) value).doubleValue(), now);
+        } else {
+            throw new StatusException(StatusCodes.Bad_TypeMismatch);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,732 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.server.nodes.*;
+import com.prosysopc.ua.stack.builtintypes.*;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+import com.prosysopc.ua.typedictionary.DynamicStructure;
+import com.prosysopc.ua.typedictionary.FieldSpecification;
+import com.prosysopc.ua.types.opcua.server.AlarmConditionTypeNode;
+
+import com.prosysopc.ua.samples.server.cnc.CncAlarmEvaluator;
+import com.prosysopc.ua.samples.server.cnc.CncTagStore;
+import com.prosysopc.ua.samples.server.cnc.EdgeFeatureExtractor;
+import com.prosysopc.ua.samples.server.cnc.ForceWaveformSource;
+import com.prosysopc.ua.samples.server.cnc.GCodeInterpolator;
+import com.prosysopc.ua.samples.server.cnc.GCodeProgram;
+import com.prosysopc.ua.samples.server.cnc.GCodeProgramCache;
+import com.prosysopc.ua.samples.server.cnc.MachineStateEngine;
+import com.prosysopc.ua.samples.server.cnc.MachineStateEngine.Command;
+import com.prosysopc.ua.samples.server.cnc.MachineStateEngine.State;
+
+import java.io.IOException;
+
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One simulated CNC machine of a {@link CncNodeManager}: the machine object with its tags, and the
+ * simulation state behind them.
+ * <p>
+ * All machines are instances of the same CncMachineType, created from {@link #tagDeclarations()}.
+ * The tag values live in the shared {@link CncTagStore}; the machine addresses its tags by slot,
+ * so a simulation tick reads and writes primitives only. The simulation methods of a machine are
+ * always called from the same scheduler thread, so the simulation state needs no locking.
+ * <p>
+ * Method calls do not change the machine directly: they are validated in the calling thread and
+ * then queued to the {@link MachineStateEngine} of the machine, which processes them one at a time
+ * and owns the MachineStatus tag.
+ */
+public class CncMachine {
+
+    static final String[] FORCE_AXES = {"X", "Y", "Z"};
+    static final int FORCE_BAND_COUNT = 4;
+    private static final double[] FORCE_RESONANCE_HZ = {1850.0, 2150.0, 1400.0};
+    private static final int FORCE_WINDOW_SIZE = 1024;
+    private static final int FORCE_BLOCK_SIZE = 1024;
+    // Upper limit for catching up after a stalled tick
+    private static final double FORCE_MAX_CATCH_UP_SECONDS = 5.0;
+    // Upper limit for the motion step after a stalled tick
+    private static final double MOTION_MAX_STEP_SECONDS = 1.0;
+    // Duration of the Starting and Stopping states
+    private static final long STATE_TRANSITION_MILLIS = 2000;
+    // Cycles without a match before an alarm clears, to keep alarms near a limit from flapping
+    private static final int ALARM_CLEAR_CYCLES = 3;
+
+    private static final Map<String, Object> TAG_DECLARATIONS = createTagDeclarations();
+    private static final List<String> TAG_NAMES = new ArrayList<>(TAG_DECLARATIONS.keySet());
+
+    // Tag indexes within the slots of a machine
+    private static final int MACHINE_STATUS = tagIndex("MachineStatus");
+    private static final int SPINDLE_TARGET = tagIndex("TargetSpindleSpeed");
+    private static final int SPINDLE_ACTUAL = tagIndex("ActualSpindleSpeed");
+    private static final int FEED_TARGET = tagIndex("TargetFeedRate");
+    private static final int FEED_ACTUAL = tagIndex("ActualFeedRate");
+    private static final int TOOL_LIFE = tagIndex("ToolLifeRemaining");
+    private static final int X_POS = tagIndex("X");
+    private static final int Y_POS = tagIndex("Y");
+    private static final int Z_POS = tagIndex("Z");
+    private static final int SURFACE_TARGET = tagIndex("TargetSurfaceFinish");
+    private static final int SURFACE_ACTUAL = tagIndex("ActualSurfaceFinish");
+    private static final int PRODUCTION_PROGRESS = tagIndex("ProductionOrderProgress");
+    private static final int ALARM_MESSAGE = tagIndex("AlarmMessage");
+    private static final int GOOD_PARTS = tagIndex("GoodParts");
+    private static final int BAD_PARTS = tagIndex("BadParts");
+    private static final int TOTAL_PARTS = tagIndex("TotalParts");
+    private static final int ORDER = tagIndex("ProductionOrder");
+    private static final int ARTICLE = tagIndex("Article");
+    private static final int QUANTITY = tagIndex("OrderQuantity");
+    private static final int TARGET_CYCLE_TIME = tagIndex("TargetCycleTime");
+    private static final int[] CUTTING_FORCE = {
+            tagIndex("CuttingForceX"), tagIndex("CuttingForceY"), tagIndex("CuttingForceZ")};
+    // The features of an axis are consecutive tags in EdgeFeatureExtractor summary order
+    private static final int[] FORCE_FEATURES = {
+            tagIndex("CuttingForceXRms"), tagIndex("CuttingForceYRms"), tagIndex("CuttingForceZRms")};
+
+    private final CncNodeManager nodeManager;
+    private final CncTagStore store;
+    private final int index;
+    private final int base;
+    private final String name;
+    private final GCodeProgramCache programCache;
+    private final Random rng;
+
+    private UaObjectNode machineNode;
+    private CncDiagnostics diagnostics;
+    private final List<CncTagVariable> tagVariables = new ArrayList<>();
+    private PlainVariable<Object> snapshotVariable;
+
+    private final int forceSampleRate;
+    private final double[] cuttingForceMeans = {245.7, 189.3, 567.8};
+    private ForceWaveformSource[] forceSources;
+    private EdgeFeatureExtractor[] forceExtractors;
+    private final double[] forceBlock = new double[FORCE_BLOCK_SIZE];
+    private double[] forceSummary;
+    private long lastForceSampleNanos;
+
+    private final GCodeInterpolator interpolator = new GCodeInterpolator();
+    private final AtomicReference<GCodeProgram> pendingProgram = new AtomicReference<>();
+    private volatile double feedOverride = 1.0;
+    private final double[] toolPosition = new double[3];
+    private long lastMotionNanos;
+
+    private final CncAlarmEvaluator alarmEvaluator = new CncAlarmEvaluator(ALARM_CLEAR_CYCLES);
+    private AlarmConditionTypeNode alarmCondition;
+    private int reportedAlarm = CncAlarmEvaluator.NONE;
+    private final MachineStateEngine stateEngine;
+
+    CncMachine(CncNodeManager nodeManager, CncTagStore store, int index, GCodeProgramCache programCache,
+               int forceSampleRate, ScheduledExecutorService stateScheduler) {
+        this.nodeManager = nodeManager;
+        this.store = store;
+        this.index = index;
+        this.base = store.slot(index, 0);
+        // The first machine keeps the NodeIds of the single machine server
+        this.name = index == 0 ? "CncMachine" : String.format("CncMachine%04d", index + 1);
+        this.programCache = programCache;
+        this.forceSampleRate = forceSampleRate;
+        this.rng = new Random(31L * index + System.nanoTime());
+        State initialState = State.fromDisplayName((String) TAG_DECLARATIONS.get("MachineStatus"));
+        this.stateEngine = new MachineStateEngine(initialState, stateScheduler, STATE_TRANSITION_MILLIS,
+                this::onStateChange);
+    }
+
+    /**
+     * @return the names and initial values of the tags of every machine, in creation order
+     */
+    static Map<String, Object> tagDeclarations() {
+        return TAG_DECLARATIONS;
+    }
+
+    /**
+     * @return the kinds of the tags for the {@link CncTagStore}, in creation order
+     */
+    static byte[] tagKinds() {
+        byte[] kinds = new byte[TAG_NAMES.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = TAG_DECLARATIONS.get(TAG_NAMES.get(i)) instanceof String ? CncTagStore.STRING : CncTagStore.DOUBLE;
+        }
+        return kinds;
+    }
+
+    /**
+     * @return the index of the tag within the slots of a machine
+     * @throws IllegalArgumentException if there is no such tag
+     */
+    static int tagIndex(String tagName) {
+        int tag = TAG_NAMES.indexOf(tagName);
+        if (tag < 0) {
+            throw new IllegalArgumentException("Unknown CNC tag: " + tagName);
+        }
+        return tag;
+    }
+
+    /**
+     * Defines the default deadbands of the tags that change slightly on every tick.
+     */
+    static void applyDefaultDeadbands(CncTagStore store) {
+        store.setDeadband(SPINDLE_ACTUAL, 0.0, 0.5);
+        store.setDeadband(FEED_ACTUAL, 0.0, 0.5);
+        store.setDeadband(TOOL_LIFE, 0.5, 0.0);
+        store.setDeadband(SURFACE_ACTUAL, 0.005, 0.0);
+        // 1 µm, below the resolution of the machine
+        store.setDeadband(X_POS, 0.001, 0.0);
+        store.setDeadband(Y_POS, 0.001, 0.0);
+        store.setDeadband(Z_POS, 0.001, 0.0);
+    }
+
+    private static Map<String, Object> createTagDeclarations() {
+        Map<String, Object> tags = new LinkedHashMap<>();
+        tags.put("MachineStatus", "Running");
+        tags.put("TargetSpindleSpeed", 8500.0);
+        tags.put("ActualSpindleSpeed", 8487.0);
+        tags.put("TargetFeedRate", 1200.0);
+        tags.put("ActualFeedRate", 1198.0);
+        tags.put("ToolLifeRemaining", 73.2);
+        tags.put("CoolantTemperature", 22.5);
+
+        tags.put("X", 125.847);
+        tags.put("Y", 89.234);
+        tags.put("Z", -45.678);
+        tags.put("TargetSurfaceFinish", 0.8);
+        tags.put("ActualSurfaceFinish", 0.75);
+
+        tags.put("ProductionOrderProgress", 57.5);
+        tags.put("AlarmMessage", "OK");
+        tags.put("GoodParts", 2847.0);
+        tags.put("BadParts", 23.0);
+        tags.put("TotalParts", 2870.0);
+        tags.put("ProductionOrder", "PO-2024-AERO-0876");
+        tags.put("Article", "ART-TB-7075-T6");
+        tags.put("OrderQuantity", 120.0);
+        tags.put("MachiningPhase", "Roughing");
+
+        tags.put("CuttingForceX", 245.7);
+        tags.put("CuttingForceY", 189.3);
+        tags.put("CuttingForceZ", 567.8);
+        tags.put("TargetCoolantFlow", 25.0);
+        tags.put("ActualCoolantFlow", 24.8);
+        tags.put("TargetCycleTime", 75.0);
+        tags.put("ActualCycleTime", 73.2);
+
+        tags.put("MachineName", "PrecisionCraft VMC-850 #3");
+        tags.put("MachineSerialNumber", "VMC850-2023-003");
+        tags.put("Plant", "Munich Precision Manufacturing");
+        tags.put("ProductionSegment", "Aerospace Components");
+        tags.put("ProductionLine", "5-Axis Machining Cell C");
+        tags.put("GoodPartsOrder", 67.0);
+        tags.put("BadPartsOrder", 2.0);
+        tags.put("TotalPartsOrder", 69.0);
+
+        // Edge features of the high-rate cutting force signals, e.g. CuttingForceXRms
+        for (String axis : FORCE_AXES) {
+            String prefix = "CuttingForce" + axis;
+            tags.put(prefix + "Rms", 0.0);
+            tags.put(prefix + "Peak", 0.0);
+            tags.put(prefix + "CrestFactor", 0.0);
+            for (int b = 0; b < FORCE_BAND_COUNT; b++) {
+                tags.put(prefix + "Band" + (b + 1) + "Energy", 0.0);
+            }
+        }
+        return Collections.unmodifiableMap(tags);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public UaObjectNode getMachineNode() {
+        return machineNode;
+    }
+
+    /**
+     * @return the tag nodes of the machine, in the order in which they were created
+     */
+    List<CncTagVariable> getTagVariables() {
+        return Collections.unmodifiableList(tagVariables);
+    }
+
+    /**
+     * @return the Diagnostics object of the machine with the statistics of its simulation shards
+     */
+    CncDiagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    public MachineStateEngine getStateEngine() {
+        return stateEngine;
+    }
+
+    /**
+     * @return the names of all tags, in the order in which they were created
+     */
+    public List<String> getTagNames() {
+        return new ArrayList<>(TAG_NAMES);
+    }
+
+    /**
+     * @return the current value of the tag, or null if there is no such tag
+     */
+    public Object getTagValue(String tagName) {
+        int tag = TAG_NAMES.indexOf(tagName);
+        if (tag < 0) {
+            return null;
+        }
+        return store.getValue(base + tag);
+    }
+
+    /**
+     * Creates the machine object with its tags below the parent, initializes the tag values in the
+     * store and adds references to the shared method nodes of the machine type.
+     */
+    void createNodes(UaNode parent, UaObjectTypeNode machineType, List<UaMethodNode> methods) throws StatusException {
+        int ns = nodeManager.getNamespaceIndex();
+
+        String displayName = index == 0
+                ? "CNC Machining Center (V2)"
+                : "CNC Machining Center (V2) #" + (index + 1);
+        machineNode = new UaObjectNode(
+                nodeManager,
+                new NodeId(ns, name),
+                new QualifiedName(ns, name),
+                LocalizedText.english(displayName)
+        );
+        machineNode.setTypeDefinition(machineType);
+        nodeManager.addNodeAndReference(parent, machineNode, Identifiers.Organizes);
+
+        long now = System.currentTimeMillis();
+        for (int tag = 0; tag < TAG_NAMES.size(); tag++) {
+            String tagName = TAG_NAMES.get(tag);
+            Object initialValue = initialValue(tagName, TAG_DECLARATIONS.get(tagName));
+            if (initialValue instanceof String) {
+                store.setString(base + tag, (String) initialValue, now);
+            } else {
+                store.publishDouble(base + tag, (Double) initialValue, now);
+            }
+            createTagNode(tagName, initialValue, base + tag);
+        }
+        for (UaMethodNode method : methods) {
+            machineNode.addReference(method, Identifiers.HasComponent, false);
+        }
+        createAlarmCondition(parent);
+        diagnostics = new CncDiagnostics(nodeManager, machineNode, name + ".", "Diagnostics", false);
+        createSnapshotNode();
+        updateSnapshot();
+
+        initCuttingForceSimulation();
+        lastMotionNanos = System.nanoTime();
+    }
+
+    private void createSnapshotNode() throws StatusException {
+        int ns = nodeManager.getNamespaceIndex();
+        NodeId id = new NodeId(ns, name + ".MachineSnapshot");
+        snapshotVariable = new PlainVariable<>(nodeManager, id, new QualifiedName(ns, "MachineSnapshot"),
+                LocalizedText.english("MachineSnapshot"));
+        snapshotVariable.setDataTypeId(nodeManager.getSnapshotTypeId());
+        snapshotVariable.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
+        snapshotVariable.setDescription(LocalizedText.english("All tags of the machine at the end of a process cycle"));
+        nodeManager.addNodeAndReference(machineNode, snapshotVariable, Identifiers.HasComponent);
+    }
+
+    /**
+     * Publishes the current values of all tags as one new MachineSnapshot value. The structure is
+     * filled completely before it is set, so a client never sees values of two different cycles,
+     * except for the axis positions, which move on the motion thread.
+     */
+    private void updateSnapshot() {
+        List<FieldSpecification> fields = nodeManager.getSnapshotFields();
+        DynamicStructure snapshot = new DynamicStructure(nodeManager.getSnapshotSpecification());
+        snapshot.set(fields.get(0), DateTime.currentTime());
+        for (int tag = 0; tag < TAG_NAMES.size(); tag++) {
+            int slot = base + tag;
+            snapshot.set(fields.get(tag + 1), store.getKind(slot) == CncTagStore.STRING
+                    ? store.getString(slot)
+                    : (Object) store.getPublishedDouble(slot));
+        }
+        snapshotVariable.setCurrentValue(snapshot);
+    }
+
+    /**
+     * Creates the alarm condition of the machine, raised by the alarm rules of the simulation.
+     */
+    private void createAlarmCondition(UaNode parent) {
+        int ns = nodeManager.getNamespaceIndex();
+        NodeId id = new NodeId(ns, name + ".Alarm");
+        alarmCondition = nodeManager.createInstance(AlarmConditionTypeNode.class, "Alarm", id);
+        // The machine is the source of the condition and notifies its events
+        alarmCondition.setSource(machineNode);
+        alarmCondition.setMessage(LocalizedText.english("OK"));
+        alarmCondition.setSeverity(CncAlarmEvaluator.getSeverity(CncAlarmEvaluator.TOLERANCE));
+        alarmCondition.setEnabled(true);
+        machineNode.addComponent(alarmCondition);
+        machineNode.addReference(alarmCondition, Identifiers.HasCondition, false);
+        parent.addReference(machineNode, Identifiers.HasNotifier, false);
+    }
+
+    private Object initialValue(String tagName, Object declared) {
+        if (index == 0) {
+            return declared;
+        }
+        // Give every machine its own identity, numbered after the first one (#3)
+        if (tagName.equals("MachineName")) {
+            return "PrecisionCraft VMC-850 #" + (index + 3);
+        }
+        if (tagName.equals("MachineSerialNumber")) {
+            return String.format("VMC850-2023-%03d", index + 3);
+        }
+        return declared;
+    }
+
+    /**
+     * Creates the high-rate force sources and their edge feature extractors.
+     */
+    private void initCuttingForceSimulation() {
+        forceSources = new ForceWaveformSource[FORCE_AXES.length];
+        forceExtractors = new EdgeFeatureExtractor[FORCE_AXES.length];
+
+        for (int axis = 0; axis < FORCE_AXES.length; axis++) {
+            forceSources[axis] = new ForceWaveformSource(forceSampleRate, 4, FORCE_RESONANCE_HZ[axis], rng.nextLong());
+            // Keep a minute worth of windows
+            int windowsPerMinute = 60 * forceSampleRate / FORCE_WINDOW_SIZE + 1;
+            forceExtractors[axis] = new EdgeFeatureExtractor(FORCE_WINDOW_SIZE, FORCE_BAND_COUNT, windowsPerMinute);
+        }
+        forceSummary = new double[EdgeFeatureExtractor.FIRST_BAND + FORCE_BAND_COUNT];
+        lastForceSampleNanos = System.nanoTime();
+    }
+
+    private void createTagNode(String tagName, Object initialValue, int slot) throws StatusException {
+        int ns = nodeManager.getNamespaceIndex();
+        // The first machine keeps the plain tag names as NodeIds
+        NodeId id = new NodeId(ns, index == 0 ? tagName : name + "." + tagName);
+        QualifiedName browseName = new QualifiedName(ns, tagName);
+        LocalizedText displayName = LocalizedText.english(tagName);
+
+        CncTagVariable var = new CncTagVariable(nodeManager, id, browseName, displayName, slot);
+
+        var.setDataTypeId(CncNodeManager.resolveDataType(initialValue));
+        var.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
+        var.setDescription(LocalizedText.english("CNC Tag: " + tagName));
+
+        nodeManager.addNodeAndReference(machineNode, var, Identifiers.HasComponent);
+        tagVariables.add(var);
+    }
+
+    /**
+     * Executes one of the methods of the machine type on this machine. The arguments are checked
+     * here, the effect is queued to the state engine of the machine.
+     *
+     * @return false if the method is not known
+     */
+    boolean call(String methodName, Variant[] inputArguments) throws StatusException {
+        switch (methodName) {
+            case "StartMachine":
+                stateEngine.submit(Command.START);
+                System.out.println("[OPC-UA] " + name + " start sequence triggered (V2).");
+                return true;
+            case "StopMachine":
+                stateEngine.submit(Command.STOP);
+                System.out.println("[OPC-UA] " + name + " stop sequence triggered (V2).");
+                return true;
+            case "EnterMaintenanceMode":
+                stateEngine.submit(Command.ENTER_MAINTENANCE);
+                System.out.println("[OPC-UA] " + name + " switched to Maintenance mode.");
+                return true;
+            case "ResetCounters":
+                stateEngine.execute(this::handleResetCounters);
+                return true;
+            case "HomeAxes":
+                stateEngine.execute(this::handleHomeAxes);
+                return true;
+            case "ToolChange":
+                int toolNumber = extractToolNumber(inputArguments);
+                stateEngine.execute(() -> handleToolChange(toolNumber));
+                return true;
+            case "LoadCncProgram":
+                String programName = (inputArguments != null && inputArguments.length > 0)
+                        ? String.valueOf(inputArguments[0].getValue())
+                        : "DefaultProgram";
+                GCodeProgram program = loadProgram(programName);
+                stateEngine.execute(() -> handleLoadProgram(programName, program));
+                return true;
+            case "LoadProductionOrder":
+                handleLoadOrder(inputArguments);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Reflects a state change in the MachineStatus tag. Called by the state engine.
+     */
+    private void onStateChange(State state) {
+        store.setString(base + MACHINE_STATUS, state.getDisplayName(), System.currentTimeMillis());
+    }
+
+    private void handleResetCounters() {
+        long now = System.currentTimeMillis();
+        store.publishDouble(base + GOOD_PARTS, 0.0, now);
+        store.publishDouble(base + BAD_PARTS, 0.0, now);
+        store.publishDouble(base + TOTAL_PARTS, 0.0, now);
+        store.publishDouble(base + PRODUCTION_PROGRESS, 0.0, now);
+        System.out.println("[OPC-UA] All counters of " + name + " have been reset.");
+    }
+
+    private void handleToolChange(int toolNumber) {
+        System.out.println("[OPC-UA] " + name + " tool change requested → Tool #" + toolNumber);
+        // simple: reset tool life to 100%
+        store.publishDouble(base + TOOL_LIFE, 100.0, System.currentTimeMillis());
+    }
+
+    private GCodeProgram loadProgram(String programName) throws StatusException {
+        try {
+            return programCache.load(programName);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("[OPC-UA] Cannot load CNC program: " + e.getMessage());
+            throw new StatusException(e.getMessage(), StatusCodes.Bad_InvalidArgument);
+        }
+    }
+
+    private void handleLoadProgram(String programName, GCodeProgram program) {
+        // Picked up by the next motion tick, which owns the interpolator
+        pendingProgram.set(program);
+        store.publishDouble(base + TARGET_CYCLE_TIME, program.getTotalTime(), System.currentTimeMillis());
+        System.out.printf("[OPC-UA] CNC program loaded on %s: %s, %d segments, cycle time %.1f s%n",
+                name, programName, program.getSegmentCount(), program.getTotalTime());
+    }
+
+    private void handleHomeAxes() {
+        long now = System.currentTimeMillis();
+        store.publishDouble(base + X_POS, 0.0, now);
+        store.publishDouble(base + Y_POS, 0.0, now);
+        store.publishDouble(base + Z_POS, 0.0, now);
+        stateEngine.submit(Command.HOME);
+        System.out.println("[OPC-UA] " + name + " axes homed to reference position.");
+    }
+
+    private void handleLoadOrder(Variant[] args) {
+        String orderId = "";
+        String articleId = "";
+        double qty = 0.0;
+
+        if (args != null) {
+            if (args.length > 0 && args[0] != null && args[0].getValue() != null) {
+                orderId = String.valueOf(args[0].getValue());
+            }
+            if (args.length > 1 && args[1] != null && args[1].getValue() != null) {
+                articleId = String.valueOf(args[1].getValue());
+            }
+            if (args.length > 2 && args[2] != null && args[2].getValue() != null) {
+                Object raw = args[2].getValue();
+                if (raw instanceof Number) {
+                    qty = ((Number) raw).doubleValue();
+                } else {
+                    qty = Double.parseDouble(String.valueOf(raw));
+                }
+            }
+        }
+
+        String order = orderId;
+        String article = articleId;
+        double quantity = qty;
+        stateEngine.execute(() -> {
+            long now = System.currentTimeMillis();
+            store.setString(base + ORDER, order, now);
+            store.setString(base + ARTICLE, article, now);
+            store.publishDouble(base + QUANTITY, quantity, now);
+            store.publishDouble(base + PRODUCTION_PROGRESS, 0.0, now);
+            stateEngine.submit(Command.LOAD_ORDER);
+        });
+
+        System.out.printf("[OPC-UA] Production order loaded on %s: %s, article=%s, qty=%.1f%n",
+                name, orderId, articleId, qty);
+    }
+
+    private int extractToolNumber(Variant[] inputArguments) {
+        int defaultTool = 1;
+        if (inputArguments == null || inputArguments.length == 0) {
+            return defaultTool;
+        }
+        Object v = inputArguments[0].getValue();
+        if (v instanceof Number) {
+            return ((Number) v).intValue();
+        }
+        try {
+            return Integer.parseInt(String.valueOf(v));
+        } catch (NumberFormatException ex) {
+            return defaultTool;
+        }
+    }
+
+    /**
+     * Called periodically to simulate process changes.
+     */
+    public void simulateCycle() {
+        try {
+            long now = System.currentTimeMillis();
+
+            double targetRpm   = store.getDouble(base + SPINDLE_TARGET);
+            double actualRpm   = varyAround(targetRpm, 0.04);
+            store.setDouble(base + SPINDLE_ACTUAL, actualRpm, now);
+
+            double targetFeed  = store.getDouble(base + FEED_TARGET);
+            double actualFeed  = varyAround(targetFeed, 0.03);
+            store.setDouble(base + FEED_ACTUAL, actualFeed, now);
+            feedOverride = targetFeed > 0 ? actualFeed / targetFeed : 0.0;
+
+            double remainingToolLife = Math.max(store.getDouble(base + TOOL_LIFE) - 0.2, 0.0);
+            store.setDouble(base + TOOL_LIFE, remainingToolLife, now);
+
+            double targetRa = store.getDouble(base + SURFACE_TARGET);
+            double actualRa = targetRa + (rng.nextDouble() - 0.5) * 0.02;
+            store.setDouble(base + SURFACE_ACTUAL, actualRa, now);
+
+            simulateCuttingForces(actualRpm, now);
+
+            double fx = store.getDouble(base + CUTTING_FORCE[0]);
+            double fy = store.getDouble(base + CUTTING_FORCE[1]);
+            double fz = store.getDouble(base + CUTTING_FORCE[2]);
+
+            evaluateAlarms(targetRpm, actualRpm, remainingToolLife, targetRa, actualRa, fx, fy, fz);
+
+            updateSnapshot();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called at a high rate to move the axes along the loaded G-code program. The axes only move
+     * while the machine is running, and the program time is scaled with the actual feed rate.
+     */
+    public void simulateMotion() {
+        long now = System.nanoTime();
+        double elapsedSeconds = Math.min((now - lastMotionNanos) / 1e9, MOTION_MAX_STEP_SECONDS);
+        lastMotionNanos = now;
+
+        GCodeProgram program = pendingProgram.getAndSet(null);
+        if (program != null) {
+            interpolator.load(program);
+        }
+        if (stateEngine.getState() != State.RUNNING || !interpolator.advance(elapsedSeconds * feedOverride, toolPosition)) {
+            return;
+        }
+        long timestamp = System.currentTimeMillis();
+        store.setDouble(base + X_POS, toolPosition[0], timestamp);
+        store.setDouble(base + Y_POS, toolPosition[1], timestamp);
+        store.setDouble(base + Z_POS, toolPosition[2], timestamp);
+    }
+
+    /**
+     * Generates the force samples for the time elapsed since the previous call, runs them through
+     * the edge feature extractors and publishes the resulting features and the mean force of each
+     * axis. The raw samples never leave this method.
+     */
+    private void simulateCuttingForces(double spindleRpm, long timestamp) {
+        long now = System.nanoTime();
+        double elapsedSeconds = Math.min((now - lastForceSampleNanos) / 1e9, FORCE_MAX_CATCH_UP_SECONDS);
+        lastForceSampleNanos = now;
+        int samples = (int) Math.round(elapsedSeconds * forceSampleRate);
+        if (samples == 0) {
+            return;
+        }
+
+        for (int axis = 0; axis < FORCE_AXES.length; axis++) {
+            double sum = 0;
+            for (int done = 0; done < samples; done += FORCE_BLOCK_SIZE) {
+                int n = Math.min(FORCE_BLOCK_SIZE, samples - done);
+                forceSources[axis].generate(forceBlock, n, cuttingForceMeans[axis], spindleRpm);
+                forceExtractors[axis].accept(forceBlock, n);
+                for (int i = 0; i < n; i++) {
+                    sum += forceBlock[i];
+                }
+            }
+            store.setDouble(base + CUTTING_FORCE[axis], sum / samples, timestamp);
+
+            if (forceExtractors[axis].summarize(forceSummary)) {
+                int first = base + FORCE_FEATURES[axis];
+                for (int f = 0; f < forceSummary.length; f++) {
+                    store.setDouble(first + f, forceSummary[f], timestamp);
+                }
+            }
+        }
+    }
+
+    private double varyAround(double baseValue, double amplitudeFraction) {
+        double factor = 1.0 + (rng.nextDouble() - 0.5) * amplitudeFraction * 2;
+        return baseValue * factor;
+    }
+
+    /**
+     * Evaluates the alarm rules of a cycle. The AlarmMessage tag, the alarm condition and the
+     * machine state are only touched when the most important active alarm changes, so a steady
+     * state, with or without an alarm, costs no notifications.
+     */
+    private void evaluateAlarms(double targetRpm, double actualRpm, double toolLife, double surfaceTarget,
+                                double surfaceActual, double fx, double fy, double fz) {
+        if (!alarmEvaluator.evaluate(targetRpm, actualRpm, toolLife, surfaceTarget, surfaceActual, fx, fy, fz)) {
+            return;
+        }
+        int alarm = alarmEvaluator.getHighestActive();
+        if (alarm == reportedAlarm) {
+            return;
+        }
+        reportedAlarm = alarm;
+        if (alarm == CncAlarmEvaluator.NONE) {
+            clearAlarm();
+        } else {
+            raiseAlarm(alarm, alarmMessage(alarm, actualRpm));
+        }
+    }
+
+    private String alarmMessage(int alarm, double actualRpm) {
+        switch (alarm) {
+            case CncAlarmEvaluator.SPINDLE_DEVIATION:
+                return String.format("SpindleSpeed deviation >15%% (actual=%.2f)", actualRpm);
+            case CncAlarmEvaluator.SPINDLE_DEVIATION_SUSTAINED:
+                return "SpindleSpeed deviation >5% for last 3 cycles";
+            case CncAlarmEvaluator.TOOL_WEAR:
+                return "Tool wear alarm: remaining life <10%";
+            case CncAlarmEvaluator.TOOL_BREAKAGE:
+                return String.format("Tool breakage suspected: cutting force=%.1f N", alarmEvaluator.getTotalForce());
+            default:
+                return String.format("Dimensional tolerance ±0.01mm exceeded (Δ=%.4f)", alarmEvaluator.getSurfaceDelta());
+        }
+    }
+
+    private void raiseAlarm(int alarm, String message) {
+        System.out.println("[ALARM] " + name + ": " + message);
+        stateEngine.submit(Command.FAULT);
+        DateTime now = DateTime.currentTime();
+        store.setString(base + ALARM_MESSAGE, message, now.getMilliSeconds());
+
+        alarmCondition.setActive(true);
+        alarmCondition.setRetain(true);
+        alarmCondition.setAcked(false); // Also sets confirmed to false
+        alarmCondition.setSeverity(CncAlarmEvaluator.getSeverity(alarm));
+        alarmCondition.setMessage(LocalizedText.english(message));
+        alarmCondition.triggerEvent(now, now, ByteString.fromUUID(UUID.randomUUID()));
+    }
+
+    private void clearAlarm() {
+        System.out.println("[ALARM] " + name + ": cleared");
+        // The engine only leaves Error, a machine stopped meanwhile stays stopped
+        stateEngine.submit(Command.CLEAR_FAULT);
+        DateTime now = DateTime.currentTime();
+        store.setString(base + ALARM_MESSAGE, "OK", now.getMilliSeconds());
+
+        alarmCondition.setActive(false);
+        // An unacknowledged alarm stays visible in the alarm views of the clients
+        alarmCondition.setRetain(!alarmCondition.isAcked());
+        alarmCondition.setMessage(LocalizedText.english("OK"));
+        alarmCondition.triggerEvent(now, now, ByteString.fromUUID(UUID.randomUUID()));
+    }
+}
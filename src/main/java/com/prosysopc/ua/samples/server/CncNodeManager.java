@@ -1,171 +1,440 @@
 package com.prosysopc.ua.samples.server;
 
 import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.UaNodeId;
 import com.prosysopc.ua.ValueRanks;
 import com.prosysopc.ua.nodes.UaMethod;
 import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.nodes.UaType;
 import com.prosysopc.ua.server.*;
 import com.prosysopc.ua.server.nodes.*;
 import com.prosysopc.ua.stack.builtintypes.*;
 import com.prosysopc.ua.stack.core.Argument;
+import com.prosysopc.ua.stack.core.Attributes;
+import com.prosysopc.ua.stack.core.DataTypeIdentifiers;
 import com.prosysopc.ua.stack.core.Identifiers;
-import com.prosysopc.ua.stack.core.StatusCodes;
+import com.prosysopc.ua.stack.core.ReferenceTypeIdentifiers;
+import com.prosysopc.ua.typedictionary.FieldSpecification;
+import com.prosysopc.ua.typedictionary.StructureSpecification;
+import com.prosysopc.ua.typedictionary.StructureSpecification.StructureType;
+import com.prosysopc.ua.types.opcua.server.DataTypeEncodingTypeNode;
 
 import com.prosysopc.ua.stack.builtintypes.StatusCode;
 import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.samples.server.cnc.CncTagStore;
+import com.prosysopc.ua.samples.server.cnc.GCodeProgramCache;
+import com.prosysopc.ua.samples.server.cnc.ShardedTickScheduler;
+import com.prosysopc.ua.samples.server.cnc.TickMetrics;
+
+import java.io.File;
 
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Alternative implementation of the CNC Machine NodeManager (Version 2).
  * Same tags & methods as required by the assignment, but different internal structure.
+ * <p>
+ * The node manager hosts any number of {@link CncMachine}s, all instances of the CncMachineType
+ * object type. The methods are defined once on the type and shared by all machines. The
+ * simulation is sharded over several threads by machine.
+ * <p>
+ * The tag values are kept in a {@link CncTagStore} and served by a {@link CncIoManagerListener};
+ * the tag nodes do not hold values. Monitored items of the tags are notified directly from the
+ * store, like the MyBigNodeManager does for its DataItems.
+ * <p>
+ * Method calls and state transitions of all machines are processed by a small shared scheduler,
+ * see {@link com.prosysopc.ua.samples.server.cnc.MachineStateEngine}.
+ * <p>
+ * The tick statistics of the simulation are published in the Diagnostics object of every machine
+ * (the statistics of the shard that simulates it) and in CncSimulationDiagnostics (all shards, and
+ * the numbers of tag updates published and suppressed by the deadbands), and as text with
+ * {@link #getMetricsText()}.
+ * <p>
+ * Every machine also has a MachineSnapshot variable of the MachineSnapshotType structure, with
+ * the values of all tags at the end of a process cycle, so a client can follow a machine with a
+ * single monitored item.
  */
 public class CncNodeManager extends NodeManagerUaNode {
 
     public static final String NAMESPACE = "http://example.com/CNC/v2";
 
-    private UaObjectNode machineNode;
-
-    private UaVariableNode machineStatusVar;
-    private UaVariableNode spindleTargetVar;
-    private UaVariableNode spindleActualVar;
-    private UaVariableNode feedTargetVar;
-    private UaVariableNode feedActualVar;
-    private UaVariableNode toolLifeVar;
-    private UaVariableNode coolantTempVar;
-    private UaVariableNode xPosVar, yPosVar, zPosVar;
-    private UaVariableNode productionProgressVar;
-    private UaVariableNode alarmMessageVar;
-    private UaVariableNode surfaceTargetVar, surfaceActualVar;
-
-    private UaVariableNode goodPartsVar, badPartsVar, totalPartsVar;
-    private UaVariableNode cuttingForceXVar, cuttingForceYVar, cuttingForceZVar;
-    private UaVariableNode machiningPhaseVar;
-    private UaVariableNode orderVar, articleVar, quantityVar;
-
-    private UaVariableNode targetCoolantFlowVar, actualCoolantFlowVar;
-    private UaVariableNode targetCycleTimeVar, actualCycleTimeVar;
-
-    private final Random rng = new Random();
-
-    private final AlarmEngine alarmEngine = new AlarmEngine();
-
-    private final Map<String, UaVariableNode> tagMap = new HashMap<>();
+    // Share of a tick period the simulation of one shard may use before machines are deferred
+    private static final double TICK_BUDGET_FRACTION = 0.8;
+    // Commands are short, a couple of threads serve any number of machines
+    private static final int STATE_THREAD_COUNT = 2;
+    private static final long DIAGNOSTICS_INTERVAL_MILLIS = 1000;
+    private static final String SNAPSHOT_TYPE_NAME = "MachineSnapshotType";
+    // Encoding ids are transmitted in the binary form, so they should be numeric
+    private static final int SNAPSHOT_BINARY_ENCODING_ID = 5001;
+
+    private int machineCount = 1;
+    private int shardCount = Runtime.getRuntime().availableProcessors();
+    private int forceSampleRate = 10_000;
+    private File programDirectory = new File("programs");
+    private final Map<String, double[]> deadbands = new LinkedHashMap<>();
+
+    private UaObjectTypeNode machineType;
+    private NodeId snapshotTypeId;
+    private StructureSpecification snapshotSpecification;
+    // The fields of the snapshot: the timestamp, followed by the tags in creation order
+    private final List<FieldSpecification> snapshotFields = new ArrayList<>();
+    private final List<CncMachine> machines = new ArrayList<>();
+    private final Map<NodeId, CncMachine> machinesByNodeId = new HashMap<>();
+
+    private CncTagStore tagStore;
+    private CncIoManagerListener ioManagerListener;
+    // Monitored items of each store slot, copied on write; null when the slot is not monitored
+    private AtomicReferenceArray<MonitoredDataItem[]> monitoredItems;
+    // History of each store slot; null when history is not enabled or the slot is not historized
+    private volatile VariableHistory[] histories;
+
+    private ScheduledExecutorService stateScheduler;
+    private ShardedTickScheduler<CncMachine> cycleScheduler;
+    private ShardedTickScheduler<CncMachine> motionScheduler;
+    private CncDiagnostics simulationDiagnostics;
+    private ScheduledFuture<?> diagnosticsTask;
 
     public CncNodeManager(UaServer server, String namespaceUri) {
         super(server, namespaceUri);
     }
 
-    @Override
-    protected void init() throws StatusException {
-        super.init();
-        createMachineObject();
-        registerAllVariables();
-        registerAllMethods();
+    /**
+     * @return the store that holds the tag values of all machines
+     */
+    public CncTagStore getTagStore() {
+        return tagStore;
     }
 
-    private void createMachineObject() throws StatusException {
-        int ns = getNamespaceIndex();
+    /**
+     * @return the simulated machines
+     */
+    public List<CncMachine> getMachines() {
+        return Collections.unmodifiableList(machines);
+    }
 
-        machineNode = new UaObjectNode(
-                this,
-                new NodeId(ns, "CncMachine"),
-                new QualifiedName(ns, "CncMachine"),
-                LocalizedText.english("CNC Machining Center (V2)")
-        );
+    public int getMachineCount() {
+        return machineCount;
+    }
 
-        addNodeAndReference(
-                getServer().getNodeManagerRoot().getObjectsFolder(),
-                machineNode,
-                Identifiers.Organizes
-        );
+    /**
+     * Defines the number of machines to create. Must be called before the server is started.
+     */
+    public void setMachineCount(int machineCount) {
+        if (machineCount < 1) {
+            throw new IllegalArgumentException("machineCount must be at least 1");
+        }
+        this.machineCount = machineCount;
+    }
+
+    public int getShardCount() {
+        return shardCount;
     }
 
-    private void registerAllVariables() throws StatusException {
-        createCoreStatusVariables();
-        createPositionAndSurfaceVariables();
-        createProductionAndQualityVariables();
-        createCuttingForceAndCoolantVariables();
-        createMetaInformationVariables();
+    /**
+     * Defines the number of simulation threads. Must be called before the simulation is started.
+     */
+    public void setShardCount(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1");
+        }
+        this.shardCount = shardCount;
     }
 
-    private void createCoreStatusVariables() throws StatusException {
-        machineStatusVar   = createAndRegister("MachineStatus", "Running");
-        spindleTargetVar   = createAndRegister("TargetSpindleSpeed", 8500.0);
-        spindleActualVar   = createAndRegister("ActualSpindleSpeed", 8487.0);
-        feedTargetVar      = createAndRegister("TargetFeedRate", 1200.0);
-        feedActualVar      = createAndRegister("ActualFeedRate", 1198.0);
-        toolLifeVar        = createAndRegister("ToolLifeRemaining", 73.2);
-        coolantTempVar     = createAndRegister("CoolantTemperature", 22.5);
+    /**
+     * @return the sample rate of the simulated cutting force signals in Hz
+     */
+    public int getForceSampleRate() {
+        return forceSampleRate;
+    }
+
+    /**
+     * Defines the sample rate of the simulated cutting force signals. Must be called before the
+     * server is started.
+     *
+     * @param forceSampleRate the sample rate in Hz
+     */
+    public void setForceSampleRate(int forceSampleRate) {
+        if (forceSampleRate < 2 * CncMachine.FORCE_BAND_COUNT) {
+            throw new IllegalArgumentException("forceSampleRate is too low: " + forceSampleRate);
+        }
+        this.forceSampleRate = forceSampleRate;
     }
 
-    private void createPositionAndSurfaceVariables() throws StatusException {
-        xPosVar = createAndRegister("X", 125.847);
-        yPosVar = createAndRegister("Y", 89.234);
-        zPosVar = createAndRegister("Z", -45.678);
+    /**
+     * Defines the deadband of a tag for all machines, replacing the default. Must be called before
+     * the server is started.
+     *
+     * @param tagName the browse name of the tag, e.g. ActualSpindleSpeed
+     * @param absolute the absolute deadband in engineering units, 0 for none
+     * @param percent the deadband in percent of the last published value, 0 for none
+     * @throws IllegalArgumentException if there is no such tag or the deadband is negative
+     */
+    public void setDeadband(String tagName, double absolute, double percent) {
+        CncMachine.tagIndex(tagName);
+        if (absolute < 0 || percent < 0) {
+            throw new IllegalArgumentException("Deadband must not be negative");
+        }
+        deadbands.put(tagName, new double[] {absolute, percent});
+    }
 
-        surfaceTargetVar = createAndRegister("TargetSurfaceFinish", 0.8);
-        surfaceActualVar = createAndRegister("ActualSurfaceFinish", 0.75);
+    /**
+     * @return the directory from which LoadCncProgram reads the G-code programs
+     */
+    public File getProgramDirectory() {
+        return programDirectory;
     }
 
-    private void createProductionAndQualityVariables() throws StatusException {
-        productionProgressVar = createAndRegister("ProductionOrderProgress", 57.5);
-        alarmMessageVar       = createAndRegister("AlarmMessage", "OK");
+    /**
+     * Defines the directory from which LoadCncProgram reads the G-code programs. Programs that are
+     * not found there are looked up from the class path. Must be called before the server is
+     * started.
+     */
+    public void setProgramDirectory(File programDirectory) {
+        this.programDirectory = programDirectory;
+    }
 
-        goodPartsVar  = createAndRegister("GoodParts", 2847.0);
-        badPartsVar   = createAndRegister("BadParts", 23.0);
-        totalPartsVar = createAndRegister("TotalParts", 2870.0);
+    @Override
+    protected void init() throws StatusException {
+        super.init();
+        createSnapshotType();
+        createMachineType();
+        List<UaMethodNode> methods = registerAllMethods();
+
+        tagStore = new CncTagStore(machineCount, CncMachine.tagKinds());
+        CncMachine.applyDefaultDeadbands(tagStore);
+        for (Map.Entry<String, double[]> deadband : deadbands.entrySet()) {
+            double[] d = deadband.getValue();
+            tagStore.setDeadband(CncMachine.tagIndex(deadband.getKey()), d[0], d[1]);
+        }
+        monitoredItems = new AtomicReferenceArray<>(tagStore.size());
+        tagStore.setChangeListener(this::onTagChange);
+        ioManagerListener = new CncIoManagerListener(tagStore);
+        getIoManager().addListeners(ioManagerListener);
+
+        // Parsed programs are shared by all machines
+        GCodeProgramCache programCache = new GCodeProgramCache(programDirectory);
+        AtomicInteger stateThreadNumber = new AtomicInteger();
+        stateScheduler = Executors.newScheduledThreadPool(STATE_THREAD_COUNT, r -> {
+            Thread t = new Thread(r, "CncState-" + stateThreadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        UaNode objectsFolder = getServer().getNodeManagerRoot().getObjectsFolder();
+        for (int i = 0; i < machineCount; i++) {
+            CncMachine machine = new CncMachine(this, tagStore, i, programCache, forceSampleRate, stateScheduler);
+            machine.createNodes(objectsFolder, machineType, methods);
+            machines.add(machine);
+            machinesByNodeId.put(machine.getMachineNode().getNodeId(), machine);
+        }
+        simulationDiagnostics = new CncDiagnostics(this, objectsFolder, "", "CncSimulationDiagnostics", true);
+        System.out.println("[OPC-UA] Created " + machineCount + " CNC machine(s) with "
+                + CncMachine.tagDeclarations().size() + " tags each.");
+    }
 
-        orderVar    = createAndRegister("ProductionOrder", "PO-2024-AERO-0876");
-        articleVar  = createAndRegister("Article", "ART-TB-7075-T6");
-        quantityVar = createAndRegister("OrderQuantity", 120.0);
+    /**
+     * Registers the numeric tags of all machines with the historian, and makes it the history
+     * listener of this node manager. From then on, every published change of a tag is appended to
+     * its history, so the deadbands of the tags also limit the amount of history. Must be called
+     * after the server is started.
+     *
+     * @param historian the historian
+     * @param capacity the number of values to keep per tag
+     * @return the number of historized tags
+     */
+    public int initHistory(MyHistorian historian, int capacity) {
+        List<CncTagVariable> variables = new ArrayList<>();
+        for (CncMachine machine : machines) {
+            for (CncTagVariable variable : machine.getTagVariables()) {
+                if (tagStore.getKind(variable.getSlot()) == CncTagStore.DOUBLE) {
+                    variables.add(variable);
+                }
+            }
+        }
+        VariableHistory[] registered = historian.addVariableHistories(variables, capacity);
+        VariableHistory[] bySlot = new VariableHistory[tagStore.size()];
+        for (int i = 0; i < registered.length; i++) {
+            bySlot[variables.get(i).getSlot()] = registered[i];
+        }
+        getHistoryManager().setListener(historian);
+        histories = bySlot;
+        System.out.printf("[OPC-UA] History enabled for %d CNC tags, %d values each.%n", registered.length, capacity);
+        return registered.length;
+    }
 
-        machiningPhaseVar = createAndRegister("MachiningPhase", "Roughing");
+    /**
+     * Called by the store on every published change of a tag. The DataValue of the change is
+     * created once, if anyone needs it, and shared by the monitored items and the history, which
+     * do not modify it.
+     */
+    private void onTagChange(int slot) {
+        MonitoredDataItem[] items = monitoredItems.get(slot);
+        VariableHistory[] h = histories;
+        VariableHistory history = h == null ? null : h[slot];
+        if (items == null && history == null) {
+            return;
+        }
+        DataValue dataValue = new DataValue();
+        ioManagerListener.getDataValue(slot, dataValue);
+        if (items != null) {
+            for (MonitoredDataItem item : items) {
+                item.notifyDataChange(dataValue);
+            }
+        }
+        if (history != null) {
+            history.append(dataValue);
+        }
     }
 
-    private void createCuttingForceAndCoolantVariables() throws StatusException {
-        cuttingForceXVar = createAndRegister("CuttingForceX", 245.7);
-        cuttingForceYVar = createAndRegister("CuttingForceY", 189.3);
-        cuttingForceZVar = createAndRegister("CuttingForceZ", 567.8);
+    @Override
+    protected void afterCreateMonitoredDataItem(ServiceContext serviceContext, Subscription subscription,
+                                                MonitoredDataItem item) {
+        super.afterCreateMonitoredDataItem(serviceContext, subscription, item);
+        int slot = getSlot(item);
+        if (slot >= 0) {
+            synchronized (monitoredItems) {
+                MonitoredDataItem[] items = monitoredItems.get(slot);
+                int n = items == null ? 0 : items.length;
+                MonitoredDataItem[] newItems = items == null ? new MonitoredDataItem[1] : Arrays.copyOf(items, n + 1);
+                newItems[n] = item;
+                monitoredItems.set(slot, newItems);
+            }
+        }
+    }
 
-        targetCoolantFlowVar = createAndRegister("TargetCoolantFlow", 25.0);
-        actualCoolantFlowVar = createAndRegister("ActualCoolantFlow", 24.8);
+    @Override
+    protected void deleteMonitoredItem(ServiceContext serviceContext, Subscription subscription, MonitoredItem item)
+            throws StatusException {
+        super.deleteMonitoredItem(serviceContext, subscription, item);
+        if (!(item instanceof MonitoredDataItem)) {
+            return;
+        }
+        int slot = getSlot((MonitoredDataItem) item);
+        if (slot >= 0) {
+            synchronized (monitoredItems) {
+                MonitoredDataItem[] items = monitoredItems.get(slot);
+                if (items == null) {
+                    return;
+                }
+                List<MonitoredDataItem> remaining = new ArrayList<>(Arrays.asList(items));
+                remaining.remove(item);
+                monitoredItems.set(slot, remaining.isEmpty() ? null : remaining.toArray(new MonitoredDataItem[0]));
+            }
+        }
+    }
 
-        targetCycleTimeVar = createAndRegister("TargetCycleTime", 75.0);
-        actualCycleTimeVar = createAndRegister("ActualCycleTime", 73.2);
+    /**
+     * @return the store slot of the tag that the item monitors, or -1 if it is not a tag value
+     */
+    private int getSlot(MonitoredDataItem item) {
+        if (!Attributes.Value.equals(item.getAttributeId())) {
+            return -1;
+        }
+        UaNode node = findNode(item.getNodeId());
+        return node instanceof CncTagVariable ? ((CncTagVariable) node).getSlot() : -1;
     }
 
-    private void createMetaInformationVariables() throws StatusException {
-        createAndRegister("MachineName", "PrecisionCraft VMC-850 #3");
-        createAndRegister("MachineSerialNumber", "VMC850-2023-003");
-        createAndRegister("Plant", "Munich Precision Manufacturing");
-        createAndRegister("ProductionSegment", "Aerospace Components");
-        createAndRegister("ProductionLine", "5-Axis Machining Cell C");
-        createAndRegister("GoodPartsOrder", 67.0);
-        createAndRegister("BadPartsOrder", 2.0);
-        createAndRegister("TotalPartsOrder", 69.0);
+    /**
+     * Creates the CncMachineType with an instance declaration for every tag.
+     */
+    private void createMachineType() throws StatusException {
+        int ns = getNamespaceIndex();
+        UaType baseObjectType = getServer().getNodeManagerRoot().getType(Identifiers.BaseObjectType);
+
+        machineType = new UaObjectTypeNode(this, new NodeId(ns, "CncMachineType"), "CncMachineType", Locale.ENGLISH);
+        addNodeAndReference(baseObjectType, machineType, Identifiers.HasSubtype);
+
+        for (Map.Entry<String, Object> tag : CncMachine.tagDeclarations().entrySet()) {
+            String tagName = tag.getKey();
+            PlainVariable<Object> declaration = new PlainVariable<>(this, new NodeId(ns, "CncMachineType." + tagName),
+                    new QualifiedName(ns, tagName), LocalizedText.english(tagName));
+            declaration.setDataTypeId(resolveDataType(tag.getValue()));
+            declaration.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
+            declaration.addModellingRule(ModellingRule.Mandatory);
+            addNodeAndReference(machineType, declaration, Identifiers.HasComponent);
+        }
+
+        PlainVariable<Object> snapshot = new PlainVariable<>(this, new NodeId(ns, "CncMachineType.MachineSnapshot"),
+                new QualifiedName(ns, "MachineSnapshot"), LocalizedText.english("MachineSnapshot"));
+        snapshot.setDataTypeId(snapshotTypeId);
+        snapshot.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
+        snapshot.addModellingRule(ModellingRule.Mandatory);
+        addNodeAndReference(machineType, snapshot, Identifiers.HasComponent);
     }
 
-    private PlainVariable<?> createAndRegister(String tagName, Object initialValue) throws StatusException {
+    /**
+     * Creates the MachineSnapshotType structure with a Timestamp field and a field for every tag.
+     * Like MyNodeManager.createCustomStructure, this does not create a DataTypeDictionary, so only
+     * clients that use the DataTypeDefinition attribute (OPC UA 1.04) can decode it.
+     */
+    private void createSnapshotType() throws StatusException {
         int ns = getNamespaceIndex();
-        NodeId id = new NodeId(ns, tagName);
-        QualifiedName browseName = new QualifiedName(ns, tagName);
-        LocalizedText displayName = LocalizedText.english(tagName);
+        NodeId typeId = new NodeId(ns, SNAPSHOT_TYPE_NAME);
+        snapshotTypeId = typeId;
+        NodeId binaryEncodingId = new NodeId(ns, SNAPSHOT_BINARY_ENCODING_ID);
+
+        snapshotFields.add(createField("Timestamp", DataTypeIdentifiers.DateTime, DateTime.class));
+        for (Map.Entry<String, Object> tag : CncMachine.tagDeclarations().entrySet()) {
+            boolean string = tag.getValue() instanceof String;
+            snapshotFields.add(createField(tag.getKey(), string ? DataTypeIdentifiers.String : DataTypeIdentifiers.Double,
+                    string ? String.class : Double.class));
+        }
+
+        StructureSpecification.Builder builder = StructureSpecification.builder();
+        builder.setStructureType(StructureType.NORMAL);
+        builder.setName(SNAPSHOT_TYPE_NAME);
+        builder.setTypeId(UaNodeId.fromLocal(typeId, getNamespaceTable()));
+        builder.setBinaryEncodeId(UaNodeId.fromLocal(binaryEncodingId, getNamespaceTable()));
+        for (FieldSpecification field : snapshotFields) {
+            builder.addField(field);
+        }
+        snapshotSpecification = builder.build();
+        getServer().getEncoderContext().addStructureSpecification(snapshotSpecification);
+
+        UaDataTypeNode dataTypeNode = new UaDataTypeNode(this, typeId, new QualifiedName(ns, SNAPSHOT_TYPE_NAME),
+                new LocalizedText(SNAPSHOT_TYPE_NAME));
+        UaType structureTypeNode = getNodeManagerTable().getType(DataTypeIdentifiers.Structure);
+        structureTypeNode.addSubType(dataTypeNode);
+
+        DataTypeEncodingTypeNode binaryEncodingNode = createInstance(DataTypeEncodingTypeNode.class, binaryEncodingId,
+                new QualifiedName(0, "Default Binary"), new LocalizedText("Default Binary"));
+        addNode(binaryEncodingNode);
+        dataTypeNode.addReference(binaryEncodingNode, ReferenceTypeIdentifiers.HasEncoding, false);
+    }
 
-        PlainVariable<Object> var = new PlainVariable<>(this, id, browseName, displayName);
+    private FieldSpecification createField(String name, NodeId dataTypeId, Class<?> javaClass) {
+        FieldSpecification.Builder builder = FieldSpecification.builder();
+        builder.setDataTypeId(UaNodeId.fromLocal(dataTypeId, getNamespaceTable()));
+        builder.setName(name);
+        builder.setJavaClass(javaClass);
+        return builder.build();
+    }
 
-        var.setDataTypeId(resolveDataType(initialValue));
-        var.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
-        var.setDescription(LocalizedText.english("CNC Tag: " + tagName));
-        var.setValue(new Variant(initialValue));
+    NodeId getSnapshotTypeId() {
+        return snapshotTypeId;
+    }
 
-        addNodeAndReference(machineNode, var, Identifiers.HasComponent);
+    /**
+     * @return the specification of the MachineSnapshotType structure
+     */
+    StructureSpecification getSnapshotSpecification() {
+        return snapshotSpecification;
+    }
 
-        tagMap.put(tagName, var);
-        return var;
+    /**
+     * @return the fields of the MachineSnapshotType: Timestamp, followed by the tags in creation
+     *         order
+     */
+    List<FieldSpecification> getSnapshotFields() {
+        return snapshotFields;
     }
 
-    private NodeId resolveDataType(Object value) {
+    static NodeId resolveDataType(Object value) {
         if (value instanceof String)  return Identifiers.String;
         if (value instanceof Integer) return Identifiers.Int32;
         if (value instanceof Double || value instanceof Float) return Identifiers.Double;
@@ -173,7 +442,11 @@ public class CncNodeManager extends NodeManagerUaNode {
         return Identifiers.BaseDataType;
     }
 
-    private void registerAllMethods() throws StatusException {
+    /**
+     * Creates the method nodes on the machine type. The machines refer to the same nodes, and a
+     * call is dispatched to the machine by its object id.
+     */
+    private List<UaMethodNode> registerAllMethods() throws StatusException {
         final int ns = getNamespaceIndex();
 
         java.util.function.Function<String, UaMethodNode> methodFactory = methodName -> {
@@ -185,31 +458,35 @@ public class CncNodeManager extends NodeManagerUaNode {
             );
             node.setExecutable(true);
             node.setUserExecutable(true);
+            node.addModellingRule(ModellingRule.Mandatory);
             try {
-                addNodeAndReference(machineNode, node, Identifiers.HasComponent);
+                addNodeAndReference(machineType, node, Identifiers.HasComponent);
             } catch (StatusException e) {
                 throw new RuntimeException(e);
             }
             return node;
         };
 
-        UaMethodNode startMethod       = methodFactory.apply("StartMachine");
-        UaMethodNode stopMethod        = methodFactory.apply("StopMachine");
-        UaMethodNode maintenanceMethod = methodFactory.apply("EnterMaintenanceMode");
-        UaMethodNode resetMethod       = methodFactory.apply("ResetCounters");
-        UaMethodNode homeAxesMethod    = methodFactory.apply("HomeAxes");
+        List<UaMethodNode> methods = new ArrayList<>();
+        methods.add(methodFactory.apply("StartMachine"));
+        methods.add(methodFactory.apply("StopMachine"));
+        methods.add(methodFactory.apply("EnterMaintenanceMode"));
+        methods.add(methodFactory.apply("ResetCounters"));
+        methods.add(methodFactory.apply("HomeAxes"));
 
         UaMethodNode toolChangeMethod  = methodFactory.apply("ToolChange");
         addInputArgumentsProperty(toolChangeMethod, new Argument[]{
                 new Argument("ToolNumber", Identifiers.Int32, ValueRanks.Scalar, null,
                         LocalizedText.english("Tool number to switch to"))
         });
+        methods.add(toolChangeMethod);
 
         UaMethodNode loadProgramMethod = methodFactory.apply("LoadCncProgram");
         addInputArgumentsProperty(loadProgramMethod, new Argument[]{
                 new Argument("ProgramName", Identifiers.String, ValueRanks.Scalar, null,
                         LocalizedText.english("Program name"))
         });
+        methods.add(loadProgramMethod);
 
         UaMethodNode loadOrderMethod   = methodFactory.apply("LoadProductionOrder");
         addInputArgumentsProperty(loadOrderMethod, new Argument[]{
@@ -217,6 +494,7 @@ public class CncNodeManager extends NodeManagerUaNode {
                 new Argument("Article",  Identifiers.String, ValueRanks.Scalar, null, LocalizedText.english("Article identifier")),
                 new Argument("Quantity", Identifiers.Double, ValueRanks.Scalar, null, LocalizedText.english("Target quantity"))
         });
+        methods.add(loadOrderMethod);
 
         MethodManagerUaNode mm = new MethodManagerUaNode(this);
         mm.addCallListener(new CallableListener() {
@@ -231,37 +509,21 @@ public class CncNodeManager extends NodeManagerUaNode {
                                   DiagnosticInfo[] inputArgDiag,
                                   Variant[] outputArguments) throws StatusException {
 
+                CncMachine machine = machinesByNodeId.get(objectId);
+                if (machine == null) {
+                    return false;
+                }
                 try {
-                    if (methodId.equals(startMethod.getNodeId())) {
-                        handleStart();
-                    } else if (methodId.equals(stopMethod.getNodeId())) {
-                        handleStop();
-                    } else if (methodId.equals(maintenanceMethod.getNodeId())) {
-                        handleEnterMaintenance();
-                    } else if (methodId.equals(resetMethod.getNodeId())) {
-                        handleResetCounters();
-                    } else if (methodId.equals(homeAxesMethod.getNodeId())) {
-                        handleHomeAxes();
-                    } else if (methodId.equals(toolChangeMethod.getNodeId())) {
-                        int toolNum = extractToolNumber(inputArguments);
-                        handleToolChange(toolNum);
-                    } else if (methodId.equals(loadProgramMethod.getNodeId())) {
-                        String programName = (inputArguments != null && inputArguments.length > 0)
-                                ? String.valueOf(inputArguments[0].getValue())
-                                : "DefaultProgram";
-                        handleLoadProgram(programName);
-                    } else if (methodId.equals(loadOrderMethod.getNodeId())) {
-                        handleLoadOrder(inputArguments);
-                    } else {
-                        return false;
-                    }
-                    return true;
+                    return machine.call(method.getBrowseName().getName(), inputArguments);
+                } catch (StatusException ex) {
+                    throw ex;
                 } catch (Exception ex) {
                     ex.printStackTrace();
                     return false;
                 }
             }
         });
+        return methods;
     }
 
     private void addInputArgumentsProperty(UaMethodNode methodNode, Argument[] args) throws StatusException {
@@ -282,246 +544,90 @@ public class CncNodeManager extends NodeManagerUaNode {
         addNodeAndReference(methodNode, inputProp, Identifiers.HasProperty);
     }
 
-    private void handleStart() {
-        updateStatus("Starting");
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                updateStatus("Running");
-            }
-        }, 2000);
-        System.out.println("[OPC-UA] Machine start sequence triggered (V2).");
-    }
-
-    private void handleStop() {
-        updateStatus("Stopping");
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                updateStatus("Stopped");
-            }
-        }, 2000);
-        System.out.println("[OPC-UA] Machine stop sequence triggered (V2).");
-    }
-
-    private void handleEnterMaintenance() {
-        updateStatus("Maintenance");
-        System.out.println("[OPC-UA] Machine switched to Maintenance mode.");
-    }
-
-    private void handleResetCounters() {
-        try {
-            goodPartsVar.setValue(new Variant(0.0));
-            badPartsVar.setValue(new Variant(0.0));
-            totalPartsVar.setValue(new Variant(0.0));
-            productionProgressVar.setValue(new Variant(0.0));
-            System.out.println("[OPC-UA] All global counters have been reset.");
-        } catch (StatusException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void handleToolChange(int toolNumber) throws StatusException {
-        System.out.println("[OPC-UA] Tool change requested → Tool #" + toolNumber);
-        // simple: reset tool life to 100%
-        toolLifeVar.setValue(new Variant(100.0));
-    }
-
-    private void handleLoadProgram(String programName) {
-        System.out.println("[OPC-UA] CNC program loaded: " + programName);
+    /**
+     * Starts the simulation of all machines: the process cycle every second and the axis motion at
+     * the given rate, both sharded over {@link #getShardCount()} threads.
+     *
+     * @param motionRate the update rate of the axis motion in Hz
+     */
+    public void startSimulation(int motionRate) {
+        cycleScheduler = new ShardedTickScheduler<>("CncCycle", machines, shardCount);
+        cycleScheduler.scheduleAtFixedRate(CncMachine::simulateCycle, 1_000_000_000L, TICK_BUDGET_FRACTION);
+        motionScheduler = new ShardedTickScheduler<>("CncMotion", machines, shardCount);
+        motionScheduler.scheduleAtFixedRate(CncMachine::simulateMotion, 1_000_000_000L / motionRate,
+                TICK_BUDGET_FRACTION);
+        diagnosticsTask = stateScheduler.scheduleAtFixedRate(this::updateDiagnostics, DIAGNOSTICS_INTERVAL_MILLIS,
+                DIAGNOSTICS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("[OPC-UA] CNC simulation started on " + cycleScheduler.getShardCount() + " thread(s).");
     }
 
-    private void handleHomeAxes() {
+    /**
+     * Copies the tick statistics and the tag update counts to the Diagnostics objects.
+     */
+    private void updateDiagnostics() {
         try {
-            xPosVar.setValue(new Variant(0.0));
-            yPosVar.setValue(new Variant(0.0));
-            zPosVar.setValue(new Variant(0.0));
-            updateStatus("Homed");
-            System.out.println("[OPC-UA] Axes homed to reference position.");
-        } catch (StatusException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void handleLoadOrder(Variant[] args) {
-        String orderId = "";
-        String articleId = "";
-        double qty = 0.0;
-
-        if (args != null) {
-            if (args.length > 0 && args[0] != null && args[0].getValue() != null) {
-                orderId = String.valueOf(args[0].getValue());
-            }
-            if (args.length > 1 && args[1] != null && args[1].getValue() != null) {
-                articleId = String.valueOf(args[1].getValue());
+            for (CncMachine machine : machines) {
+                int index = machine.getIndex();
+                machine.getDiagnostics().update(cycleScheduler.getMetrics(cycleScheduler.getShard(index)),
+                        motionScheduler.getMetrics(motionScheduler.getShard(index)));
             }
-            if (args.length > 2 && args[2] != null && args[2].getValue() != null) {
-                Object raw = args[2].getValue();
-                if (raw instanceof Number) {
-                    qty = ((Number) raw).doubleValue();
-                } else {
-                    qty = Double.parseDouble(String.valueOf(raw));
-                }
-            }
-        }
-
-        try {
-            orderVar.setValue(new Variant(orderId));
-            articleVar.setValue(new Variant(articleId));
-            quantityVar.setValue(new Variant(qty));
-            productionProgressVar.setValue(new Variant(0.0));
-            updateStatus("Order Loaded");
-
-            System.out.printf("[OPC-UA] Production order loaded: %s, article=%s, qty=%.1f%n",
-                    orderId, articleId, qty);
-
-        } catch (StatusException e) {
+            simulationDiagnostics.update(cycleScheduler.getMetrics(), motionScheduler.getMetrics());
+            simulationDiagnostics.updateTagCounts(tagStore.getPublishedCount(), tagStore.getSuppressedCount());
+        } catch (RuntimeException e) {
+            // Keep the periodic task alive
             e.printStackTrace();
         }
     }
 
-    private int extractToolNumber(Variant[] inputArguments) {
-        int defaultTool = 1;
-        if (inputArguments == null || inputArguments.length == 0) {
-            return defaultTool;
+    /**
+     * @return the statistics of the simulation in the Prometheus text format: the tick histograms,
+     *         overruns and drift of every shard, the tag update counts and the processed machine
+     *         commands; empty if the simulation has not been started
+     */
+    public String getMetricsText() {
+        if (cycleScheduler == null) {
+            return "";
         }
-        Object v = inputArguments[0].getValue();
-        if (v instanceof Number) {
-            return ((Number) v).intValue();
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE cnc_tick_duration_microseconds histogram\n");
+        for (ShardedTickScheduler<CncMachine> scheduler : Arrays.asList(cycleScheduler, motionScheduler)) {
+            for (int shard = 0; shard < scheduler.getShardCount(); shard++) {
+                String labels = "scheduler=\"" + scheduler.getName() + "\",shard=\"" + shard + "\"";
+                scheduler.getMetrics(shard).appendText(sb, "cnc_tick", labels);
+            }
         }
-        try {
-            return Integer.parseInt(String.valueOf(v));
-        } catch (NumberFormatException ex) {
-            return defaultTool;
+        sb.append("cnc_machines ").append(machines.size()).append('\n');
+        sb.append("cnc_tag_updates_published_total ").append(tagStore.getPublishedCount()).append('\n');
+        sb.append("cnc_tag_updates_suppressed_total ").append(tagStore.getSuppressedCount()).append('\n');
+        long processed = 0;
+        for (CncMachine machine : machines) {
+            processed += machine.getStateEngine().getProcessedCount();
         }
+        sb.append("cnc_machine_commands_processed_total ").append(processed).append('\n');
+        return sb.toString();
     }
 
-    private void updateStatus(String newStatus) {
-        try {
-            machineStatusVar.setValue(new Variant(newStatus));
-        } catch (StatusException e) {
-            e.printStackTrace();
+    /**
+     * Stops the simulation of all machines.
+     */
+    public void stopSimulation() {
+        if (cycleScheduler != null) {
+            diagnosticsTask.cancel(false);
+            cycleScheduler.shutdown();
+            motionScheduler.shutdown();
+            System.out.printf("[OPC-UA] CNC simulation stopped, %d cycle ticks deferred, %d motion ticks deferred%n",
+                    cycleScheduler.getDeferredCount(), motionScheduler.getDeferredCount());
+            System.out.printf("[OPC-UA] CNC tag updates: %d published, %d suppressed by deadband%n",
+                    tagStore.getPublishedCount(), tagStore.getSuppressedCount());
         }
     }
 
     /**
-     * Called periodically to simulate process changes.
-     * Public API is unchanged, internal flow is different in V2.
+     * Simulates one process cycle of all machines in the calling thread.
      */
     public void simulateCycle() {
-        try {
-            double targetRpm   = getDouble(spindleTargetVar);
-            double actualRpm   = varyAround(targetRpm, 0.04);
-            spindleActualVar.setValue(new Variant(actualRpm));
-
-            double targetFeed  = getDouble(feedTargetVar);
-            double actualFeed  = varyAround(targetFeed, 0.03);
-            feedActualVar.setValue(new Variant(actualFeed));
-
-            double remainingToolLife = Math.max(getDouble(toolLifeVar) - 0.2, 0.0);
-            toolLifeVar.setValue(new Variant(remainingToolLife));
-
-            double targetRa = getDouble(surfaceTargetVar);
-            double actualRa = targetRa + (rng.nextDouble() - 0.5) * 0.02;
-            surfaceActualVar.setValue(new Variant(actualRa));
-
-            double fx = getDouble(cuttingForceXVar);
-            double fy = getDouble(cuttingForceYVar);
-            double fz = getDouble(cuttingForceZVar);
-
-            alarmEngine.evaluateAndUpdate(
-                    targetRpm,
-                    actualRpm,
-                    remainingToolLife,
-                    targetRa,
-                    actualRa,
-                    fx, fy, fz
-            );
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    private double varyAround(double baseValue, double amplitudeFraction) {
-        double factor = 1.0 + (rng.nextDouble() - 0.5) * amplitudeFraction * 2;
-        return baseValue * factor;
-    }
-
-    private double getDouble(UaVariableNode node) throws StatusException {
-        return (Double) node.getValue().getValue().getValue();
-    }
-
-    private class AlarmEngine {
-        private final LinkedList<Double> recentRpmDeviation = new LinkedList<>();
-
-        void evaluateAndUpdate(double targetRpm,
-                               double actualRpm,
-                               double toolLife,
-                               double surfTarget,
-                               double surfActual,
-                               double fx,
-                               double fy,
-                               double fz) {
-
-            try {
-                double deviation = Math.abs(actualRpm - targetRpm) / targetRpm;
-                recentRpmDeviation.add(deviation);
-                if (recentRpmDeviation.size() > 3) {
-                    recentRpmDeviation.removeFirst();
-                }
-
-                boolean threeConsecutiveHigh = recentRpmDeviation.size() == 3 &&
-                        recentRpmDeviation.stream().allMatch(d -> d > 0.05);
-
-                double totalForce = Math.sqrt(fx * fx + fy * fy + fz * fz);
-                double surfDelta  = Math.abs(surfActual - surfTarget);
-
-                String alarmText = null;
-
-                if (deviation > 0.15) {
-                    alarmText = String.format("SpindleSpeed deviation >15%% (actual=%.2f)", actualRpm);
-                } else if (threeConsecutiveHigh) {
-                    alarmText = "SpindleSpeed deviation >5% for last 3 cycles";
-                } else if (toolLife < 10.0) {
-                    alarmText = "Tool wear alarm: remaining life <10%";
-                } else if (totalForce > 1.5 * 600.0) {
-                    alarmText = String.format("Tool breakage suspected: cutting force=%.1f N", totalForce);
-                } else if (surfDelta > 0.01) {
-                    alarmText = String.format("Dimensional tolerance ±0.01mm exceeded (Δ=%.4f)", surfActual - surfTarget);
-                }
-
-                if (alarmText != null) {
-                    raiseAlarm(alarmText);
-                } else {
-                    clearAlarm();
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-        private void raiseAlarm(String message) {
-            System.out.println("[ALARM] " + message);
-            updateStatus("Error");
-            try {
-                alarmMessageVar.setValue(new Variant(message));
-            } catch (StatusException e) {
-                e.printStackTrace();
-            }
-        }
-
-        private void clearAlarm() {
-            try {
-                alarmMessageVar.setValue(new Variant("OK"));
-                // do not override status if machine is already stopped etc.
-                if ("Error".equals(machineStatusVar.getValue().getValue().getValue())) {
-                    updateStatus("Running");
-                }
-            } catch (StatusException e) {
-                e.printStackTrace();
-            }
+        for (CncMachine machine : machines) {
+            machine.simulateCycle();
         }
     }
 }
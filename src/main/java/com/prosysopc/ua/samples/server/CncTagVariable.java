@@ -0,0 +1,29 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.server.NodeManagerUaNode;
+import com.prosysopc.ua.server.nodes.PlainVariable;
+import com.prosysopc.ua.stack.builtintypes.LocalizedText;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.QualifiedName;
+
+/**
+ * A CNC tag node whose value lives in the {@link com.prosysopc.ua.samples.server.cnc.CncTagStore}.
+ * The node only knows its slot; the value is served by the {@link CncIoManagerListener}.
+ */
+public class CncTagVariable extends PlainVariable<Object> {
+
+    private final int slot;
+
+    public CncTagVariable(NodeManagerUaNode nodeManager, NodeId nodeId, QualifiedName browseName,
+                          LocalizedText displayName, int slot) {
+        super(nodeManager, nodeId, browseName, displayName);
+        this.slot = slot;
+    }
+
+    /**
+     * @return the slot of the tag in the tag store
+     */
+    public int getSlot() {
+        return slot;
+    }
+}
@@ -0,0 +1,157 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.prosysopc.ua.EventData;
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.nodes.UaType;
+import com.prosysopc.ua.server.ContentFilterDefinition;
+import com.prosysopc.ua.server.NodeManagerTable;
+import com.prosysopc.ua.stack.builtintypes.ExtensionObject;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.QualifiedName;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.ContentFilter;
+import com.prosysopc.ua.stack.core.ContentFilterElement;
+import com.prosysopc.ua.stack.core.EventFilter;
+import com.prosysopc.ua.stack.core.EventFilterResult;
+import com.prosysopc.ua.stack.core.FilterOperator;
+import com.prosysopc.ua.stack.core.LiteralOperand;
+import com.prosysopc.ua.stack.encoding.DecodingException;
+
+/**
+ * The EventFilters of history event reads, parsed once and kept by their content, so a client that
+ * repeats the same query does not parse its filter again.
+ * <p>
+ * A where clause that only tests the event type with OfType, as alarm clients typically use, is
+ * answered from the event type of the event, and the answer is kept per event type, so the filter
+ * is not evaluated for each event. The {@value #MAX_FILTERS} most recently used filters are kept.
+ */
+class EventFilterCache {
+
+    private static final int MAX_FILTERS = 64;
+
+    /**
+     * A parsed EventFilter.
+     */
+    static class CompiledFilter {
+        private final NodeManagerTable nodeManagerTable;
+        private final List<List<QualifiedName>> fieldPaths = new ArrayList<List<QualifiedName>>();
+        private final ContentFilterDefinition definition = new ContentFilterDefinition();
+        // The type of a where clause that is only OfType, or null
+        private final NodeId ofType;
+        // Whether each event type is ofType or its subtype
+        private final Map<NodeId, Boolean> typeMatches = new ConcurrentHashMap<>();
+
+        CompiledFilter(NodeManagerTable nodeManagerTable, EventFilter filter) {
+            this.nodeManagerTable = nodeManagerTable;
+            ContentFilterDefinition.parseEventFilter(nodeManagerTable.getNodeManagerRoot(), filter, fieldPaths,
+                    definition, new EventFilterResult());
+            ofType = getOfTypeOnly(nodeManagerTable, filter.getWhereClause());
+        }
+
+        /**
+         * @param eventType the type of the event, or null if it is not known
+         * @return whether the event passes the where clause
+         */
+        boolean matches(EventData event, NodeId eventType) {
+            if ((ofType == null) || (eventType == null)) {
+                return definition.evaluate(event, true);
+            }
+            return matchesType(eventType);
+        }
+
+        /**
+         * @return whether the where clause only tests the event type, so that
+         *         {@link #matchesType(NodeId)} decides it for all events of a type
+         */
+        boolean selectsTypes() {
+            return ofType != null;
+        }
+
+        /**
+         * @return whether the events of the type pass a where clause that only tests the event type
+         */
+        boolean matchesType(NodeId eventType) {
+            return typeMatches.computeIfAbsent(eventType, this::isOfType);
+        }
+
+        private boolean isOfType(NodeId eventType) {
+            if (eventType.equals(ofType)) {
+                return true;
+            }
+            try {
+                UaNode type = nodeManagerTable.getNode(eventType);
+                return (type instanceof UaType) && ((UaType) type).inheritsFrom(ofType);
+            } catch (StatusException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @return the values of the selected fields of the event
+         */
+        Variant[] getFieldValues(EventData event) {
+            return Variant.asObjectArray(event.getFieldValues(fieldPaths));
+        }
+    }
+
+    private final NodeManagerTable nodeManagerTable;
+    private final Map<EventFilter, CompiledFilter> filters =
+            new LinkedHashMap<EventFilter, CompiledFilter>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<EventFilter, CompiledFilter> eldest) {
+                    return size() > MAX_FILTERS;
+                }
+            };
+
+    EventFilterCache(NodeManagerTable nodeManagerTable) {
+        this.nodeManagerTable = nodeManagerTable;
+    }
+
+    /**
+     * @return the parsed filter, from the cache if a filter with the same content was parsed before
+     */
+    CompiledFilter get(EventFilter filter) {
+        synchronized (filters) {
+            CompiledFilter compiled = filters.get(filter);
+            if (compiled != null) {
+                return compiled;
+            }
+        }
+        CompiledFilter compiled = new CompiledFilter(nodeManagerTable, filter);
+        synchronized (filters) {
+            filters.put(filter, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * @return the type of an OfType where clause with a literal type, or null for any other clause
+     */
+    private static NodeId getOfTypeOnly(NodeManagerTable nodeManagerTable, ContentFilter whereClause) {
+        ContentFilterElement[] elements = whereClause == null ? null : whereClause.getElements();
+        if ((elements == null) || (elements.length != 1)
+                || !FilterOperator.OfType.equals(elements[0].getFilterOperator())) {
+            return null;
+        }
+        ExtensionObject[] operands = elements[0].getFilterOperands();
+        if ((operands == null) || (operands.length != 1)) {
+            return null;
+        }
+        try {
+            Object operand = operands[0].decode(nodeManagerTable.getEncoderContext());
+            Variant type = operand instanceof LiteralOperand ? ((LiteralOperand) operand).getValue() : null;
+            return (type != null) && (type.getValue() instanceof NodeId) ? (NodeId) type.getValue() : null;
+        } catch (DecodingException e) {
+            return null;
+        }
+    }
+}
@@ -7,30 +7,45 @@
 package com.prosysopc.ua.samples.server;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
 
 import com.prosysopc.ua.EventData;
 import com.prosysopc.ua.EventListener;
 import com.prosysopc.ua.nodes.UaNode;
-import com.prosysopc.ua.server.ContentFilterDefinition;
 import com.prosysopc.ua.server.nodes.UaObjectNode;
 import com.prosysopc.ua.stack.builtintypes.ByteString;
 import com.prosysopc.ua.stack.builtintypes.DateTime;
 import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
 import com.prosysopc.ua.stack.builtintypes.QualifiedName;
 import com.prosysopc.ua.stack.builtintypes.StatusCode;
 import com.prosysopc.ua.stack.builtintypes.Variant;
 import com.prosysopc.ua.stack.core.EventFilter;
-import com.prosysopc.ua.stack.core.EventFilterResult;
 import com.prosysopc.ua.stack.core.HistoryEventFieldList;
+import com.prosysopc.ua.stack.core.StatusCodes;
 
 /**
- *
+ * A sample class for keeping the event history of an object node.
+ * <p>
+ * The events are kept in a ring buffer in the order of their time, with the times in a
+ * {@code long[]} column and the event types in a column beside the events. Adding an event is O(1)
+ * and drops the oldest event when the history is full; an event that is older than the newest one
+ * is inserted in its place. A read finds the start of its time range with a binary search. The
+ * positions of the events of each event type are also kept in order, so a read whose filter only
+ * selects event types visits only the events of the selected types, instead of testing every event
+ * in its range. The matching events are collected with the read lock, and their fields are read
+ * after it is released. The filters are parsed through an {@link EventFilterCache}.
  */
 public class EventHistory {
+  private static final List<List<QualifiedName>> EVENT_TYPE_PATH =
+      Collections.singletonList(Collections.singletonList(new QualifiedName("EventType")));
+
   private final int capacity = 10000;
-  private final List<EventData> events = new CopyOnWriteArrayList<EventData>();
   private final EventListener listener = new EventListener() {
 
     @Override
@@ -40,23 +55,150 @@ public class EventHistory {
 
     @Override
     public void onEvent(UaNode node, EventData eventData) {
-      events.add(eventData);
-      while (events.size() > capacity) {
-        events.remove(0);
-      }
+      add(eventData);
     }
   };
-  private final UaObjectNode node;
+  private final EventFilterCache filterCache;
+  private final StampedLock lock = new StampedLock();
+
+  // The columns of the ring buffer; the events at the positions first..end-1 are in the slots
+  // position % capacity. Modified only with the write lock.
+  private final long[] times = new long[capacity];
+  private final NodeId[] types = new NodeId[capacity];
+  private final EventData[] events = new EventData[capacity];
+  private long first;
+  private long end;
+  // The positions of the events of each type, including null for events without a type; modified
+  // only with the write lock
+  private final Map<NodeId, Positions> byType = new HashMap<NodeId, Positions>();
+
+  /**
+   * The positions of the events of a type in ascending order. The oldest are removed from the head.
+   */
+  private static class Positions {
+    private long[] positions = new long[16];
+    private int head;
+    private int size;
+
+    int size() {
+      return size;
+    }
+
+    long get(int i) {
+      return positions[head + i];
+    }
+
+    /**
+     * @return the index of the first position at or after the position
+     */
+    int find(long position) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (positions[head + mid] < position) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    void insert(long position) {
+      if (head + size == positions.length) {
+        // Reuse the room of the removed head if it is at least half of the array
+        positions = size < positions.length / 2 ? Arrays.copyOfRange(positions, head, head + positions.length)
+            : Arrays.copyOfRange(positions, head, head + 2 * positions.length);
+        head = 0;
+      }
+      int i = find(position);
+      System.arraycopy(positions, head + i, positions, head + i + 1, size - i);
+      positions[head + i] = position;
+      size++;
+    }
+
+    /**
+     * Moves the position one forward, after an older event was inserted before it.
+     */
+    void increment(long position) {
+      positions[head + find(position)]++;
+    }
+
+    void removeFirst() {
+      head++;
+      size--;
+    }
+  }
 
   /**
    * @param node
    */
   public EventHistory(UaObjectNode node) {
+    this(node, new EventFilterCache(node.getNodeManager().getNodeManagerTable()));
+  }
+
+  /**
+   * @param node the node whose events to record
+   * @param filterCache the cache of the parsed filters, shared by the histories of a historian
+   */
+  EventHistory(UaObjectNode node, EventFilterCache filterCache) {
     super();
-    this.node = node;
+    this.filterCache = filterCache;
     node.addEventListener(listener);
   }
 
+  private void add(EventData event) {
+    DateTime time = event.getTime();
+    long t = time == null ? DateTime.currentTime().getValue() : time.getValue();
+    NodeId type = getEventType(event);
+    long stamp = lock.writeLock();
+    try {
+      if (end - first == capacity) {
+        int oldest = (int) (first % capacity);
+        // The oldest event is the first of its type
+        Positions positions = byType.get(types[oldest]);
+        positions.removeFirst();
+        if (positions.size() == 0) {
+          byType.remove(types[oldest]);
+        }
+        events[oldest] = null;
+        types[oldest] = null;
+        first++;
+      }
+      // Normally the newest event; an older one is moved to its place in time
+      long i = end++;
+      for (; (i > first) && (times[(int) ((i - 1) % capacity)] > t); i--) {
+        move(i - 1, i);
+        byType.get(types[(int) (i % capacity)]).increment(i - 1);
+      }
+      int slot = (int) (i % capacity);
+      times[slot] = t;
+      types[slot] = type;
+      events[slot] = event;
+      byType.computeIfAbsent(type, k -> new Positions()).insert(i);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  private void move(long from, long to) {
+    int source = (int) (from % capacity);
+    int target = (int) (to % capacity);
+    times[target] = times[source];
+    types[target] = types[source];
+    events[target] = events[source];
+  }
+
+  private static NodeId getEventType(EventData event) {
+    Object[] values = event.getFieldValues(EVENT_TYPE_PATH);
+    Object type = (values == null) || (values.length == 0) ? null : values[0];
+    if (type instanceof Variant) {
+      type = ((Variant) type).getValue();
+    }
+    return type instanceof NodeId ? (NodeId) type : null;
+  }
+
   /**
    * @param eventIds
    * @param operationResults
@@ -64,83 +206,175 @@ public class EventHistory {
    */
   public void deleteEvents(ByteString[] eventIds, StatusCode[] operationResults,
       DiagnosticInfo[] operationDiagnostics) {
-    for (int i = events.size() - 1; i >= 0; i--) {
-      EventData event = events.get(i);
-      ByteString id1 = event.getEventId();
-      for (ByteString eventId : eventIds) {
-        if (eventId.equals(id1)) {
-          events.remove(i);
-          break;
+    List<ByteString> ids = Arrays.asList(eventIds);
+    boolean[] deleted = new boolean[eventIds.length];
+    long stamp = lock.writeLock();
+    try {
+      // Move the remaining events over the deleted ones
+      long target = first;
+      for (long i = first; i < end; i++) {
+        int index = ids.indexOf(events[(int) (i % capacity)].getEventId());
+        if (index >= 0) {
+          deleted[index] = true;
+        } else {
+          move(i, target++);
         }
       }
+      for (long i = target; i < end; i++) {
+        events[(int) (i % capacity)] = null;
+        types[(int) (i % capacity)] = null;
+      }
+      end = target;
+      byType.clear();
+      for (long i = first; i < end; i++) {
+        byType.computeIfAbsent(types[(int) (i % capacity)], k -> new Positions()).insert(i);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    for (int i = 0; i < eventIds.length; i++) {
+      operationResults[i] = deleted[i] ? StatusCode.GOOD : StatusCode.valueOf(StatusCodes.Bad_NoData);
+    }
+  }
+
+  /**
+   * @return the first position whose time is at or after t, or after t if after is true
+   */
+  private long search(long t, boolean after) {
+    long low = first;
+    long high = end;
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      long midTime = times[(int) (mid % capacity)];
+      if ((midTime < t) || (after && (midTime == t))) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
     }
+    return low;
   }
 
   /**
+   * Reads the events between startTime and endTime, oldest first, or newest first if only endTime
+   * is defined or startTime is after endTime. If neither is defined, all events are returned.
+   *
    * @param startTime the start of the interval
    * @param endTime the end of the interval
-   * @param maxValues maximum number of values to return
+   * @param maxValues maximum number of values to return, 0 for no limit
    * @param eventFilter the event filter that defines the fields and events to return
-   * @param firstIndex the index of the first entry in the history data to return (i.e. the
-   *        continuationPoint returned for the previous request)
    * @param history the list of values to fill in
-   * @return the first index that was not added to the history, in case there are more than
-   *         maxValues entries to return (i.e. the continuationPoint to return)
+   * @param continuationPoint the position of the next event to read, returned for the previous
+   *        request, or null
+   * @return the position of the next event to read, in case there are more than maxValues events
+   *         to return (i.e. the continuationPoint to return)
    */
-  public Integer readEvents(DateTime startTime, DateTime endTime, int maxValues, EventFilter eventFilter,
-      List<HistoryEventFieldList> history, int firstIndex) {
-    int i = 0;
+  public Object readEvents(DateTime startTime, DateTime endTime, int maxValues, EventFilter eventFilter,
+      List<HistoryEventFieldList> history, Object continuationPoint) {
     boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
     boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-    List<List<QualifiedName>> fieldPaths = new ArrayList<List<QualifiedName>>();
-    ContentFilterDefinition filterDefinition = new ContentFilterDefinition();
-    EventFilterResult eventFilterResult = new EventFilterResult();
-    ContentFilterDefinition.parseEventFilter(node.getNodeManager().getNodeManagerTable().getNodeManagerRoot(),
-        eventFilter, fieldPaths, filterDefinition, eventFilterResult);
-    if (startTimeDefined || !endTimeDefined) {
-      for (int j = 0; j < events.size(); j++) {
-        EventData event = events.get(j);
-        DateTime t = event.getTime();
-        final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-        if (compareToEnd > 0) {
-          break;
+    boolean reverse = endTimeDefined && (!startTimeDefined || (endTime.compareTo(startTime) < 0));
+    EventFilterCache.CompiledFilter filter = filterCache.get(eventFilter);
+    List<EventData> matches = new ArrayList<EventData>();
+    Long next;
+    long stamp = lock.readLock();
+    try {
+      long from;
+      long to;
+      if (!reverse) {
+        from = search(startTime.getValue(), false);
+        to = endTimeDefined ? search(endTime.getValue(), true) : end;
+      } else {
+        from = startTimeDefined ? search(endTime.getValue(), false) : first;
+        to = search((startTimeDefined ? startTime : endTime).getValue(), true);
+      }
+      if (continuationPoint != null) {
+        long position = (Long) continuationPoint;
+        if (reverse) {
+          to = Math.min(to, position);
         } else {
-          final int compareToStart = t.compareTo(startTime);
-          if (compareToStart >= 0) {
-            if ((i >= firstIndex) && filterDefinition.evaluate(event, true)) {
-              history.add(new HistoryEventFieldList(Variant.asObjectArray(event.getFieldValues(fieldPaths))));
-            }
-            i++;
-            if (history.size() == maxValues) {
-              // Return continuation point if no more events exist
-              // and both timestamps were defined
-              return endTimeDefined && (j < events.size()) ? i : null;
-            }
-          }
+          from = Math.max(from, position);
         }
       }
-    } else {
-      // !startTimeDefined && endTimeDefined
-      for (int j = events.size() - 1; j >= 0; j--) {
-        EventData event = events.get(j);
-        DateTime t = event.getTime();
-        final int compareToEnd = t.compareTo(endTime);
-        if (compareToEnd > 0) {
-          continue;
-        } else {
-          if (i >= firstIndex) {
-            history.add(new HistoryEventFieldList(event.getFieldValues(fieldPaths)));
-          }
-          i++;
-          if (history.size() == maxValues) {
-            // Return continuation point if no more events exist and
-            // both timestamps were defined
-            return startTimeDefined && (j > 0) ? i : null;
+      next = filter.selectsTypes() ? collectByType(from, to, reverse, maxValues, filter, matches)
+          : collect(from, to, reverse, maxValues, filter, matches);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    // The events are not modified after they are added, so their fields are read without the lock
+    for (EventData event : matches) {
+      history.add(new HistoryEventFieldList(filter.getFieldValues(event)));
+    }
+    return next;
+  }
+
+  /**
+   * Adds the events of the positions from..to-1 that pass the filter to the list, newest first if
+   * reverse. Called with the read lock.
+   *
+   * @return the position to continue from if maxValues events were added, otherwise null
+   */
+  private Long collect(long from, long to, boolean reverse, int maxValues, EventFilterCache.CompiledFilter filter,
+      List<EventData> matches) {
+    for (long i = reverse ? to - 1 : from; reverse ? i >= from : i < to; i += reverse ? -1 : 1) {
+      if ((maxValues > 0) && (matches.size() == maxValues)) {
+        return reverse ? i + 1 : i;
+      }
+      int slot = (int) (i % capacity);
+      if (filter.matches(events[slot], types[slot])) {
+        matches.add(events[slot]);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Like {@link #collect}, for a filter that only selects event types: merges the positions of the
+   * selected types, and of the events without a type, which are tested one by one. Called with the
+   * read lock.
+   */
+  private Long collectByType(long from, long to, boolean reverse, int maxValues,
+      EventFilterCache.CompiledFilter filter, List<EventData> matches) {
+    Positions[] selected = new Positions[byType.size()];
+    int n = 0;
+    for (Map.Entry<NodeId, Positions> entry : byType.entrySet()) {
+      if ((entry.getKey() == null) || filter.matchesType(entry.getKey())) {
+        selected[n++] = entry.getValue();
+      }
+    }
+    // The next index of each list, and the index where it ends
+    int[] cursors = new int[n];
+    int[] limits = new int[n];
+    for (int k = 0; k < n; k++) {
+      int low = selected[k].find(from);
+      int high = selected[k].find(to);
+      cursors[k] = reverse ? high - 1 : low;
+      limits[k] = reverse ? low : high;
+    }
+    while (true) {
+      int best = -1;
+      long position = 0;
+      for (int k = 0; k < n; k++) {
+        if (reverse ? cursors[k] >= limits[k] : cursors[k] < limits[k]) {
+          long p = selected[k].get(cursors[k]);
+          if ((best < 0) || (reverse ? p > position : p < position)) {
+            best = k;
+            position = p;
           }
         }
       }
+      if (best < 0) {
+        return null;
+      }
+      if ((maxValues > 0) && (matches.size() == maxValues)) {
+        return reverse ? position + 1 : position;
+      }
+      cursors[best] += reverse ? -1 : 1;
+      int slot = (int) (position % capacity);
+      if (filter.matches(events[slot], types[slot])) {
+        matches.add(events[slot]);
+      }
     }
-    return null;
   }
 
 }
@@ -0,0 +1,259 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * Visual decimation of a history for trend displays: picks the raw values that keep the shape of a
+ * long series, so that a client drawing a few hundred pixels does not read tens of thousands of
+ * values.
+ * <p>
+ * The range is split into intervals of the processing interval, like for any aggregate, which sets
+ * the number of points: {@link #minMax} returns the minimum and maximum of each interval, in the
+ * order of time, and {@link #lttb} one value per interval, chosen with Largest-Triangle-Three-Buckets
+ * over time buckets, and the first and last value. The returned values are raw values with their
+ * own timestamps. Only Good numeric values are considered.
+ * <p>
+ * The raw values are read in pages of {@value #PAGE_SIZE} values, whatever the length of the
+ * intervals, so the memory used depends neither on the length of the range nor on the processing
+ * interval, and a history in a database is read with one query per page instead of one per
+ * interval. LTTB reads the range twice, once ahead for the averages of the next intervals. A
+ * history that finds the minimum and maximum values itself, see {@link VariableHistory#readMinMax},
+ * is not read at all.
+ */
+class HistoryDecimation {
+
+    private static final int PAGE_SIZE = 10_000;
+
+    private final VariableHistory history;
+    private final DateTime startTime;
+    private final DateTime endTime;
+    private final long start;
+    private final long end;
+    private final long interval;
+
+    /**
+     * @param processingInterval the length of the intervals in milliseconds, 0 for one interval
+     */
+    private HistoryDecimation(VariableHistory history, DateTime startTime, DateTime endTime,
+            double processingInterval) {
+        this.history = history;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.start = startTime.getValue();
+        this.end = endTime.getValue();
+        long ticks = Math.round(processingInterval * 10_000);
+        this.interval = ticks <= 0 ? end - start : ticks;
+    }
+
+    /**
+     * @return the minimum and maximum value of each interval from startTime to endTime
+     * @throws StatusException if the start or end time is missing, or the range is reversed
+     */
+    static DataValue[] minMax(VariableHistory history, DateTime startTime, DateTime endTime,
+            double processingInterval) throws StatusException {
+        HistoryDecimation decimation = create(history, startTime, endTime, processingInterval);
+        DataValue[] found = history.readMinMax(startTime, endTime, processingInterval);
+        if (found != null) {
+            return found;
+        }
+        List<DataValue> values = new ArrayList<DataValue>();
+        Cursor cursor = decimation.new Cursor();
+        DataValue value = cursor.next();
+        while (value != null) {
+            long bucket = decimation.bucketOf(value);
+            DataValue min = value;
+            DataValue max = value;
+            while (((value = cursor.next()) != null) && (decimation.bucketOf(value) == bucket)) {
+                if (doubleValue(value) < doubleValue(min)) {
+                    min = value;
+                }
+                if (doubleValue(value) > doubleValue(max)) {
+                    max = value;
+                }
+            }
+            if (min == max) {
+                values.add(min);
+            } else if (min.getSourceTimestamp().compareTo(max.getSourceTimestamp()) <= 0) {
+                values.add(min);
+                values.add(max);
+            } else {
+                values.add(max);
+                values.add(min);
+            }
+        }
+        return values.toArray(new DataValue[values.size()]);
+    }
+
+    /**
+     * @return the first and last value from startTime to endTime and, from each interval between,
+     *         the value that forms the largest triangle with the value chosen before and the average
+     *         of the next interval that has values
+     * @throws StatusException if the start or end time is missing, or the range is reversed
+     */
+    static DataValue[] lttb(VariableHistory history, DateTime startTime, DateTime endTime,
+            double processingInterval) throws StatusException {
+        HistoryDecimation decimation = create(history, startTime, endTime, processingInterval);
+        List<DataValue> values = new ArrayList<DataValue>();
+        Cursor cursor = decimation.new Cursor();
+        Cursor ahead = decimation.new Cursor();
+        Bucket bucket = ahead.nextBucket();
+        if (bucket == null) {
+            return new DataValue[0];
+        }
+        DataValue selected = cursor.next();
+        values.add(selected);
+        // The values of the bucket that have already been read
+        int consumed = 1;
+        while (bucket != null) {
+            Bucket nextBucket = ahead.nextBucket();
+            // The last value is always returned; the others compete against it
+            int candidates = bucket.count - consumed - (nextBucket == null ? 1 : 0);
+            if (candidates > 0) {
+                double cx;
+                double cy;
+                if (nextBucket != null) {
+                    cx = nextBucket.sumTime / nextBucket.count;
+                    cy = nextBucket.sumValue / nextBucket.count;
+                } else {
+                    cx = decimation.time(bucket.last);
+                    cy = doubleValue(bucket.last);
+                }
+                double ax = decimation.time(selected);
+                double ay = doubleValue(selected);
+                DataValue best = null;
+                double bestArea = -1;
+                for (int i = 0; i < candidates; i++) {
+                    DataValue value = cursor.next();
+                    double area = Math.abs(
+                            (ax - cx) * (doubleValue(value) - ay) - (ax - decimation.time(value)) * (cy - ay));
+                    if (area > bestArea) {
+                        bestArea = area;
+                        best = value;
+                    }
+                }
+                values.add(best);
+                selected = best;
+            }
+            if ((nextBucket == null) && (bucket.count > consumed)) {
+                values.add(cursor.next());
+            }
+            consumed = 0;
+            bucket = nextBucket;
+        }
+        return values.toArray(new DataValue[values.size()]);
+    }
+
+    private static HistoryDecimation create(VariableHistory history, DateTime startTime, DateTime endTime,
+            double processingInterval) throws StatusException {
+        if ((startTime.compareTo(DateTime.MIN_VALUE) <= 0) || (endTime.compareTo(startTime) <= 0)) {
+            throw new StatusException(StatusCodes.Bad_InvalidArgument);
+        }
+        return new HistoryDecimation(history, startTime, endTime, processingInterval);
+    }
+
+    /**
+     * The number, sums and last value of the values of one interval.
+     */
+    private static class Bucket {
+        int count;
+        double sumTime;
+        double sumValue;
+        DataValue last;
+    }
+
+    /**
+     * Reads the Good numeric values from startTime up to, but not including, endTime, a page at a
+     * time.
+     */
+    private class Cursor {
+        private List<DataValue> page = new ArrayList<DataValue>();
+        private int index;
+        private Object continuationPoint;
+        private boolean lastPage;
+        private DataValue peeked;
+
+        /**
+         * @return the next value, or null after the last one
+         */
+        DataValue next() throws StatusException {
+            DataValue value = peek();
+            peeked = null;
+            return value;
+        }
+
+        private DataValue peek() throws StatusException {
+            while (peeked == null) {
+                if (index == page.size()) {
+                    if (lastPage) {
+                        return null;
+                    }
+                    page = new ArrayList<DataValue>(PAGE_SIZE);
+                    index = 0;
+                    continuationPoint = history.readRaw(startTime, endTime, PAGE_SIZE, true, continuationPoint, page);
+                    lastPage = continuationPoint == null;
+                    continue;
+                }
+                DataValue value = page.get(index++);
+                if (value.getSourceTimestamp().getValue() >= end) {
+                    // A value at endTime, which belongs to the next range
+                    lastPage = true;
+                    index = page.size();
+                    return null;
+                }
+                StatusCode status = value.getStatusCode();
+                Variant v = value.getValue();
+                if (((status == null) || status.isGood()) && (v != null) && (v.getValue() instanceof Number)) {
+                    peeked = value;
+                }
+            }
+            return peeked;
+        }
+
+        /**
+         * @return the values of the next interval that has some, or null if there is none
+         */
+        Bucket nextBucket() throws StatusException {
+            DataValue value = peek();
+            if (value == null) {
+                return null;
+            }
+            long index = bucketOf(value);
+            Bucket bucket = new Bucket();
+            while ((value != null) && (bucketOf(value) == index)) {
+                next();
+                bucket.count++;
+                bucket.sumTime += time(value);
+                bucket.sumValue += doubleValue(value);
+                bucket.last = value;
+                value = peek();
+            }
+            return bucket;
+        }
+    }
+
+    /**
+     * @return the index of the interval of the value
+     */
+    private long bucketOf(DataValue value) {
+        return (value.getSourceTimestamp().getValue() - start) / interval;
+    }
+    /**
+     * @return the time of the value from the start of the range, small enough for a double to keep
+     *         the ticks
+     */
+    private double time(DataValue value) {
+        return value.getSourceTimestamp().getValue() - start;
+    }
+
+    private static double doubleValue(DataValue value) {
+        return ((Number) value.getValue().getValue()).doubleValue();
+    }
+}
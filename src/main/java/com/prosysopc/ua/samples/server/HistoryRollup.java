@@ -0,0 +1,427 @@
+package com.prosysopc.ua.samples.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * Summaries of the values of a history in buckets of 1 second, 1 minute and 1 hour: the count,
+ * minimum, maximum, sum, first and last of the Good Double values of each bucket, updated as the
+ * values are appended.
+ * <p>
+ * A processed read of an aggregate that can be calculated from the summaries uses the coarsest
+ * level whose buckets fit the processing interval, so a day at 1 minute intervals merges 1,440
+ * buckets instead of reading every raw value. The buckets of a level are kept in a ring, oldest
+ * first, with a bucket only for the seconds, minutes or hours that have values; the oldest buckets
+ * are dropped when a level is full, after which it serves only reads that start after them.
+ * <p>
+ * A bucket also counts the values that are not Good Doubles. The AggregateCalculator handles their
+ * statuses and types, so a read that covers such a value returns null and is calculated from the
+ * raw values instead. So is a read of more than {@value VariableHistory#MAX_PROCESSED_INTERVALS}
+ * intervals, which the AggregateCalculator returns in parts.
+ * <p>
+ * A rollup holds either the coarse level of hours, which is small enough to be kept up to date for
+ * every history, or the fine levels of seconds and minutes, which are loaded when they are read. A
+ * bucket takes 56 bytes, so the hours of a day take up to 1.3 KB and of a year 0.5 MB, and the
+ * full fine levels 0.8 MB. The rollup can be written to a file with {@link #writeTo} and read back
+ * with {@link #readFrom}, so that it does not have to stay in memory, nor be built again from the
+ * values.
+ */
+class HistoryRollup {
+
+    private static final long TICKS_PER_SECOND = 10_000_000L;
+    private static final long[] WIDTHS = {TICKS_PER_SECOND, 60 * TICKS_PER_SECOND, 3600 * TICKS_PER_SECOND};
+    // 1 hour of seconds, 1 week of minutes and 1 year of hours with values
+    private static final int[] MAX_BUCKETS = {3600, 7 * 1440, 366 * 24};
+    private static final int HOURS = 2;
+    private static final int INITIAL_BUCKETS = 16;
+    private static final int VERSION = 2;
+
+    private static class Level {
+        final long width;
+        final int maxBuckets;
+        // The start of the oldest bucket that has all its values, after buckets were dropped
+        long completeFrom = Long.MIN_VALUE;
+        // The ring of buckets; the bucket i, 0 <= i < size, is in the slot (head + i) % length
+        long[] starts = new long[INITIAL_BUCKETS];
+        int[] counts = new int[INITIAL_BUCKETS];
+        int[] others = new int[INITIAL_BUCKETS];
+        double[] mins = new double[INITIAL_BUCKETS];
+        double[] maxs = new double[INITIAL_BUCKETS];
+        double[] sums = new double[INITIAL_BUCKETS];
+        double[] firsts = new double[INITIAL_BUCKETS];
+        double[] lasts = new double[INITIAL_BUCKETS];
+        int head;
+        int size;
+
+        Level(long width, int maxBuckets) {
+            this.width = width;
+            this.maxBuckets = maxBuckets;
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            out.writeLong(completeFrom);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                int slot = slot(i);
+                out.writeLong(starts[slot]);
+                out.writeInt(counts[slot]);
+                out.writeInt(others[slot]);
+                out.writeDouble(mins[slot]);
+                out.writeDouble(maxs[slot]);
+                out.writeDouble(sums[slot]);
+                out.writeDouble(firsts[slot]);
+                out.writeDouble(lasts[slot]);
+            }
+        }
+
+        void readFrom(DataInput in) throws IOException {
+            completeFrom = in.readLong();
+            int n = in.readInt();
+            if ((n < 0) || (n > maxBuckets)) {
+                throw new IOException("Invalid number of rollup buckets: " + n);
+            }
+            grow(Math.max(INITIAL_BUCKETS, n));
+            for (int i = 0; i < n; i++) {
+                starts[i] = in.readLong();
+                counts[i] = in.readInt();
+                others[i] = in.readInt();
+                mins[i] = in.readDouble();
+                maxs[i] = in.readDouble();
+                sums[i] = in.readDouble();
+                firsts[i] = in.readDouble();
+                lasts[i] = in.readDouble();
+            }
+            size = n;
+        }
+
+        int slot(int i) {
+            return (head + i) % starts.length;
+        }
+
+        /**
+         * @return the index of the first bucket that starts at or after t
+         */
+        int search(long t) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[slot(mid)] < t) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void add(long time, double value, boolean good) {
+            long start = Math.floorDiv(time, width) * width;
+            int slot;
+            if ((size > 0) && (starts[slot(size - 1)] == start)) {
+                slot = slot(size - 1);
+            } else if ((size == 0) || (starts[slot(size - 1)] < start)) {
+                slot = addBucket(start);
+            } else {
+                // Re-adding a value after reset; its bucket was dropped if it is missing
+                int i = search(start);
+                if ((i == size) || (starts[slot(i)] != start)) {
+                    return;
+                }
+                slot = slot(i);
+            }
+            if (!good) {
+                others[slot]++;
+                return;
+            }
+            if (counts[slot] == 0) {
+                mins[slot] = value;
+                maxs[slot] = value;
+                sums[slot] = 0;
+                firsts[slot] = value;
+            } else {
+                mins[slot] = Math.min(mins[slot], value);
+                maxs[slot] = Math.max(maxs[slot], value);
+            }
+            sums[slot] += value;
+            lasts[slot] = value;
+            counts[slot]++;
+        }
+
+        private int addBucket(long start) {
+            if (size == maxBuckets) {
+                completeFrom = starts[head] + width;
+                head = (head + 1) % starts.length;
+                size--;
+            } else if (size == starts.length) {
+                grow(Math.min(maxBuckets, 2 * starts.length));
+            }
+            int slot = slot(size++);
+            starts[slot] = start;
+            counts[slot] = 0;
+            others[slot] = 0;
+            return slot;
+        }
+
+        private void grow(int length) {
+            long[] newStarts = new long[length];
+            int[] newCounts = new int[length];
+            int[] newOthers = new int[length];
+            double[] newMins = new double[length];
+            double[] newMaxs = new double[length];
+            double[] newSums = new double[length];
+            double[] newFirsts = new double[length];
+            double[] newLasts = new double[length];
+            for (int i = 0; i < size; i++) {
+                int slot = slot(i);
+                newStarts[i] = starts[slot];
+                newCounts[i] = counts[slot];
+                newOthers[i] = others[slot];
+                newMins[i] = mins[slot];
+                newMaxs[i] = maxs[slot];
+                newSums[i] = sums[slot];
+                newFirsts[i] = firsts[slot];
+                newLasts[i] = lasts[slot];
+            }
+            starts = newStarts;
+            counts = newCounts;
+            others = newOthers;
+            mins = newMins;
+            maxs = newMaxs;
+            sums = newSums;
+            firsts = newFirsts;
+            lasts = newLasts;
+            head = 0;
+        }
+
+        /**
+         * Empties the buckets that start in from..to-1.
+         */
+        void reset(long from, long to) {
+            for (int i = search(from); (i < size) && (starts[slot(i)] < to); i++) {
+                counts[slot(i)] = 0;
+                others[slot(i)] = 0;
+            }
+        }
+
+        /**
+         * Drops the buckets that end at or before t.
+         */
+        void trim(long t) {
+            while ((size > 0) && (starts[head] + width <= t)) {
+                head = (head + 1) % starts.length;
+                size--;
+            }
+        }
+    }
+
+    private final boolean coarse;
+    private final Level[] levels;
+    private long lastTime = Long.MIN_VALUE;
+
+    /**
+     * @param coarse true for the level of hours, false for the levels of seconds and minutes
+     */
+    HistoryRollup(boolean coarse) {
+        this.coarse = coarse;
+        int from = coarse ? HOURS : 0;
+        levels = new Level[coarse ? WIDTHS.length - HOURS : HOURS];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new Level(WIDTHS[from + i], MAX_BUCKETS[from + i]);
+        }
+    }
+
+    /**
+     * Adds a value to the buckets of its time. The values must be added in the order of time,
+     * except when the buckets of their time were reset.
+     *
+     * @param good whether the value is a Good Double; the other values are only counted
+     */
+    synchronized void add(long time, double value, boolean good) {
+        for (Level level : levels) {
+            level.add(time, value, good);
+        }
+        lastTime = Math.max(lastTime, time);
+    }
+
+    /**
+     * Empties the buckets of the times from..to-1, rounded out to whole hours, so that the
+     * remaining values of the times can be added again after values were deleted.
+     * <p>
+     * The caller synchronizes on the rollup until the values are added, so that reads do not see
+     * the emptied buckets.
+     *
+     * @return the emptied time range, from and to
+     */
+    synchronized long[] reset(long from, long to) {
+        long width = WIDTHS[WIDTHS.length - 1];
+        from = Math.floorDiv(from, width) * width;
+        to = Math.floorDiv(to - 1, width) * width + width;
+        for (Level level : levels) {
+            level.reset(from, to);
+        }
+        return new long[] {from, to};
+    }
+
+    /**
+     * Drops the buckets of the times before t, which are no longer in the history.
+     */
+    synchronized void trim(long t) {
+        for (Level level : levels) {
+            level.trim(t);
+        }
+    }
+
+    /**
+     * Writes the buckets to the output.
+     */
+    synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeBoolean(coarse);
+        out.writeLong(lastTime);
+        for (Level level : levels) {
+            level.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads the buckets written by {@link #writeTo}.
+     *
+     * @param coarse whether to read the level of hours or the levels of seconds and minutes
+     * @throws IOException if the input is not a rollup of those levels
+     */
+    static HistoryRollup readFrom(DataInput in, boolean coarse) throws IOException {
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unknown rollup version");
+        }
+        if (in.readBoolean() != coarse) {
+            throw new IOException("Not a rollup of the " + (coarse ? "hours" : "seconds and minutes"));
+        }
+        HistoryRollup rollup = new HistoryRollup(coarse);
+        rollup.lastTime = in.readLong();
+        for (Level level : rollup.levels) {
+            level.readFrom(in);
+        }
+        return rollup;
+    }
+
+    /**
+     * @return whether {@link #read} can calculate the aggregate
+     */
+    static boolean isSupported(NodeId aggregateType) {
+        return Identifiers.AggregateFunction_Average.equals(aggregateType)
+                || Identifiers.AggregateFunction_Minimum.equals(aggregateType)
+                || Identifiers.AggregateFunction_Maximum.equals(aggregateType)
+                || Identifiers.AggregateFunction_Count.equals(aggregateType)
+                || Identifiers.AggregateFunction_Range.equals(aggregateType)
+                || Identifiers.AggregateFunction_Delta.equals(aggregateType);
+    }
+
+    /**
+     * Calculates the Average, Minimum, Maximum, Count, Range or Delta of each interval from the
+     * buckets. An interval without values is Bad_NoData, or 0 for Count.
+     *
+     * @param processingInterval the length of the intervals in milliseconds, 0 for one interval
+     * @return the aggregates, or null if the aggregate is not one of these, the intervals do not
+     *         consist of whole buckets, they include values that are not Good Doubles or there are
+     *         more than {@link VariableHistory#MAX_PROCESSED_INTERVALS} of them
+     */
+    synchronized DataValue[] read(DateTime startTime, DateTime endTime, double processingInterval,
+            NodeId aggregateType) {
+        if (!isSupported(aggregateType) || (startTime.compareTo(DateTime.MIN_VALUE) <= 0)
+                || (endTime.compareTo(startTime) <= 0)) {
+            return null;
+        }
+        long start = startTime.getValue();
+        long end = endTime.getValue();
+        long interval = Math.round(processingInterval * 10_000);
+        if (interval == 0) {
+            interval = end - start;
+        } else if ((interval < 0) || (interval != processingInterval * 10_000)) {
+            return null;
+        }
+        long intervals = (end - start + interval - 1) / interval;
+        if (intervals > VariableHistory.MAX_PROCESSED_INTERVALS) {
+            return null;
+        }
+        // The last bucket may extend past the end time if there are no values after it
+        Level level = null;
+        for (int i = levels.length - 1; (i >= 0) && (level == null); i--) {
+            Level l = levels[i];
+            if ((interval % l.width == 0) && (start % l.width == 0) && ((end % l.width == 0) || (end > lastTime))
+                    && (start >= l.completeFrom)) {
+                level = l;
+            }
+        }
+        if (level == null) {
+            return null;
+        }
+
+        DataValue[] values = new DataValue[(int) intervals];
+        int i = level.search(start);
+        for (int k = 0; k < values.length; k++) {
+            long intervalStart = start + k * interval;
+            long intervalEnd = Math.min(intervalStart + interval, end);
+            int count = 0;
+            double min = 0;
+            double max = 0;
+            double sum = 0;
+            double first = 0;
+            double last = 0;
+            for (; (i < level.size) && (level.starts[level.slot(i)] < intervalEnd); i++) {
+                int slot = level.slot(i);
+                if (level.others[slot] > 0) {
+                    return null;
+                }
+                int n = level.counts[slot];
+                if (n == 0) {
+                    continue;
+                }
+                if (count == 0) {
+                    min = level.mins[slot];
+                    max = level.maxs[slot];
+                    first = level.firsts[slot];
+                } else {
+                    min = Math.min(min, level.mins[slot]);
+                    max = Math.max(max, level.maxs[slot]);
+                }
+                sum += level.sums[slot];
+                last = level.lasts[slot];
+                count += n;
+            }
+            values[k] = toDataValue(aggregateType, count, min, max, sum, first, last,
+                    new DateTime(intervalStart));
+        }
+        return values;
+    }
+
+    private static DataValue toDataValue(NodeId aggregateType, int count, double min, double max, double sum,
+            double first, double last, DateTime t) {
+        Variant value;
+        if (Identifiers.AggregateFunction_Count.equals(aggregateType)) {
+            value = new Variant(count);
+        } else if (count == 0) {
+            return new DataValue(null, StatusCode.valueOf(StatusCodes.Bad_NoData), t, null);
+        } else if (Identifiers.AggregateFunction_Average.equals(aggregateType)) {
+            value = new Variant(sum / count);
+        } else if (Identifiers.AggregateFunction_Minimum.equals(aggregateType)) {
+            value = new Variant(min);
+        } else if (Identifiers.AggregateFunction_Maximum.equals(aggregateType)) {
+            value = new Variant(max);
+        } else if (Identifiers.AggregateFunction_Range.equals(aggregateType)) {
+            value = new Variant(max - min);
+        } else {
+            value = new Variant(last - first);
+        }
+        return new DataValue(value, StatusCode.GOOD, t, null);
+    }
+}
@@ -0,0 +1,564 @@
+package com.prosysopc.ua.samples.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedByte;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+import com.prosysopc.ua.stack.builtintypes.UnsignedLong;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+
+/**
+ * One segment file of a {@link PersistentValueHistory}: the values of one time partition, in the
+ * order of their timestamps.
+ * <p>
+ * The file holds a header followed by fixed-size records of
+ * {@code [long time][long value bits][int status][byte kind]}, where the time is in DateTime ticks
+ * and the kind tells the type of the value. A new segment is created with room for its capacity and
+ * written through a memory mapping; the file is closed as soon as it is mapped, so a segment holds
+ * no file descriptor. A segment that is not appended to for {@value #IDLE_FORCES} forces releases its
+ * mapping and maps the file again on its next append. A sealed segment is truncated to its records
+ * and mapped only while it is read.
+ * <p>
+ * The count in the header is updated after each record, so after a crash of the process, whose
+ * writes to the mapping are in the page cache, a segment is restored up to its last record. After a
+ * crash of the operating system only the records written to disk by a force are certain; the pages
+ * of the other records may be lost or written in any order. Each force therefore also stores the
+ * count of the previous force, whose records are on disk, and when a segment that was being appended
+ * to is opened, its records after that count are kept only as far as their times are in order and
+ * not before its partition.
+ * <p>
+ * Every {@value #INDEX_INTERVAL}th time is kept in a sparse index on the heap, so a search reads
+ * the times of one block from the mapping instead of the whole segment. A deleted record is marked
+ * with the kind {@link #DELETED} and skipped by the reads.
+ * <p>
+ * The records are appended by one thread at a time and may be read concurrently: a record is
+ * written before the count that makes it visible.
+ */
+class HistorySegment {
+
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 24;
+    static final int INDEX_INTERVAL = 64;
+    // The number of forces without appends after which the mapping of an open segment is released
+    static final int IDLE_FORCES = 60;
+
+    static final byte DELETED = -1;
+    static final byte NULL_VALUE = 0;
+    static final byte DOUBLE = 1;
+    static final byte FLOAT = 2;
+    static final byte BOOLEAN = 3;
+    static final byte SBYTE = 4;
+    static final byte INT16 = 5;
+    static final byte INT32 = 6;
+    static final byte INT64 = 7;
+    static final byte BYTE = 8;
+    static final byte UINT16 = 9;
+    static final byte UINT32 = 10;
+    static final byte UINT64 = 11;
+
+    private static final int MAGIC = 0x50485347; // "PHSG"
+    private static final int VERSION = 1;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_COUNT = 12;
+    private static final int OFFSET_PARTITION = 16;
+    private static final int OFFSET_SYNCED_COUNT = 24;
+
+    private static final int TIME = 0;
+    private static final int BITS = 8;
+    private static final int STATUS = 16;
+    private static final int KIND = 20;
+
+    private final File file;
+    private final long partition;
+    private final long firstPosition;
+    private final int capacity;
+
+    private volatile MappedByteBuffer map;
+    private volatile long[] index;
+    private volatile int count;
+    private volatile long firstTime;
+    private volatile long lastTime;
+    private volatile boolean sealed;
+    // Whether the mapping has changes that are not forced to disk
+    private volatile boolean dirty;
+    // The count at the previous force, and the number of forces since the last append
+    private int forcedCount;
+    private int idleForces;
+
+    private HistorySegment(File file, long partition, long firstPosition, int capacity) {
+        this.file = file;
+        this.partition = partition;
+        this.firstPosition = firstPosition;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a new segment file, mapped for appending.
+     *
+     * @param partition the start of the time partition, in DateTime ticks
+     * @param firstPosition the position of the first record in the history
+     */
+    static HistorySegment create(File file, long partition, long firstPosition, int capacity) throws IOException {
+        HistorySegment segment = new HistorySegment(file, partition, firstPosition, capacity);
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            f.setLength(size);
+            MappedByteBuffer map = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(OFFSET_CAPACITY, capacity);
+            map.putInt(OFFSET_COUNT, 0);
+            map.putLong(OFFSET_PARTITION, partition);
+            map.putInt(OFFSET_SYNCED_COUNT, 0);
+            segment.index = new long[16];
+            segment.map = map;
+        }
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment file. Only the header and the first and last time are read; the
+     * records are mapped on the first read.
+     *
+     * @param firstPosition the position of the first record in the history
+     * @throws IOException if the file is not a segment file
+     */
+    static HistorySegment open(File file, long firstPosition) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+            FileChannel channel = f.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            int capacity = header.getInt(OFFSET_CAPACITY);
+            int count = header.getInt(OFFSET_COUNT);
+            if ((header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION) || (count < 0) || (count > capacity)
+                    || (f.length() < HEADER_SIZE + (long) count * RECORD_SIZE)) {
+                throw new IOException("Not a history segment: " + file);
+            }
+            long partition = header.getLong(OFFSET_PARTITION);
+            HistorySegment segment = new HistorySegment(file, partition, firstPosition, capacity);
+            segment.sealed = (count == capacity) || (f.length() < HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            if (!segment.sealed) {
+                count = validate(channel, partition, Math.min(header.getInt(OFFSET_SYNCED_COUNT), count), count);
+            }
+            segment.count = count;
+            segment.forcedCount = count;
+            if (count > 0) {
+                ByteBuffer time = ByteBuffer.allocate(8);
+                channel.read(time, HEADER_SIZE);
+                segment.firstTime = time.getLong(0);
+                time.clear();
+                channel.read(time, HEADER_SIZE + (long) (count - 1) * RECORD_SIZE);
+                segment.lastTime = time.getLong(0);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * @return the number of records from the start up to the first one after the synced count whose
+     *         time is before the previous one or outside the partition
+     */
+    private static int validate(FileChannel channel, long partition, int synced, int count) throws IOException {
+        int from = Math.max(0, synced - 1);
+        ByteBuffer records = ByteBuffer.allocate((count - from) * RECORD_SIZE);
+        channel.read(records, HEADER_SIZE + (long) from * RECORD_SIZE);
+        long previous = partition;
+        for (int i = from; i < count; i++) {
+            long time = records.getLong((i - from) * RECORD_SIZE + TIME);
+            if ((time < previous) && (i >= synced)) {
+                // A page that was not written to disk reads as zeros, older than the partition
+                return i;
+            }
+            previous = time;
+        }
+        return count;
+    }
+
+    /**
+     * Maps the file of an open segment for appending.
+     */
+    void openForAppend() throws IOException {
+        MappedByteBuffer m = mapForAppend();
+        index = buildIndex(m, count);
+        // The records after the count, if any, were dropped when the segment was opened
+        m.putInt(OFFSET_COUNT, count);
+        map = m;
+    }
+
+    private MappedByteBuffer mapForAppend() throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            return f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, f.length());
+        }
+    }
+
+    /**
+     * @return the mapping of the file, or null if it is not mapped
+     */
+    ByteBuffer buffer() {
+        return map;
+    }
+
+    /**
+     * Maps the records of a sealed segment.
+     *
+     * @return the mapping
+     */
+    synchronized ByteBuffer map() throws IOException {
+        MappedByteBuffer m = map;
+        if (m == null) {
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+                m = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, f.length());
+            }
+            if (index == null) {
+                index = buildIndex(m, count);
+            }
+            map = m;
+        }
+        return m;
+    }
+
+    /**
+     * Releases the mapping of a sealed segment. Readers that still use it keep it alive.
+     */
+    void unmap() {
+        if (sealed) {
+            map = null;
+        }
+    }
+
+    private static long[] buildIndex(ByteBuffer map, int count) {
+        long[] index = new long[Math.max(16, (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL)];
+        for (int i = 0; i < count; i += INDEX_INTERVAL) {
+            index[i / INDEX_INTERVAL] = time(map, i);
+        }
+        return index;
+    }
+
+    /**
+     * Appends a record to the segment, which must not be full or sealed, mapping it again if its
+     * mapping was released.
+     */
+    void append(long time, long bits, int status, byte kind) throws IOException {
+        MappedByteBuffer m = map;
+        if (m == null) {
+            m = mapForAppend();
+            map = m;
+        }
+        int i = count;
+        if (i % INDEX_INTERVAL == 0) {
+            long[] idx = index;
+            int block = i / INDEX_INTERVAL;
+            if (block == idx.length) {
+                idx = Arrays.copyOf(idx, idx.length * 2);
+            }
+            idx[block] = time;
+            index = idx;
+        }
+        int offset = HEADER_SIZE + i * RECORD_SIZE;
+        m.putLong(offset + TIME, time);
+        m.putLong(offset + BITS, bits);
+        m.putInt(offset + STATUS, status);
+        m.put(offset + KIND, kind);
+        m.putInt(OFFSET_COUNT, i + 1);
+        if (i == 0) {
+            firstTime = time;
+        }
+        lastTime = time;
+        count = i + 1;
+        dirty = true;
+    }
+
+    /**
+     * Writes the segment to disk, truncates the file to its records and closes it. The segment is
+     * mapped again, without the unused capacity, when it is read.
+     */
+    void seal() {
+        if (sealed) {
+            return;
+        }
+        MappedByteBuffer m = map;
+        if (m != null) {
+            m.force();
+        }
+        sealed = true;
+        map = null;
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(HEADER_SIZE + (long) count * RECORD_SIZE);
+        } catch (IOException e) {
+            // Some platforms do not allow truncating a mapped file; the capacity stays unused
+        }
+    }
+
+    /**
+     * Writes the changes of the mapping to disk, with the count of the previous force as the count
+     * that is certainly on disk. Called by one thread at a time.
+     */
+    void force() {
+        MappedByteBuffer m = map;
+        if (m == null) {
+            return;
+        }
+        if (dirty) {
+            dirty = false;
+            idleForces = 0;
+            m.putInt(OFFSET_SYNCED_COUNT, forcedCount);
+            forcedCount = count;
+            m.force();
+        } else if (!sealed) {
+            idleForces++;
+        }
+    }
+
+    /**
+     * @return whether the segment is mapped for appending but has not been appended to for
+     *         {@value #IDLE_FORCES} forces
+     */
+    boolean isIdle() {
+        return idleForces >= IDLE_FORCES;
+    }
+
+    /**
+     * Releases the mapping of a segment that is being appended to, if all its changes are on disk.
+     * The next append maps the file again. Called with the lock of the appends.
+     */
+    void release() {
+        if (!sealed && !dirty) {
+            map = null;
+            idleForces = 0;
+        }
+    }
+
+    /**
+     * Closes the segment, writing it to disk.
+     */
+    void close() {
+        force();
+        dirty = false;
+        map = null;
+    }
+
+    /**
+     * Deletes the file of the segment.
+     *
+     * @return true if the file was deleted
+     */
+    boolean delete() {
+        close();
+        sealed = true;
+        return file.delete() || !file.exists();
+    }
+
+    /**
+     * Finds the first record whose time is at or after t, or after t if after is true, using the
+     * sparse index and a binary search in one block.
+     *
+     * @param map the mapping of the segment
+     * @return the index of the record, or {@link #getCount()} if there is none
+     */
+    int search(ByteBuffer map, long t, boolean after) {
+        int n = count;
+        long[] idx = index;
+        int low = 0;
+        int high = (n + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (before(idx[mid], t, after)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // The record is in the block before the first block that starts at or after it
+        high = Math.min(n, low * INDEX_INTERVAL);
+        low = Math.max(0, (low - 1) * INDEX_INTERVAL);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (before(time(map, mid), t, after)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static boolean before(long time, long t, boolean after) {
+        return (time < t) || (after && (time == t));
+    }
+
+    static long time(ByteBuffer map, int i) {
+        return map.getLong(HEADER_SIZE + i * RECORD_SIZE + TIME);
+    }
+
+    static boolean isDeleted(ByteBuffer map, int i) {
+        return map.get(HEADER_SIZE + i * RECORD_SIZE + KIND) == DELETED;
+    }
+
+    /**
+     * @return whether the record holds a Double value with a Good status
+     */
+    static boolean isGoodDouble(ByteBuffer map, int i) {
+        int offset = HEADER_SIZE + i * RECORD_SIZE;
+        return (map.get(offset + KIND) == DOUBLE) && (map.getInt(offset + STATUS) == 0);
+    }
+
+    static double doubleValue(ByteBuffer map, int i) {
+        return Double.longBitsToDouble(map.getLong(HEADER_SIZE + i * RECORD_SIZE + BITS));
+    }
+
+    void delete(ByteBuffer map, int i) {
+        map.put(HEADER_SIZE + i * RECORD_SIZE + KIND, DELETED);
+        dirty = true;
+    }
+
+    /**
+     * Creates the DataValue of a record.
+     */
+    static DataValue get(ByteBuffer map, int i) {
+        int offset = HEADER_SIZE + i * RECORD_SIZE;
+        long bits = map.getLong(offset + BITS);
+        int status = map.getInt(offset + STATUS);
+        DateTime t = new DateTime(map.getLong(offset + TIME));
+        return new DataValue(toVariant(map.get(offset + KIND), bits),
+                status == 0 ? StatusCode.GOOD : StatusCode.valueOf(UnsignedInteger.getFromBits(status)), t, t);
+    }
+
+    /**
+     * @return the kind of the value, or -1 if it cannot be stored in a record, e.g. a String or an
+     *         UInt64 above the range of a long
+     */
+    static byte kindOf(Object value) {
+        if (value == null) {
+            return NULL_VALUE;
+        } else if (value instanceof Double) {
+            return DOUBLE;
+        } else if (value instanceof Float) {
+            return FLOAT;
+        } else if (value instanceof Boolean) {
+            return BOOLEAN;
+        } else if (value instanceof Byte) {
+            return SBYTE;
+        } else if (value instanceof Short) {
+            return INT16;
+        } else if (value instanceof Integer) {
+            return INT32;
+        } else if (value instanceof Long) {
+            return INT64;
+        } else if (value instanceof UnsignedByte) {
+            return BYTE;
+        } else if (value instanceof UnsignedShort) {
+            return UINT16;
+        } else if (value instanceof UnsignedInteger) {
+            return UINT32;
+        } else if ((value instanceof UnsignedLong) && (((UnsignedLong) value).longValue() >= 0)) {
+            return UINT64;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value as the bits of a record, for a value of a known kind
+     */
+    static long toBits(byte kind, Object value) {
+        switch (kind) {
+            case NULL_VALUE:
+                return 0;
+            case DOUBLE:
+                return Double.doubleToRawLongBits((Double) value);
+            case FLOAT:
+                return Float.floatToRawIntBits((Float) value);
+            case BOOLEAN:
+                return ((Boolean) value) ? 1 : 0;
+            default:
+                return ((Number) value).longValue();
+        }
+    }
+
+    private static Variant toVariant(byte kind, long bits) {
+        switch (kind) {
+            case DOUBLE:
+                return new Variant(Double.longBitsToDouble(bits));
+            case FLOAT:
+                return new Variant(Float.intBitsToFloat((int) bits));
+            case BOOLEAN:
+                return new Variant(bits != 0);
+            case SBYTE:
+                return new Variant((byte) bits);
+            case INT16:
+                return new Variant((short) bits);
+            case INT32:
+                return new Variant((int) bits);
+            case INT64:
+                return new Variant(bits);
+            case BYTE:
+                return new Variant(UnsignedByte.valueOf(bits));
+            case UINT16:
+                return new Variant(UnsignedShort.valueOf(bits));
+            case UINT32:
+                return new Variant(UnsignedInteger.valueOf(bits));
+            case UINT64:
+                return new Variant(UnsignedLong.valueOf(bits));
+            default:
+                return Variant.NULL;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the start of the time partition, in DateTime ticks
+     */
+    long getPartition() {
+        return partition;
+    }
+
+    long getFirstPosition() {
+        return firstPosition;
+    }
+
+    long getEndPosition() {
+        return firstPosition + count;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    long getFirstTime() {
+        return firstTime;
+    }
+
+    long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * @return the size of the header and the records in bytes. The room after the records of a
+     *         segment that is appended to is not counted: it is a hole in the file until it is
+     *         written, and counting it would make a store of thousands of variables look full of
+     *         empty segments.
+     */
+    long getSize() {
+        return HEADER_SIZE + (long) count * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,137 @@
+package com.prosysopc.ua.samples.server;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed-size set of JDBC connections shared by concurrent database reads.
+ * <p>
+ * Connections are opened when they are first needed and kept open for the next call. A connection
+ * that has been idle for longer than {@value #VALIDATION_IDLE_MILLIS} ms is validated before use,
+ * and a connection whose call fails is closed instead of being reused, so the pool recovers from a
+ * database restart without a background thread.
+ */
+class JdbcConnectionPool implements Closeable {
+
+    /**
+     * A database call that uses a connection of the pool.
+     */
+    interface SqlCall<T> {
+        T call(Connection connection) throws SQLException;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(JdbcConnectionPool.class);
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 10_000;
+    private static final long VALIDATION_IDLE_MILLIS = 30_000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private static class PooledConnection {
+        final Connection connection;
+        long lastUsed;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final Semaphore permits;
+    // The idle connections, the most recently used first
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed;
+
+    /**
+     * @param size the maximum number of open connections
+     */
+    JdbcConnectionPool(String url, String user, String password, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be a positive value");
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Runs the call with a connection of the pool, waiting for a free connection if all are in use.
+     *
+     * @throws SQLException if the call fails, or no connection is free or can be opened
+     */
+    <T> T execute(SqlCall<T> call) throws SQLException {
+        try {
+            if (!permits.tryAcquire(ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("No free database connection in "
+                        + ACQUIRE_TIMEOUT_MILLIS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a database connection");
+        }
+        PooledConnection pooled = null;
+        try {
+            pooled = acquire();
+            T result = call.call(pooled.connection);
+            pooled.lastUsed = System.currentTimeMillis();
+            if (closed) {
+                close(pooled);
+            } else {
+                idle.addFirst(pooled);
+            }
+            pooled = null;
+            return result;
+        } finally {
+            if (pooled != null) {
+                // The connection may be broken; the next call opens a new one
+                close(pooled);
+            }
+            permits.release();
+        }
+    }
+
+    private PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool is closed");
+        }
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if ((System.currentTimeMillis() - pooled.lastUsed < VALIDATION_IDLE_MILLIS)
+                    || pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                return pooled;
+            }
+            close(pooled);
+        }
+        return new PooledConnection(DriverManager.getConnection(url, user, password));
+    }
+
+    private static void close(PooledConnection pooled) {
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            logger.debug("Closing a database connection failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the idle connections; connections in use are closed when their call ends.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            close(pooled);
+        }
+    }
+}
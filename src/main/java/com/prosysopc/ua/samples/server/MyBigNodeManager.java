@@ -6,17 +6,28 @@
  */
 package com.prosysopc.ua.samples.server;
 
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.prosysopc.ua.AccessLevels;
+import com.prosysopc.ua.ServiceException;
 import com.prosysopc.ua.StatusException;
 import com.prosysopc.ua.ValueRanks;
 import com.prosysopc.ua.nodes.UaNode;
@@ -32,6 +43,7 @@ import com.prosysopc.ua.server.Subscription;
 import com.prosysopc.ua.server.UaServer;
 import com.prosysopc.ua.stack.builtintypes.DataValue;
 import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
 import com.prosysopc.ua.stack.builtintypes.ExpandedNodeId;
 import com.prosysopc.ua.stack.builtintypes.LocalizedText;
 import com.prosysopc.ua.stack.builtintypes.NodeId;
@@ -44,6 +56,7 @@ import com.prosysopc.ua.stack.core.Attributes;
 import com.prosysopc.ua.stack.core.EventNotifierType;
 import com.prosysopc.ua.stack.core.Identifiers;
 import com.prosysopc.ua.stack.core.NodeClass;
+import com.prosysopc.ua.stack.core.ReadValueId;
 import com.prosysopc.ua.stack.core.StatusCodes;
 import com.prosysopc.ua.stack.core.TimestampsToReturn;
 import com.prosysopc.ua.stack.utils.NumericRange;
@@ -51,78 +64,171 @@ import com.prosysopc.ua.stack.utils.NumericRange;
 /**
  * A sample implementation of a NodeManager which does not use UaNode objects, but connects to an
  * underlying system for the data.
+ * <p>
+ * The data items have numeric NodeIds, whose identifier is the index of the item in the
+ * {@link DataItemStore}, so finding an item is an array access also with a million items.
+ * <p>
+ * The data is sampled from the underlying system only when it is needed: on a read, and for the
+ * monitored items at their revised sampling interval. Monitored items with the same sampling
+ * interval form a {@link SamplingGroup}, which samples its items together on a shared timer and
+ * notifies the monitored items only when the value of their item has changed. A change creates one
+ * DataValue, which is shared by all the monitored items of the item. A new monitored item gets the
+ * current value with the next sample of its group, and an item whose sampling interval is modified
+ * moves to the group of the new interval.
+ * <p>
+ * By default the values are simulated. With {@link #connectRedis} they are read from a Redis hash
+ * through a {@link RedisDataSource}, which uses the store as a near-cache. The items are writable;
+ * with Redis the writes are flushed to it in batches behind the cache.
  */
 public class MyBigNodeManager extends NodeManager {
 
   /**
-   * Helper for holding data. This simulates cases where the real-world-data would have been stored
-   * elsewhere e.g. in a database.
+   * The values of all data items in primitive arrays, indexed by the item number, which is also the
+   * numeric identifier of the NodeId of the item. This simulates cases where the real-world-data
+   * would have been stored elsewhere e.g. in a database. An item takes 24 bytes here: the value and
+   * the timestamp take 8 bytes each, the status 4 and the reference to its snapshot 4 (8 without
+   * compressed references). With the written flag of the node manager, a million items take about
+   * 25 MB without an object per item. A {@link RedisDataSource} adds 28 bytes per item for its cache
+   * state: the load time, generation and version, the change version, the pending writes and the
+   * last write. That makes about 53 MB per million items with Redis.
+   * <p>
+   * The DataValue of the current value of an item is created once per change, when it is first
+   * needed, and shared by all the monitored items that are notified of the change. These snapshots
+   * exist only for the items that are read or monitored, and take about 100 bytes each on top of the
+   * arrays.
    */
-  public class DataItem {
-    private NodeId dataType = Identifiers.Double;
-    private final String name;
-    private StatusCode status = StatusCode.valueOf(StatusCodes.Bad_WaitingForInitialData);
-    private DateTime timestamp;
-    private double value;
-
-    public DataItem(String name) {
-      super();
-      this.name = name;
+  static class DataItemStore {
+
+    /**
+     * Receives the items whose value or status changed.
+     */
+    interface ChangeListener {
+      void onChange(int index);
+    }
+
+    private static final int LOCK_STRIPES = 64;
+    private static final int GOOD = StatusCode.GOOD.getValue().intValue();
+    private static final int WAITING_FOR_INITIAL_DATA = StatusCodes.Bad_WaitingForInitialData.intValue();
+
+    private final double[] values;
+    private final int[] statuses;
+    // The time of the last change of the value or status in milliseconds, 0 if never set
+    private final long[] timestamps;
+    // The value, status and timestamp of an item are updated together under the lock of its stripe
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    // The shared DataValues of the current values, null until needed after a change
+    private final DataValue[] snapshots;
+    private volatile ChangeListener changeListener;
+
+    DataItemStore(int size) {
+      values = new double[size];
+      statuses = new int[size];
+      timestamps = new long[size];
+      snapshots = new DataValue[size];
+      Arrays.fill(statuses, WAITING_FOR_INITIAL_DATA);
+      for (int i = 0; i < LOCK_STRIPES; i++) {
+        locks[i] = new Object();
+      }
     }
 
-    public NodeId getDataType() {
-      return dataType;
+    private static StatusCode toStatusCode(int status) {
+      return status == GOOD ? StatusCode.GOOD : StatusCode.valueOf(UnsignedInteger.getFromBits(status));
     }
 
     /**
-     * Sets the data of this item to the given DataValue.
+     * Sets the data of the item to the given DataValue.
      */
-    public void getDataValue(DataValue dataValue) {
-      dataValue.setValue(new Variant(getValue()));
-      dataValue.setStatusCode(getStatus());
+    void getDataValue(int index, DataValue dataValue) {
+      double value;
+      int status;
+      long timestamp;
+      synchronized (locks[index % LOCK_STRIPES]) {
+        value = values[index];
+        status = statuses[index];
+        timestamp = timestamps[index];
+      }
+      dataValue.setValue(new Variant(value));
+      dataValue.setStatusCode(toStatusCode(status));
       dataValue.setServerTimestamp(DateTime.currentTime());
-      dataValue.setSourceTimestamp(timestamp);
+      dataValue.setSourceTimestamp(timestamp == 0 ? null : DateTime.fromMillis(timestamp));
     }
 
-    public String getName() {
-      return name;
+    /**
+     * The DataValue of the current value of the item, shared by all callers until the next change.
+     * The callers must not modify it.
+     */
+    DataValue getSnapshot(int index) {
+      synchronized (locks[index % LOCK_STRIPES]) {
+        DataValue snapshot = snapshots[index];
+        if (snapshot == null) {
+          long timestamp = timestamps[index];
+          snapshot = new DataValue(new Variant(values[index]), toStatusCode(statuses[index]),
+              timestamp == 0 ? null : DateTime.fromMillis(timestamp), DateTime.currentTime());
+          snapshots[index] = snapshot;
+        }
+        return snapshot;
+      }
     }
 
-    public StatusCode getStatus() {
-      return status;
+    /**
+     * The timestamp when the value or status changed, 0 if they were never set.
+     */
+    long getTimestamp(int index) {
+      synchronized (locks[index % LOCK_STRIPES]) {
+        return timestamps[index];
+      }
+    }
+
+    double getValue(int index) {
+      synchronized (locks[index % LOCK_STRIPES]) {
+        return values[index];
+      }
     }
 
     /**
-     * The timestamp when the value or status changed.
+     * Sets value and status of the item. The timestamp is updated only if they change.
+     *
+     * @param status the bits of the StatusCode
      */
-    public DateTime getTimestamp() {
-      return timestamp;
+    void setValue(int index, double value, int status) {
+      synchronized (locks[index % LOCK_STRIPES]) {
+        if ((values[index] == value) && (statuses[index] == status)) {
+          return;
+        }
+        values[index] = value;
+        statuses[index] = status;
+        // Keep the timestamps distinct, so that every change is seen as one
+        timestamps[index] = Math.max(System.currentTimeMillis(), timestamps[index] + 1);
+        snapshots[index] = null;
+      }
+      ChangeListener listener = changeListener;
+      if (listener != null) {
+        listener.onChange(index);
+      }
     }
 
-    public double getValue() {
-      return value;
+    void setChangeListener(ChangeListener changeListener) {
+      this.changeListener = changeListener;
     }
 
-    public void setDataType(NodeId dataType) {
-      this.dataType = dataType;
+    void setValue(int index, double value) {
+      setValue(index, value, GOOD);
     }
 
-    public void setValue(double value) {
-      setValue(value, StatusCode.GOOD);
+    int size() {
+      return values.length;
     }
 
     /**
-     * Sets value and status of this item.
+     * @param identifier the identifier of the NodeId of an item, which is its index
+     * @return the index of the item, -1 if the identifier is not the index of an item
      */
-    public void setValue(double value, StatusCode status) {
-      if (status == null) {
-        status = StatusCode.BAD;
-      }
-      if ((this.value != value) || !this.status.equals(status)) {
-        this.value = value;
-        this.status = status;
-        this.timestamp = DateTime.currentTime();
+    int indexOf(Object identifier) {
+      if (!(identifier instanceof UnsignedInteger)) {
+        return -1;
       }
+      long index = ((UnsignedInteger) identifier).longValue();
+      return index < values.length ? (int) index : -1;
     }
   }
 
@@ -140,6 +246,32 @@ public class MyBigNodeManager extends NodeManager {
       super(nodeManager);
     }
 
+    /**
+     * Loads the values of all data items of the Read request from Redis in one batch, before they
+     * are read one node at a time, which then finds them in the cache.
+     */
+    @Override
+    public void readAttributes(ServiceContext serviceContext, Double maxAge, TimestampsToReturn timestampsToReturn,
+        ReadValueId[] nodesToRead, DataValue[] results, DiagnosticInfo[] diagnosticInfos) throws ServiceException {
+      RedisDataSource source = redisSource;
+      if (source != null) {
+        int[] indices = new int[nodesToRead.length];
+        int count = 0;
+        for (ReadValueId nodeToRead : nodesToRead) {
+          if (Attributes.Value.equals(nodeToRead.getAttributeId())) {
+            int index = getItemIndex(nodeToRead.getNodeId());
+            if (index >= 0) {
+              indices[count++] = index;
+            }
+          }
+        }
+        if (count > 0) {
+          source.read(indices, count);
+        }
+      }
+      super.readAttributes(serviceContext, maxAge, timestampsToReturn, nodesToRead, results, diagnosticInfos);
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -154,7 +286,7 @@ public class MyBigNodeManager extends NodeManager {
       Object value = null;
       UnsignedInteger status = StatusCodes.Bad_AttributeIdInvalid;
 
-      DataItem dataItem = getDataItem(nodeId);
+      int index = getItemIndex(nodeId);
       final ExpandedNodeId expandedNodeId = getNamespaceTable().toExpandedNodeId(nodeId);
       if (attributeId.equals(Attributes.NodeId)) {
         value = nodeId;
@@ -168,7 +300,7 @@ public class MyBigNodeManager extends NodeManager {
         value = getNodeClass(expandedNodeId, node);
       } else if (attributeId.equals(Attributes.WriteMask)) {
         value = UnsignedInteger.ZERO;
-      } else if (dataItem != null) {
+      } else if (index >= 0) {
         if (attributeId.equals(Attributes.DataType)) {
           value = Identifiers.Double;
         } else if (attributeId.equals(Attributes.ValueRank)) {
@@ -176,9 +308,9 @@ public class MyBigNodeManager extends NodeManager {
         } else if (attributeId.equals(Attributes.ArrayDimensions)) {
           status = StatusCodes.Bad_AttributeIdInvalid;
         } else if (attributeId.equals(Attributes.AccessLevel)) {
-          value = AccessLevels.READ_ONLY.asBuiltInType();
+          value = AccessLevels.READ_WRITE.asBuiltInType();
         } else if (attributeId.equals(Attributes.UserAccessLevel)) {
-          value = AccessLevels.READ_ONLY.asBuiltInType();
+          value = AccessLevels.READ_WRITE.asBuiltInType();
         } else if (attributeId.equals(Attributes.Historizing)) {
           value = false;
         }
@@ -207,39 +339,224 @@ public class MyBigNodeManager extends NodeManager {
     protected void readValue(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaValueNode node,
         NumericRange indexRange, TimestampsToReturn timestampsToReturn, DateTime minTimestamp, DataValue dataValue)
         throws StatusException {
-      DataItem dataItem = getDataItem(nodeId);
-      if (dataItem == null) {
+      int index = getItemIndex(nodeId);
+      if (index < 0) {
+        throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
+      }
+      sampleDataItem(index);
+      store.getDataValue(index, dataValue);
+
+    }
+
+    @Override
+    protected boolean writeValue(ServiceContext serviceContext, Object operationContext, NodeId nodeId,
+        UaValueNode node, NumericRange indexRange, DataValue dataValue) throws StatusException {
+      int index = getItemIndex(nodeId);
+      if (index < 0) {
         throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
       }
-      dataItem.getDataValue(dataValue);
-
-    }
-
-    // If you wish to enable writing, also disable simulation in
-    // MyBigNodeManager.simulate() and check the value of WriteMask returned
-    // (above).
-    // /*
-    // * (non-Javadoc)
-    // *
-    // * @see
-    // *
-    // com.prosysopc.ua.server.IoManager#writeValue(com.prosysopc.ua.server
-    // * .ServiceContext, org.opcfoundation.ua.builtintypes.NodeId,
-    // * com.prosysopc.ua.nodes.UaVariable,
-    // * org.opcfoundation.ua.utils.NumericRange,
-    // * org.opcfoundation.ua.builtintypes.DataValue)
-    // */
-    // @Override
-    // protected boolean writeValue(ServiceContext serviceContext,
-    // NodeId nodeId, UaVariable node, NumericRange indexRange,
-    // DataValue dataValue) throws StatusException {
-    // DataItem dataItem = getDataItem(nodeId);
-    // if (dataItem == null)
-    // throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
-    // dataItem.setValue(dataValue.getValue().doubleValue(),
-    // dataValue.getStatusCode());
-    // return true;
-    // }
+      Object value = dataValue.getValue().getValue();
+      if (!(value instanceof Number)) {
+        throw new StatusException(StatusCodes.Bad_TypeMismatch);
+      }
+      writeDataItem(index, ((Number) value).doubleValue());
+      return true;
+    }
+  }
+
+  /**
+   * The monitored items of one data item in a SamplingGroup.
+   */
+  private class SampledItem {
+    private final int index;
+    private final SamplingGroup group;
+    private final Collection<MonitoredDataItem> monitoredDataItems = new CopyOnWriteArrayList<MonitoredDataItem>();
+    // Set while the item is in the dirty set of the group
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    SampledItem(int index, SamplingGroup group) {
+      this.index = index;
+      this.group = group;
+    }
+
+    void markDirty() {
+      if (dirty.compareAndSet(false, true)) {
+        group.dirtyItems.add(this);
+      }
+    }
+
+    /**
+     * Notifies the monitored items of the current value, one DataValue shared by all.
+     */
+    void notifyChange() {
+      dirty.set(false);
+      DataValue dataValue = store.getSnapshot(index);
+      for (MonitoredDataItem item : monitoredDataItems) {
+        item.notifyDataChange(dataValue);
+      }
+    }
+  }
+
+  /**
+   * The monitored items that have the same revised sampling interval. The group samples its items
+   * on the shared sampling timer, as long as it has items. The items that changed since the previous
+   * sample are in the dirty set of the group, so the notification visits only them.
+   */
+  private class SamplingGroup implements Runnable {
+    private final long samplingInterval;
+    private final Map<Integer, SampledItem> sampledItems = new ConcurrentHashMap<Integer, SampledItem>();
+    private final Queue<SampledItem> dirtyItems = new ConcurrentLinkedQueue<SampledItem>();
+    private ScheduledFuture<?> future;
+    // The indices of the items for a batched read, used only by the sampling thread
+    private int[] indices = new int[16];
+
+    SamplingGroup(long samplingInterval) {
+      this.samplingInterval = samplingInterval;
+    }
+
+    @Override
+    public void run() {
+      try {
+        // Poll the underlying system, which marks the changed items dirty
+        RedisDataSource source = redisSource;
+        if (source != null) {
+          int count = 0;
+          for (SampledItem sampledItem : sampledItems.values()) {
+            if (count == indices.length) {
+              indices = Arrays.copyOf(indices, count * 2);
+            }
+            indices[count++] = sampledItem.index;
+          }
+          source.read(indices, count);
+        } else {
+          for (SampledItem sampledItem : sampledItems.values()) {
+            sampleDataItem(sampledItem.index);
+          }
+        }
+        SampledItem sampledItem;
+        while ((sampledItem = dirtyItems.poll()) != null) {
+          sampledItem.notifyChange();
+        }
+      } catch (RuntimeException e) {
+        // Never let an error stop the sampling of the group
+        logger.error("Sampling failed: samplingInterval=" + samplingInterval, e);
+      }
+    }
+
+    void add(int index, MonitoredDataItem item) {
+      SampledItem sampledItem = sampledItems.get(index);
+      if (sampledItem == null) {
+        sampledItem = new SampledItem(index, this);
+        sampledItems.put(index, sampledItem);
+        addSampledItem(sampledItem);
+      }
+      sampledItem.monitoredDataItems.add(item);
+      // The next sample notifies the current value to the new item; the items that already have it
+      // get the same DataValue again, which their filter drops
+      sampledItem.markDirty();
+      if (future == null) {
+        future = sampler.scheduleAtFixedRate(this, samplingInterval, samplingInterval, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /**
+     * @return true if the item was in this group
+     */
+    boolean remove(int index, MonitoredItem item) {
+      SampledItem sampledItem = sampledItems.get(index);
+      if ((sampledItem == null) || !sampledItem.monitoredDataItems.remove(item)) {
+        return false;
+      }
+      if (sampledItem.monitoredDataItems.isEmpty()) {
+        sampledItems.remove(index);
+        removeSampledItem(sampledItem);
+      }
+      if (sampledItems.isEmpty()) {
+        future.cancel(false);
+        future = null;
+      }
+      return true;
+    }
+
+    boolean contains(int index, MonitoredItem item) {
+      SampledItem sampledItem = sampledItems.get(index);
+      return (sampledItem != null) && sampledItem.monitoredDataItems.contains(item);
+    }
+
+    boolean isEmpty() {
+      return sampledItems.isEmpty();
+    }
+  }
+
+  /**
+   * The HasComponent reference from the folder to a data item. Only the index of the item is stored
+   * and the NodeIds are created when they are asked for, so the references of a million items can be
+   * kept in memory and the SDK creates the NodeIds only for the references that it returns.
+   */
+  private class ItemReference extends UaReference {
+
+    private final int index;
+
+    ItemReference(int index) {
+      super();
+      this.index = index;
+    }
+
+    @Override
+    public void delete() {
+      throw new RuntimeException("StatusCodes.Bad_NotImplemented");
+    }
+
+    @Override
+    public boolean getIsInverse(NodeId nodeId) {
+      if (nodeId.equals(folderNodeId)) {
+        return false;
+      }
+      if (getItemIndex(nodeId) == index) {
+        return true;
+      }
+      throw new RuntimeException("not a source nor target");
+    }
+
+    @Override
+    public boolean getIsInverse(UaNode node) {
+      return getIsInverse(node.getNodeId());
+    }
+
+    @Override
+    public UaReferenceType getReferenceType() {
+      try {
+        return (UaReferenceType) getNodeManagerTable().getNode(getReferenceTypeId());
+      } catch (StatusException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public NodeId getReferenceTypeId() {
+      return Identifiers.HasComponent;
+    }
+
+    @Override
+    public ExpandedNodeId getSourceId() {
+      return dataItemFolder;
+    }
+
+    @Override
+    public UaNode getSourceNode() {
+      return null;
+    }
+
+    @Override
+    public ExpandedNodeId getTargetId() {
+      return getItemId(index);
+    }
+
+    @Override
+    public UaNode getTargetNode() {
+      return null;
+    }
+
   }
 
   /**
@@ -332,17 +649,58 @@ public class MyBigNodeManager extends NodeManager {
 
   private static final Logger logger = LoggerFactory.getLogger(MyBigNodeManager.class);
 
+  /**
+   * The shortest sampling interval in milliseconds, used also for the requests of the fastest
+   * practical rate (0).
+   */
+  private static final long MIN_SAMPLING_INTERVAL = 50;
+
+  private static final int SAMPLER_THREADS = 2;
+
+  private static final String ITEM_NAME_PREFIX = "DataItem_";
+
   private final ExpandedNodeId dataItemFolder;
 
-  private final Map<String, DataItem> dataItems;
+  private final NodeId folderNodeId;
 
-  private final Map<String, Collection<MonitoredDataItem>> monitoredItems =
-      new ConcurrentHashMap<String, Collection<MonitoredDataItem>>();
+  private final NodeId typeNodeId;
+
+  /*
+   * The references of the folder and the type never change, so they are created once and the same
+   * arrays are returned for every browse. The SDK applies the browse filters and the continuation
+   * points to them, and must not modify them. getReferences cannot return a part of the references,
+   * so every Browse and BrowseNext of the folder is handed the whole array: with a million items it
+   * holds a million ItemReferences, at least 16 bytes each plus 4 bytes in the array, i.e. some 20
+   * MB. The array is softly referenced, so the garbage collector may release it when the memory is
+   * needed, and the next browse of the folder creates it again.
+   */
+  private volatile SoftReference<UaReference[]> folderReferences = new SoftReference<UaReference[]>(null);
+
+  private final UaReference[] typeReferences;
+
+  private final DataItemStore store;
+
+  // The sampling groups by their sampling interval in milliseconds
+  private final Map<Long, SamplingGroup> samplingGroups = new ConcurrentHashMap<Long, SamplingGroup>();
+
+  // The sampled items of all groups by the index of the data item, modified under samplingGroups
+  private final Map<Integer, SampledItem[]> sampledItemsByIndex = new ConcurrentHashMap<Integer, SampledItem[]>();
+
+  private final ScheduledExecutorService sampler = Executors.newScheduledThreadPool(SAMPLER_THREADS, r -> {
+    Thread t = new Thread(r, "MyBigNodeManager-sampler");
+    t.setDaemon(true);
+    return t;
+  });
 
   @SuppressWarnings("unused")
   private final MyBigIoManager myBigIoManager;
 
-  private double simulationtime = 0;
+  private final long simulationStartMillis = System.currentTimeMillis();
+
+  private volatile RedisDataSource redisSource;
+
+  // The items written by the clients, which the simulation leaves at the written value
+  private final boolean[] writtenItems;
 
   /**
    * Default constructor.
@@ -355,16 +713,19 @@ public class MyBigNodeManager extends NodeManager {
     super(server, namespaceUri);
     dataItemType = new ExpandedNodeId(null, getNamespaceIndex(), "DataItemType");
     dataItemFolder = new ExpandedNodeId(null, getNamespaceIndex(), "MyBigNodeManager");
+    typeNodeId = new NodeId(getNamespaceIndex(), "DataItemType");
+    folderNodeId = new NodeId(getNamespaceIndex(), "MyBigNodeManager");
     try {
       getNodeManagerTable().getNodeManagerRoot().getObjectsFolder()
           .addReference(getNamespaceTable().toNodeId(dataItemFolder), Identifiers.Organizes, false);
     } catch (ServiceResultException e) {
       throw new RuntimeException(e);
     }
-    dataItems = new TreeMap<String, DataItem>();
-    for (int i = 0; i < nofItems; i++) {
-      addDataItem(String.format("DataItem_%04d", i));
-    }
+    store = new DataItemStore(nofItems);
+    writtenItems = new boolean[nofItems];
+    store.setChangeListener(this::onItemChange);
+    typeReferences = new UaReference[] {
+        new MyReference(new ExpandedNodeId(Identifiers.BaseDataVariableType), dataItemType, Identifiers.HasSubtype)};
 
     myBigIoManager = new MyBigIoManager(this);
   }
@@ -385,40 +746,60 @@ public class MyBigNodeManager extends NodeManager {
 
   @Override
   public NodeId getVariableDataType(NodeId nodeId, UaValueNode variable) throws StatusException {
-    DataItem item = getDataItem(nodeId);
-    return item.getDataType();
+    return Identifiers.Double;
   }
 
   @Override
   public boolean hasNode(NodeId nodeId) {
     return nodeId.getValue().equals("MyBigNodeManager") || getNamespaceTable().nodeIdEquals(nodeId, dataItemType)
-        || (getDataItem(nodeId) != null);
+        || (getItemIndex(nodeId) >= 0);
   }
 
-  private void addDataItem(String name) {
-    dataItems.put(name, new DataItem(name));
+  /**
+   * Finds the data item corresponding to the NodeId.
+   *
+   * @param nodeId ID of the node - the numeric Value part is the index of the item
+   * @return the index of the item in the store, -1 if the node is not a data item
+   */
+  private int getItemIndex(ExpandedNodeId nodeId) {
+    return getItemIndex(nodeId.getValue());
   }
 
   /**
-   * Finds the DataItem corresponding to the NodeId.
+   * Finds the data item corresponding to the NodeId.
    *
-   * @param nodeId ID of the node - the Value part corresponds to the name of the item
-   * @return the DataItem object
+   * @param nodeId ID of the node - the numeric Value part is the index of the item
+   * @return the index of the item in the store, -1 if the node is not a data item
    */
-  private DataItem getDataItem(ExpandedNodeId nodeId) {
-    String name = (String) nodeId.getValue();
-    return dataItems.get(name);
+  private int getItemIndex(NodeId nodeId) {
+    return getItemIndex(nodeId.getValue());
+  }
+
+  private int getItemIndex(Object value) {
+    return store.indexOf(value);
+  }
+
+  private ExpandedNodeId getItemId(int index) {
+    return new ExpandedNodeId(null, getNamespaceIndex(), UnsignedInteger.valueOf(index));
+  }
+
+  private static String getItemName(int index) {
+    return String.format(ITEM_NAME_PREFIX + "%04d", index);
   }
 
   /**
-   * Finds the DataItem corresponding to the NodeId.
-   *
-   * @param nodeId ID of the node - the Value part corresponds to the name of the item
-   * @return the DataItem object
+   * @return the index of the item with the name, -1 if the name is not one of a data item
    */
-  private DataItem getDataItem(NodeId nodeId) {
-    String name = (String) nodeId.getValue();
-    return dataItems.get(name);
+  private int parseItemName(String name) {
+    if (!name.startsWith(ITEM_NAME_PREFIX)) {
+      return -1;
+    }
+    try {
+      int index = Integer.parseInt(name.substring(ITEM_NAME_PREFIX.length()));
+      return (index >= 0) && (index < store.size()) ? index : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
   }
 
   private String getNodeName(ExpandedNodeId nodeId) {
@@ -429,60 +810,208 @@ public class MyBigNodeManager extends NodeManager {
     if (getNamespaceTable().nodeIdEquals(nodeId, dataItemFolder)) {
       name = "MyBigNodeManager";
     } else {
-      DataItem dataItem = getDataItem(nodeId);
+      int index = getItemIndex(nodeId);
       // Use the namespaceIndex of the NodeManager name space also for the
       // browse names
-      if (dataItem != null) {
-        name = dataItem.getName();
+      if (index >= 0) {
+        name = getItemName(index);
       }
     }
     return name;
   }
 
   /**
-   * Send a data change notification for all monitored data items that are monitoring the dataItem.
+   * Reads the values of the items from a Redis hash instead of simulating them. Each item is a field
+   * of the hash, named like the item, e.g. DataItem_0001.
+   *
+   * @param hashKey the key of the hash
+   * @param ttlMillis how long a value is used from the cache if no change of the hash is reported
+   * @param flushedWrites true to acknowledge a write only after it is written to Redis (a write that
+   *        could not be flushed yet is reported as Good_CompletesAsynchronously), false to
+   *        acknowledge it when it is in the cache
+   */
+  public void connectRedis(String host, int port, String hashKey, long ttlMillis, boolean flushedWrites) {
+    RedisDataSource source = new RedisDataSource(store, MyBigNodeManager::getItemName, this::parseItemName, host,
+        port, hashKey, ttlMillis,
+        flushedWrites ? RedisDataSource.Durability.FLUSHED : RedisDataSource.Durability.WRITE_BEHIND);
+    source.start();
+    redisSource = source;
+    logger.info("Reading the values from Redis {}:{} hash {}", host, port, hashKey);
+  }
+
+  /**
+   * Closes the Redis connection, after which the values are simulated again.
    */
-  private void notifyMonitoredDataItems(DataItem dataItem) {
-    // Get the list of items watching dataItem
-    Collection<MonitoredDataItem> c = monitoredItems.get(dataItem.getName());
-    if (c != null) {
-      for (MonitoredDataItem item : c) {
-        DataValue dataValue = new DataValue();
-        dataItem.getDataValue(dataValue);
-        item.notifyDataChange(dataValue);
+  public void disconnectRedis() {
+    RedisDataSource source = redisSource;
+    redisSource = null;
+    if (source != null) {
+      source.close();
+    }
+  }
+
+  /**
+   * Reads the current value of the item from the underlying system: from Redis, if connected, or
+   * from a simulated system that updates all items once per second with a sine wave.
+   */
+  private void sampleDataItem(int index) {
+    RedisDataSource source = redisSource;
+    if (source != null) {
+      source.read(index);
+      return;
+    }
+    if (writtenItems[index]) {
+      return;
+    }
+    long seconds = (System.currentTimeMillis() - simulationStartMillis) / 1000;
+    store.setValue(index, 100 * Math.sin(seconds * Math.PI / 180));
+  }
+
+  /**
+   * Writes the value of the item: through the write-behind queue of Redis, if connected, or to the
+   * store, where the simulation no longer changes it.
+   */
+  private void writeDataItem(int index, double value) throws StatusException {
+    RedisDataSource source = redisSource;
+    if (source != null) {
+      source.write(index, value);
+    } else {
+      writtenItems[index] = true;
+      store.setValue(index, value);
+    }
+  }
+
+  /**
+   * Marks the changed item dirty in every sampling group that samples it.
+   */
+  private void onItemChange(int index) {
+    SampledItem[] sampledItems = sampledItemsByIndex.get(index);
+    if (sampledItems != null) {
+      for (SampledItem sampledItem : sampledItems) {
+        sampledItem.markDirty();
       }
     }
   }
 
+  private void addSampledItem(SampledItem sampledItem) {
+    SampledItem[] items = sampledItemsByIndex.get(sampledItem.index);
+    if (items == null) {
+      items = new SampledItem[] {sampledItem};
+    } else {
+      items = Arrays.copyOf(items, items.length + 1);
+      items[items.length - 1] = sampledItem;
+    }
+    sampledItemsByIndex.put(sampledItem.index, items);
+  }
+
+  private void removeSampledItem(SampledItem sampledItem) {
+    SampledItem[] items = sampledItemsByIndex.get(sampledItem.index);
+    if (items == null) {
+      return;
+    }
+    List<SampledItem> remaining = new ArrayList<SampledItem>(Arrays.asList(items));
+    remaining.remove(sampledItem);
+    if (remaining.isEmpty()) {
+      sampledItemsByIndex.remove(sampledItem.index);
+    } else {
+      sampledItemsByIndex.put(sampledItem.index, remaining.toArray(new SampledItem[remaining.size()]));
+    }
+  }
+
+  /**
+   * @return the sampling interval of the group of the item in milliseconds
+   */
+  private static long getGroupInterval(MonitoredDataItem item) {
+    return Math.max(MIN_SAMPLING_INTERVAL, Math.round(item.getSamplingInterval()));
+  }
+
   @Override
   protected void afterCreateMonitoredDataItem(ServiceContext serviceContext, Subscription subscription,
       MonitoredDataItem item) {
-    // Add all items that monitor the same node to the same collection
-    final Object dataItemName = item.getNodeId().getValue();
-    Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-    if (c == null) {
-      c = new CopyOnWriteArrayList<MonitoredDataItem>();
-      monitoredItems.put((String) dataItemName, c);
+    int index = getItemIndex(item.getNodeId());
+    if (index < 0) {
+      // The folder or the type, which have no changing values
+      return;
+    }
+    long samplingInterval = getGroupInterval(item);
+    synchronized (samplingGroups) {
+      addToGroup(index, item, samplingInterval);
+    }
+    logger.debug("afterCreateMonitoredDataItem: nodeId={} samplingInterval={} groups={}", item.getNodeId(),
+        samplingInterval, samplingGroups.size());
+  }
+
+  /**
+   * Moves the item to the group of its new sampling interval, if the interval was modified.
+   */
+  @Override
+  protected void afterModifyMonitoredDataItem(ServiceContext serviceContext, Subscription subscription,
+      MonitoredDataItem item) {
+    int index = getItemIndex(item.getNodeId());
+    if (index < 0) {
+      return;
+    }
+    long samplingInterval = getGroupInterval(item);
+    synchronized (samplingGroups) {
+      SamplingGroup group = samplingGroups.get(samplingInterval);
+      if ((group != null) && group.contains(index, item)) {
+        return;
+      }
+      removeFromGroup(index, item);
+      addToGroup(index, item, samplingInterval);
     }
-    c.add(item);
-    logger.debug("afterCreateMonitoredDataItem: nodeId={} c.size()={}", item.getNodeId(), c.size());
+    logger.debug("afterModifyMonitoredDataItem: nodeId={} samplingInterval={} groups={}", item.getNodeId(),
+        samplingInterval, samplingGroups.size());
   }
 
   @Override
   protected void deleteMonitoredItem(ServiceContext serviceContext, Subscription subscription, MonitoredItem item)
       throws StatusException {
-    // Find the collection in which the monitoredItem is
-    // and remove the item from the collection
-    Object dataItemName = item.getNodeId().getValue();
-    Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-    if (c != null) {
-      logger.debug("deleteMonitoredItem: collection size={}", c.size());
-      c.remove(item);
-      if (c.isEmpty()) {
-        monitoredItems.remove(dataItemName);
-        logger.debug("deleteMonitoredItem: monitoredItems size={}", monitoredItems.size());
+    if (!(item instanceof MonitoredDataItem)) {
+      return;
+    }
+    int index = getItemIndex(item.getNodeId());
+    if (index < 0) {
+      return;
+    }
+    synchronized (samplingGroups) {
+      removeFromGroup(index, (MonitoredDataItem) item);
+    }
+  }
+
+  /**
+   * Adds the item to the group of the sampling interval, creating the group if needed. Called with
+   * the lock of samplingGroups.
+   */
+  private void addToGroup(int index, MonitoredDataItem item, long samplingInterval) {
+    SamplingGroup group = samplingGroups.get(samplingInterval);
+    if (group == null) {
+      group = new SamplingGroup(samplingInterval);
+      samplingGroups.put(samplingInterval, group);
+    }
+    group.add(index, item);
+  }
+
+  /**
+   * Removes the item from its group, and the group if it becomes empty. Called with the lock of
+   * samplingGroups.
+   */
+  private void removeFromGroup(int index, MonitoredDataItem item) {
+    // The group of the current interval; the others in case the interval was modified
+    SamplingGroup group = samplingGroups.get(getGroupInterval(item));
+    if ((group == null) || !group.remove(index, item)) {
+      group = null;
+      for (SamplingGroup g : samplingGroups.values()) {
+        if (g.remove(index, item)) {
+          group = g;
+          break;
+        }
       }
     }
+    if ((group != null) && group.isEmpty()) {
+      samplingGroups.remove(group.samplingInterval);
+      logger.debug("removeFromGroup: removed group of {} ms", group.samplingInterval);
+    }
   }
 
   @Override
@@ -511,45 +1040,53 @@ public class MyBigNodeManager extends NodeManager {
 
   @Override
   protected UaReference[] getReferences(NodeId nodeId, UaNode node) {
-    try {
-      // Define reference to our type
-      if (nodeId.equals(getNamespaceTable().toNodeId(dataItemType))) {
-        return new UaReference[] {new MyReference(new ExpandedNodeId(Identifiers.BaseDataVariableType), dataItemType,
-            Identifiers.HasSubtype)};
-      }
-      // Define reference from and to our Folder for the DataItems
-      if (nodeId.equals(getNamespaceTable().toNodeId(dataItemFolder))) {
-        UaReference[] folderItems = new UaReference[dataItems.size() + 2];
-        // Inverse reference to the ObjectsFolder
-        folderItems[0] =
-            new MyReference(new ExpandedNodeId(Identifiers.ObjectsFolder), dataItemFolder, Identifiers.Organizes);
-        // Type definition reference
-        folderItems[1] = new MyReference(dataItemFolder,
-            getTypeDefinition(getNamespaceTable().toExpandedNodeId(nodeId), node), Identifiers.HasTypeDefinition);
-        int i = 2;
-        // Reference to all items in the folder
-        for (DataItem d : dataItems.values()) {
-          folderItems[i] = new MyReference(dataItemFolder, new ExpandedNodeId(null, getNamespaceIndex(), d.getName()),
-              Identifiers.HasComponent);
-          i++;
-        }
-        return folderItems;
-      }
-    } catch (ServiceResultException e) {
-      throw new RuntimeException(e);
+    // Define reference to our type
+    if (nodeId.equals(typeNodeId)) {
+      return typeReferences;
+    }
+    // Define reference from and to our Folder for the DataItems
+    if (nodeId.equals(folderNodeId)) {
+      return getFolderReferences();
     }
 
     // Define references from our DataItems
-    DataItem dataItem = getDataItem(nodeId);
-    if (dataItem == null) {
+    int index = getItemIndex(nodeId);
+    if (index < 0) {
       return null;
     }
-    final ExpandedNodeId dataItemId = new ExpandedNodeId(null, getNamespaceIndex(), dataItem.getName());
     return new UaReference[] {
         // Inverse reference to the folder
-        new MyReference(dataItemFolder, dataItemId, Identifiers.HasComponent),
+        new ItemReference(index),
         // Type definition
-        new MyReference(dataItemId, dataItemType, Identifiers.HasTypeDefinition)};
+        new MyReference(getItemId(index), dataItemType, Identifiers.HasTypeDefinition)};
+  }
+
+  /**
+   * @return the references of the folder, created on the first browse and after the garbage
+   *         collector has released them
+   */
+  private UaReference[] getFolderReferences() {
+    UaReference[] references = folderReferences.get();
+    if (references == null) {
+      synchronized (this) {
+        references = folderReferences.get();
+        if (references == null) {
+          references = new UaReference[store.size() + 2];
+          // Inverse reference to the ObjectsFolder
+          references[0] =
+              new MyReference(new ExpandedNodeId(Identifiers.ObjectsFolder), dataItemFolder, Identifiers.Organizes);
+          // Type definition reference
+          references[1] = new MyReference(dataItemFolder, getTypeDefinition(dataItemFolder, null),
+              Identifiers.HasTypeDefinition);
+          // Reference to all items in the folder
+          for (int i = 0; i < store.size(); i++) {
+            references[i + 2] = new ItemReference(i);
+          }
+          folderReferences = new SoftReference<UaReference[]>(references);
+        }
+      }
+    }
+    return references;
   }
 
   @Override
@@ -565,13 +1102,4 @@ public class MyBigNodeManager extends NodeManager {
     return dataItemType;
   }
 
-  void simulate() {
-    simulationtime = simulationtime + (Math.PI / 180);
-    double value = 100 * Math.sin(simulationtime);
-    for (DataItem d : dataItems.values()) {
-      d.setValue(value);
-      notifyMonitoredDataItems(d);
-    }
-  }
-
 }
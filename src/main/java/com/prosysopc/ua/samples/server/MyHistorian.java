@@ -6,6 +6,7 @@
  */
 package com.prosysopc.ua.samples.server;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -25,6 +26,8 @@ import com.prosysopc.ua.nodes.UaNode;
 import com.prosysopc.ua.server.HistoryContinuationPoint;
 import com.prosysopc.ua.server.HistoryManagerListener;
 import com.prosysopc.ua.server.HistoryResult;
+import com.prosysopc.ua.server.NodeManagerRoot;
+import com.prosysopc.ua.server.NodeManagerUaNode;
 import com.prosysopc.ua.server.ServiceContext;
 import com.prosysopc.ua.server.nodes.UaObjectNode;
 import com.prosysopc.ua.server.nodes.UaVariableNode;
@@ -36,6 +39,7 @@ import com.prosysopc.ua.stack.builtintypes.NodeId;
 import com.prosysopc.ua.stack.builtintypes.StatusCode;
 import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
 import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.AccessLevelType;
 import com.prosysopc.ua.stack.core.AggregateConfiguration;
 import com.prosysopc.ua.stack.core.EventFilter;
 import com.prosysopc.ua.stack.core.EventNotifierType;
@@ -52,6 +56,7 @@ import com.prosysopc.ua.stack.core.PerformUpdateType;
 import com.prosysopc.ua.stack.core.StatusCodes;
 import com.prosysopc.ua.stack.core.TimestampsToReturn;
 import com.prosysopc.ua.stack.utils.NumericRange;
+import com.prosysopc.ua.types.opcua.AggregateFunctionType;
 import com.prosysopc.ua.types.opcua.HistoricalDataConfigurationType;
 
 /**
@@ -62,15 +67,80 @@ import com.prosysopc.ua.types.opcua.HistoricalDataConfigurationType;
 public class MyHistorian implements HistoryManagerListener {
   private static Logger logger = LoggerFactory.getLogger(MyHistorian.class);
   private final Map<UaObjectNode, EventHistory> eventHistories = new HashMap<UaObjectNode, EventHistory>();
+  // The parsed event filters, shared by the event histories
+  private EventFilterCache eventFilterCache;
 
   // The variable histories
-  private final Map<UaVariableNode, ValueHistory> variableHistories = new HashMap<UaVariableNode, ValueHistory>();
+  private final Map<UaVariableNode, VariableHistory> variableHistories =
+      new HashMap<UaVariableNode, VariableHistory>();
+  // The shared HA Configurations of the bulk registered variables, by NodeId
+  private final Map<NodeId, HistoricalDataConfigurationType> sharedConfigurations =
+      new HashMap<NodeId, HistoricalDataConfigurationType>();
   private final AggregateCalculator aggregateCalculator;
+  private PersistentHistoryStore persistentStore;
+  // The visual decimation aggregates, if added
+  private NodeId minMaxAggregate;
+  private NodeId lttbAggregate;
 
   public MyHistorian(AggregateCalculator aggregateCalculator) {
     this.aggregateCalculator = aggregateCalculator;
   }
 
+  /**
+   * Keep the histories of the variables that are added after this in the store, instead of memory.
+   * Only variables of numeric and Boolean types are stored; the others are still kept in memory.
+   *
+   * @param persistentStore the store, or null to keep the histories in memory
+   */
+  public void setPersistentStore(PersistentHistoryStore persistentStore) {
+    this.persistentStore = persistentStore;
+  }
+
+  /**
+   * Creates the history of the variable in the persistent store if it is set and can store the
+   * variable, otherwise in memory.
+   */
+  private VariableHistory createHistory(UaVariableNode variable, boolean followChanges, int capacity) {
+    if ((persistentStore != null) && PersistentHistoryStore.isSupported(variable)) {
+      try {
+        return persistentStore.open(variable, followChanges);
+      } catch (IOException e) {
+        logger.warn("Cannot open the stored history of {}, keeping it in memory: {}", variable.getNodeId(),
+            e.getMessage());
+      }
+    }
+    return new ValueHistory(variable, followChanges, capacity > 0 ? capacity : ValueHistory.DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Add the visual decimation aggregates of {@link HistoryDecimation} to the aggregate functions of
+   * the server, in the namespace of the node manager.
+   * <p>
+   * Clients use them in processed reads like the standard aggregates: DecimateMinMax returns the
+   * minimum and maximum raw value of each processing interval and DecimateLttb one raw value per
+   * interval, so the processing interval sets the number of points of a trend.
+   *
+   * @param nodeManager the node manager of the aggregate function nodes
+   */
+  public void addDecimationAggregates(NodeManagerUaNode nodeManager) throws StatusException {
+    minMaxAggregate = addAggregateFunction(nodeManager, "DecimateMinMax");
+    lttbAggregate = addAggregateFunction(nodeManager, "DecimateLttb");
+  }
+
+  private NodeId addAggregateFunction(NodeManagerUaNode nodeManager, String name) throws StatusException {
+    NodeId nodeId = new NodeId(nodeManager.getNamespaceIndex(), name);
+    AggregateFunctionType aggregate = nodeManager.createInstance(AggregateFunctionType.class, name, nodeId);
+    NodeManagerRoot root = nodeManager.getServer().getNodeManagerRoot();
+    nodeManager.addNodeAndReference(root.findNode(Identifiers.Server_ServerCapabilities_AggregateFunctions), aggregate,
+        Identifiers.Organizes);
+    // Also listed in the HistoryServerCapabilities, if the server has them
+    UaNode historyAggregates = root.findNode(Identifiers.HistoryServerCapabilities_AggregateFunctions);
+    if (historyAggregates != null) {
+      historyAggregates.addReference(aggregate, Identifiers.Organizes, false);
+    }
+    return nodeId;
+  }
+
   /**
    * Add the object to the historian for event history.
    * <p>
@@ -80,7 +150,10 @@ public class MyHistorian implements HistoryManagerListener {
    * @param node the object to initialize
    */
   public void addEventHistory(UaObjectNode node) {
-    EventHistory history = new EventHistory(node);
+    if (eventFilterCache == null) {
+      eventFilterCache = new EventFilterCache(node.getNodeManager().getNodeManagerTable());
+    }
+    EventHistory history = new EventHistory(node, eventFilterCache);
     // History can be read
     Set<EventNotifierType.Options> eventNotifier = node.getEventNotifier().toSet();
     eventNotifier.add(EventNotifierType.Options.HistoryRead);
@@ -96,7 +169,7 @@ public class MyHistorian implements HistoryManagerListener {
    * @param variable the variable to initialize
    */
   public void addVariableHistory(UaVariableNode variable) {
-    ValueHistory history = new ValueHistory(variable);
+    VariableHistory history = createHistory(variable, true, 0);
     // History is being collected
     variable.setHistorizing(true);
     // History can be read
@@ -116,6 +189,74 @@ public class MyHistorian implements HistoryManagerListener {
     variableHistories.put(variable, history);
   }
 
+  /**
+   * Add many variables to the historian at once.
+   * <p>
+   * Unlike {@link #addVariableHistory(UaVariableNode)}, the histories do not follow the value
+   * changes of the nodes: the owner of the values appends them to the returned histories. This
+   * suits variables whose values are served by an IoManagerListener. Instead of an HA
+   * Configuration per variable, the variables of a node manager share one configuration for
+   * stepped and one for sloped interpolation, which keeps the address space small when thousands
+   * of variables are historized.
+   *
+   * @param variables the variables to initialize
+   * @param capacity the number of values to keep per variable in memory; the retention of the
+   *        persistent store applies to the variables kept in it
+   * @return the histories, in the order of the variables
+   */
+  public VariableHistory[] addVariableHistories(List<? extends UaVariableNode> variables, int capacity) {
+    VariableHistory[] histories = new VariableHistory[variables.size()];
+    for (int i = 0; i < histories.length; i++) {
+      UaVariableNode variable = variables.get(i);
+      VariableHistory history = createHistory(variable, false, capacity);
+      variable.setHistorizing(true);
+      variable.setAccessLevel(AccessLevels.READ_WRITE_HISTORY_READ);
+      variable.addReference(getSharedConfiguration(variable, history.isStepped()),
+          Identifiers.HasHistoricalConfiguration, false);
+      histories[i] = history;
+      variableHistories.put(variable, history);
+    }
+    return histories;
+  }
+
+  /**
+   * Add a variable whose history is kept outside of the server, such as in a database, to the
+   * historian.
+   * <p>
+   * The history is read from the given history, which does not follow the value changes of the
+   * node. The access level of the variable is extended to allow history reads, and it shares the HA
+   * Configuration of its node manager like in {@link #addVariableHistories(List, int)}.
+   *
+   * @param variable the variable to initialize
+   * @param history the history of the variable
+   */
+  void addVariableHistory(UaVariableNode variable, VariableHistory history) {
+    variable.setHistorizing(true);
+    Set<AccessLevelType.Options> accessLevel = variable.getAccessLevel().toSet();
+    accessLevel.add(AccessLevelType.Options.HistoryRead);
+    variable.setAccessLevel(AccessLevelType.of(accessLevel));
+    variable.addReference(getSharedConfiguration(variable, history.isStepped()), Identifiers.HasHistoricalConfiguration,
+        false);
+    variableHistories.put(variable, history);
+  }
+
+  private HistoricalDataConfigurationType getSharedConfiguration(UaVariableNode variable, boolean stepped) {
+    NodeId nodeId = new NodeId(variable.getNodeId().getNamespaceIndex(),
+        stepped ? "SteppedHAConfiguration" : "SlopedHAConfiguration");
+    HistoricalDataConfigurationType historicalDataConf = sharedConfigurations.get(nodeId);
+    if (historicalDataConf == null) {
+      historicalDataConf =
+          variable.getNodeManager().createInstance(HistoricalDataConfigurationType.class, "HA Configuration", nodeId);
+      try {
+        historicalDataConf.setStepped(stepped);
+      } catch (StatusException e) {
+        throw new RuntimeException(e);
+      }
+      sharedConfigurations.put(nodeId, historicalDataConf);
+    }
+    return historicalDataConf;
+  }
+
   @Override
   public Object onBeginHistoryRead(ServiceContext serviceContext, HistoryReadDetails details,
       TimestampsToReturn timestampsToReturn, HistoryReadValueId[] nodesToRead,
@@ -133,7 +274,7 @@ public class MyHistorian implements HistoryManagerListener {
   public void onDeleteAtTimes(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
       DateTime[] reqTimes, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics)
       throws StatusException {
-    ValueHistory history = variableHistories.get(node);
+    VariableHistory history = variableHistories.get(node);
     if (history != null) {
       history.deleteAtTimes(reqTimes, operationResults, operationDiagnostics);
     } else {
@@ -162,7 +303,7 @@ public class MyHistorian implements HistoryManagerListener {
   @Override
   public void onDeleteRaw(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
       DateTime startTime, DateTime endTime) throws StatusException {
-    ValueHistory history = variableHistories.get(node);
+    VariableHistory history = variableHistories.get(node);
     if (history != null) {
       history.deleteRaw(startTime, endTime);
     } else {
@@ -187,7 +328,7 @@ public class MyHistorian implements HistoryManagerListener {
       logger.debug("onReadAtTimes: reqTimes=[" + reqTimes.length + "] "
           + ((reqTimes.length < 20) ? Arrays.toString(reqTimes) : ""));
     }
-    ValueHistory history = variableHistories.get(node);
+    VariableHistory history = variableHistories.get(node);
     if (history != null) {
       historyData.setDataValues(history.readAtTimes(reqTimes));
     } else {
@@ -203,9 +344,8 @@ public class MyHistorian implements HistoryManagerListener {
     EventHistory history = eventHistories.get(node);
     if (history != null) {
       List<HistoryEventFieldList> events = new ArrayList<HistoryEventFieldList>();
-      int firstIndex = continuationPoint == null ? 0 : (Integer) continuationPoint;
-      Integer newContinuationPoint =
-          history.readEvents(startTime, endTime, numValuesPerNode.intValue(), filter, events, firstIndex);
+      Object newContinuationPoint =
+          history.readEvents(startTime, endTime, numValuesPerNode.intValue(), filter, events, continuationPoint);
       historyEvent.setEvents(events.toArray(new HistoryEventFieldList[events.size()]));
       return newContinuationPoint;
     } else {
@@ -240,12 +380,30 @@ public class MyHistorian implements HistoryManagerListener {
     } else if (!AggregateCalculator.percentValuesAreValid(aggregateConfiguration)) {
       throw new StatusException(StatusCodes.Bad_AggregateInvalidInputs);
     }
+    VariableHistory history = variableHistories.get(node);
+    if ((history != null) && (aggregateType != null)) {
+      if (aggregateType.equals(minMaxAggregate)) {
+        aggregateData.setDataValues(HistoryDecimation.minMax(history, startTime, endTime, processingInterval));
+        return null;
+      } else if (aggregateType.equals(lttbAggregate)) {
+        aggregateData.setDataValues(HistoryDecimation.lttb(history, startTime, endTime, processingInterval));
+        return null;
+      }
+    }
     HistoricalDataConfigurationType historicalDataConf = (HistoricalDataConfigurationType) node
         .getReference(Identifiers.HasHistoricalConfiguration, false).getTargetNode();
     // Assume stepped interpolation by default
     Boolean useSteppedInterpolation = historicalDataConf == null ? true : historicalDataConf.isStepped();
-    ValueHistory history = variableHistories.get(node);
     if (history != null) {
+      if (continuationPoint == null) {
+        // Let the history calculate the aggregate where the values are, if it can
+        DataValue[] values =
+            history.readProcessed(startTime, endTime, processingInterval, aggregateType, aggregateConfiguration);
+        if (values != null) {
+          aggregateData.setDataValues(values);
+          return null;
+        }
+      }
       AggregateCalculatorContinuationPoint newContinuationPoint = aggregateCalculator.calculateAggregates(startTime,
           endTime, processingInterval, aggregateType, aggregateConfiguration, useSteppedInterpolation, history,
           (AggregateCalculatorContinuationPoint) continuationPoint, aggregateData);
@@ -263,12 +421,11 @@ public class MyHistorian implements HistoryManagerListener {
       UnsignedInteger numValuesPerNode, Boolean returnBounds, NumericRange indexRange, HistoryData historyData)
       throws StatusException {
     logger.debug("onReadRaw: startTime={} endTime={} numValuesPerNode={}", startTime, endTime, numValuesPerNode);
-    ValueHistory history = variableHistories.get(node);
+    VariableHistory history = variableHistories.get(node);
     if (history != null) {
       List<DataValue> values = new ArrayList<DataValue>();
-      int firstIndex = continuationPoint == null ? 0 : (Integer) continuationPoint;
-      Integer newContinuationPoint =
-          history.readRaw(startTime, endTime, numValuesPerNode.intValue(), returnBounds, firstIndex, values);
+      Object newContinuationPoint =
+          history.readRaw(startTime, endTime, numValuesPerNode.intValue(), returnBounds, continuationPoint, values);
       historyData.setDataValues(values.toArray(new DataValue[values.size()]));
 
       return newContinuationPoint;
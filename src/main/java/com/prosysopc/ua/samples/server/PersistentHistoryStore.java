@@ -0,0 +1,278 @@
+package com.prosysopc.ua.samples.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.nodes.UaType;
+import com.prosysopc.ua.server.nodes.UaVariableNode;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.core.Identifiers;
+
+/**
+ * A directory of variable histories that survive a restart of the server, see
+ * {@link PersistentValueHistory}.
+ * <p>
+ * Each variable has a subdirectory, named after its NodeId, with a segment file per time partition.
+ * The segments hold no open files. A segment that is being appended to stays mapped while it
+ * changes, and is written to disk at the force interval if it has changed, which costs one msync
+ * per changed variable and interval; a longer interval trades the values that an operating system
+ * crash may lose for fewer writes. Its mapping is released after it has not changed for
+ * {@value HistorySegment#IDLE_FORCES} intervals, so only the variables that change hold a mapping.
+ * A crash of the server process alone loses no appended values. The oldest segments
+ * are dropped when all their values are older than the retention age, or when the segments of all
+ * histories take more than the retention size. Up to {@value #MAX_MAPPED_SEGMENTS} of the other
+ * segments are mapped at a time, so reading a long history does not keep all of it in memory.
+ * The hourly rollup of every history, which answers the processed reads of whole hours, is always
+ * in memory, at most about 1.3 kB per day of retention. Likewise, the rollups of the seconds and
+ * minutes of up to {@value #MAX_LOADED_ROLLUPS} histories are kept in memory at a time, at most
+ * about 0.8 MB each; the others wait in their files until they are read again.
+ */
+public class PersistentHistoryStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentHistoryStore.class);
+    private static final long TICKS_PER_MILLISECOND = 10000;
+    private static final int MAX_MAPPED_SEGMENTS = 1024;
+    private static final int MAX_LOADED_ROLLUPS = 64;
+    private static final long RETENTION_INTERVAL_MILLIS = 60_000;
+
+    private final File directory;
+    private final long partitionTicks;
+    private final int segmentCapacity;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final List<PersistentValueHistory> histories = new CopyOnWriteArrayList<>();
+    // The mapped sealed segments, in the order they were mapped
+    private final LinkedHashSet<HistorySegment> mappedSegments = new LinkedHashSet<>();
+    // The histories whose rollups are loaded, least recently used first
+    private final LinkedHashSet<PersistentValueHistory> loadedRollups = new LinkedHashSet<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PersistentHistoryStore");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Opens the store in the directory.
+     *
+     * @param directory the directory of the histories, created if needed
+     * @param partitionMillis the time span of the values in a segment
+     * @param segmentCapacity the maximum number of values in a segment
+     * @param retentionMillis how long the values are kept, 0 for no limit
+     * @param retentionBytes the maximum size of the segment files, 0 for no limit
+     * @param forceIntervalMillis how often the changed segments are written to disk
+     */
+    public PersistentHistoryStore(File directory, long partitionMillis, int segmentCapacity, long retentionMillis,
+            long retentionBytes, long forceIntervalMillis) throws IOException {
+        if (partitionMillis <= 0) {
+            throw new IllegalArgumentException("partitionMillis must be a positive value");
+        }
+        if ((segmentCapacity <= 0)
+                || (segmentCapacity > (Integer.MAX_VALUE - HistorySegment.HEADER_SIZE) / HistorySegment.RECORD_SIZE)) {
+            throw new IllegalArgumentException("Invalid segment capacity: " + segmentCapacity);
+        }
+        if (forceIntervalMillis <= 0) {
+            throw new IllegalArgumentException("forceIntervalMillis must be a positive value");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the history directory " + directory);
+        }
+        this.directory = directory;
+        this.partitionTicks = partitionMillis * TICKS_PER_MILLISECOND;
+        this.segmentCapacity = segmentCapacity;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        scheduler.scheduleWithFixedDelay(this::force, forceIntervalMillis, forceIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        if ((retentionMillis > 0) || (retentionBytes > 0)) {
+            scheduler.scheduleWithFixedDelay(this::enforceRetention, RETENTION_INTERVAL_MILLIS,
+                    RETENTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return whether the values of the variable can be stored, i.e. it is of a numeric or Boolean
+     *         type
+     */
+    public static boolean isSupported(UaVariableNode variable) {
+        UaType dataType = variable.getDataType();
+        return (dataType != null)
+                && (dataType.inheritsFrom(Identifiers.Number) || dataType.inheritsFrom(Identifiers.Boolean));
+    }
+
+    /**
+     * Opens the history of the variable, with the values that were stored for it before.
+     *
+     * @param followChanges whether to record the value changes of the node, otherwise the values
+     *        must be added with {@link PersistentValueHistory#append}
+     */
+    PersistentValueHistory open(UaVariableNode variable, boolean followChanges) throws IOException {
+        String name = URLEncoder.encode(variable.getNodeId().toString(), StandardCharsets.UTF_8).replace("*", "%2A");
+        PersistentValueHistory history =
+                new PersistentValueHistory(this, variable, new File(directory, name), followChanges);
+        histories.add(history);
+        return history;
+    }
+
+    /**
+     * @return the start of the time partition of the time, in DateTime ticks
+     */
+    long partitionOf(long ticks) {
+        return Math.floorDiv(ticks, partitionTicks) * partitionTicks;
+    }
+
+    int getSegmentCapacity() {
+        return segmentCapacity;
+    }
+
+    /**
+     * Maps a sealed segment, releasing the mapping of the oldest mapped segment if there are too
+     * many.
+     *
+     * @return the mapping, or null if the segment cannot be read
+     */
+    ByteBuffer map(HistorySegment segment) {
+        try {
+            ByteBuffer map = segment.map();
+            if (segment.isSealed()) {
+                synchronized (mappedSegments) {
+                    if (mappedSegments.add(segment) && (mappedSegments.size() > MAX_MAPPED_SEGMENTS)) {
+                        Iterator<HistorySegment> oldest = mappedSegments.iterator();
+                        oldest.next().unmap();
+                        oldest.remove();
+                    }
+                }
+            }
+            return map;
+        } catch (IOException e) {
+            logger.warn("Cannot read the history segment {}: {}", segment.getFile(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the mapping of a segment that is dropped.
+     */
+    void unmap(HistorySegment segment) {
+        synchronized (mappedSegments) {
+            mappedSegments.remove(segment);
+        }
+    }
+
+    /**
+     * Marks the rollup of the history as the most recently used.
+     *
+     * @return the history whose rollup should be unloaded because too many are loaded, or null
+     */
+    PersistentValueHistory useRollup(PersistentValueHistory history) {
+        synchronized (loadedRollups) {
+            loadedRollups.remove(history);
+            loadedRollups.add(history);
+            if (loadedRollups.size() <= MAX_LOADED_ROLLUPS) {
+                return null;
+            }
+            Iterator<PersistentValueHistory> oldest = loadedRollups.iterator();
+            PersistentValueHistory unused = oldest.next();
+            oldest.remove();
+            return unused;
+        }
+    }
+
+    /**
+     * @return the size of the segment files of all histories in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (PersistentValueHistory history : histories) {
+            size += history.getSize();
+        }
+        return size;
+    }
+
+    private void force() {
+        for (PersistentValueHistory history : histories) {
+            try {
+                history.force();
+            } catch (RuntimeException e) {
+                logger.warn("Cannot write the history of {} to disk: {}", history.getVariable().getNodeId(),
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops the sealed segments whose values are older than the retention age, and then the oldest
+     * sealed segments until the histories fit in the retention size.
+     */
+    void enforceRetention() {
+        long cutoff = DateTime.currentTime().getValue() - retentionMillis * TICKS_PER_MILLISECOND;
+        long size = 0;
+        List<StoredSegment> sealed = new ArrayList<>();
+        for (PersistentValueHistory history : histories) {
+            List<HistorySegment> expired = new ArrayList<>();
+            for (HistorySegment segment : history.getSegments()) {
+                if (!segment.isSealed()) {
+                    size += segment.getSize();
+                } else if ((retentionMillis > 0) && (segment.getLastTime() < cutoff)) {
+                    expired.add(segment);
+                } else {
+                    size += segment.getSize();
+                    sealed.add(new StoredSegment(history, segment));
+                }
+            }
+            history.drop(expired);
+        }
+        if ((retentionBytes > 0) && (size > retentionBytes)) {
+            Collections.sort(sealed, Comparator.comparingLong(s -> s.segment.getLastTime()));
+            for (StoredSegment s : sealed) {
+                if (size <= retentionBytes) {
+                    break;
+                }
+                size -= s.segment.getSize();
+                s.history.drop(Collections.singletonList(s.segment));
+            }
+        }
+    }
+
+    private static class StoredSegment {
+        final PersistentValueHistory history;
+        final HistorySegment segment;
+
+        StoredSegment(PersistentValueHistory history, HistorySegment segment) {
+            this.history = history;
+            this.segment = segment;
+        }
+    }
+
+    /**
+     * Writes the histories to disk and closes their files.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PersistentValueHistory history : histories) {
+            history.close();
+        }
+    }
+}
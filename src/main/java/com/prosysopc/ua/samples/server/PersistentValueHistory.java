@@ -0,0 +1,880 @@
+package com.prosysopc.ua.samples.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.DataChangeListener;
+import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.nodes.UaType;
+import com.prosysopc.ua.nodes.UaVariable;
+import com.prosysopc.ua.server.nodes.UaVariableNode;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.AggregateConfiguration;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * The history of a variable node in the segment files of a {@link PersistentHistoryStore}.
+ * <p>
+ * A value is appended to the segment of its time partition; a new segment is started when the
+ * partition changes or the segment is full. The segments are kept in a copy-on-write array, oldest
+ * first, so a read finds its first segment with a binary search over their last times, its first
+ * record with the sparse index of the segment, and then creates DataValues only for the records
+ * it returns. The records are numbered by positions that stay valid while old segments are dropped,
+ * which makes a position the continuation point of a raw read.
+ * <p>
+ * Scalar numeric and Boolean values are stored; any other value is recorded without a value and
+ * with the status Bad_DataEncodingUnsupported. A value older than the newest one in the history is
+ * dropped, as the segments must stay in the order of time.
+ * <p>
+ * The values are also summarized in {@link HistoryRollup}s, which answer the processed reads of
+ * their aggregates. The hours are always in memory and updated by every append, so a read of whole
+ * hours never waits for a rollup to be loaded. The seconds and minutes are kept in memory only while
+ * processed reads use them: they are loaded on the first such read, and the store unloads the least
+ * recently used ones when too many are loaded. A rollup is kept in a file beside the segments, with
+ * the end of the values it covers, and brought up to date from the segments when it is loaded; it
+ * is built from the segments only if the file is missing. The loading, the building and the writing
+ * of the files run without the write lock, so the appends do not wait for them. Deleting values
+ * removes the files, and rebuilds the buckets of their times in the loaded rollups.
+ */
+class PersistentValueHistory implements VariableHistory {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentValueHistory.class);
+    static final String ROLLUP_FILE = "rollup.dat";
+    static final String HOURS_FILE = "rollup-hours.dat";
+    private static final int ROLLUP_MAGIC = 0x50485255; // "PHRU"
+
+    private final DataChangeListener listener = new DataChangeListener() {
+
+        @Override
+        public void onDataChange(UaNode uaNode, DataValue prevValue, DataValue value) {
+            append(value);
+        }
+    };
+    private final PersistentHistoryStore store;
+    private final UaVariable variable;
+    private final File directory;
+
+    // Guards the appends and the changes of the segments
+    private final Object writeLock = new Object();
+    private volatile HistorySegment[] segments;
+    // The position of the first value when there are no segments
+    private long endPosition;
+    private long lastTime = Long.MIN_VALUE;
+    private boolean closed;
+    // Incremented with the write lock when values are deleted or dropped, which makes a rollup that
+    // was built or taken for its file without the lock stale
+    private int deletions;
+    // The hours of all values, updated with the write lock
+    private final HistoryRollup hours;
+    // The segment that was appended to when the hours were saved; used by the force thread
+    private volatile HistorySegment hoursSavedAt;
+    // The seconds and minutes of all values, while they are loaded; changed only with the write lock
+    private volatile HistoryRollup rollup;
+    // Held while the rollup is loaded, so that it is loaded once
+    private final Object rollupLoadLock = new Object();
+
+    /**
+     * A rollup built without the write lock, and the end of the positions whose values it has.
+     */
+    private static class BuiltRollup {
+        final HistoryRollup rollup;
+        final long end;
+
+        BuiltRollup(HistoryRollup rollup, long end) {
+            this.rollup = rollup;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Opens the history in the directory, continuing the segments that are already there.
+     *
+     * @param followChanges whether to record the value changes of the node, otherwise the values
+     *        must be added with {@link #append(DataValue)}
+     */
+    PersistentValueHistory(PersistentHistoryStore store, UaVariableNode variable, File directory,
+            boolean followChanges) throws IOException {
+        this.store = store;
+        this.variable = variable;
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the history directory " + directory);
+        }
+        segments = load();
+        hours = build(HOURS_FILE, true, segments).rollup;
+        hoursSavedAt = segments.length == 0 ? null : segments[segments.length - 1];
+        if (followChanges) {
+            variable.addDataChangeListener(listener);
+        }
+    }
+
+    private HistorySegment[] load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        if (files == null) {
+            throw new IOException("Cannot list the history directory " + directory);
+        }
+        // The names start with the partition, so they sort in the order of time
+        Arrays.sort(files);
+        List<HistorySegment> loaded = new ArrayList<>();
+        for (File file : files) {
+            HistorySegment segment;
+            try {
+                segment = HistorySegment.open(file, endPosition);
+            } catch (IOException e) {
+                logger.warn("Skipping the history segment {}: {}", file, e.getMessage());
+                continue;
+            }
+            if (segment.getCount() == 0 || segment.getFirstTime() < lastTime) {
+                segment.delete();
+                continue;
+            }
+            loaded.add(segment);
+            endPosition = segment.getEndPosition();
+            lastTime = segment.getLastTime();
+        }
+        // Only the newest segment can still be appended to; the others were left open by a crash
+        for (int i = 0; i < loaded.size(); i++) {
+            HistorySegment segment = loaded.get(i);
+            if (!segment.isSealed()) {
+                segment.openForAppend();
+                if (i < loaded.size() - 1) {
+                    segment.seal();
+                }
+            }
+        }
+        return loaded.toArray(new HistorySegment[loaded.size()]);
+    }
+
+    @Override
+    public void append(DataValue value) {
+        long time = timeOf(value);
+        Variant v = value.getValue();
+        Object o = v == null ? null : v.getValue();
+        StatusCode statusCode = value.getStatusCode();
+        int status = statusCode == null ? 0 : statusCode.getValue().intValue();
+        byte kind = HistorySegment.kindOf(o);
+        if (kind < 0) {
+            kind = HistorySegment.NULL_VALUE;
+            status = StatusCodes.Bad_DataEncodingUnsupported.intValue();
+        }
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            if (time < lastTime) {
+                logger.debug("{}: dropped a value older than the history", variable.getNodeId());
+                return;
+            }
+            try {
+                getAppendSegment(store.partitionOf(time)).append(time,
+                        kind == HistorySegment.NULL_VALUE ? 0 : HistorySegment.toBits(kind, o), status, kind);
+                lastTime = time;
+                boolean good = (kind == HistorySegment.DOUBLE) && (status == 0);
+                double d = good ? (Double) o : 0;
+                hours.add(time, d, good);
+                HistoryRollup r = rollup;
+                if (r != null) {
+                    r.add(time, d, good);
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot append to the history of {}: {}", variable.getNodeId(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the segment to append a value of the partition to, a new one if the newest segment is
+     *         full or of an earlier partition. Called with the write lock.
+     */
+    private HistorySegment getAppendSegment(long partition) throws IOException {
+        HistorySegment[] s = segments;
+        HistorySegment last = s.length == 0 ? null : s[s.length - 1];
+        if ((last != null) && !last.isSealed() && !last.isFull() && (last.getPartition() == partition)) {
+            return last;
+        }
+        if (last != null) {
+            last.seal();
+        }
+        int sequence = 0;
+        File file;
+        do {
+            file = new File(directory, String.format("%019d_%04d.seg", partition, sequence++));
+        } while (file.exists());
+        long position = last == null ? endPosition : last.getEndPosition();
+        HistorySegment segment = HistorySegment.create(file, partition, position, store.getSegmentCapacity());
+        HistorySegment[] newSegments = Arrays.copyOf(s, s.length + 1);
+        newSegments[s.length] = segment;
+        segments = newSegments;
+        return segment;
+    }
+
+    private static long timeOf(DataValue value) {
+        DateTime t = value.getSourceTimestamp();
+        if (t == null) {
+            t = value.getServerTimestamp();
+        }
+        return t == null ? 0 : t.getValue();
+    }
+
+    /**
+     * @return the mapping of the segment, or null if it cannot be read
+     */
+    private ByteBuffer buffer(HistorySegment segment) {
+        ByteBuffer map = segment.buffer();
+        return map != null ? map : store.map(segment);
+    }
+
+    private static long first(HistorySegment[] s) {
+        return s.length == 0 ? 0 : s[0].getFirstPosition();
+    }
+
+    private static long end(HistorySegment[] s) {
+        return s.length == 0 ? 0 : s[s.length - 1].getEndPosition();
+    }
+
+    /**
+     * @return the position of the first record whose time is at or after t, or after t if after is
+     *         true
+     */
+    private long search(HistorySegment[] s, long t, boolean after) {
+        int low = 0;
+        int high = s.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long segmentTime = s[mid].getLastTime();
+            if ((segmentTime < t) || (after && (segmentTime == t))) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == s.length) {
+            return end(s);
+        }
+        HistorySegment segment = s[low];
+        ByteBuffer map = buffer(segment);
+        return map == null ? segment.getEndPosition() : segment.getFirstPosition() + segment.search(map, t, after);
+    }
+
+    /**
+     * @return the index of the last segment that starts at or before the position, -1 if none
+     */
+    private static int segmentAt(HistorySegment[] s, long position) {
+        int low = 0;
+        int high = s.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (s[mid].getFirstPosition() <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Adds the values of the positions from..to-1 to the list, newest first if reverse. Deleted
+     * records are skipped.
+     *
+     * @param maxValues the maximum number of values to add, 0 for no limit
+     * @return the position to continue from, if maxValues were added before the end of the range
+     */
+    private Long collect(HistorySegment[] s, long from, long to, boolean reverse, int maxValues,
+            List<DataValue> values) {
+        int count = 0;
+        if (!reverse) {
+            for (int k = Math.max(0, segmentAt(s, from)); (k < s.length) && (s[k].getFirstPosition() < to); k++) {
+                HistorySegment segment = s[k];
+                ByteBuffer map = buffer(segment);
+                if (map == null) {
+                    continue;
+                }
+                long base = segment.getFirstPosition();
+                int end = (int) Math.min(segment.getCount(), to - base);
+                for (int i = (int) Math.max(0, from - base); i < end; i++) {
+                    if ((maxValues > 0) && (count == maxValues)) {
+                        return base + i;
+                    }
+                    if (!HistorySegment.isDeleted(map, i)) {
+                        values.add(HistorySegment.get(map, i));
+                        count++;
+                    }
+                }
+            }
+        } else {
+            for (int k = segmentAt(s, to - 1); (k >= 0) && (s[k].getEndPosition() > from); k--) {
+                HistorySegment segment = s[k];
+                ByteBuffer map = buffer(segment);
+                if (map == null) {
+                    continue;
+                }
+                long base = segment.getFirstPosition();
+                int start = (int) Math.max(0, from - base);
+                for (int i = (int) Math.min(segment.getCount(), to - base) - 1; i >= start; i--) {
+                    if ((maxValues > 0) && (count == maxValues)) {
+                        return base + i + 1;
+                    }
+                    if (!HistorySegment.isDeleted(map, i)) {
+                        values.add(HistorySegment.get(map, i));
+                        count++;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the first value at or after the position, or the last one before it if backwards
+     */
+    private DataValue get(HistorySegment[] s, long position, boolean backwards) {
+        List<DataValue> value = new ArrayList<DataValue>(1);
+        if (backwards) {
+            collect(s, first(s), position, true, 1, value);
+        } else {
+            collect(s, position, end(s), false, 1, value);
+        }
+        return value.isEmpty() ? null : value.get(0);
+    }
+
+    /**
+     * Reads the values between startTime and endTime, oldest first, or newest first if only endTime
+     * is defined or startTime is after endTime. If neither is defined, all values are returned.
+     *
+     * @param continuationPoint the position to continue from, or null
+     * @param maxValues the maximum number of values to return, 0 for no limit
+     * @return the position to continue from, if there are more values
+     */
+    private Long readRange(DateTime startTime, DateTime endTime, boolean returnStartBound, boolean returnEndBound,
+            Long continuationPoint, int maxValues, List<DataValue> values) {
+        boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
+        boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
+        HistorySegment[] s = segments;
+        if (!endTimeDefined || (endTime.compareTo(startTime) >= 0 && startTimeDefined)) {
+            long from = search(s, startTime.getValue(), !returnStartBound);
+            long to = endTimeDefined ? search(s, endTime.getValue(), returnEndBound) : end(s);
+            if (continuationPoint != null) {
+                from = Math.max(from, continuationPoint);
+            }
+            return collect(s, from, to, false, maxValues, values);
+        }
+        long from;
+        long to;
+        if (startTimeDefined) {
+            // Start time is after end time: the values are returned starting with the newest
+            from = search(s, endTime.getValue(), !returnEndBound);
+            to = search(s, startTime.getValue(), returnStartBound);
+        } else {
+            from = first(s);
+            to = search(s, endTime.getValue(), returnEndBound);
+        }
+        if (continuationPoint != null) {
+            to = Math.min(to, continuationPoint);
+        }
+        return collect(s, from, to, true, maxValues, values);
+    }
+
+    @Override
+    public Long readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds,
+            Object continuationPoint, List<DataValue> history) {
+        return readRange(startTime, endTime, returnBounds, returnBounds, (Long) continuationPoint, maxValues,
+                history);
+    }
+
+    @Override
+    public List<DataValue> readRawAll(DateTime startTime, DateTime endTime, boolean returnStartBound,
+            boolean returnEndBound) throws StatusException {
+        List<DataValue> values = new ArrayList<DataValue>();
+        readRange(startTime, endTime, returnStartBound, returnEndBound, null, 0, values);
+        return values;
+    }
+
+    @Override
+    public DataValue readFirstAfterTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
+        HistorySegment[] s = segments;
+        long i = search(s, timeStamp.getValue(), !includeValueAtTimestamp);
+        // No value is returned if the history does not reach back to the timestamp
+        return (i == first(s)) || (i == end(s)) ? null : get(s, i, false);
+    }
+
+    @Override
+    public DataValue readFirstBeforeTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
+        HistorySegment[] s = segments;
+        long i = search(s, timeStamp.getValue(), includeValueAtTimestamp);
+        // No value is returned if the history does not reach forward to the timestamp
+        return (i == first(s)) || (i == end(s)) ? null : get(s, i, true);
+    }
+
+    /**
+     * Calculates the aggregates that the {@link HistoryRollup}s of the history support from their
+     * buckets: from the hours if the intervals consist of whole hours, otherwise from the seconds
+     * and minutes, which are loaded if needed.
+     */
+    @Override
+    public DataValue[] readProcessed(DateTime startTime, DateTime endTime, double processingInterval,
+            NodeId aggregateType, AggregateConfiguration aggregateConfiguration) {
+        if (!HistoryRollup.isSupported(aggregateType)) {
+            return null;
+        }
+        DataValue[] values = hours.read(startTime, endTime, processingInterval, aggregateType);
+        if (values != null) {
+            return values;
+        }
+        HistoryRollup r = loadRollup();
+        if (r == null) {
+            return null;
+        }
+        PersistentValueHistory unused = store.useRollup(this);
+        if (unused != null) {
+            unused.unloadRollup();
+        }
+        return r.read(startTime, endTime, processingInterval, aggregateType);
+    }
+
+    /**
+     * @return the rollup of the seconds and minutes, loaded if needed, or null if the history is
+     *         closed. It is read or built without the write lock; only the values appended
+     *         meanwhile are added with the lock, when it is set.
+     */
+    private HistoryRollup loadRollup() {
+        synchronized (rollupLoadLock) {
+            while (true) {
+                HistoryRollup r = rollup;
+                if (r != null) {
+                    return r;
+                }
+                HistorySegment[] s;
+                int deletionsAtStart;
+                synchronized (writeLock) {
+                    if (closed) {
+                        return null;
+                    }
+                    s = segments;
+                    deletionsAtStart = deletions;
+                }
+                BuiltRollup built = build(ROLLUP_FILE, false, s);
+                synchronized (writeLock) {
+                    if (closed) {
+                        return null;
+                    }
+                    // Otherwise it may have deleted values; built again
+                    if (deletions == deletionsAtStart) {
+                        HistorySegment[] current = segments;
+                        roll(built.rollup, current, built.end, end(current));
+                        rollup = built.rollup;
+                        return built.rollup;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a rollup from its file and adds the values that were appended after it was written, or
+     * builds it from the segments if the file cannot be read. Runs without the write lock.
+     *
+     * @param s the segments to read
+     * @return the rollup and the end of the positions it covers
+     */
+    private BuiltRollup build(String name, boolean coarse, HistorySegment[] s) {
+        long to = end(s);
+        File file = new File(directory, name);
+        if (file.isFile()) {
+            try (DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+                if (in.readInt() != ROLLUP_MAGIC) {
+                    throw new IOException("Not a rollup file");
+                }
+                // The positions are numbered again when the history is opened, so the rollup
+                // records the first time of the history and the end of the last segment it covers
+                long savedFirstTime = in.readLong();
+                String savedSegment = in.readUTF();
+                int savedCount = in.readInt();
+                HistoryRollup r = HistoryRollup.readFrom(in, coarse);
+                long from = savedSegment.isEmpty() ? first(s) : -1;
+                for (int k = s.length - 1; (k >= 0) && (from < 0); k--) {
+                    if (s[k].getFile().getName().equals(savedSegment) && (savedCount <= s[k].getCount())) {
+                        from = s[k].getFirstPosition() + savedCount;
+                    }
+                }
+                long firstTime = s.length == 0 ? Long.MIN_VALUE : s[0].getFirstTime();
+                if ((from >= 0) && (firstTime >= savedFirstTime)) {
+                    roll(r, s, from, to);
+                    if (firstTime > savedFirstTime) {
+                        // Segments were dropped after the rollup was written
+                        reroll(r, s, firstTime, firstTime + 1);
+                        r.trim(firstTime);
+                    }
+                    // The file may have been written after the end was taken
+                    return new BuiltRollup(r, Math.max(from, to));
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot read the rollup {} of {}: {}", name, variable.getNodeId(), e.getMessage());
+            }
+        }
+        HistoryRollup r = new HistoryRollup(coarse);
+        roll(r, s, first(s), to);
+        return new BuiltRollup(r, to);
+    }
+
+    /**
+     * Writes the rollup of the seconds and minutes to its file and releases it from memory.
+     */
+    void unloadRollup() {
+        HistoryRollup r;
+        byte[] header;
+        int deletionsAtHeader;
+        synchronized (writeLock) {
+            r = rollup;
+            if (r == null) {
+                return;
+            }
+            rollup = null;
+            header = rollupHeader();
+            deletionsAtHeader = deletions;
+        }
+        // The appends no longer change it, so it is written without the lock
+        writeRollupFile(ROLLUP_FILE, header, r, deletionsAtHeader);
+    }
+
+    /**
+     * Writes the hours to their file, so that the history is opened again without reading all its
+     * segments. The hours are copied with the write lock and written without it.
+     */
+    private void saveHours() {
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        int deletionsAtHeader;
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            deletionsAtHeader = deletions;
+            try {
+                copy.write(rollupHeader());
+                hours.writeTo(new DataOutputStream(copy));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        writeRollupFile(HOURS_FILE, copy.toByteArray(), null, deletionsAtHeader);
+    }
+
+    /**
+     * @return the start of a rollup file: the first time of the history and the end of the values
+     *         that the rollup covers. Called with the write lock.
+     */
+    private byte[] rollupHeader() {
+        HistorySegment[] s = segments;
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(header)) {
+            out.writeInt(ROLLUP_MAGIC);
+            out.writeLong(s.length == 0 ? Long.MIN_VALUE : s[0].getFirstTime());
+            out.writeUTF(s.length == 0 ? "" : s[s.length - 1].getFile().getName());
+            out.writeInt(s.length == 0 ? 0 : s[s.length - 1].getCount());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return header.toByteArray();
+    }
+
+    /**
+     * Writes the rollup to its file after the header, or only the header if the rollup is null. The
+     * file replaces the previous one only if no values were deleted after the header was taken, as
+     * the rollup may still have them.
+     */
+    private void writeRollupFile(String name, byte[] header, HistoryRollup r, int deletionsAtHeader) {
+        File file = new File(directory, name);
+        File tmp = new File(directory, name + ".tmp");
+        try {
+            try (DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+                out.write(header);
+                if (r != null) {
+                    r.writeTo(out);
+                }
+            }
+            synchronized (writeLock) {
+                if (deletions == deletionsAtHeader) {
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    return;
+                }
+            }
+            Files.delete(tmp.toPath());
+        } catch (IOException e) {
+            logger.warn("Cannot write the rollup {} of {}: {}", name, variable.getNodeId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the rollup files after values were deleted, so that the rollups are built again when
+     * they are loaded. Called with the write lock.
+     */
+    private void deleteRollupFiles() {
+        deletions++;
+        // Saved again at the next force
+        hoursSavedAt = null;
+        for (String name : new String[] {ROLLUP_FILE, HOURS_FILE}) {
+            File file = new File(directory, name);
+            if (file.exists() && !file.delete()) {
+                logger.warn("Cannot delete the rollup file {}", file);
+            }
+        }
+    }
+
+    @Override
+    public DataValue[] readAtTimes(DateTime[] reqTimes) {
+        if (reqTimes == null) {
+            return null;
+        }
+        HistorySegment[] s = segments;
+        DataValue[] values = new DataValue[reqTimes.length];
+        for (int i = 0; i < reqTimes.length; i++) {
+            DateTime t = reqTimes[i];
+            // Stepped interpolation: the last value at or before the time
+            long position = search(s, t.getValue(), true);
+            DataValue v = position == first(s) ? null : get(s, position, true);
+            values[i] = new DataValue(v == null ? null : v.getValue(),
+                    v == null ? StatusCode.valueOf(StatusCodes.Bad_NoData) : v.getStatusCode(), t,
+                    UnsignedShort.ZERO, null, null);
+        }
+        return values;
+    }
+
+    @Override
+    public void deleteRaw(DateTime startTime, DateTime endTime) throws StatusException {
+        if (endTime.compareTo(DateTime.MIN_VALUE) <= 0) {
+            throw new StatusException(StatusCodes.Bad_InvalidArgument);
+        }
+        synchronized (writeLock) {
+            HistorySegment[] s = segments;
+            if (delete(s, search(s, startTime.getValue(), false), search(s, endTime.getValue(), false)) > 0) {
+                deleteRollupFiles();
+                reroll(startTime.getValue(), endTime.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void deleteAtTimes(DateTime[] reqTimes, StatusCode[] operationResults,
+            DiagnosticInfo[] operationDiagnostics) {
+        for (int i = 0; i < reqTimes.length; i++) {
+            long t = reqTimes[i].getValue();
+            int deleted;
+            synchronized (writeLock) {
+                HistorySegment[] s = segments;
+                deleted = delete(s, search(s, t, false), search(s, t, true));
+                if (deleted > 0) {
+                    deleteRollupFiles();
+                    reroll(t, t + 1);
+                }
+            }
+            operationResults[i] = deleted > 0 ? StatusCode.GOOD : StatusCode.valueOf(StatusCodes.Bad_NoData);
+        }
+    }
+
+    /**
+     * Deletes the records of the positions from..to-1. Sealed segments that are deleted as a whole
+     * are dropped, the records of the others are marked deleted. Called with the write lock.
+     *
+     * @return the number of deleted records
+     */
+    private int delete(HistorySegment[] s, long from, long to) {
+        int deleted = 0;
+        List<HistorySegment> dropped = new ArrayList<>();
+        for (int k = Math.max(0, segmentAt(s, from)); (k < s.length) && (s[k].getFirstPosition() < to); k++) {
+            HistorySegment segment = s[k];
+            long base = segment.getFirstPosition();
+            if (segment.isSealed() && (from <= base) && (to >= segment.getEndPosition())) {
+                dropped.add(segment);
+                deleted += segment.getCount();
+                continue;
+            }
+            ByteBuffer map = buffer(segment);
+            if (map == null) {
+                continue;
+            }
+            int end = (int) Math.min(segment.getCount(), to - base);
+            for (int i = (int) Math.max(0, from - base); i < end; i++) {
+                if (!HistorySegment.isDeleted(map, i)) {
+                    segment.delete(map, i);
+                    deleted++;
+                }
+            }
+            segment.force();
+        }
+        drop(dropped);
+        return deleted;
+    }
+
+    /**
+     * Adds the values of the positions from..to-1 to the rollup. Deleted records are skipped.
+     */
+    private void roll(HistoryRollup rollup, HistorySegment[] s, long from, long to) {
+        for (int k = Math.max(0, segmentAt(s, from)); (k < s.length) && (s[k].getFirstPosition() < to); k++) {
+            HistorySegment segment = s[k];
+            ByteBuffer map = buffer(segment);
+            if (map == null) {
+                continue;
+            }
+            long base = segment.getFirstPosition();
+            int end = (int) Math.min(segment.getCount(), to - base);
+            for (int i = (int) Math.max(0, from - base); i < end; i++) {
+                if (!HistorySegment.isDeleted(map, i)) {
+                    rollup.add(HistorySegment.time(map, i), HistorySegment.doubleValue(map, i),
+                            HistorySegment.isGoodDouble(map, i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the buckets of the loaded rollups for the times from..to-1 from the remaining values
+     * after values were deleted. Called with the write lock.
+     */
+    private void reroll(long from, long to) {
+        reroll(hours, segments, from, to);
+        HistoryRollup r = rollup;
+        if (r != null) {
+            reroll(r, segments, from, to);
+        }
+    }
+
+    private void reroll(HistoryRollup rollup, HistorySegment[] s, long from, long to) {
+        synchronized (rollup) {
+            long[] range = rollup.reset(from, to);
+            roll(rollup, s, search(s, range[0], false), search(s, range[1], false));
+        }
+    }
+
+    /**
+     * Removes the segments from the history and deletes their files.
+     */
+    void drop(List<HistorySegment> dropped) {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        synchronized (writeLock) {
+            // The positions of the dropped values are not used again
+            endPosition = Math.max(endPosition, end(segments));
+            List<HistorySegment> remaining = new ArrayList<>(Arrays.asList(segments));
+            remaining.removeAll(dropped);
+            segments = remaining.toArray(new HistorySegment[remaining.size()]);
+            long from = Long.MAX_VALUE;
+            long to = Long.MIN_VALUE;
+            for (HistorySegment segment : dropped) {
+                from = Math.min(from, segment.getFirstTime());
+                to = Math.max(to, segment.getLastTime() + 1);
+            }
+            deletions++;
+            reroll(from, to);
+            long firstTime = segments.length == 0 ? lastTime : segments[0].getFirstTime();
+            hours.trim(firstTime);
+            HistoryRollup r = rollup;
+            if (r != null) {
+                r.trim(firstTime);
+            }
+        }
+        for (HistorySegment segment : dropped) {
+            store.unmap(segment);
+            if (!segment.delete()) {
+                logger.warn("Cannot delete the history segment {}", segment.getFile());
+            }
+        }
+    }
+
+    /**
+     * @return the segments, oldest first
+     */
+    HistorySegment[] getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return the size of the segment files in bytes
+     */
+    long getSize() {
+        long size = 0;
+        for (HistorySegment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Writes the appended values to disk, and releases the mapping of the segment that is appended
+     * to if it has been idle for a while. The hours are written to their file when a segment is
+     * started, so after a crash the history is opened again by reading only the newest segments.
+     */
+    void force() {
+        HistorySegment[] s = segments;
+        if (s.length > 0) {
+            HistorySegment last = s[s.length - 1];
+            last.force();
+            if (last.isIdle()) {
+                synchronized (writeLock) {
+                    last.release();
+                }
+            }
+            if (last != hoursSavedAt) {
+                hoursSavedAt = last;
+                saveHours();
+            }
+        }
+    }
+
+    /**
+     * Writes the history to disk and closes its files. The values appended after this are dropped.
+     */
+    void close() {
+        synchronized (writeLock) {
+            byte[] header = rollupHeader();
+            writeRollupFile(HOURS_FILE, header, hours, deletions);
+            HistoryRollup r = rollup;
+            if (r != null) {
+                rollup = null;
+                writeRollupFile(ROLLUP_FILE, header, r, deletions);
+            }
+            closed = true;
+            for (HistorySegment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    @Override
+    public UaVariable getVariable() {
+        return variable;
+    }
+
+    @Override
+    public Boolean isStepped() {
+        UaType dataType = variable.getDataType();
+        return (dataType == null)
+                || !(dataType.inheritsFrom(Identifiers.Double) || dataType.inheritsFrom(Identifiers.Float));
+    }
+}
@@ -0,0 +1,588 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Reads the values of the {@link MyBigNodeManager} data items from a Redis hash, with the
+ * {@link MyBigNodeManager.DataItemStore} as a near-cache.
+ * <p>
+ * Each item is a field of the hash, named after the item. A cached value is used until its time to
+ * live expires or a change of the hash is reported. The misses that arrive while a
+ * load is in progress are collected into the next batch, so concurrent reads, a whole sampling group
+ * and a whole Read request cost one pipelined HMGET round trip instead of one per item. The loaded
+ * values go through the store, so the changes reach the monitored items like any other change.
+ * <p>
+ * The changes are reported by the keyspace events of the hash, which are enabled with
+ * {@code notify-keyspace-events Kh} if the server allows CONFIG SET. An event does not tell which
+ * fields changed, so it makes all cached values stale. The writers that know the fields, like the
+ * flushes of this source, also publish them on the channel {@code <hashKey>:changes}: the origin of
+ * the change followed by the changed field names, separated by spaces. Such a writer sends the HSET
+ * and its message in one transaction, so the keyspace event is followed at once by the message,
+ * which then replaces it: only the items of its fields become stale, and none if the origin is this
+ * source. A keyspace event that no message follows within {@value #KEYSPACE_MATCH_MILLIS} ms is a
+ * write of another writer, e.g. the hydration pipeline, and makes all values stale.
+ * <p>
+ * Writes go to the store at once and to Redis behind them: the written items are queued, and
+ * repeated writes of an item before the next flush are coalesced into its latest value. The queue is
+ * flushed every {@value #FLUSH_INTERVAL_MILLIS} ms, or as soon as {@value #FLUSH_BATCH_SIZE} items
+ * are waiting, as one pipeline of HSETs. The {@link Durability} defines when a write is acknowledged.
+ * Until an item is flushed, loads keep its written value instead of the older one in Redis, and a
+ * load never stores a value that was read before the last write of the item.
+ */
+class RedisDataSource implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisDataSource.class);
+
+    // Fields per HMGET or HSET, to keep a single command of a large batch reasonable
+    private static final int MAX_FIELDS_PER_HMGET = 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 5000;
+    private static final String CHANGES_SUFFIX = ":changes";
+    private static final long KEYSPACE_MATCH_MILLIS = 100;
+
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+    private static final int FLUSH_BATCH_SIZE = 1000;
+    private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+
+    private static final int GOOD = 0;
+    private static final int NO_DATA = StatusCodes.Bad_NoData.intValue();
+    private static final int TYPE_MISMATCH = StatusCodes.Bad_TypeMismatch.intValue();
+    private static final int COMMUNICATION_ERROR = StatusCodes.Bad_CommunicationError.intValue();
+
+    /**
+     * When a write is acknowledged to the client.
+     */
+    enum Durability {
+        /** When the value is in the cache; Redis is written within the flush interval. */
+        WRITE_BEHIND,
+        /**
+         * When the flush that contains the value has been written to Redis; slower per write. If the
+         * flush fails or times out, the write is reported as Good_CompletesAsynchronously: the value
+         * stays in the cache and queued, and reaches Redis with a later flush.
+         */
+        FLUSHED
+    }
+
+    /**
+     * One flush of the write queue. Writers that wait for the durability wait until it is done.
+     */
+    private static class Flush {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean failed;
+    }
+
+    /**
+     * The items of one HMGET pipeline. Readers wait until it is loaded.
+     */
+    private static class Batch {
+        private int[] indices = new int[16];
+        private int count;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        void add(int index) {
+            if (count == indices.length) {
+                indices = Arrays.copyOf(indices, count * 2);
+            }
+            indices[count++] = index;
+        }
+    }
+
+    private final MyBigNodeManager.DataItemStore store;
+    private final IntFunction<String> fieldNames;
+    private final ToIntFunction<String> fieldIndices;
+    private final String hashKey;
+    private final String changesChannel;
+    // The origin of the change messages of this source
+    private final String origin = UUID.randomUUID().toString();
+    private final long ttlMillis;
+    private final JedisPool pool;
+
+    // The time, the invalidation generation and the version of the last load of each item
+    private final long[] loadedAt;
+    private final int[] loadedGeneration;
+    private final int[] loadedVersion;
+    // Incremented when change messages may have been lost, which makes all cached values stale
+    private final AtomicInteger generation = new AtomicInteger(1);
+    // Incremented by every change message of the field of the item, which makes its value stale
+    private final AtomicIntegerArray versions;
+    // The number of the last keyspace event that no change message has followed yet, 0 if none
+    private final AtomicLong unmatchedKeyspaceEvent = new AtomicLong();
+    // The keyspace events received; used only by the subscriber thread
+    private long keyspaceEvents;
+
+    private final Object batchLock = new Object();
+    private Batch openBatch = new Batch();
+    private boolean loading;
+
+    private final Durability durability;
+    // The write sequence of each item not yet flushed, 0 if the item has no pending write
+    private final AtomicIntegerArray pendingWrites;
+    // The write sequence of the last write of each item, flushed or not; guarded by the writeLock
+    private final int[] lastWrites;
+    private final Object writeLock = new Object();
+    private int writeSequence;
+    private int[] writeQueue = new int[FLUSH_BATCH_SIZE];
+    private int writeCount;
+    private Flush openFlush = new Flush();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "RedisDataSource-flush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile boolean closed;
+    private volatile JedisPubSub changeListener;
+    private Thread subscriber;
+
+    /**
+     * @param store the store of the items, used as the near-cache
+     * @param fieldNames the hash field of each item index
+     * @param fieldIndices the item index of each hash field, -1 if the field is not an item
+     * @param hashKey the key of the hash that holds the values
+     * @param ttlMillis how long a loaded value is used without a reported change
+     * @param durability when the writes are acknowledged
+     */
+    RedisDataSource(MyBigNodeManager.DataItemStore store, IntFunction<String> fieldNames,
+                    ToIntFunction<String> fieldIndices, String host, int port, String hashKey, long ttlMillis,
+                    Durability durability) {
+        this.store = store;
+        this.durability = durability;
+        this.fieldNames = fieldNames;
+        this.fieldIndices = fieldIndices;
+        this.hashKey = hashKey;
+        this.changesChannel = hashKey + CHANGES_SUFFIX;
+        this.ttlMillis = ttlMillis;
+        this.pool = new JedisPool(host, port);
+        this.loadedAt = new long[store.size()];
+        this.loadedGeneration = new int[store.size()];
+        this.loadedVersion = new int[store.size()];
+        this.versions = new AtomicIntegerArray(store.size());
+        this.pendingWrites = new AtomicIntegerArray(store.size());
+        this.lastWrites = new int[store.size()];
+    }
+
+    /**
+     * Enables the keyspace events, starts listening to them and to the change messages, and starts
+     * flushing the writes.
+     */
+    void start() {
+        enableKeyspaceEvents();
+        subscriber = new Thread(this::subscribe, "RedisDataSource-" + hashKey);
+        subscriber.setDaemon(true);
+        subscriber.start();
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void enableKeyspaceEvents() {
+        try (Jedis jedis = pool.getResource()) {
+            Map<String, String> config = jedis.configGet("notify-keyspace-events");
+            String flags = config.getOrDefault("notify-keyspace-events", "");
+            String missing = (flags.contains("K") ? "" : "K")
+                    + (flags.contains("h") || flags.contains("A") ? "" : "h");
+            if (!missing.isEmpty()) {
+                jedis.configSet("notify-keyspace-events", flags + missing);
+            }
+        } catch (JedisException e) {
+            logger.warn("Cannot enable the Redis keyspace events, other writers are seen every {} ms: {}",
+                    ttlMillis, e.getMessage());
+        }
+    }
+
+    private void subscribe() {
+        while (!closed) {
+            JedisPubSub listener = new JedisPubSub() {
+                @Override
+                public void onPSubscribe(String pattern, int subscribedChannels) {
+                    // On the same connection, so that a message arrives right after its keyspace event
+                    subscribe(changesChannel);
+                }
+
+                @Override
+                public void onPMessage(String pattern, String channel, String message) {
+                    onKeyspaceEvent();
+                }
+
+                @Override
+                public void onMessage(String channel, String message) {
+                    onChangeMessage(message);
+                }
+            };
+            changeListener = listener;
+            try (Jedis jedis = pool.getResource()) {
+                jedis.psubscribe(listener, "__keyspace@*__:" + hashKey);
+            } catch (JedisException e) {
+                if (closed) {
+                    return;
+                }
+                logger.warn("Redis change subscription failed, retrying: {}", e.getMessage());
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+            // The messages of the reconnect gap are lost
+            invalidate();
+        }
+    }
+
+    /**
+     * Makes all cached values stale if a change message does not follow the event in time, or if
+     * another event arrives first.
+     */
+    private void onKeyspaceEvent() {
+        long event = ++keyspaceEvents;
+        if (unmatchedKeyspaceEvent.getAndSet(event) != 0) {
+            invalidate();
+        }
+        try {
+            flusher.schedule(() -> {
+                if (unmatchedKeyspaceEvent.compareAndSet(event, 0)) {
+                    invalidate();
+                }
+            }, KEYSPACE_MATCH_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Makes the cached values of the changed fields stale, unless this source made the change. The
+     * message accounts for the keyspace event of its HSET.
+     */
+    private void onChangeMessage(String message) {
+        unmatchedKeyspaceEvent.set(0);
+        String[] words = message.split(" ");
+        if (words[0].equals(origin)) {
+            return;
+        }
+        for (int i = 1; i < words.length; i++) {
+            int index = fieldIndices.applyAsInt(words[i]);
+            if ((index >= 0) && (index < versions.length())) {
+                versions.incrementAndGet(index);
+            }
+        }
+    }
+
+    /**
+     * Makes all cached values stale, so that they are loaded again when they are next read.
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    private boolean isFresh(int index, long now) {
+        // The arrays are written by the loading threads; a stale read only causes an extra load
+        return (loadedGeneration[index] == generation.get()) && (loadedVersion[index] == versions.get(index))
+                && (now - loadedAt[index] < ttlMillis);
+    }
+
+    /**
+     * Makes the value of the item in the store current, loading it if it is not fresh.
+     */
+    void read(int index) {
+        read(new int[] {index}, 1);
+    }
+
+    /**
+     * Makes the values of the items in the store current. The items that are not fresh are loaded in
+     * one batch, together with the misses of the other readers.
+     *
+     * @param indices the indices of the items
+     * @param count the number of indices to use
+     */
+    void read(int[] indices, int count) {
+        long now = System.currentTimeMillis();
+        Batch batch = null;
+        boolean leader = false;
+        synchronized (batchLock) {
+            for (int i = 0; i < count; i++) {
+                if (!isFresh(indices[i], now)) {
+                    batch = openBatch;
+                    batch.add(indices[i]);
+                }
+            }
+            if (batch == null) {
+                return;
+            }
+            if (!loading) {
+                loading = true;
+                leader = true;
+            }
+        }
+        if (leader) {
+            loadBatches();
+        } else {
+            try {
+                batch.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Loads the open batches until no reader is waiting. Only one thread loads at a time; the misses
+     * that arrive meanwhile form the next batch.
+     */
+    private void loadBatches() {
+        while (true) {
+            Batch batch;
+            synchronized (batchLock) {
+                batch = openBatch;
+                if (batch.count == 0) {
+                    loading = false;
+                    return;
+                }
+                openBatch = new Batch();
+            }
+            try {
+                load(batch.indices, batch.count);
+            } catch (RuntimeException e) {
+                logger.error("Loading from Redis failed", e);
+            } finally {
+                batch.done.countDown();
+            }
+        }
+    }
+
+    private void load(int[] indices, int count) {
+        int generationAtStart = generation.get();
+        // A change message that arrives during the load makes the loaded value stale again
+        int[] versionsAtStart = new int[count];
+        for (int i = 0; i < count; i++) {
+            versionsAtStart[i] = versions.get(indices[i]);
+        }
+        // A write during the load is newer than the loaded value, even if it is flushed before the end
+        int[] writesAtStart = new int[count];
+        synchronized (writeLock) {
+            for (int i = 0; i < count; i++) {
+                writesAtStart[i] = lastWrites[indices[i]];
+            }
+        }
+        long now = System.currentTimeMillis();
+        List<Response<List<String>>> responses = new ArrayList<>();
+        try (Jedis jedis = pool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (int from = 0; from < count; from += MAX_FIELDS_PER_HMGET) {
+                int to = Math.min(count, from + MAX_FIELDS_PER_HMGET);
+                String[] fields = new String[to - from];
+                for (int i = from; i < to; i++) {
+                    fields[i - from] = fieldNames.apply(indices[i]);
+                }
+                responses.add(pipeline.hmget(hashKey, fields));
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            logger.warn("Cannot read {} values from Redis: {}", count, e.getMessage());
+            // Keep the last values, but tell that they are not current; retried on the next read
+            synchronized (writeLock) {
+                for (int i = 0; i < count; i++) {
+                    store.setValue(indices[i], store.getValue(indices[i]), COMMUNICATION_ERROR);
+                }
+            }
+            return;
+        }
+        // The values are stored under the writeLock, so that a write cannot come between the check
+        // and the store and be overwritten by the older value
+        synchronized (writeLock) {
+            int i = 0;
+            for (Response<List<String>> response : responses) {
+                for (String value : response.get()) {
+                    int index = indices[i];
+                    if ((pendingWrites.get(index) == 0) && (lastWrites[index] == writesAtStart[i])) {
+                        setValue(index, value);
+                    }
+                    loadedAt[index] = now;
+                    loadedGeneration[index] = generationAtStart;
+                    loadedVersion[index] = versionsAtStart[i++];
+                }
+            }
+        }
+    }
+
+    private void setValue(int index, String value) {
+        if (value == null) {
+            store.setValue(index, store.getValue(index), NO_DATA);
+            return;
+        }
+        try {
+            store.setValue(index, Double.parseDouble(value), GOOD);
+        } catch (NumberFormatException e) {
+            store.setValue(index, store.getValue(index), TYPE_MISMATCH);
+        }
+    }
+
+    /**
+     * Writes the value of the item: to the store at once, to Redis with the next flush.
+     *
+     * @throws StatusException with Good_CompletesAsynchronously if the durability is
+     *         {@link Durability#FLUSHED} and the flush failed or timed out; the write is not lost, the
+     *         value stays queued and is retried
+     */
+    void write(int index, double value) throws StatusException {
+        Flush flush;
+        boolean flushNow;
+        synchronized (writeLock) {
+            store.setValue(index, value, GOOD);
+            if (++writeSequence == 0) {
+                writeSequence = 1;
+            }
+            lastWrites[index] = writeSequence;
+            if (pendingWrites.getAndSet(index, writeSequence) == 0) {
+                enqueue(index);
+            }
+            flush = openFlush;
+            flushNow = (writeCount >= FLUSH_BATCH_SIZE) || (durability == Durability.FLUSHED);
+        }
+        if (flushNow) {
+            flusher.execute(this::flush);
+        }
+        if (durability == Durability.FLUSHED) {
+            try {
+                if (!flush.done.await(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new StatusException(StatusCodes.Good_CompletesAsynchronously);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StatusException(StatusCodes.Good_CompletesAsynchronously);
+            }
+            // A Bad status would tell the client that the value was not written, but it is retried
+            if (flush.failed) {
+                throw new StatusException(StatusCodes.Good_CompletesAsynchronously);
+            }
+        }
+    }
+
+    // Called with the writeLock
+    private void enqueue(int index) {
+        if (writeCount == writeQueue.length) {
+            writeQueue = Arrays.copyOf(writeQueue, writeCount * 2);
+        }
+        writeQueue[writeCount++] = index;
+    }
+
+    /**
+     * Writes the queued items to Redis. Runs only in the flusher thread.
+     */
+    private void flush() {
+        int[] indices;
+        int count;
+        Flush flush;
+        synchronized (writeLock) {
+            indices = writeQueue;
+            count = writeCount;
+            flush = openFlush;
+            writeQueue = new int[Math.max(FLUSH_BATCH_SIZE, count)];
+            writeCount = 0;
+            openFlush = new Flush();
+        }
+        try {
+            if (count > 0) {
+                write(indices, count, flush);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Writing to Redis failed", e);
+            flush.failed = true;
+        } finally {
+            flush.done.countDown();
+        }
+    }
+
+    private void write(int[] indices, int count, Flush flush) {
+        // The value is read after its sequence, so a later write is either in this flush or requeued
+        int[] sequences = new int[count];
+        Map<String, String> fields = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            sequences[i] = pendingWrites.get(indices[i]);
+            fields.put(fieldNames.apply(indices[i]), Double.toString(store.getValue(indices[i])));
+        }
+        boolean failed = false;
+        try (Jedis jedis = pool.getResource()) {
+            // A transaction, so that no other command comes between an HSET and its change message
+            Transaction transaction = jedis.multi();
+            Map<String, String> chunk = new HashMap<>();
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                chunk.put(field.getKey(), field.getValue());
+                if (chunk.size() == MAX_FIELDS_PER_HMGET) {
+                    hset(transaction, chunk);
+                    chunk = new HashMap<>();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                hset(transaction, chunk);
+            }
+            transaction.exec();
+        } catch (JedisException e) {
+            logger.warn("Cannot write {} values to Redis, retrying: {}", count, e.getMessage());
+            failed = true;
+        }
+        flush.failed = failed;
+        synchronized (writeLock) {
+            for (int i = 0; i < count; i++) {
+                // Requeue the failed items and the ones written again during the flush
+                if (failed || !pendingWrites.compareAndSet(indices[i], sequences[i], 0)) {
+                    enqueue(indices[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the fields and publishes their names on the change channel.
+     */
+    private void hset(Transaction transaction, Map<String, String> fields) {
+        transaction.hset(hashKey, fields);
+        transaction.publish(changesChannel, origin + " " + String.join(" ", fields.keySet()));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // Write what is still queued
+        flusher.execute(this::flush);
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        JedisPubSub listener = changeListener;
+        if ((listener != null) && listener.isSubscribed()) {
+            listener.unsubscribe();
+        }
+        if (subscriber != null) {
+            subscriber.interrupt();
+        }
+        pool.close();
+    }
+}
@@ -8,6 +8,9 @@ package com.prosysopc.ua.samples.server;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.net.InetAddress;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -32,6 +35,7 @@ import com.prosysopc.ua.UserTokenPolicies;
 import com.prosysopc.ua.nodes.UaProperty;
 import com.prosysopc.ua.samples.server.compliancenodes.ComplianceNodeManager;
 import com.prosysopc.ua.samples.server.compliancenodes.NonUaNodeComplianceNodeManager;
+import com.prosysopc.ua.samples.server.pubsub.CncPubSubPublisher;
 import com.prosysopc.ua.server.NodeBuilderException;
 import com.prosysopc.ua.server.NodeManagerListener;
 import com.prosysopc.ua.server.UaInstantiationException;
@@ -149,6 +153,16 @@ public class SampleConsoleServer {
         s.sendEvent();
         return ActionResult.NOTHING;
       }
+    },
+
+    PRINT_METRICS('m', "print the CNC simulation metrics") {
+      @Override
+      ActionResult performAction(SampleConsoleServer s) {
+        if (s.cncNodeManager != null) {
+          println(s.cncNodeManager.getMetricsText());
+        }
+        return ActionResult.NOTHING;
+      }
     };
 
     static Map<Character, Action> actionMap = new TreeMap<Character, Action>();
@@ -223,6 +237,20 @@ public class SampleConsoleServer {
    * Number of nodes to create for the Big Node Manager. This can be modified from the command line.
    */
   private static int bigAddressSpaceNodes = 1000;
+
+  /**
+   * Redis server (host:port) from which the Big Node Manager reads its values, empty to simulate
+   * them, the key of the hash holding the values and how long a read value is cached.
+   */
+  protected static String bigRedisServer = "";
+  protected static String bigRedisKey = "MyBigNodeManager";
+  protected static long bigRedisTtl = 5000;
+
+  /**
+   * Acknowledge the writes to the Big Node Manager only after they are written to Redis, instead of
+   * when they are in its cache.
+   */
+  protected static boolean bigRedisFlushedWrites = false;
   private static Logger logger = LoggerFactory.getLogger(SampleConsoleServer.class);
   private static boolean stackTraceOnException = false;
   protected static int certKeySize = 2048;
@@ -235,6 +263,72 @@ public class SampleConsoleServer {
 
   private static boolean enableServerDiagnostics = false;
 
+  /**
+   * MQTT broker for the PubSub UADP publisher of the CNC tags. Empty disables PubSub.
+   */
+  protected static String pubSubBrokerUrl = "";
+  protected static String pubSubTopic = "opcua/uadp/cnc";
+  protected static long pubSubPublishingInterval = 1000;
+  protected static int pubSubKeyFrameCount = 10;
+  protected static int pubSubDataSetWriterId = 1;
+
+  /**
+   * Sample rate of the simulated CNC cutting force signals in Hz.
+   */
+  protected static int forceSampleRate = 10_000;
+
+  /**
+   * Directory of the G-code programs for LoadCncProgram and the rate of the axis motion simulation.
+   */
+  protected static String cncProgramDirectory = "programs";
+  protected static int cncMotionRate = 50;
+
+  /**
+   * Number of simulated CNC machines and the number of threads that simulate them.
+   */
+  protected static int cncMachineCount = 1;
+  protected static int cncShardCount = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * CNC tag deadbands, each as tagName:absolute:percent.
+   */
+  protected static List<String> cncDeadbands = new ArrayList<String>();
+
+  /**
+   * File to which the CNC simulation metrics are written periodically, empty for none.
+   */
+  protected static String cncMetricsFile = "";
+
+  /**
+   * Number of values kept in the history of each numeric CNC tag; 0 disables the CNC history. At
+   * 1 Hz the default covers 10 minutes; 1,000 machines with their 47 numeric tags then hold up to
+   * 28 million values in memory.
+   */
+  protected static int cncHistoryCapacity = 600;
+
+  /**
+   * Directory in which the history of the numeric and Boolean variables is kept, empty to keep it
+   * in memory, and how many days and megabytes of it are kept, 0 for no limit.
+   */
+  protected static String historyDirectory = "";
+  protected static int historyRetentionDays = 7;
+  protected static long historyRetentionMegabytes = 0;
+  protected static long historyForceMillis = 1000;
+
+  /**
+   * JDBC URL of the TimescaleDB with the cnc_events table of the Timescale agent, empty to not
+   * serve its history, and the user, password and machine ids of the events. The user and password
+   * have no defaults: they are taken from the environment variables TIMESCALE_USER and
+   * TIMESCALE_PASSWORD unless given as options, and are required when the URL is.
+   */
+  protected static String timescaleUrl = "";
+  protected static String timescaleUser = System.getenv().getOrDefault("TIMESCALE_USER", "");
+  protected static String timescalePassword = System.getenv().getOrDefault("TIMESCALE_PASSWORD", "");
+  protected static String timescaleMachines = "MyMachine";
+  private static final long HISTORY_PARTITION_MILLIS = 3_600_000;
+  private static final int HISTORY_SEGMENT_CAPACITY = 65536;
+  private static final int CNC_METRICS_INTERVAL_SECONDS = 10;
+
   private static Scanner scanner = new Scanner(System.in);
 
   /**
@@ -326,6 +420,14 @@ public class SampleConsoleServer {
         stackTraceOnException = true;
       } else if (args[i].equals("-b")) {
         bigAddressSpaceNodes = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-r")) {
+        bigRedisServer = args[++i];
+      } else if (args[i].equals("-rk")) {
+        bigRedisKey = args[++i];
+      } else if (args[i].equals("-rt")) {
+        bigRedisTtl = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-rf")) {
+        bigRedisFlushedWrites = true;
       } else if (args[i].equals("-k")) {
         certKeySize = Integer.parseInt(args[++i]);
       } else if (args[i].equals("-d")) {
@@ -338,6 +440,48 @@ public class SampleConsoleServer {
         httpsPort = Integer.parseInt(args[++i]);
       } else if (args[i].equals("-p")) {
         port = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-fs")) {
+        forceSampleRate = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-cn")) {
+        cncMachineCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-cs")) {
+        cncShardCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-hc")) {
+        cncHistoryCapacity = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-hd")) {
+        historyDirectory = args[++i];
+      } else if (args[i].equals("-ha")) {
+        historyRetentionDays = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-hs")) {
+        historyRetentionMegabytes = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-hf")) {
+        historyForceMillis = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-ts")) {
+        timescaleUrl = args[++i];
+      } else if (args[i].equals("-tsu")) {
+        timescaleUser = args[++i];
+      } else if (args[i].equals("-tsp")) {
+        timescalePassword = args[++i];
+      } else if (args[i].equals("-tsm")) {
+        timescaleMachines = args[++i];
+      } else if (args[i].equals("-mf")) {
+        cncMetricsFile = args[++i];
+      } else if (args[i].equals("-db")) {
+        cncDeadbands.add(args[++i]);
+      } else if (args[i].equals("-g")) {
+        cncProgramDirectory = args[++i];
+      } else if (args[i].equals("-gr")) {
+        cncMotionRate = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-m")) {
+        pubSubBrokerUrl = args[++i];
+      } else if (args[i].equals("-mt")) {
+        pubSubTopic = args[++i];
+      } else if (args[i].equals("-mi")) {
+        pubSubPublishingInterval = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-mk")) {
+        pubSubKeyFrameCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-mw")) {
+        pubSubDataSetWriterId = Integer.parseInt(args[++i]);
       } else if (args[i].equals("-w")) {
         waitAtStart();
       } else if (args[i].equals("-?")) {
@@ -350,13 +494,22 @@ public class SampleConsoleServer {
       }
       i++;
     }
+    if (!timescaleUrl.isEmpty() && (timescaleUser.isEmpty() || timescalePassword.isEmpty())) {
+      println("The TimescaleDB history (-ts) needs a user and a password: define them with -tsu and -tsp,"
+          + " or with the environment variables TIMESCALE_USER and TIMESCALE_PASSWORD");
+      return false;
+    }
     return true;
   }
 
 
   protected static void usage() {
     println("Usage: " + APP_NAME + " [-b] [-t] [serverUri]");
-    println("   -b n       Define number of nodes to create in the BigNodeManager (default=1000)");
+    println("   -b n       Define number of nodes to create in the BigNodeManager (default=1000, up to millions)");
+    println("   -r h:port  Read the BigNodeManager values from the Redis server (default=simulated)");
+    println("   -rk key    Define the Redis hash that holds the BigNodeManager values (default=MyBigNodeManager)");
+    println("   -rt ms     Define how long a value read from Redis is cached without a change event (default=5000)");
+    println("   -rf        Acknowledge the writes to Redis only after they are flushed (default=when cached)");
     println("   -k keySize Define the size of the public key of the "
             + "application certificate (default 2048; other valid values 1024, 4096)");
     println("   -d url     Define the DiscoveryServerUrl to register the application to");
@@ -364,6 +517,29 @@ public class SampleConsoleServer {
     println("   -p port    Define the port number for UA TCP protocol (default=52520)");
     println(
             "   -P port    Define the port number for UA HTTPS protocol (default=0 (not initialized), use 52521 for example)");
+    println("   -fs hz     Define the sample rate of the simulated CNC cutting forces (default=10000)");
+    println("   -cn n      Define the number of simulated CNC machines (default=1)");
+    println("   -cs n      Define the number of CNC simulation threads (default=number of processors)");
+    println("   -db t:a:p  Define the absolute and percent deadband of CNC tag t, e.g. ActualSpindleSpeed:0:0.5");
+    println("   -hc n      Define the number of history values kept per CNC tag, 0 to disable (default=600)");
+    println("   -hd dir    Keep the history of numeric and Boolean variables in the directory (default=in memory)");
+    println("   -ha days   Define how many days of history are kept in the directory, 0 for no limit (default=7)");
+    println("   -hs mb     Define how many megabytes of history are kept in the directory, 0 for no limit (default=0)");
+    println("   -hf ms     Define how often the changed history is written to disk (default=1000)");
+    println("   -ts url    Serve the history of the cnc_events table in the TimescaleDB, e.g.");
+    println("              jdbc:postgresql://timescaledb:5432/mydb (default=disabled)");
+    println("   -tsu user  Define the TimescaleDB user (default=$TIMESCALE_USER, required with -ts)");
+    println("   -tsp pw    Define the TimescaleDB password (default=$TIMESCALE_PASSWORD, required with -ts)");
+    println("   -tsm ids   Define the comma separated machine ids of the cnc_events (default=MyMachine)");
+    println("   -mf file   Write the CNC simulation metrics to the file every " + CNC_METRICS_INTERVAL_SECONDS
+        + " seconds (default=disabled)");
+    println("   -g dir     Define the directory of the CNC G-code programs (default=programs)");
+    println("   -gr hz     Define the update rate of the simulated CNC axis motion (default=50)");
+    println("   -m url     Publish the CNC tags as PubSub UADP messages to the MQTT broker (default=disabled)");
+    println("   -mt topic  Define the MQTT topic for the PubSub messages (default=opcua/uadp/cnc)");
+    println("   -mi ms     Define the PubSub publishing interval in milliseconds (default=1000)");
+    println("   -mk n      Define the number of PubSub messages per key frame, 1 disables delta frames (default=10)");
+    println("   -mw id     Define the PubSub DataSetWriterId of the first CNC machine (default=1)");
     println("   -t         Output stack trace for errors");
     println("   -w         Wait for input before starting");
     println("   -D, --enablesessiondiags  Enable server diagnostics by default");
@@ -381,23 +557,16 @@ public class SampleConsoleServer {
     }
   }
 
-  private final Runnable simulationTask = new Runnable() {
-
-    @Override
-    public void run() {
-      if (server.isRunning()) {
-        logger.debug("Simulating");
-        simulate();
-      }
-    }
-  };
   private final ScheduledExecutorService simulator = Executors.newScheduledThreadPool(10);
   protected ComplianceNodeManager complianceNodeManager;
   protected MyBigNodeManager myBigNodeManager;
   protected MyHistorian myHistorian;
+  protected PersistentHistoryStore historyStore;
+  protected CncEventHistory cncEventHistory;
   protected MyNodeManager myNodeManager;
   protected NodeManagerListener myNodeManagerListener = new MyNodeManagerListener();
   protected NonUaNodeComplianceNodeManager nonUaNodeComplianceManager;
+  protected CncPubSubPublisher pubSubPublisher;
   protected UaServer server;
   protected UserValidator userValidator;
   protected final DefaultCertificateValidatorListener validationListener = new MyCertificateValidationListener();
@@ -416,6 +585,11 @@ public class SampleConsoleServer {
   private void createBigNodeManager() {
     myBigNodeManager =
             new MyBigNodeManager(server, "http://www.prosysopc.com/OPCUA/SampleBigAddressSpace", bigAddressSpaceNodes);
+    if (!bigRedisServer.isEmpty()) {
+      String[] hostPort = bigRedisServer.split(":");
+      int redisPort = hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : 6379;
+      myBigNodeManager.connectRedis(hostPort[0], redisPort, bigRedisKey, bigRedisTtl, bigRedisFlushedWrites);
+    }
   }
 
   private void printConnectionAddresses() {
@@ -456,6 +630,17 @@ public class SampleConsoleServer {
   protected void createAddressSpace() throws StatusException, UaInstantiationException, NodeBuilderException {
     // My Node Manager
     cncNodeManager = new CncNodeManager(server, "http://example.com/CNC");
+    cncNodeManager.setForceSampleRate(forceSampleRate);
+    cncNodeManager.setProgramDirectory(new File(cncProgramDirectory));
+    cncNodeManager.setMachineCount(cncMachineCount);
+    cncNodeManager.setShardCount(cncShardCount);
+    for (String deadband : cncDeadbands) {
+      String[] parts = deadband.split(":");
+      if (parts.length != 3) {
+        throw new IllegalArgumentException("Invalid deadband, expected tagName:absolute:percent: " + deadband);
+      }
+      cncNodeManager.setDeadband(parts[0], Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+    }
 
     // My I/O Manager Listener
     //myNodeManager.getIoManager().addListeners(new MyIoManagerListener());
@@ -585,14 +770,37 @@ public class SampleConsoleServer {
 
 
   /**
-   * Initialize History Collection as configured in {@link MyNodeManager}.
+   * Initialize History Collection as configured in {@link MyNodeManager}, and for the CNC tags and
+   * the CNC events stored in TimescaleDB, with the decimation aggregates for trends.
    */
   protected void initHistory() {
-    for (UaVariableNode v : myNodeManager.getHistorizableVariables()) {
-      myHistorian.addVariableHistory(v);
+    if (myNodeManager != null) {
+      for (UaVariableNode v : myNodeManager.getHistorizableVariables()) {
+        myHistorian.addVariableHistory(v);
+      }
+      for (UaObjectNode o : myNodeManager.getHistorizableEvents()) {
+        myHistorian.addEventHistory(o);
+      }
     }
-    for (UaObjectNode o : myNodeManager.getHistorizableEvents()) {
-      myHistorian.addEventHistory(o);
+    if (cncNodeManager != null && cncHistoryCapacity > 0) {
+      cncNodeManager.initHistory(myHistorian, cncHistoryCapacity);
+    }
+    if (cncNodeManager != null) {
+      try {
+        myHistorian.addDecimationAggregates(cncNodeManager);
+      } catch (StatusException e) {
+        logger.error("Cannot add the decimation aggregates", e);
+      }
+    }
+    if (cncNodeManager != null && !timescaleUrl.isEmpty()) {
+      try {
+        List<String> machineIds = Arrays.asList(timescaleMachines.split("\\s*,\\s*"));
+        cncEventHistory = new CncEventHistory(cncNodeManager, server.getNodeManagerRoot().getObjectsFolder(),
+            myHistorian, timescaleUrl, timescaleUser, timescalePassword, machineIds);
+        Runtime.getRuntime().addShutdownHook(new Thread(cncEventHistory::close, "CncEventHistory-close"));
+      } catch (StatusException e) {
+        logger.error("Cannot create the CNC event history", e);
+      }
     }
   }
 
@@ -685,6 +893,14 @@ public class SampleConsoleServer {
     server = new UaServer();
 
     myHistorian = new MyHistorian(server.getAggregateCalculator());
+    if (!historyDirectory.isEmpty()) {
+      historyStore = new PersistentHistoryStore(new File(historyDirectory), HISTORY_PARTITION_MILLIS,
+          HISTORY_SEGMENT_CAPACITY, historyRetentionDays * 86_400_000L, historyRetentionMegabytes * 1024 * 1024,
+          historyForceMillis);
+      myHistorian.setPersistentStore(historyStore);
+      // Write the history to disk also when the server is stopped
+      Runtime.getRuntime().addShutdownHook(new Thread(historyStore::close, "PersistentHistoryStore-close"));
+    }
 
     /*
      * Enable or disable IPv6 networking (enabled by default).
@@ -942,11 +1158,12 @@ public class SampleConsoleServer {
    */
   protected void run() throws UaServerException, StatusException {
     server.start();
-    //initHistory();
+    initHistory();
     if (enableServerDiagnostics) {
       server.getNodeManagerRoot().getServerData().getServerDiagnosticsNode().setEnabled(true);
     }
     startSimulation();
+    startPubSub();
 
     printConnectionAddresses();
 
@@ -955,6 +1172,7 @@ public class SampleConsoleServer {
 //
 //    // *** End
 //    stopSimulation();
+//    stopPubSub();
 //    // Notify the clients about a shutdown, with a 5 second delay
 //    println("Shutting down...");
 //    server.shutdown(5, new LocalizedText("Closed by user", Locale.ENGLISH));
@@ -979,30 +1197,71 @@ public class SampleConsoleServer {
     myNodeManager.sendEvent();
   }
 
-  protected void simulate() {
+
+  /**
+   * Starts the PubSub UADP publisher for the CNC tags, if a broker is configured.
+   */
+  protected void startPubSub() {
+    if (pubSubBrokerUrl.isEmpty() || cncNodeManager == null) {
+      return;
+    }
+    pubSubPublisher = new CncPubSubPublisher(cncNodeManager, pubSubBrokerUrl, pubSubTopic);
+    pubSubPublisher.setPublishingInterval(pubSubPublishingInterval);
+    pubSubPublisher.setKeyFrameCount(pubSubKeyFrameCount);
+    pubSubPublisher.setDataSetWriterId(pubSubDataSetWriterId);
     try {
-      if (cncNodeManager != null) {
-        cncNodeManager.simulateCycle();
-      }
+      pubSubPublisher.start();
+      logger.info("PubSub publisher started.");
     } catch (Exception e) {
-      logger.error("Simulation error", e);
+      logger.error("Cannot start the PubSub publisher", e);
+      pubSubPublisher = null;
     }
   }
 
+  /**
+   * Stops the PubSub UADP publisher.
+   */
+  protected void stopPubSub() {
+    if (pubSubPublisher != null) {
+      pubSubPublisher.stop();
+      logger.info("PubSub publisher stopped.");
+    }
+  }
 
   /**
-   * Starts the simulation of the level measurement.
+   * Starts the simulation of the CNC machines, which the CncNodeManager runs on its own schedulers,
+   * and the writing of their metrics.
    */
   protected void startSimulation() {
-    simulator.scheduleAtFixedRate(simulationTask, 1000, 1000, TimeUnit.MILLISECONDS);
+    if (cncNodeManager != null) {
+      cncNodeManager.startSimulation(cncMotionRate);
+      if (!cncMetricsFile.isEmpty()) {
+        simulator.scheduleAtFixedRate(this::writeMetrics, CNC_METRICS_INTERVAL_SECONDS, CNC_METRICS_INTERVAL_SECONDS,
+            TimeUnit.SECONDS);
+      }
+    }
     logger.info("Simulation started.");
   }
 
+  /**
+   * Writes the CNC simulation metrics to {@link #cncMetricsFile}, replacing the previous contents.
+   */
+  protected void writeMetrics() {
+    try {
+      Files.write(Paths.get(cncMetricsFile), cncNodeManager.getMetricsText().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      logger.warn("Cannot write the CNC metrics: " + e.getMessage());
+    }
+  }
+
   /**
    * Ends simulation.
    */
   protected void stopSimulation() {
     simulator.shutdown();
+    if (cncNodeManager != null) {
+      cncNodeManager.stopSimulation();
+    }
     logger.info("Simulation stopped.");
   }
 }
\ No newline at end of file
@@ -0,0 +1,405 @@
+package com.prosysopc.ua.samples.server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaType;
+import com.prosysopc.ua.nodes.UaVariable;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.AggregateConfiguration;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * The history of one numeric column of one machine in the {@code cnc_events} hypertable, which the
+ * Timescale agent fills from the event pipeline.
+ * <p>
+ * Raw reads are paged by keyset: the continuation point is the key of the last returned row, i.e.
+ * its timestamp, with the event type and cycle id that break ties, and the next page starts after
+ * it. Every page is then an index range scan, however deep into the history it is. A read returns
+ * at most {@value #MAX_VALUES_PER_READ} values before it returns a continuation point. The Average,
+ * Minimum, Maximum and Count aggregates are calculated by the database with {@code time_bucket},
+ * up to {@value VariableHistory#MAX_PROCESSED_INTERVALS} intervals at a time; the AggregateCalculator
+ * calculates the other aggregates, and longer requests, from the raw values. Likewise, the rows of
+ * the minimum and maximum of each interval, for the DecimateMinMax aggregate, are selected by the
+ * database.
+ * <p>
+ * The history is read-only: the rows are inserted by the agent and removed by the retention policy
+ * of the hypertable.
+ */
+class TimescaleValueHistory implements VariableHistory {
+
+    static final String TABLE = "cnc_events";
+    private static final Logger logger = LoggerFactory.getLogger(TimescaleValueHistory.class);
+    private static final int MAX_VALUES_PER_READ = 10_000;
+
+    /**
+     * The key of a row, the continuation point of a raw read.
+     */
+    private static class RowKey {
+        final OffsetDateTime time;
+        final String eventType;
+        final String cycleId;
+
+        RowKey(OffsetDateTime time, String eventType, String cycleId) {
+            this.time = time;
+            this.eventType = eventType;
+            this.cycleId = cycleId;
+        }
+    }
+
+    private final JdbcConnectionPool pool;
+    private final UaVariable variable;
+    private final String machineId;
+    private final String column;
+
+    /**
+     * @param machineId the machine_id of the rows
+     * @param column the column of the values; it is part of the SQL, so it must not come from a
+     *        client
+     */
+    TimescaleValueHistory(JdbcConnectionPool pool, UaVariable variable, String machineId, String column) {
+        this.pool = pool;
+        this.variable = variable;
+        this.machineId = machineId;
+        this.column = column;
+    }
+
+    /**
+     * The values are inserted by the Timescale agent, so the values of the variable are not
+     * appended.
+     */
+    @Override
+    public void append(DataValue value) {
+    }
+
+    private static boolean isDefined(DateTime t) {
+        return t.compareTo(DateTime.MIN_VALUE) > 0;
+    }
+
+    private static OffsetDateTime toOffsetDateTime(DateTime t) {
+        return OffsetDateTime.ofInstant(Instant.ofEpochMilli(t.getTimeInMillis()), ZoneOffset.UTC);
+    }
+
+    private static DateTime toDateTime(OffsetDateTime t) {
+        return DateTime.fromMillis(t.toInstant().toEpochMilli());
+    }
+
+    private StatusException communicationError(SQLException e) {
+        logger.warn("Cannot read the history of {} from TimescaleDB: {}", variable.getNodeId(), e.getMessage());
+        return new StatusException(e.getMessage(), StatusCodes.Bad_CommunicationError);
+    }
+
+    /**
+     * Reads the values between startTime and endTime, oldest first, or newest first if only endTime
+     * is defined or startTime is after endTime. If neither is defined, all values are returned.
+     *
+     * @param after the key of the row after which to continue, or null
+     * @param maxValues the maximum number of values to return, 0 for no limit
+     * @return the key of the last returned row, if there are more values
+     */
+    private RowKey readRange(DateTime startTime, DateTime endTime, boolean returnStartBound, boolean returnEndBound,
+            RowKey after, int maxValues, List<DataValue> values) throws StatusException {
+        boolean startTimeDefined = isDefined(startTime);
+        boolean endTimeDefined = isDefined(endTime);
+        boolean reverse = endTimeDefined && (!startTimeDefined || (endTime.compareTo(startTime) < 0));
+        DateTime lower;
+        boolean lowerInclusive;
+        DateTime upper;
+        boolean upperInclusive;
+        if (!reverse) {
+            lower = startTimeDefined ? startTime : null;
+            lowerInclusive = returnStartBound;
+            upper = endTimeDefined ? endTime : null;
+            upperInclusive = returnEndBound;
+        } else {
+            lower = startTimeDefined ? endTime : null;
+            lowerInclusive = returnEndBound;
+            upper = startTimeDefined ? startTime : endTime;
+            upperInclusive = startTimeDefined ? returnStartBound : returnEndBound;
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT time, event_type, cycle_id, ").append(column).append(" FROM ")
+                .append(TABLE).append(" WHERE machine_id = ? AND ").append(column).append(" IS NOT NULL");
+        if (lower != null) {
+            sql.append(lowerInclusive ? " AND time >= ?" : " AND time > ?");
+        }
+        if (upper != null) {
+            sql.append(upperInclusive ? " AND time <= ?" : " AND time < ?");
+        }
+        if (after != null) {
+            sql.append(reverse ? " AND (time, event_type, cycle_id) < (?, ?, ?)"
+                    : " AND (time, event_type, cycle_id) > (?, ?, ?)");
+        }
+        sql.append(reverse ? " ORDER BY time DESC, event_type DESC, cycle_id DESC" : " ORDER BY time, event_type, cycle_id");
+        if (maxValues > 0) {
+            // One more row tells whether a continuation point is needed
+            sql.append(" LIMIT ?");
+        }
+        try {
+            return pool.execute(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+                    int p = 1;
+                    ps.setString(p++, machineId);
+                    if (lower != null) {
+                        ps.setObject(p++, toOffsetDateTime(lower));
+                    }
+                    if (upper != null) {
+                        ps.setObject(p++, toOffsetDateTime(upper));
+                    }
+                    if (after != null) {
+                        ps.setObject(p++, after.time);
+                        ps.setString(p++, after.eventType);
+                        ps.setString(p++, after.cycleId);
+                    }
+                    if (maxValues > 0) {
+                        ps.setInt(p++, maxValues + 1);
+                    }
+                    try (ResultSet rs = ps.executeQuery()) {
+                        int count = 0;
+                        RowKey last = null;
+                        while (rs.next()) {
+                            if ((maxValues > 0) && (count == maxValues)) {
+                                return last;
+                            }
+                            OffsetDateTime time = rs.getObject(1, OffsetDateTime.class);
+                            DateTime t = toDateTime(time);
+                            values.add(new DataValue(new Variant(rs.getDouble(4)), StatusCode.GOOD, t, t));
+                            last = new RowKey(time, rs.getString(2), rs.getString(3));
+                            count++;
+                        }
+                        return null;
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            throw communicationError(e);
+        }
+    }
+
+    @Override
+    public Object readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds,
+            Object continuationPoint, List<DataValue> history) throws StatusException {
+        int limit = (maxValues > 0) ? Math.min(maxValues, MAX_VALUES_PER_READ) : MAX_VALUES_PER_READ;
+        return readRange(startTime, endTime, returnBounds, returnBounds, (RowKey) continuationPoint, limit, history);
+    }
+
+    @Override
+    public List<DataValue> readRawAll(DateTime startTime, DateTime endTime, boolean returnStartBound,
+            boolean returnEndBound) throws StatusException {
+        List<DataValue> values = new ArrayList<DataValue>();
+        readRange(startTime, endTime, returnStartBound, returnEndBound, null, 0, values);
+        return values;
+    }
+
+    @Override
+    public DataValue readFirstAfterTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
+        return readOne(timeStamp, DateTime.MIN_VALUE, includeValueAtTimestamp, false);
+    }
+
+    @Override
+    public DataValue readFirstBeforeTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
+        return readOne(DateTime.MIN_VALUE, timeStamp, false, includeValueAtTimestamp);
+    }
+
+    private DataValue readOne(DateTime startTime, DateTime endTime, boolean returnStartBound,
+            boolean returnEndBound) {
+        List<DataValue> values = new ArrayList<DataValue>(1);
+        try {
+            readRange(startTime, endTime, returnStartBound, returnEndBound, null, 1, values);
+        } catch (StatusException e) {
+            // Already logged; the value is treated as missing
+        }
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public DataValue[] readAtTimes(DateTime[] reqTimes) {
+        if (reqTimes == null) {
+            return null;
+        }
+        DataValue[] values = new DataValue[reqTimes.length];
+        for (int i = 0; i < reqTimes.length; i++) {
+            DateTime t = reqTimes[i];
+            // Stepped interpolation used to get values
+            DataValue v = readFirstBeforeTimestamp(t, true);
+            values[i] = new DataValue(v == null ? null : v.getValue(),
+                    v == null ? StatusCode.valueOf(StatusCodes.Bad_NoData) : v.getStatusCode(), t, UnsignedShort.ZERO,
+                    null, null);
+        }
+        return values;
+    }
+
+    /**
+     * @return the SQL aggregate function of the OPC UA aggregate, or null if the database does not
+     *         calculate it
+     */
+    private static String toSqlFunction(NodeId aggregateType) {
+        if (Identifiers.AggregateFunction_Average.equals(aggregateType)) {
+            return "avg";
+        } else if (Identifiers.AggregateFunction_Minimum.equals(aggregateType)) {
+            return "min";
+        } else if (Identifiers.AggregateFunction_Maximum.equals(aggregateType)) {
+            return "max";
+        } else if (Identifiers.AggregateFunction_Count.equals(aggregateType)) {
+            return "count";
+        }
+        return null;
+    }
+
+    /**
+     * Calculates the Average, Minimum, Maximum or Count of each interval in one {@code time_bucket}
+     * query, with the buckets aligned to startTime. An interval without values is Bad_NoData, or 0
+     * for Count.
+     */
+    @Override
+    public DataValue[] readProcessed(DateTime startTime, DateTime endTime, double processingInterval,
+            NodeId aggregateType, AggregateConfiguration aggregateConfiguration) throws StatusException {
+        String function = toSqlFunction(aggregateType);
+        if ((function == null) || (processingInterval < 1) || !isDefined(startTime) || !isDefined(endTime)
+                || (endTime.compareTo(startTime) <= 0)) {
+            return null;
+        }
+        boolean count = function.equals("count");
+        long start = startTime.getTimeInMillis();
+        long interval = (long) processingInterval;
+        // Intervals in fractions of a millisecond are left to the AggregateCalculator
+        if (interval != processingInterval) {
+            return null;
+        }
+        long intervals = (endTime.getTimeInMillis() - start + interval - 1) / interval;
+        if (intervals > MAX_PROCESSED_INTERVALS) {
+            return null;
+        }
+        Variant[] results = new Variant[(int) intervals];
+        String sql = "SELECT time_bucket(make_interval(secs => ?), time, ?) AS bucket, " + function + "(" + column
+                + ") FROM " + TABLE + " WHERE machine_id = ? AND " + column
+                + " IS NOT NULL AND time >= ? AND time < ? GROUP BY bucket ORDER BY bucket";
+        try {
+            pool.execute(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    OffsetDateTime origin = toOffsetDateTime(startTime);
+                    ps.setDouble(1, interval / 1000.0);
+                    ps.setObject(2, origin);
+                    ps.setString(3, machineId);
+                    ps.setObject(4, origin);
+                    ps.setObject(5, toOffsetDateTime(endTime));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            long bucket = rs.getObject(1, OffsetDateTime.class).toInstant().toEpochMilli();
+                            int i = (int) ((bucket - start) / interval);
+                            if ((i >= 0) && (i < results.length)) {
+                                results[i] = count ? new Variant((int) rs.getLong(2)) : new Variant(rs.getDouble(2));
+                            }
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw communicationError(e);
+        }
+        DataValue[] values = new DataValue[results.length];
+        for (int i = 0; i < values.length; i++) {
+            DateTime t = DateTime.fromMillis(start + i * interval);
+            if (results[i] != null) {
+                values[i] = new DataValue(results[i], StatusCode.GOOD, t, null);
+            } else if (count) {
+                values[i] = new DataValue(new Variant(0), StatusCode.GOOD, t, null);
+            } else {
+                values[i] = new DataValue(null, StatusCode.valueOf(StatusCodes.Bad_NoData), t, null);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Selects the rows of the minimum and maximum of each interval in one query, with the buckets
+     * aligned to startTime. Of equal values, the first one is selected, as HistoryDecimation does.
+     */
+    @Override
+    public DataValue[] readMinMax(DateTime startTime, DateTime endTime, double processingInterval)
+            throws StatusException {
+        long start = startTime.getTimeInMillis();
+        long interval = (processingInterval == 0) ? endTime.getTimeInMillis() - start : (long) processingInterval;
+        // Intervals in fractions of a millisecond are left to HistoryDecimation
+        if ((interval < 1) || ((processingInterval != 0) && (interval != processingInterval))) {
+            return null;
+        }
+        long intervals = (endTime.getTimeInMillis() - start + interval - 1) / interval;
+        if (intervals > MAX_PROCESSED_INTERVALS) {
+            return null;
+        }
+        String key = "time, event_type, cycle_id";
+        String sql = "SELECT time, v FROM (SELECT " + key + ", " + column + " AS v, row_number() OVER (PARTITION BY"
+                + " bucket ORDER BY " + column + ", " + key + ") AS low, row_number() OVER (PARTITION BY bucket"
+                + " ORDER BY " + column + " DESC, " + key + ") AS high FROM (SELECT time_bucket(make_interval(secs"
+                + " => ?), time, ?) AS bucket, " + key + ", " + column + " FROM " + TABLE + " WHERE machine_id = ? AND "
+                + column + " IS NOT NULL AND time >= ? AND time < ?) AS r) AS s WHERE low = 1 OR high = 1 ORDER BY "
+                + key;
+        List<DataValue> values = new ArrayList<DataValue>();
+        try {
+            pool.execute(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    OffsetDateTime origin = toOffsetDateTime(startTime);
+                    ps.setDouble(1, interval / 1000.0);
+                    ps.setObject(2, origin);
+                    ps.setString(3, machineId);
+                    ps.setObject(4, origin);
+                    ps.setObject(5, toOffsetDateTime(endTime));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            DateTime t = toDateTime(rs.getObject(1, OffsetDateTime.class));
+                            values.add(new DataValue(new Variant(rs.getDouble(2)), StatusCode.GOOD, t, t));
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw communicationError(e);
+        }
+        return values.toArray(new DataValue[values.size()]);
+    }
+
+    @Override
+    public void deleteRaw(DateTime startTime, DateTime endTime) throws StatusException {
+        throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+    }
+
+    @Override
+    public void deleteAtTimes(DateTime[] reqTimes, StatusCode[] operationResults,
+            DiagnosticInfo[] operationDiagnostics) {
+        for (int i = 0; i < reqTimes.length; i++) {
+            operationResults[i] = StatusCode.valueOf(StatusCodes.Bad_HistoryOperationUnsupported);
+        }
+    }
+
+    @Override
+    public UaVariable getVariable() {
+        return variable;
+    }
+
+    @Override
+    public Boolean isStepped() {
+        UaType dataType = variable.getDataType();
+        return (dataType == null)
+                || !(dataType.inheritsFrom(Identifiers.Double) || dataType.inheritsFrom(Identifiers.Float));
+    }
+}
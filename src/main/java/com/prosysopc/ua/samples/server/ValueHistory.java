@@ -8,9 +8,8 @@ package com.prosysopc.ua.samples.server;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
 
-import com.prosysopc.ua.AggregateCalculator;
 import com.prosysopc.ua.StatusException;
 import com.prosysopc.ua.nodes.DataChangeListener;
 import com.prosysopc.ua.nodes.UaNode;
@@ -21,32 +20,260 @@ import com.prosysopc.ua.stack.builtintypes.DataValue;
 import com.prosysopc.ua.stack.builtintypes.DateTime;
 import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
 import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
 import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
 import com.prosysopc.ua.stack.core.Identifiers;
 import com.prosysopc.ua.stack.core.StatusCodes;
 
 /**
  * A sample class for keeping a history of a variable node.
+ * <p>
+ * The history either follows the value changes of the node, or is fed by the owner of the values
+ * with {@link #append(DataValue)}, for variables whose values are not kept in the node.
+ * <p>
+ * The values are kept in a ring buffer of parallel columns: the timestamps in a {@code long[]}, the
+ * status codes in an {@code int[]} and, for Double variables, the values in a {@code double[]}, so
+ * an entry takes about 20 bytes instead of a DataValue object graph. Appending is O(1) and drops the
+ * oldest value when the history is full. The values are in the order of their timestamps, so the
+ * reads find their start with a binary search; a value that arrives late is inserted in its place
+ * by moving the newer values. The reads do not lock: they read optimistically and
+ * retry with a read lock only if a write moved the values meanwhile.
  */
-class ValueHistory implements AggregateCalculator.HistoryDataProvider {
-  private int capacity = 10000;
+class ValueHistory implements VariableHistory {
+
+  private static final byte NULL_VALUE = 0;
+  private static final byte DOUBLE_VALUE = 1;
+  private static final byte VARIANT_VALUE = 2;
+
+  /**
+   * The number of values that a history keeps if no capacity is given.
+   */
+  static final int DEFAULT_CAPACITY = 10000;
+
   private final DataChangeListener listener = new DataChangeListener() {
 
     @Override
     public void onDataChange(UaNode uaNode, DataValue prevValue, DataValue value) {
-      values.add(value);
-      while (values.size() > capacity) {
-        values.remove(0);
-      }
+      append(value);
     }
   };
-  private final List<DataValue> values = new CopyOnWriteArrayList<DataValue>();
   private final UaVariable variable;
+  private final boolean numeric;
+  private final StampedLock lock = new StampedLock();
+
+  // The columns of the ring buffer; the values at the positions first..end-1 are in the slots
+  // position % capacity. Modified only with the write lock.
+  private int capacity;
+  private long[] times;
+  private int[] statuses;
+  private byte[] kinds;
+  private double[] doubles;
+  private Variant[] variants;
+  private long first;
+  private long end;
 
   public ValueHistory(UaVariableNode variable) {
+    this(variable, true, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param variable the variable
+   * @param followChanges whether to record the value changes of the node, otherwise the values
+   *        must be added with {@link #append(DataValue)}
+   * @param capacity the number of values to keep
+   */
+  ValueHistory(UaVariableNode variable, boolean followChanges, int capacity) {
     super();
+    if (capacity < 0) {
+      throw new IllegalArgumentException("capacity must be a positive value");
+    }
     this.variable = variable;
-    variable.addDataChangeListener(listener);
+    UaType dataType = variable.getDataType();
+    numeric = (dataType != null) && dataType.inheritsFrom(Identifiers.Double);
+    allocate(capacity);
+    if (followChanges) {
+      variable.addDataChangeListener(listener);
+    }
+  }
+
+  private void allocate(int newCapacity) {
+    capacity = newCapacity;
+    times = new long[newCapacity];
+    statuses = new int[newCapacity];
+    kinds = new byte[newCapacity];
+    doubles = numeric ? new double[newCapacity] : null;
+    // Allocated for a numeric history only if a value is not a Double
+    variants = numeric ? null : new Variant[newCapacity];
+  }
+
+  /**
+   * Adds a value to the history, dropping the oldest value if the history is full. A value is
+   * usually the newest and added to the end; a value that is older than the newest, because its
+   * writers raced, is inserted after the values of the same or an earlier time. A value older than
+   * all values of a full history is dropped.
+   *
+   * @param value the value to add
+   */
+  @Override
+  public void append(DataValue value) {
+    long stamp = lock.writeLock();
+    try {
+      if (capacity == 0) {
+        return;
+      }
+      long position = end;
+      long t = timeOf(value);
+      if ((end > first) && (times[(int) ((end - 1) % capacity)] > t)) {
+        position = search(t, true);
+      }
+      if (end - first == capacity) {
+        if (position == first) {
+          return;
+        }
+        first++;
+      }
+      for (long i = end; i > position; i--) {
+        move((int) ((i - 1) % capacity), (int) (i % capacity));
+      }
+      set((int) (position % capacity), value);
+      end++;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  private void set(int slot, DataValue value) {
+    times[slot] = timeOf(value);
+    StatusCode status = value.getStatusCode();
+    statuses[slot] = status == null ? 0 : status.getValue().intValue();
+    Variant v = value.getValue();
+    Object o = v == null ? null : v.getValue();
+    if (o == null) {
+      kinds[slot] = NULL_VALUE;
+    } else if (numeric && (o instanceof Double)) {
+      kinds[slot] = DOUBLE_VALUE;
+      doubles[slot] = (Double) o;
+    } else {
+      if (variants == null) {
+        variants = new Variant[capacity];
+      }
+      kinds[slot] = VARIANT_VALUE;
+      variants[slot] = v;
+    }
+    if ((variants != null) && (kinds[slot] != VARIANT_VALUE)) {
+      variants[slot] = null;
+    }
+  }
+
+  private static long timeOf(DataValue value) {
+    DateTime t = value.getSourceTimestamp();
+    if (t == null) {
+      t = value.getServerTimestamp();
+    }
+    return t == null ? 0 : t.getValue();
+  }
+
+  /**
+   * Creates the DataValue of the entry in the slot. Called also during an optimistic read, so it
+   * must not fail on values that are being overwritten.
+   */
+  private DataValue get(int slot) {
+    Variant value;
+    switch (kinds[slot]) {
+      case DOUBLE_VALUE:
+        value = new Variant(doubles[slot]);
+        break;
+      case VARIANT_VALUE:
+        Variant[] v = variants;
+        value = v == null ? Variant.NULL : v[slot];
+        break;
+      default:
+        value = Variant.NULL;
+    }
+    int status = statuses[slot];
+    DateTime t = new DateTime(times[slot]);
+    return new DataValue(value,
+        status == 0 ? StatusCode.GOOD : StatusCode.valueOf(UnsignedInteger.getFromBits(status)), t, t);
+  }
+
+  /**
+   * @return the first position whose time is at or after t, or after t if after is true
+   */
+  private long search(long t, boolean after) {
+    long low = first;
+    long high = end;
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      long midTime = times[(int) (mid % capacity)];
+      if ((midTime < t) || (after && (midTime == t))) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * The position of the first value at or after t, or after t if exclusive.
+   */
+  private long lowerBound(DateTime t, boolean inclusive) {
+    return search(t.getValue(), !inclusive);
+  }
+
+  /**
+   * The position after the last value before t, or at t if inclusive.
+   */
+  private long upperBound(DateTime t, boolean inclusive) {
+    return search(t.getValue(), inclusive);
+  }
+
+  /**
+   * A read of the history, run optimistically without locking and again with the read lock if a
+   * write interfered.
+   */
+  private interface Read<T> {
+    T read();
+  }
+
+  private <T> T read(Read<T> read) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        T result = read.read();
+        if (lock.validate(stamp)) {
+          return result;
+        }
+      } catch (RuntimeException e) {
+        // Inconsistent columns seen during a write; read again with the lock
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return read.read();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Adds the values of the positions from..to-1 to the list, newest first if reverse.
+   *
+   * @param skip the number of values to skip
+   * @param maxValues the maximum number of values to add, 0 for no limit
+   * @return the number of values added
+   */
+  private int collect(long from, long to, boolean reverse, int skip, int maxValues, List<DataValue> history) {
+    int count = 0;
+    for (long i = from + skip; i < to; i++) {
+      history.add(get((int) ((reverse ? (to - 1 - (i - from)) : i) % capacity)));
+      count++;
+      if (count == maxValues) {
+        break;
+      }
+    }
+    return count;
   }
 
   /**
@@ -54,6 +281,7 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
    * @param operationResults
    * @param operationDiagnostics
    */
+  @Override
   public void deleteAtTimes(DateTime[] reqTimes, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics) {
     for (int i = 0; i < reqTimes.length; i++) {
       try {
@@ -67,36 +295,60 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
   }
 
   /**
+   * Deletes the values from startTime up to, but not including, endTime.
+   *
    * @param startTime
    * @param endTime
    * @throws StatusException
    */
+  @Override
   public void deleteRaw(DateTime startTime, DateTime endTime) throws StatusException {
-    int i = 0;
     // boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) >
     // 0;
     boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
     if (!endTimeDefined) {
       throw new StatusException(StatusCodes.Bad_InvalidArgument);
     }
-    while (values.size() > i) {
-      DataValue value = values.get(i);
-      DateTime t = value.getSourceTimestamp();
-      if (t == null) {
-        t = value.getServerTimestamp();
-      }
-      if (t.compareTo(startTime) >= 0) {
-        values.remove(i);
-      } else if (t.compareTo(endTime) >= 0) {
-        break;
-      } else {
-        i++;
-      }
+    long stamp = lock.writeLock();
+    try {
+      remove(lowerBound(startTime, true), lowerBound(endTime, true));
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes the values of the positions from..to-1 by moving the newer values over them. Called
+   * with the write lock.
+   */
+  private void remove(long from, long to) {
+    long n = to - from;
+    if (n <= 0) {
+      return;
+    }
+    for (long i = to; i < end; i++) {
+      move((int) (i % capacity), (int) ((i - n) % capacity));
+    }
+    end -= n;
+  }
+
+  /**
+   * Copies the entry of the source slot to the target slot. Called with the write lock.
+   */
+  private void move(int source, int target) {
+    times[target] = times[source];
+    statuses[target] = statuses[source];
+    kinds[target] = kinds[source];
+    if (doubles != null) {
+      doubles[target] = doubles[source];
+    }
+    if (variants != null) {
+      variants[target] = variants[source];
     }
   }
 
   public int getCapacity() {
-    return capacity;
+    return read(() -> capacity);
   }
 
   // public DateTime getEarliestSourceTimestamp() {
@@ -110,6 +362,7 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
   /**
    * @return the variable
    */
+  @Override
   public UaVariable getVariable() {
     return variable;
   }
@@ -120,6 +373,7 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
    * 
    * @return false for floating point variables, true for all other
    */
+  @Override
   public Boolean isStepped() {
     UaType dataType = variable.getDataType();
     return (dataType == null)
@@ -130,6 +384,7 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
    * @param reqTimes
    * @return
    */
+  @Override
   public DataValue[] readAtTimes(DateTime[] reqTimes) {
     if (reqTimes == null) {
       return null;
@@ -149,26 +404,20 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
 
   @Override
   public DataValue readFirstAfterTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
-    int i = values.size() - 1;
-    while ((i >= 0) && ((values.get(i).getSourceTimestamp().compareTo(timeStamp) > 0)
-        || includeValueAtTimestamp && (values.get(i).getSourceTimestamp().compareTo(timeStamp) == 0))) {
-      i--;
-    }
-    return i < 0 || i == values.size() - 1 ? null : values.get(i + 1);
+    return read(() -> {
+      long i = lowerBound(timeStamp, includeValueAtTimestamp);
+      // No value is returned if the history does not reach back to the timestamp
+      return (i == first) || (i == end) ? null : get((int) (i % capacity));
+    });
   }
 
   @Override
   public DataValue readFirstBeforeTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
-    int i = 0;
-    while ((i < values.size()) && ((values.get(i).getSourceTimestamp().compareTo(timeStamp) < 0)
-        || includeValueAtTimestamp && (values.get(i).getSourceTimestamp().compareTo(timeStamp) == 0))) {
-      i++;
-    }
-    if (i == 0) {
-      return null;
-    } else {
-      return i == values.size() ? null : values.get(i - 1);
-    }
+    return read(() -> {
+      long i = upperBound(timeStamp, includeValueAtTimestamp);
+      // No value is returned if the history does not reach forward to the timestamp
+      return (i == first) || (i == end) ? null : get((int) ((i - 1) % capacity));
+    });
   }
 
   /**
@@ -178,153 +427,58 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
    * @param endTime the end of the interval
    * @param maxValues maximum number of values to return
    * @param returnBounds whether values at the ends of the interval should be returned as well
-   * @param firstIndex the index of the first entry in the history data to return (i.e. the
-   *        continuationPoint returned for the previous request)
+   * @param continuationPoint the index of the first entry in the history data to return, returned
+   *        for the previous request
    * @param history the list of values to fill in
    * @return the first index that was not added to the history, in case there are more than
    *         maxValues entries to return (i.e. the continuationPoint to return)
    */
-  public Integer readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds, int firstIndex,
-      List<DataValue> history) {
-    int i = 0;
-    boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
-    boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-
-    if (!endTimeDefined || (endTime.compareTo(startTime) >= 0 && startTimeDefined)) {
-      // Also covers !endTimeDefined && !startTimeDefined, which returns all available history
-      for (DataValue value : values) {
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-        if ((compareToEnd > 0) || (!returnBounds && (compareToEnd == 0))) {
-          break;
-        } else {
-          final int compareToStart = t.compareTo(startTime);
-          if ((compareToStart > 0) || (returnBounds && (compareToStart == 0))) {
-            if (i >= firstIndex) {
-              history.add(value);
-            }
-            i++;
-            if (history.size() == maxValues) {
-              return i;
-            }
-          }
-        }
-      }
-    } else if (endTimeDefined && startTimeDefined && endTime.compareTo(startTime) < 0) {
-      // Support for defining both start time and end time
-      // where start time is AFTER end time
-      // Values belonging to the interval are returned starting with the newest
-      for (int j = values.size() - 1; j >= 0; j--) {
-        DataValue value = values.get(j);
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToStart = t.compareTo(startTime);
-        if ((compareToStart > 0) || (!returnBounds && (compareToStart == 0))) {
-          continue;
-        } else {
-          final int compareToEnd = t.compareTo(endTime);
-          if ((compareToEnd > 0) || (returnBounds && (compareToEnd == 0))) {
-            if (i >= firstIndex) {
-              history.add(value);
-            }
-            i++;
-            if (history.size() == maxValues) {
-              return i;
-            }
-          }
-        }
-      }
-    } else {
-      // endTimeDefined && !startTimeDefined
-      for (int j = values.size() - 1; j >= 0; j--) {
-        DataValue value = values.get(j);
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToEnd = t.compareTo(endTime);
-        if ((compareToEnd > 0) || (!returnBounds && (compareToEnd == 0))) {
-          continue;
-        } else {
-          if (i >= firstIndex) {
-            history.add(value);
-          }
-          i++;
-          if (history.size() == maxValues) {
-            return i;
-          }
-        }
-      }
-    }
-    return null;
+  @Override
+  public Integer readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds,
+      Object continuationPoint, List<DataValue> history) {
+    int firstIndex = continuationPoint == null ? 0 : (Integer) continuationPoint;
+    List<DataValue> values = readRange(startTime, endTime, returnBounds, returnBounds, firstIndex, maxValues);
+    history.addAll(values);
+    return (maxValues > 0) && (history.size() == maxValues) ? firstIndex + values.size() : null;
   }
 
   @Override
   public List<DataValue> readRawAll(DateTime startTime, DateTime endTime, boolean returnStartBound,
       boolean returnEndBound) throws StatusException {
-    List<DataValue> rawValues = new ArrayList<DataValue>();
+    return readRange(startTime, endTime, returnStartBound, returnEndBound, 0, 0);
+  }
+
+  /**
+   * Reads the values between startTime and endTime, oldest first, or newest first if only endTime
+   * is defined or startTime is after endTime. If neither is defined, all values are returned.
+   *
+   * @param skip the number of values to skip
+   * @param maxValues the maximum number of values to return, 0 for no limit
+   */
+  private List<DataValue> readRange(DateTime startTime, DateTime endTime, boolean returnStartBound,
+      boolean returnEndBound, int skip, int maxValues) {
     boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
     boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-
-    if (!endTimeDefined || (endTime.compareTo(startTime) >= 0 && startTimeDefined)) {
-      // Also covers !endTimeDefined && !startTimeDefined, which returns all available history
-      for (DataValue value : values) {
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-        if ((compareToEnd > 0) || (!returnEndBound && (compareToEnd == 0))) {
-          break;
-        } else {
-          final int compareToStart = t.compareTo(startTime);
-          if ((compareToStart > 0) || (returnStartBound && (compareToStart == 0))) {
-            rawValues.add(value);
-          }
-        }
-      }
-    } else if (startTimeDefined && endTimeDefined && endTime.compareTo(startTime) < 0) {
-      // Support for defining both start time and end time
-      // where start time is AFTER end time
-      // Values belonging to the interval are returned starting with the newest
-      for (int j = values.size() - 1; j >= 0; j--) {
-        DataValue value = values.get(j);
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToStart = t.compareTo(startTime);
-        if ((compareToStart > 0) || (!returnStartBound && (compareToStart == 0))) {
-          continue;
-        } else {
-          final int compareToEnd = t.compareTo(endTime);
-          if ((compareToEnd > 0) || (returnEndBound && (compareToEnd == 0))) {
-            rawValues.add(value);
-          }
-        }
-      }
-    } else {
-      // !startTimeDefined && endTimeDefined
-      for (int j = values.size() - 1; j >= 0; j--) {
-        DataValue value = values.get(j);
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToEnd = t.compareTo(endTime);
-        if ((compareToEnd > 0) || (!returnEndBound && (compareToEnd == 0))) {
-          continue;
-        } else {
-          rawValues.add(value);
-        }
+    return read(() -> {
+      List<DataValue> values = new ArrayList<DataValue>();
+      if (!endTimeDefined || (endTime.compareTo(startTime) >= 0 && startTimeDefined)) {
+        // Also covers !endTimeDefined && !startTimeDefined, which returns all available history
+        long from = lowerBound(startTime, returnStartBound);
+        long to = endTimeDefined ? upperBound(endTime, returnEndBound) : end;
+        collect(from, to, false, skip, maxValues, values);
+      } else if (startTimeDefined && endTimeDefined && endTime.compareTo(startTime) < 0) {
+        // Support for defining both start time and end time
+        // where start time is AFTER end time
+        // Values belonging to the interval are returned starting with the newest
+        long from = lowerBound(endTime, returnEndBound);
+        long to = upperBound(startTime, returnStartBound);
+        collect(from, to, true, skip, maxValues, values);
+      } else {
+        // !startTimeDefined && endTimeDefined
+        collect(first, upperBound(endTime, returnEndBound), true, skip, maxValues, values);
       }
-    }
-    return rawValues;
+      return values;
+    });
   }
 
   /**
@@ -334,7 +488,20 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
     if (capacity < 0) {
       throw new IllegalArgumentException("capacity must be a positive value");
     }
-    this.capacity = capacity;
+    long stamp = lock.writeLock();
+    try {
+      // Keep the newest values that fit
+      List<DataValue> values = new ArrayList<DataValue>();
+      collect(Math.max(first, end - capacity), end, false, 0, 0, values);
+      allocate(capacity);
+      first = 0;
+      end = 0;
+      for (DataValue value : values) {
+        set((int) end++, value);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
   }
 
   /**
@@ -344,20 +511,17 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
    * @throws StatusException if no sample with the given timestamp is found
    */
   private void deleteAtTime(DateTime timestamp) throws StatusException {
-    boolean found = false;
-    for (int i = values.size() - 1; i >= 0; i--) {
-      int compareTo = timestamp.compareTo(values.get(i).getSourceTimestamp());
-      if (compareTo == 0) {
-        values.remove(i);
-        found = true;
-      } else if (compareTo < 0) {
-        break;
+    long stamp = lock.writeLock();
+    try {
+      long from = lowerBound(timestamp, true);
+      long to = upperBound(timestamp, true);
+      if (from == to) {
+        throw new StatusException(StatusCodes.Bad_NoData);
       }
+      remove(from, to);
+    } finally {
+      lock.unlockWrite(stamp);
     }
-    if (!found) {
-      throw new StatusException(StatusCodes.Bad_NoData);
-    }
-
   }
 
   /**
@@ -367,14 +531,12 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
    * @return the last value with a smaller or equal timestamp than the requestedTime
    */
   private DataValue getValue(DateTime requestedTime) {
-    // a "brute" find starting from the end
-    int i = values.size() - 1;
-    while ((i >= 0) && (values.get(i).getSourceTimestamp().compareTo(requestedTime) > 0)) {
-      i--;
-    }
     // TODO: Should actually use sloped interpolation for analog values (id isStepped() returns
     // true)
-    return i < 0 ? null : values.get(i);
+    return read(() -> {
+      long i = upperBound(requestedTime, true);
+      return i == first ? null : get((int) ((i - 1) % capacity));
+    });
   }
 
 }
@@ -0,0 +1,93 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.List;
+
+import com.prosysopc.ua.AggregateCalculator;
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaVariable;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.core.AggregateConfiguration;
+
+/**
+ * The history of one variable, as used by {@link MyHistorian}: kept in memory by
+ * {@link ValueHistory}, on disk by {@link PersistentValueHistory} or read from TimescaleDB by
+ * {@link TimescaleValueHistory}.
+ */
+interface VariableHistory extends AggregateCalculator.HistoryDataProvider {
+
+    /**
+     * The maximum number of intervals that {@link #readProcessed} returns at once; a longer request
+     * is left to the AggregateCalculator, which returns them with continuation points.
+     */
+    int MAX_PROCESSED_INTERVALS = 10_000;
+
+    /**
+     * Adds a value to the history. The values are normally appended in the order of their source
+     * timestamps; an implementation either inserts an older value in its place or drops it, but
+     * never lets it break the order of the history.
+     */
+    void append(DataValue value);
+
+    /**
+     * Gets the values from the history that are between startTime and endTime.
+     *
+     * @param maxValues maximum number of values to return, 0 for no limit
+     * @param returnBounds whether values at the ends of the interval should be returned as well
+     * @param continuationPoint the continuation point returned for the previous request, or null
+     * @param history the list of values to fill in
+     * @return the continuation point to return, in case there are more than maxValues values, or
+     *         null
+     */
+    Object readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds,
+            Object continuationPoint, List<DataValue> history) throws StatusException;
+
+    /**
+     * @return the values at the times, with stepped interpolation
+     */
+    DataValue[] readAtTimes(DateTime[] reqTimes);
+
+    /**
+     * Deletes the values from startTime up to, but not including, endTime.
+     */
+    void deleteRaw(DateTime startTime, DateTime endTime) throws StatusException;
+
+    void deleteAtTimes(DateTime[] reqTimes, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics);
+
+    /**
+     * Calculates an aggregate where the values are stored, instead of reading the raw values into
+     * the AggregateCalculator.
+     *
+     * @param processingInterval the length of the intervals in milliseconds
+     * @return the aggregate of each interval from startTime to endTime, or null if the history does
+     *         not calculate the aggregate or the request, or there are more than
+     *         {@link #MAX_PROCESSED_INTERVALS} intervals
+     */
+    default DataValue[] readProcessed(DateTime startTime, DateTime endTime, double processingInterval,
+            NodeId aggregateType, AggregateConfiguration aggregateConfiguration) throws StatusException {
+        return null;
+    }
+
+    /**
+     * Finds the minimum and maximum value of each interval where the values are stored, instead of
+     * reading the raw values into {@link HistoryDecimation#minMax}.
+     *
+     * @param processingInterval the length of the intervals in milliseconds, 0 for one interval
+     * @return the values that HistoryDecimation#minMax returns, or null if the history does not find
+     *         them or there are more than {@link #MAX_PROCESSED_INTERVALS} intervals
+     */
+    default DataValue[] readMinMax(DateTime startTime, DateTime endTime, double processingInterval)
+            throws StatusException {
+        return null;
+    }
+
+    /**
+     * @return whether the values stay as they are until the next value is recorded
+     */
+    Boolean isStepped();
+
+    UaVariable getVariable();
+}
@@ -0,0 +1,165 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+/**
+ * Evaluates the alarm rules of a CNC machine once per process cycle, without allocating.
+ * <p>
+ * The rules are kept as a fixed set of alarms in priority order. {@link #evaluate} updates their
+ * active state and reports whether anything changed, so the caller only touches its tags and
+ * conditions on a transition. An alarm becomes active as soon as its rule matches, and inactive
+ * only after the rule has not matched for {@link #getClearCycles()} consecutive cycles, so a value
+ * that oscillates around a limit does not raise a new alarm every cycle.
+ */
+public class CncAlarmEvaluator {
+
+    /** Spindle speed deviates more than 15 % from the target. */
+    public static final int SPINDLE_DEVIATION = 0;
+    /** Spindle speed deviates more than 5 % in each of the last cycles of the window. */
+    public static final int SPINDLE_DEVIATION_SUSTAINED = 1;
+    /** Remaining tool life is below 10 %. */
+    public static final int TOOL_WEAR = 2;
+    /** The total cutting force exceeds 1.5 times the nominal force. */
+    public static final int TOOL_BREAKAGE = 3;
+    /** The surface finish is outside the tolerance. */
+    public static final int TOLERANCE = 4;
+    public static final int ALARM_COUNT = 5;
+    /** Returned by {@link #getHighestActive()} when no alarm is active. */
+    public static final int NONE = -1;
+
+    private static final String[] NAMES = {
+            "SpindleDeviation", "SpindleDeviationSustained", "ToolWear", "ToolBreakage", "Tolerance"};
+    // OPC UA severities, 1..1000
+    private static final int[] SEVERITIES = {800, 600, 500, 900, 400};
+
+    private static final double DEVIATION_LIMIT = 0.15;
+    private static final double SUSTAINED_DEVIATION_LIMIT = 0.05;
+    private static final int SUSTAINED_WINDOW = 3;
+    private static final double TOOL_LIFE_LIMIT = 10.0;
+    private static final double FORCE_LIMIT = 1.5 * 600.0;
+    private static final double TOLERANCE_LIMIT = 0.01;
+
+    private final int clearCycles;
+    // Ring window of the recent spindle speed deviations
+    private final double[] deviations = new double[SUSTAINED_WINDOW];
+    private int deviationCount;
+    private int deviationPos;
+
+    private final boolean[] active = new boolean[ALARM_COUNT];
+    private final int[] inactiveCycles = new int[ALARM_COUNT];
+    private long transitionCount;
+
+    private double totalForce;
+    private double surfaceDelta;
+    private double deviation;
+
+    /**
+     * @param clearCycles the number of consecutive cycles without a match before an alarm clears,
+     *        at least 1
+     */
+    public CncAlarmEvaluator(int clearCycles) {
+        if (clearCycles < 1) {
+            throw new IllegalArgumentException("clearCycles must be at least 1");
+        }
+        this.clearCycles = clearCycles;
+    }
+
+    public static String getName(int alarm) {
+        return NAMES[alarm];
+    }
+
+    public static int getSeverity(int alarm) {
+        return SEVERITIES[alarm];
+    }
+
+    public int getClearCycles() {
+        return clearCycles;
+    }
+
+    /**
+     * Evaluates the rules with the values of one cycle.
+     *
+     * @return true if an alarm became active or inactive
+     */
+    public boolean evaluate(double targetRpm, double actualRpm, double toolLife, double surfaceTarget,
+                            double surfaceActual, double fx, double fy, double fz) {
+        deviation = targetRpm != 0 ? Math.abs(actualRpm - targetRpm) / targetRpm : 0.0;
+        deviations[deviationPos] = deviation;
+        deviationPos = (deviationPos + 1) % SUSTAINED_WINDOW;
+        if (deviationCount < SUSTAINED_WINDOW) {
+            deviationCount++;
+        }
+        boolean sustained = deviationCount == SUSTAINED_WINDOW;
+        for (int i = 0; i < deviationCount && sustained; i++) {
+            sustained = deviations[i] > SUSTAINED_DEVIATION_LIMIT;
+        }
+
+        totalForce = Math.sqrt(fx * fx + fy * fy + fz * fz);
+        surfaceDelta = surfaceActual - surfaceTarget;
+
+        boolean changed = update(SPINDLE_DEVIATION, deviation > DEVIATION_LIMIT);
+        changed |= update(SPINDLE_DEVIATION_SUSTAINED, sustained);
+        changed |= update(TOOL_WEAR, toolLife < TOOL_LIFE_LIMIT);
+        changed |= update(TOOL_BREAKAGE, totalForce > FORCE_LIMIT);
+        changed |= update(TOLERANCE, Math.abs(surfaceDelta) > TOLERANCE_LIMIT);
+        return changed;
+    }
+
+    private boolean update(int alarm, boolean match) {
+        if (match) {
+            inactiveCycles[alarm] = 0;
+            if (!active[alarm]) {
+                active[alarm] = true;
+                transitionCount++;
+                return true;
+            }
+        } else if (active[alarm] && ++inactiveCycles[alarm] >= clearCycles) {
+            active[alarm] = false;
+            transitionCount++;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isActive(int alarm) {
+        return active[alarm];
+    }
+
+    /**
+     * @return the active alarm with the highest priority, or {@link #NONE}
+     */
+    public int getHighestActive() {
+        for (int alarm = 0; alarm < ALARM_COUNT; alarm++) {
+            if (active[alarm]) {
+                return alarm;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the number of times an alarm became active or inactive
+     */
+    public long getTransitionCount() {
+        return transitionCount;
+    }
+
+    /**
+     * @return the relative spindle speed deviation of the last cycle
+     */
+    public double getDeviation() {
+        return deviation;
+    }
+
+    /**
+     * @return the total cutting force of the last cycle in N
+     */
+    public double getTotalForce() {
+        return totalForce;
+    }
+
+    /**
+     * @return the difference of the actual and target surface finish of the last cycle
+     */
+    public double getSurfaceDelta() {
+        return surfaceDelta;
+    }
+}
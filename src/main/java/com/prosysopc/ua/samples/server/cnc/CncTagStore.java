@@ -0,0 +1,306 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+import java.util.Arrays;
+
+/**
+ * Primitive storage for the tags of all simulated CNC machines.
+ * <p>
+ * The store is a structure of arrays: value, timestamp and status of every tag are kept in
+ * {@code double[]}, {@code long[]} and {@code int[]} columns, so the simulation updates tags
+ * without boxing or allocating. String tags keep their value in a separate reference column. The
+ * tags of machine m occupy the slots {@code m * tagsPerMachine ... (m + 1) * tagsPerMachine - 1},
+ * in the same order for every machine.
+ * <p>
+ * Writes of double tags pass a deadband: a change is published to clients only if it differs from
+ * the last published value by more than the absolute deadband or the percent deadband (relative to
+ * the last published value) of the tag, whichever is larger. With a zero deadband only unchanged
+ * values are suppressed. String tags are published when their value changes. The simulation reads
+ * the actual value with {@link #getDouble(int)}, clients see the published value.
+ * <p>
+ * A tag may be written by several threads: the simulation shard that owns it, the state engine of
+ * its machine (e.g. homing resets the axis positions) and client writes. The columns and counters
+ * of a tag are updated together under the lock of its stripe, and the change listener is called
+ * after the lock is released. A single getter returns the latest value of its column; a reader
+ * that needs the value, status and timestamp of the same update synchronizes on
+ * {@link #getLock(int)}.
+ */
+public class CncTagStore {
+
+    public static final byte DOUBLE = 0;
+    public static final byte STRING = 1;
+
+    /** The status code value for Good. */
+    public static final int GOOD = 0;
+    /** The status code value for Bad_WaitingForInitialData, the status of a tag never written. */
+    public static final int WAITING_FOR_INITIAL_DATA = 0x80320000;
+
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Receives the slots that were changed by a write.
+     */
+    public interface ChangeListener {
+        void onChange(int slot);
+    }
+
+    private final int machineCount;
+    private final int tagsPerMachine;
+    private final byte[] kinds;
+    private final double[] absoluteDeadbands;
+    private final double[] percentDeadbands;
+    private final double[] values;
+    private final double[] publishedValues;
+    private final String[] strings;
+    private final long[] timestamps;
+    private final int[] statusCodes;
+    private final long[] publishedCounts;
+    private final long[] suppressedCounts;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private volatile ChangeListener changeListener;
+
+    /**
+     * @param machineCount the number of machines
+     * @param kinds the kind of each tag of a machine, {@link #DOUBLE} or {@link #STRING}
+     */
+    public CncTagStore(int machineCount, byte[] kinds) {
+        this.machineCount = machineCount;
+        this.tagsPerMachine = kinds.length;
+        this.kinds = kinds.clone();
+        this.absoluteDeadbands = new double[tagsPerMachine];
+        this.percentDeadbands = new double[tagsPerMachine];
+        int size = machineCount * tagsPerMachine;
+        this.values = new double[size];
+        this.publishedValues = new double[size];
+        this.strings = new String[size];
+        this.timestamps = new long[size];
+        this.statusCodes = new int[size];
+        this.publishedCounts = new long[size];
+        this.suppressedCounts = new long[size];
+        Arrays.fill(strings, "");
+        Arrays.fill(statusCodes, WAITING_FOR_INITIAL_DATA);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Defines the deadband of a tag for all machines.
+     *
+     * @param tag the tag index
+     * @param absolute the absolute deadband in engineering units, 0 for none
+     * @param percent the deadband in percent of the last published value, 0 for none
+     */
+    public void setDeadband(int tag, double absolute, double percent) {
+        if (absolute < 0 || percent < 0) {
+            throw new IllegalArgumentException("Deadband must not be negative");
+        }
+        absoluteDeadbands[tag] = absolute;
+        percentDeadbands[tag] = percent;
+    }
+
+    public double getAbsoluteDeadband(int tag) {
+        return absoluteDeadbands[tag];
+    }
+
+    public double getPercentDeadband(int tag) {
+        return percentDeadbands[tag];
+    }
+
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    public int getMachineCount() {
+        return machineCount;
+    }
+
+    public int getTagsPerMachine() {
+        return tagsPerMachine;
+    }
+
+    /**
+     * @return the total number of slots
+     */
+    public int size() {
+        return values.length;
+    }
+
+    public int slot(int machine, int tag) {
+        return machine * tagsPerMachine + tag;
+    }
+
+    public int getMachine(int slot) {
+        return slot / tagsPerMachine;
+    }
+
+    public int getTag(int slot) {
+        return slot % tagsPerMachine;
+    }
+
+    /**
+     * @return the lock that guards the columns of the slot
+     */
+    public Object getLock(int slot) {
+        return locks[slot % LOCK_STRIPES];
+    }
+
+    public byte getKind(int slot) {
+        return kinds[slot % tagsPerMachine];
+    }
+
+    /**
+     * @return the actual value, including changes suppressed by the deadband
+     */
+    public double getDouble(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * @return the value last published to clients
+     */
+    public double getPublishedDouble(int slot) {
+        return publishedValues[slot];
+    }
+
+    public String getString(int slot) {
+        return strings[slot];
+    }
+
+    /**
+     * @return the published value as a Double or String, for callers that need an object
+     */
+    public Object getValue(int slot) {
+        return getKind(slot) == STRING ? strings[slot] : (Object) publishedValues[slot];
+    }
+
+    /**
+     * @return the source timestamp of the last change, in milliseconds since the epoch
+     */
+    public long getTimestamp(int slot) {
+        return timestamps[slot];
+    }
+
+    public int getStatusCode(int slot) {
+        return statusCodes[slot];
+    }
+
+    /**
+     * Writes a new value, publishing it if the change exceeds the deadband of the tag.
+     *
+     * @return true if the value was published
+     */
+    public boolean setDouble(int slot, double value, long timestamp) {
+        synchronized (getLock(slot)) {
+            values[slot] = value;
+            if (statusCodes[slot] == GOOD) {
+                int tag = slot % tagsPerMachine;
+                double last = publishedValues[slot];
+                double threshold = Math.max(absoluteDeadbands[tag], Math.abs(last) * percentDeadbands[tag] / 100.0);
+                // NaN never compares as within the deadband, so it is always published
+                if (Math.abs(value - last) <= threshold) {
+                    suppressedCounts[slot]++;
+                    return false;
+                }
+            }
+            publish(slot, value, timestamp);
+        }
+        fireChange(slot);
+        return true;
+    }
+
+    /**
+     * Writes and publishes a new value regardless of the deadband, e.g. for a client write or a
+     * reset.
+     */
+    public void publishDouble(int slot, double value, long timestamp) {
+        synchronized (getLock(slot)) {
+            publish(slot, value, timestamp);
+        }
+        fireChange(slot);
+    }
+
+    private void publish(int slot, double value, long timestamp) {
+        values[slot] = value;
+        publishedValues[slot] = value;
+        statusCodes[slot] = GOOD;
+        timestamps[slot] = timestamp;
+        publishedCounts[slot]++;
+    }
+
+    /**
+     * Writes a new value, publishing it if it differs from the current one.
+     *
+     * @return true if the value was published
+     */
+    public boolean setString(int slot, String value, long timestamp) {
+        synchronized (getLock(slot)) {
+            if (statusCodes[slot] == GOOD && strings[slot].equals(value)) {
+                suppressedCounts[slot]++;
+                return false;
+            }
+            strings[slot] = value;
+            statusCodes[slot] = GOOD;
+            timestamps[slot] = timestamp;
+            publishedCounts[slot]++;
+        }
+        fireChange(slot);
+        return true;
+    }
+
+    /**
+     * Changes the status of the tag, keeping its last value.
+     */
+    public void setStatusCode(int slot, int statusCode, long timestamp) {
+        synchronized (getLock(slot)) {
+            statusCodes[slot] = statusCode;
+            timestamps[slot] = timestamp;
+            publishedCounts[slot]++;
+        }
+        fireChange(slot);
+    }
+
+    /**
+     * @return the number of published updates of the slot
+     */
+    public long getPublishedCount(int slot) {
+        return publishedCounts[slot];
+    }
+
+    /**
+     * @return the number of updates of the slot suppressed by the deadband or change detection
+     */
+    public long getSuppressedCount(int slot) {
+        return suppressedCounts[slot];
+    }
+
+    /**
+     * @return the number of published updates of all slots, read without locking, so updates in
+     *         progress may be missing
+     */
+    public long getPublishedCount() {
+        return sum(publishedCounts);
+    }
+
+    /**
+     * @return the number of suppressed updates of all slots
+     */
+    public long getSuppressedCount() {
+        return sum(suppressedCounts);
+    }
+
+    private static long sum(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    private void fireChange(int slot) {
+        ChangeListener listener = changeListener;
+        if (listener != null) {
+            listener.onChange(slot);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+/**
+ * Computes condition monitoring features from a high-rate signal at the edge, so that only a few
+ * values per second need to be published instead of the raw samples.
+ * <p>
+ * Samples are collected into fixed windows. For every full window the RMS, peak, crest factor and
+ * the energy in {@link #getBandCount()} equally wide frequency bands (Hann window, radix-2 FFT)
+ * are written into primitive ring buffers. {@link #summarize(double[])} aggregates the windows
+ * completed since its previous call. All buffers are allocated in the constructor, so processing
+ * does not allocate.
+ */
+public class EdgeFeatureExtractor {
+
+    /** Index of the RMS value in the summary array. */
+    public static final int RMS = 0;
+    /** Index of the peak value in the summary array. */
+    public static final int PEAK = 1;
+    /** Index of the crest factor in the summary array. */
+    public static final int CREST_FACTOR = 2;
+    /** Index of the first band energy in the summary array. */
+    public static final int FIRST_BAND = 3;
+
+    private final int windowSize;
+    private final int bandCount;
+    private final int ringCapacity;
+
+    private final double[] window;
+    private int windowFill;
+
+    private final double[] hann;
+    private final double[] cos;
+    private final double[] sin;
+    private final double[] re;
+    private final double[] im;
+
+    private final double[] rmsRing;
+    private final double[] peakRing;
+    private final double[] bandRing;
+    private long completedWindows;
+    private long summarizedWindows;
+
+    /**
+     * @param windowSize samples per analysis window, must be a power of two
+     * @param bandCount number of frequency bands between 0 Hz and the Nyquist frequency
+     * @param ringCapacity number of windows kept in the feature ring buffers
+     */
+    public EdgeFeatureExtractor(int windowSize, int bandCount, int ringCapacity) {
+        if (windowSize < 2 || Integer.bitCount(windowSize) != 1) {
+            throw new IllegalArgumentException("windowSize must be a power of two");
+        }
+        if (bandCount < 1 || bandCount > windowSize / 2) {
+            throw new IllegalArgumentException("bandCount must be between 1 and windowSize / 2");
+        }
+        this.windowSize = windowSize;
+        this.bandCount = bandCount;
+        this.ringCapacity = ringCapacity;
+
+        window = new double[windowSize];
+        hann = new double[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            hann[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (windowSize - 1));
+        }
+        cos = new double[windowSize / 2];
+        sin = new double[windowSize / 2];
+        for (int i = 0; i < windowSize / 2; i++) {
+            cos[i] = Math.cos(-2 * Math.PI * i / windowSize);
+            sin[i] = Math.sin(-2 * Math.PI * i / windowSize);
+        }
+        re = new double[windowSize];
+        im = new double[windowSize];
+
+        rmsRing = new double[ringCapacity];
+        peakRing = new double[ringCapacity];
+        bandRing = new double[ringCapacity * bandCount];
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * @return the length of the array expected by {@link #summarize(double[])}
+     */
+    public int getSummarySize() {
+        return FIRST_BAND + bandCount;
+    }
+
+    /**
+     * Feeds samples[0..count) to the extractor.
+     */
+    public void accept(double[] samples, int count) {
+        int i = 0;
+        while (i < count) {
+            int n = Math.min(count - i, windowSize - windowFill);
+            System.arraycopy(samples, i, window, windowFill, n);
+            windowFill += n;
+            i += n;
+            if (windowFill == windowSize) {
+                processWindow();
+                windowFill = 0;
+            }
+        }
+    }
+
+    /**
+     * Aggregates the windows completed since the previous call: the RMS over all windows, the
+     * maximum peak, the resulting crest factor and the mean band energies.
+     *
+     * @param summary the array to fill, of length {@link #getSummarySize()}
+     * @return false if no window was completed since the previous call
+     */
+    public boolean summarize(double[] summary) {
+        long first = Math.max(summarizedWindows, completedWindows - ringCapacity);
+        int n = (int) (completedWindows - first);
+        summarizedWindows = completedWindows;
+        if (n == 0) {
+            return false;
+        }
+        double sumSquares = 0;
+        double peak = 0;
+        for (int b = 0; b < bandCount; b++) {
+            summary[FIRST_BAND + b] = 0;
+        }
+        for (long w = first; w < completedWindows; w++) {
+            int slot = (int) (w % ringCapacity);
+            sumSquares += rmsRing[slot] * rmsRing[slot];
+            peak = Math.max(peak, peakRing[slot]);
+            for (int b = 0; b < bandCount; b++) {
+                summary[FIRST_BAND + b] += bandRing[slot * bandCount + b];
+            }
+        }
+        double rms = Math.sqrt(sumSquares / n);
+        summary[RMS] = rms;
+        summary[PEAK] = peak;
+        summary[CREST_FACTOR] = rms > 0 ? peak / rms : 0;
+        for (int b = 0; b < bandCount; b++) {
+            summary[FIRST_BAND + b] /= n;
+        }
+        return true;
+    }
+
+    private void processWindow() {
+        int slot = (int) (completedWindows % ringCapacity);
+
+        double sumSquares = 0;
+        double peak = 0;
+        double mean = 0;
+        for (int i = 0; i < windowSize; i++) {
+            double v = window[i];
+            sumSquares += v * v;
+            peak = Math.max(peak, Math.abs(v));
+            mean += v;
+        }
+        mean /= windowSize;
+        rmsRing[slot] = Math.sqrt(sumSquares / windowSize);
+        peakRing[slot] = peak;
+
+        // The static force would dominate all bands, so the spectrum is taken from the AC part
+        for (int i = 0; i < windowSize; i++) {
+            re[i] = (window[i] - mean) * hann[i];
+            im[i] = 0;
+        }
+        fft();
+
+        int half = windowSize / 2;
+        int binsPerBand = half / bandCount;
+        double scale = 2.0 / ((double) windowSize * windowSize);
+        for (int b = 0; b < bandCount; b++) {
+            int from = 1 + b * binsPerBand;
+            int to = (b == bandCount - 1) ? half : from + binsPerBand;
+            double energy = 0;
+            for (int k = from; k < to; k++) {
+                energy += re[k] * re[k] + im[k] * im[k];
+            }
+            bandRing[slot * bandCount + b] = energy * scale;
+        }
+        completedWindows++;
+    }
+
+    /**
+     * In-place iterative radix-2 FFT of re/im.
+     */
+    private void fft() {
+        int n = windowSize;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int len = 2; len <= n; len <<= 1) {
+            int step = n / len;
+            int halfLen = len >> 1;
+            for (int i = 0; i < n; i += len) {
+                for (int k = 0; k < halfLen; k++) {
+                    double wr = cos[k * step];
+                    double wi = sin[k * step];
+                    int a = i + k;
+                    int b = a + halfLen;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+import java.util.Random;
+
+/**
+ * Generates a high-rate cutting force signal for one axis.
+ * <p>
+ * The signal consists of the static cutting force, the tooth passing frequency of the milling
+ * cutter (and its first harmonic), a structural resonance that flares up from time to time
+ * (chatter) and white measurement noise. The phase is continuous between calls, so consecutive
+ * blocks form one waveform. No objects are allocated while generating.
+ */
+public class ForceWaveformSource {
+
+    private static final double TWO_PI = 2 * Math.PI;
+
+    private final int sampleRate;
+    private final int teeth;
+    private final double resonanceHz;
+    private final Random rng;
+
+    private double toothPhase;
+    private double resonancePhase;
+    private double chatterAmplitude;
+
+    /**
+     * @param sampleRate samples per second
+     * @param teeth number of cutting edges on the tool
+     * @param resonanceHz frequency of the simulated structural resonance
+     */
+    public ForceWaveformSource(int sampleRate, int teeth, double resonanceHz, long seed) {
+        this.sampleRate = sampleRate;
+        this.teeth = teeth;
+        this.resonanceHz = resonanceHz;
+        this.rng = new Random(seed);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Writes the next count samples to target[0..count).
+     *
+     * @param meanForce the static force component in N
+     * @param spindleRpm the current spindle speed
+     */
+    public void generate(double[] target, int count, double meanForce, double spindleRpm) {
+        double toothStep = TWO_PI * (spindleRpm / 60.0 * teeth) / sampleRate;
+        double resonanceStep = TWO_PI * resonanceHz / sampleRate;
+
+        // Chatter builds up and decays slowly, once per block is fine-grained enough
+        if (rng.nextDouble() < 0.02) {
+            chatterAmplitude = 0.1 + rng.nextDouble() * 0.3;
+        } else {
+            chatterAmplitude *= 0.9;
+        }
+
+        for (int i = 0; i < count; i++) {
+            toothPhase += toothStep;
+            if (toothPhase > TWO_PI) {
+                toothPhase -= TWO_PI;
+            }
+            resonancePhase += resonanceStep;
+            if (resonancePhase > TWO_PI) {
+                resonancePhase -= TWO_PI;
+            }
+            double tooth = 0.25 * Math.sin(toothPhase) + 0.08 * Math.sin(2 * toothPhase);
+            double chatter = chatterAmplitude * Math.sin(resonancePhase);
+            target[i] = meanForce * (1.0 + tooth + chatter) + rng.nextGaussian() * 0.02 * meanForce;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+/**
+ * Runs a {@link GCodeProgram} against the simulation clock and computes the tool position.
+ * <p>
+ * The interpolator remembers the active segment, so advancing by small time steps is O(1); only a
+ * jump backwards falls back to a binary search. No objects are allocated while advancing.
+ */
+public class GCodeInterpolator {
+
+    private GCodeProgram program;
+    private double time;
+    private int segment;
+    private int completedRuns;
+
+    /**
+     * Starts the given program from the beginning.
+     */
+    public void load(GCodeProgram program) {
+        this.program = program;
+        this.time = 0;
+        this.segment = 0;
+        this.completedRuns = 0;
+    }
+
+    public GCodeProgram getProgram() {
+        return program;
+    }
+
+    /**
+     * @return the number of times the program has run to its end since it was loaded
+     */
+    public int getCompletedRuns() {
+        return completedRuns;
+    }
+
+    /**
+     * @return the progress of the current run in percent
+     */
+    public double getProgress() {
+        if (program == null || program.getTotalTime() == 0) {
+            return 0;
+        }
+        return 100.0 * time / program.getTotalTime();
+    }
+
+    /**
+     * Advances the program time and writes the new tool position to position[0..3). At the end of
+     * the program it restarts from the beginning, like a machine producing a series of parts.
+     *
+     * @param seconds the elapsed time, already scaled with the feed override
+     * @return false if no program is loaded, in which case position is not changed
+     */
+    public boolean advance(double seconds, double[] position) {
+        if (program == null || program.getSegmentCount() == 0) {
+            return false;
+        }
+        double total = program.getTotalTime();
+        time += seconds;
+        if (total <= 0) {
+            time = 0;
+        } else if (time >= total) {
+            completedRuns += (int) (time / total);
+            time %= total;
+            segment = 0;
+        }
+
+        if (program.get(segment, GCodeProgram.START_TIME) > time) {
+            segment = program.findSegment(time);
+        } else {
+            int last = program.getSegmentCount() - 1;
+            while (segment < last && program.get(segment + 1, GCodeProgram.START_TIME) <= time) {
+                segment++;
+            }
+        }
+
+        double duration = program.get(segment, GCodeProgram.DURATION);
+        double fraction = duration > 0 ? (time - program.get(segment, GCodeProgram.START_TIME)) / duration : 1.0;
+        program.positionAt(segment, Math.min(1.0, fraction), position);
+        return true;
+    }
+}
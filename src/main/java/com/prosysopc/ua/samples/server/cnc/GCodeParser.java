@@ -0,0 +1,280 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Parses the motion part of a G-code program into a {@link GCodeProgram}.
+ * <p>
+ * Supported are G0/G1/G2/G3 (arcs in the XY plane with I/J centers or R radius), G17, G20/G21,
+ * G90/G91 and F feed rates in units per minute. Comments in parentheses or after ';' and all other
+ * words (N, M, S, T, ...) are ignored.
+ */
+public class GCodeParser {
+
+    /** Feed rate used for G0 moves, in mm/min. */
+    public static final double RAPID_FEED = 15000.0;
+
+    private final double[] position = new double[3];
+    private double feed;
+    private byte motion = GCodeProgram.RAPID;
+    private boolean absolute = true;
+    private double unitScale = 1.0;
+    private double time;
+
+    private byte[] types = new byte[256];
+    private double[] data = new double[256 * GCodeProgram.STRIDE];
+    private int count;
+
+    /**
+     * Parses a program. The parser starts at the origin and is not reusable.
+     *
+     * @throws IllegalArgumentException if the program contains an invalid or unsupported block
+     */
+    public static GCodeProgram parse(String name, Reader source) throws IOException {
+        return new GCodeParser().parseProgram(name, source);
+    }
+
+    private GCodeProgram parseProgram(String name, Reader source) throws IOException {
+        BufferedReader reader = new BufferedReader(source);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            try {
+                parseBlock(stripComments(line).toUpperCase());
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException(name + " line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return new GCodeProgram(name, Arrays.copyOf(types, count), Arrays.copyOf(data, count * GCodeProgram.STRIDE));
+    }
+
+    private static String stripComments(String line) {
+        StringBuilder sb = new StringBuilder(line.length());
+        boolean inComment = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == ';') {
+                break;
+            } else if (c == '(') {
+                inComment = true;
+            } else if (c == ')') {
+                inComment = false;
+            } else if (!inComment) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void parseBlock(String block) {
+        double x = Double.NaN;
+        double y = Double.NaN;
+        double z = Double.NaN;
+        double i = 0;
+        double j = 0;
+        double r = Double.NaN;
+        boolean hasMotionWord = false;
+
+        int pos = 0;
+        while (pos < block.length()) {
+            char letter = block.charAt(pos++);
+            if (Character.isWhitespace(letter) || letter == '%') {
+                continue;
+            }
+            int start = pos;
+            while (pos < block.length()
+                    && (Character.isDigit(block.charAt(pos)) || "+-.".indexOf(block.charAt(pos)) >= 0)) {
+                pos++;
+            }
+            if (start == pos) {
+                throw new IllegalArgumentException("missing value for '" + letter + "'");
+            }
+            double value = Double.parseDouble(block.substring(start, pos));
+            switch (letter) {
+                case 'G':
+                    hasMotionWord |= parseG(value);
+                    break;
+                case 'X':
+                    x = value * unitScale;
+                    break;
+                case 'Y':
+                    y = value * unitScale;
+                    break;
+                case 'Z':
+                    z = value * unitScale;
+                    break;
+                case 'I':
+                    i = value * unitScale;
+                    break;
+                case 'J':
+                    j = value * unitScale;
+                    break;
+                case 'R':
+                    r = value * unitScale;
+                    break;
+                case 'F':
+                    feed = value * unitScale;
+                    break;
+                default:
+                    // N, M, S, T, K, ... do not affect the tool path
+                    break;
+            }
+        }
+
+        boolean hasAxisWord = !Double.isNaN(x) || !Double.isNaN(y) || !Double.isNaN(z);
+        if (!hasAxisWord) {
+            if (hasMotionWord && (motion == GCodeProgram.ARC_CW || motion == GCodeProgram.ARC_CCW)) {
+                throw new IllegalArgumentException("arc without end point");
+            }
+            return;
+        }
+        double x1 = target(x, 0);
+        double y1 = target(y, 1);
+        double z1 = target(z, 2);
+        if (motion == GCodeProgram.RAPID || motion == GCodeProgram.LINEAR) {
+            addLinear(x1, y1, z1);
+        } else {
+            addArc(x1, y1, z1, i, j, r);
+        }
+    }
+
+    /**
+     * @return true if the word sets the motion mode
+     */
+    private boolean parseG(double value) {
+        int code = (int) Math.round(value * 10);
+        switch (code) {
+            case 0:
+                motion = GCodeProgram.RAPID;
+                return true;
+            case 10:
+                motion = GCodeProgram.LINEAR;
+                return true;
+            case 20:
+                motion = GCodeProgram.ARC_CW;
+                return true;
+            case 30:
+                motion = GCodeProgram.ARC_CCW;
+                return true;
+            case 170:
+                return false;
+            case 180:
+            case 190:
+                throw new IllegalArgumentException("only the XY plane (G17) is supported");
+            case 200:
+                unitScale = 25.4;
+                return false;
+            case 210:
+                unitScale = 1.0;
+                return false;
+            case 900:
+                absolute = true;
+                return false;
+            case 910:
+                absolute = false;
+                return false;
+            default:
+                // Tool compensation, work offsets, canned cycle cancel etc. are not simulated
+                return false;
+        }
+    }
+
+    private double target(double word, int axis) {
+        if (Double.isNaN(word)) {
+            return position[axis];
+        }
+        return absolute ? word : position[axis] + word;
+    }
+
+    private void addLinear(double x1, double y1, double z1) {
+        double length = Math.sqrt(sq(x1 - position[0]) + sq(y1 - position[1]) + sq(z1 - position[2]));
+        double segmentFeed = motion == GCodeProgram.RAPID ? RAPID_FEED : requireFeed();
+        int o = append(motion);
+        data[o + GCodeProgram.DURATION] = length / segmentFeed * 60.0;
+        finishSegment(o, x1, y1, z1);
+    }
+
+    private void addArc(double x1, double y1, double z1, double i, double j, double r) {
+        double x0 = position[0];
+        double y0 = position[1];
+        boolean clockwise = motion == GCodeProgram.ARC_CW;
+        double cx;
+        double cy;
+        if (!Double.isNaN(r)) {
+            // Radius format: the center lies on the perpendicular bisector of the chord. A negative
+            // radius selects the arc larger than 180 degrees.
+            double dx = x1 - x0;
+            double dy = y1 - y0;
+            double chord = Math.sqrt(dx * dx + dy * dy);
+            if (chord == 0 || chord > 2 * Math.abs(r) + 1e-9) {
+                throw new IllegalArgumentException("arc radius does not fit the end point");
+            }
+            double h = Math.sqrt(Math.max(0, r * r - chord * chord / 4));
+            double side = (clockwise ^ r < 0) ? -1 : 1;
+            cx = x0 + dx / 2 - side * h * dy / chord;
+            cy = y0 + dy / 2 + side * h * dx / chord;
+        } else {
+            cx = x0 + i;
+            cy = y0 + j;
+        }
+        double radius = Math.sqrt(sq(x0 - cx) + sq(y0 - cy));
+        double startAngle = Math.atan2(y0 - cy, x0 - cx);
+        double endAngle = Math.atan2(y1 - cy, x1 - cx);
+        double sweep = endAngle - startAngle;
+        if (clockwise && sweep >= 0) {
+            sweep -= 2 * Math.PI;
+        } else if (!clockwise && sweep <= 0) {
+            sweep += 2 * Math.PI;
+        }
+        double length = Math.sqrt(sq(radius * sweep) + sq(z1 - position[2]));
+
+        int o = append(motion);
+        data[o + GCodeProgram.CENTER_X] = cx;
+        data[o + GCodeProgram.CENTER_Y] = cy;
+        data[o + GCodeProgram.RADIUS] = radius;
+        data[o + GCodeProgram.START_ANGLE] = startAngle;
+        data[o + GCodeProgram.SWEEP] = sweep;
+        data[o + GCodeProgram.DURATION] = length / requireFeed() * 60.0;
+        finishSegment(o, x1, y1, z1);
+    }
+
+    private double requireFeed() {
+        if (feed <= 0) {
+            throw new IllegalArgumentException("feed move without feed rate (F)");
+        }
+        return feed;
+    }
+
+    private int append(byte type) {
+        if (count == types.length) {
+            types = Arrays.copyOf(types, count * 2);
+            data = Arrays.copyOf(data, count * 2 * GCodeProgram.STRIDE);
+        }
+        types[count] = type;
+        int o = count * GCodeProgram.STRIDE;
+        data[o + GCodeProgram.X0] = position[0];
+        data[o + GCodeProgram.Y0] = position[1];
+        data[o + GCodeProgram.Z0] = position[2];
+        data[o + GCodeProgram.START_TIME] = time;
+        count++;
+        return o;
+    }
+
+    private void finishSegment(int o, double x1, double y1, double z1) {
+        data[o + GCodeProgram.X1] = x1;
+        data[o + GCodeProgram.Y1] = y1;
+        data[o + GCodeProgram.Z1] = z1;
+        time += data[o + GCodeProgram.DURATION];
+        position[0] = x1;
+        position[1] = y1;
+        position[2] = z1;
+    }
+
+    private static double sq(double v) {
+        return v * v;
+    }
+}
@@ -0,0 +1,102 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+/**
+ * A parsed G-code program as a compact, immutable segment table.
+ * <p>
+ * All segments are stored in one flat {@code double[]} with a fixed stride, plus one byte per
+ * segment for the motion type. Positions are absolute machine coordinates in mm, times are in
+ * seconds from the start of the program. Arcs are in the XY plane (G17), optionally helical in Z.
+ */
+public class GCodeProgram {
+
+    public static final byte RAPID = 0;
+    public static final byte LINEAR = 1;
+    public static final byte ARC_CW = 2;
+    public static final byte ARC_CCW = 3;
+
+    static final int X0 = 0;
+    static final int Y0 = 1;
+    static final int Z0 = 2;
+    static final int X1 = 3;
+    static final int Y1 = 4;
+    static final int Z1 = 5;
+    static final int CENTER_X = 6;
+    static final int CENTER_Y = 7;
+    static final int RADIUS = 8;
+    static final int START_ANGLE = 9;
+    static final int SWEEP = 10;
+    static final int START_TIME = 11;
+    static final int DURATION = 12;
+    static final int STRIDE = 13;
+
+    private final String name;
+    private final byte[] types;
+    private final double[] data;
+    private final double totalTime;
+
+    GCodeProgram(String name, byte[] types, double[] data) {
+        this.name = name;
+        this.types = types;
+        this.data = data;
+        int n = types.length;
+        this.totalTime = n == 0 ? 0 : data[(n - 1) * STRIDE + START_TIME] + data[(n - 1) * STRIDE + DURATION];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSegmentCount() {
+        return types.length;
+    }
+
+    public byte getType(int segment) {
+        return types[segment];
+    }
+
+    /**
+     * @return the time needed to run the program at 100 % feed override, in seconds
+     */
+    public double getTotalTime() {
+        return totalTime;
+    }
+
+    double get(int segment, int field) {
+        return data[segment * STRIDE + field];
+    }
+
+    /**
+     * Finds the segment that is active at the given program time.
+     *
+     * @return the segment index, the last segment if time is past the end
+     */
+    int findSegment(double time) {
+        int low = 0;
+        int high = types.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (data[mid * STRIDE + START_TIME] <= time) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Writes the tool position of the segment at the given fraction (0..1) to position[0..3).
+     */
+    void positionAt(int segment, double fraction, double[] position) {
+        int o = segment * STRIDE;
+        if (types[segment] == ARC_CW || types[segment] == ARC_CCW) {
+            double angle = data[o + START_ANGLE] + data[o + SWEEP] * fraction;
+            position[0] = data[o + CENTER_X] + data[o + RADIUS] * Math.cos(angle);
+            position[1] = data[o + CENTER_Y] + data[o + RADIUS] * Math.sin(angle);
+        } else {
+            position[0] = data[o + X0] + (data[o + X1] - data[o + X0]) * fraction;
+            position[1] = data[o + Y0] + (data[o + Y1] - data[o + Y0]) * fraction;
+        }
+        position[2] = data[o + Z0] + (data[o + Z1] - data[o + Z0]) * fraction;
+    }
+}
@@ -0,0 +1,91 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads G-code programs by name and keeps the parsed programs, so that loading the same program
+ * again does not parse it again.
+ * <p>
+ * Programs are looked up from the program directory first and then from the {@code /programs/}
+ * folder on the class path. A program file that changes on disk is parsed again on the next load.
+ */
+public class GCodeProgramCache {
+
+    private static final String[] EXTENSIONS = {"", ".nc", ".ngc", ".gcode"};
+
+    private static class Entry {
+        final GCodeProgram program;
+        final long lastModified;
+
+        Entry(GCodeProgram program, long lastModified) {
+            this.program = program;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final File programDirectory;
+    private final Map<String, Entry> programs = new ConcurrentHashMap<>();
+
+    public GCodeProgramCache(File programDirectory) {
+        this.programDirectory = programDirectory;
+    }
+
+    /**
+     * @return the parsed program
+     * @throws IOException if the program is not found or cannot be read
+     * @throws IllegalArgumentException if the program is not valid G-code
+     */
+    public GCodeProgram load(String programName) throws IOException {
+        if (programName.contains("..") || programName.contains("/") || programName.contains("\\")) {
+            throw new IOException("Invalid program name: " + programName);
+        }
+        File file = findFile(programName);
+        long lastModified = file != null ? file.lastModified() : 0;
+
+        Entry cached = programs.get(programName);
+        if (cached != null && cached.lastModified == lastModified) {
+            return cached.program;
+        }
+
+        GCodeProgram program;
+        if (file != null) {
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                program = GCodeParser.parse(programName, reader);
+            }
+        } else {
+            program = loadResource(programName);
+        }
+        programs.put(programName, new Entry(program, lastModified));
+        return program;
+    }
+
+    private File findFile(String programName) {
+        for (String extension : EXTENSIONS) {
+            File file = new File(programDirectory, programName + extension);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private GCodeProgram loadResource(String programName) throws IOException {
+        for (String extension : EXTENSIONS) {
+            InputStream in = GCodeProgramCache.class.getResourceAsStream("/programs/" + programName + extension);
+            if (in != null) {
+                try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                    return GCodeParser.parse(programName, reader);
+                }
+            }
+        }
+        throw new IOException("CNC program not found: " + programName);
+    }
+}
@@ -0,0 +1,230 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The operating state of one simulated machine, driven by commands.
+ * <p>
+ * Commands are queued and processed one at a time on a scheduler that is shared by all machines,
+ * so the state has a single writer at any time, however many clients call the machine methods
+ * concurrently. The tags written by the commands are shared with the simulation threads, see
+ * {@link CncTagStore}. Timed transitions, e.g. Starting to Running,
+ * are scheduled on the same scheduler instead of a thread of their own. A timed transition only
+ * completes if no other state change happened in between, so a Stop during Starting is never
+ * overwritten by the delayed Running.
+ * <pre>
+ * Stopped --START--> Starting --(delay)--> Running --STOP--> Stopping --(delay)--> Stopped
+ * any --FAULT--> Error --CLEAR_FAULT--> Running
+ * </pre>
+ * Maintenance, Homed and Order Loaded are entered from any state; START leaves them like Stopped.
+ */
+public class MachineStateEngine {
+
+    public enum State {
+        STOPPED("Stopped"),
+        STARTING("Starting"),
+        RUNNING("Running"),
+        STOPPING("Stopping"),
+        MAINTENANCE("Maintenance"),
+        HOMED("Homed"),
+        ORDER_LOADED("Order Loaded"),
+        ERROR("Error");
+
+        private final String displayName;
+
+        State(String displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the name shown in the MachineStatus tag
+         */
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * @return the state with the display name, or null if there is none
+         */
+        public static State fromDisplayName(String displayName) {
+            for (State state : values()) {
+                if (state.displayName.equals(displayName)) {
+                    return state;
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum Command {
+        START, STOP, ENTER_MAINTENANCE, HOME, LOAD_ORDER, FAULT, CLEAR_FAULT
+    }
+
+    /**
+     * Receives the state changes, in the processing thread of the engine.
+     */
+    public interface StateListener {
+        void onStateChange(State state);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final long transitionMillis;
+    private final StateListener listener;
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong ignored = new AtomicLong();
+
+    private volatile State state;
+    // Incremented on every state change; a timed transition completes only in its own generation
+    private int generation;
+    private ScheduledFuture<?> pendingTransition;
+
+    /**
+     * @param initialState the state of the machine, not reported to the listener
+     * @param scheduler the scheduler that processes the commands and timed transitions
+     * @param transitionMillis the duration of the Starting and Stopping states
+     * @param listener the listener of the state changes
+     */
+    public MachineStateEngine(State initialState, ScheduledExecutorService scheduler, long transitionMillis,
+                              StateListener listener) {
+        this.state = initialState;
+        this.scheduler = scheduler;
+        this.transitionMillis = transitionMillis;
+        this.listener = listener;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of processed commands and tasks
+     */
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * @return the number of commands that did not change the state, e.g. START while Running
+     */
+    public long getIgnoredCount() {
+        return ignored.get();
+    }
+
+    /**
+     * Queues a state command. Returns immediately; the command is processed after all commands
+     * and tasks queued before it.
+     */
+    public void submit(Command command) {
+        execute(() -> apply(command));
+    }
+
+    /**
+     * Queues a task that writes machine data, to be run serially with the state commands.
+     */
+    public void execute(Runnable task) {
+        queue.add(task);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            scheduler.execute(this::drain);
+        }
+    }
+
+    /**
+     * Processes the queued tasks. Only one drain of a machine is active at a time; the queue and
+     * the draining flag provide the happens-before between consecutive drains on different threads.
+     */
+    private void drain() {
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Never let one command stop the processing of the following ones
+                e.printStackTrace();
+            }
+            processed.incrementAndGet();
+        }
+        draining.set(false);
+        // A task queued after the last poll but before the flag was cleared
+        if (!queue.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private void apply(Command command) {
+        switch (command) {
+            case START:
+                if (state == State.STARTING || state == State.RUNNING) {
+                    ignored.incrementAndGet();
+                } else {
+                    changeState(State.STARTING);
+                    scheduleTransition(State.RUNNING);
+                }
+                break;
+            case STOP:
+                if (state == State.STOPPING || state == State.STOPPED) {
+                    ignored.incrementAndGet();
+                } else {
+                    changeState(State.STOPPING);
+                    scheduleTransition(State.STOPPED);
+                }
+                break;
+            case ENTER_MAINTENANCE:
+                changeState(State.MAINTENANCE);
+                break;
+            case HOME:
+                changeState(State.HOMED);
+                break;
+            case LOAD_ORDER:
+                changeState(State.ORDER_LOADED);
+                break;
+            case FAULT:
+                if (state == State.ERROR) {
+                    ignored.incrementAndGet();
+                } else {
+                    changeState(State.ERROR);
+                }
+                break;
+            case CLEAR_FAULT:
+                // Only leave Error; a machine stopped meanwhile stays stopped
+                if (state == State.ERROR) {
+                    changeState(State.RUNNING);
+                } else {
+                    ignored.incrementAndGet();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    private void changeState(State newState) {
+        generation++;
+        if (pendingTransition != null) {
+            pendingTransition.cancel(false);
+            pendingTransition = null;
+        }
+        state = newState;
+        listener.onStateChange(newState);
+    }
+
+    private void scheduleTransition(State target) {
+        int expectedGeneration = generation;
+        pendingTransition = scheduler.schedule(() -> execute(() -> {
+            if (generation == expectedGeneration) {
+                changeState(target);
+            }
+        }), transitionMillis, TimeUnit.MILLISECONDS);
+    }
+}
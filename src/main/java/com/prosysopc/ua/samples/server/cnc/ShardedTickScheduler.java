@@ -0,0 +1,184 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs periodic ticks over a fixed set of items, sharded over single-threaded executors.
+ * <p>
+ * Item i belongs to shard {@code i % shardCount}, so an item is always ticked by the same thread
+ * and its state needs no locking. Every tick of a shard has a time budget: when the budget is used
+ * up the remaining items are deferred, and the next tick of the shard starts with them. A slow tick
+ * therefore delays some items by one period instead of making the whole shard fall behind.
+ * <p>
+ * The duration, overruns and drift of the ticks are recorded in a {@link TickMetrics} per shard.
+ */
+public class ShardedTickScheduler<T> {
+
+    private final List<List<T>> shards;
+    private final ScheduledExecutorService[] executors;
+    private final TickMetrics[] metrics;
+    private final String name;
+
+    /**
+     * @param name prefix of the thread names
+     * @param items the items to tick
+     * @param shardCount the number of threads, limited to the number of items
+     */
+    public ShardedTickScheduler(String name, List<T> items, int shardCount) {
+        this.name = name;
+        int count = Math.max(1, Math.min(shardCount, items.size()));
+        shards = new ArrayList<>(count);
+        executors = new ScheduledExecutorService[count];
+        metrics = new TickMetrics[count];
+        for (int s = 0; s < count; s++) {
+            shards.add(new ArrayList<>());
+            metrics[s] = new TickMetrics();
+            String threadName = name + "-" + s;
+            executors[s] = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        for (int i = 0; i < items.size(); i++) {
+            shards.get(i % count).add(items.get(i));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getShardCount() {
+        return executors.length;
+    }
+
+    /**
+     * @param itemIndex the index of the item in the list given to the constructor
+     * @return the shard that ticks the item
+     */
+    public int getShard(int itemIndex) {
+        return itemIndex % executors.length;
+    }
+
+    /**
+     * @return the tick statistics of the shard
+     */
+    public TickMetrics getMetrics(int shard) {
+        return metrics[shard];
+    }
+
+    /**
+     * @return the tick statistics of all shards combined, a snapshot
+     */
+    public TickMetrics getMetrics() {
+        TickMetrics total = new TickMetrics();
+        for (TickMetrics shardMetrics : metrics) {
+            total.add(shardMetrics);
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of shard ticks executed
+     */
+    public long getTickCount() {
+        long count = 0;
+        for (TickMetrics shardMetrics : metrics) {
+            count += shardMetrics.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of shard ticks that used up their time budget
+     */
+    public long getOverrunCount() {
+        long count = 0;
+        for (TickMetrics shardMetrics : metrics) {
+            count += shardMetrics.getOverrunCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of item ticks postponed to the next period because of an overrun
+     */
+    public long getDeferredCount() {
+        long count = 0;
+        for (TickMetrics shardMetrics : metrics) {
+            count += shardMetrics.getDeferredCount();
+        }
+        return count;
+    }
+
+    /**
+     * Starts ticking all items with the action at a fixed rate.
+     *
+     * @param action the action to run for each item, exceptions are caught per item
+     * @param periodNanos the tick period
+     * @param budgetFraction the share of the period a shard may use per tick, 0..1
+     */
+    public void scheduleAtFixedRate(Consumer<T> action, long periodNanos, double budgetFraction) {
+        long budgetNanos = (long) (periodNanos * budgetFraction);
+        long firstStart = System.nanoTime() + periodNanos;
+        for (int s = 0; s < executors.length; s++) {
+            executors[s].scheduleAtFixedRate(
+                    new ShardTick<>(shards.get(s), action, metrics[s], budgetNanos, firstStart, periodNanos),
+                    periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void shutdown() {
+        for (ScheduledExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    private class ShardTick<E> implements Runnable {
+        private final List<E> items;
+        private final Consumer<E> action;
+        private final TickMetrics metrics;
+        private final long budgetNanos;
+        private final long firstStart;
+        private final long periodNanos;
+        private int cursor;
+        private long tickNumber;
+
+        ShardTick(List<E> items, Consumer<E> action, TickMetrics metrics, long budgetNanos, long firstStart,
+                  long periodNanos) {
+            this.items = items;
+            this.action = action;
+            this.metrics = metrics;
+            this.budgetNanos = budgetNanos;
+            this.firstStart = firstStart;
+            this.periodNanos = periodNanos;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long drift = start - (firstStart + tickNumber++ * periodNanos);
+            int n = items.size();
+            for (int done = 1; done <= n; done++) {
+                try {
+                    action.accept(items.get(cursor));
+                } catch (RuntimeException e) {
+                    // Never let one item cancel the periodic task of the whole shard
+                    e.printStackTrace();
+                }
+                cursor = cursor + 1 == n ? 0 : cursor + 1;
+                if (done < n && System.nanoTime() - start > budgetNanos) {
+                    metrics.recordOverrun(n - done);
+                    break;
+                }
+            }
+            metrics.record(System.nanoTime() - start, drift);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Duration, overrun and drift statistics of a periodic tick.
+ * <p>
+ * Durations are counted in a histogram with power of two buckets in microseconds: bucket 0 holds
+ * ticks of up to 1 µs, bucket k ticks of more than {@code 2^(k-1)} and up to {@code 2^k} µs, and
+ * the last bucket also all longer ticks. The upper bound of a bucket is inclusive, like the
+ * {@code le} label of a Prometheus histogram. Percentiles are reported as the upper bound of their
+ * bucket, which is accurate to a factor of two and costs one counter increment per tick. Drift is the delay of the start of a tick from its nominal start
+ * time; with a fixed rate schedule it grows while the ticks fall behind.
+ * <p>
+ * A tick is recorded by one thread; the statistics may be read from any thread.
+ */
+public class TickMetrics {
+
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong lastDriftNanos = new AtomicLong();
+    private final AtomicLong maxDriftNanos = new AtomicLong();
+
+    /**
+     * Records one tick.
+     *
+     * @param durationNanos the duration of the tick
+     * @param driftNanos the delay of the start of the tick from its nominal start
+     */
+    public void record(long durationNanos, long driftNanos) {
+        buckets.incrementAndGet(bucket(durationNanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(durationNanos);
+        updateMax(maxNanos, durationNanos);
+        lastDriftNanos.set(driftNanos);
+        updateMax(maxDriftNanos, driftNanos);
+    }
+
+    /**
+     * Records a tick that used up its time budget and postponed some of its work.
+     *
+     * @param deferredItems the number of postponed items
+     */
+    public void recordOverrun(int deferredItems) {
+        overruns.incrementAndGet();
+        deferred.addAndGet(deferredItems);
+    }
+
+    private static int bucket(long durationNanos) {
+        // The smallest k for which the duration is at most 2^k µs
+        long micros = (durationNanos + 999) / 1000;
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the value is stored or a larger one is seen
+        }
+    }
+
+    /**
+     * Adds the statistics of another instance to this one, e.g. to combine shards.
+     */
+    public void add(TickMetrics other) {
+        for (int b = 0; b < BUCKET_COUNT; b++) {
+            buckets.addAndGet(b, other.buckets.get(b));
+        }
+        count.addAndGet(other.count.get());
+        totalNanos.addAndGet(other.totalNanos.get());
+        updateMax(maxNanos, other.maxNanos.get());
+        overruns.addAndGet(other.overruns.get());
+        deferred.addAndGet(other.deferred.get());
+        // The combined drift is the drift of the shard that is furthest behind
+        updateMax(lastDriftNanos, other.lastDriftNanos.get());
+        updateMax(maxDriftNanos, other.maxDriftNanos.get());
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * @return the inclusive upper bound of the durations in the bucket in microseconds; the last
+     *         bucket also holds the longer durations
+     */
+    public static long getBucketUpperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public double getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0.0 : totalNanos.get() / 1000.0 / n;
+    }
+
+    public double getMaxMicros() {
+        return maxNanos.get() / 1000.0;
+    }
+
+    /**
+     * @param percentile the percentile, 0..100
+     * @return the upper bound of the bucket that contains the percentile in microseconds, 0 if
+     *         nothing is recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int b = 0; b < BUCKET_COUNT; b++) {
+            seen += buckets.get(b);
+            if (seen >= rank) {
+                return getBucketUpperBoundMicros(b);
+            }
+        }
+        return getBucketUpperBoundMicros(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return the number of ticks that used up their time budget
+     */
+    public long getOverrunCount() {
+        return overruns.get();
+    }
+
+    /**
+     * @return the number of item ticks postponed because of an overrun
+     */
+    public long getDeferredCount() {
+        return deferred.get();
+    }
+
+    public double getDriftMicros() {
+        return lastDriftNanos.get() / 1000.0;
+    }
+
+    public double getMaxDriftMicros() {
+        return maxDriftNanos.get() / 1000.0;
+    }
+
+    /**
+     * Appends the statistics in the Prometheus text format, e.g.
+     * {@code cnc_tick_duration_microseconds_bucket{scheduler="CncCycle",le="64"} 12}.
+     *
+     * @param labels the labels of the metrics without braces, e.g. {@code scheduler="CncCycle"}
+     */
+    public void appendText(StringBuilder sb, String prefix, String labels) {
+        long cumulative = 0;
+        // The last bucket has no upper bound, so it is only in +Inf
+        for (int b = 0; b < BUCKET_COUNT - 1; b++) {
+            cumulative += buckets.get(b);
+            sb.append(prefix).append("_duration_microseconds_bucket{").append(labels)
+                    .append(",le=\"").append(getBucketUpperBoundMicros(b)).append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append(prefix).append("_duration_microseconds_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                .append(count.get()).append('\n');
+        appendLine(sb, prefix + "_duration_microseconds_sum", labels, totalNanos.get() / 1000.0);
+        appendLine(sb, prefix + "_duration_microseconds_count", labels, count.get());
+        appendLine(sb, prefix + "_duration_microseconds_max", labels, getMaxMicros());
+        appendLine(sb, prefix + "_overruns_total", labels, overruns.get());
+        appendLine(sb, prefix + "_deferred_total", labels, deferred.get());
+        appendLine(sb, prefix + "_drift_microseconds", labels, getDriftMicros());
+        appendLine(sb, prefix + "_drift_microseconds_max", labels, getMaxDriftMicros());
+    }
+
+    private static void appendLine(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name).append('{').append(labels).append("} ").append(String.format(Locale.ROOT, "%.1f", value))
+                .append('\n');
+    }
+
+    private static void appendLine(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Contains the simulation building blocks used by the CNC node manager.
+ */
+package com.prosysopc.ua.samples.server.cnc;
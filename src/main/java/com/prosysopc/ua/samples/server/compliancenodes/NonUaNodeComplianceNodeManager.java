@@ -268,7 +268,8 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
   }
 
   /**
-   * Send a data change notification for all monitored data items that are monitoring the dataItme
+   * Send a data change notification for all monitored data items that are monitoring the dataItme.
+   * The change is sent as one DataValue, shared by all the monitored items.
    *
    * @param dataItem
    */
@@ -276,9 +277,8 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
     // Get the list of items watching dataItem
     Collection<MonitoredDataItem> c = monitoredItems.get(dataItem.getName());
     if (c != null) {
+      DataValue dataValue = dataItem.getSnapshot();
       for (MonitoredDataItem item : c) {
-        DataValue dataValue = new DataValue();
-        dataItem.getDataValue(dataValue);
         item.notifyDataChange(dataValue);
       }
     }
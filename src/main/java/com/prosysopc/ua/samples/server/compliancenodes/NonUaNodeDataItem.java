@@ -21,6 +21,8 @@ public class NonUaNodeDataItem {
   private StatusCode status = StatusCode.valueOf(StatusCodes.Bad_WaitingForInitialData);
   private DateTime timestamp;
   private Object value;
+  // The DataValue of the current value, shared by the notifications until the next change
+  private DataValue snapshot;
 
   public NonUaNodeDataItem(NonUaNodeComplianceNodeManager manager, String name) {
     this.manager = manager;
@@ -31,13 +33,24 @@ public class NonUaNodeDataItem {
     return dataType;
   }
 
-  public void getDataValue(DataValue dataValue) {
+  public synchronized void getDataValue(DataValue dataValue) {
     dataValue.setValue(new Variant(getValue()));
     dataValue.setStatusCode(getStatus());
     dataValue.setServerTimestamp(DateTime.currentTime());
     dataValue.setSourceTimestamp(timestamp);
   }
 
+  /**
+   * Returns the DataValue of the current value, created once per change. The same instance is
+   * given to every caller until the value changes, so it must not be modified.
+   */
+  public synchronized DataValue getSnapshot() {
+    if (snapshot == null) {
+      snapshot = new DataValue(new Variant(value), status, timestamp, DateTime.currentTime());
+    }
+    return snapshot;
+  }
+
   public String getName() {
     return name;
   }
@@ -67,12 +80,18 @@ public class NonUaNodeDataItem {
       status = StatusCode.BAD;
       manager.notifyMonitoredDataItems(this);
     }
-    if ((this.value != value) || !this.status.equals(status)) {
-      this.value = value;
-      this.status = status;
-      this.timestamp = DateTime.currentTime();
+    boolean changed = false;
+    synchronized (this) {
+      if ((this.value != value) || !this.status.equals(status)) {
+        this.value = value;
+        this.status = status;
+        this.timestamp = DateTime.currentTime();
+        this.snapshot = null;
+        changed = true;
+      }
+    }
+    if (changed) {
       manager.notifyMonitoredDataItems(this);
     }
-
   }
 }
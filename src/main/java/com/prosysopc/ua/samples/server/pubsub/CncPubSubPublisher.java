@@ -0,0 +1,232 @@
+package com.prosysopc.ua.samples.server.pubsub;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.samples.server.CncMachine;
+import com.prosysopc.ua.samples.server.CncNodeManager;
+
+/**
+ * Publishes the tags of a {@link CncNodeManager} as OPC UA PubSub UADP NetworkMessages over MQTT.
+ * <p>
+ * Every machine has its own DataSetWriter, which publishes the tags of the machine as a DataSet in a
+ * NetworkMessage of its own. The DataSetWriterIds are consecutive, starting from
+ * {@link #getDataSetWriterId()} for the first machine. Every {@link #getKeyFrameCount()} messages a
+ * writer sends a key frame with all fields; the messages in between are delta frames that only
+ * contain the fields that changed since the previous message. If nothing changed, a keep alive
+ * message is sent instead.
+ */
+public class CncPubSubPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(CncPubSubPublisher.class);
+
+    private final CncNodeManager nodeManager;
+    private final String brokerUrl;
+    private final String topic;
+
+    private int publisherId = 1;
+    private int writerGroupId = 1;
+    private int dataSetWriterId = 1;
+    private long publishingInterval = 1000;
+    private int keyFrameCount = 10;
+    private int qos = 0;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "CncPubSubPublisher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private MqttClient client;
+    private UadpNetworkMessageEncoder encoder;
+    private List<String> fieldNames;
+    private Writer[] writers;
+    private int[] changedIndexes;
+
+    /**
+     * The DataSetWriter of a machine and the state of its messages.
+     */
+    private static class Writer {
+        final CncMachine machine;
+        final int dataSetWriterId;
+        final Object[] fields;
+        final Object[] lastSent;
+        int messagesSinceKeyFrame;
+        int sequenceNumber;
+
+        Writer(CncMachine machine, int dataSetWriterId, int fieldCount) {
+            this.machine = machine;
+            this.dataSetWriterId = dataSetWriterId;
+            fields = new Object[fieldCount];
+            lastSent = new Object[fieldCount];
+        }
+    }
+
+    public CncPubSubPublisher(CncNodeManager nodeManager, String brokerUrl, String topic) {
+        this.nodeManager = nodeManager;
+        this.brokerUrl = brokerUrl;
+        this.topic = topic;
+    }
+
+    public int getDataSetWriterId() {
+        return dataSetWriterId;
+    }
+
+    public int getKeyFrameCount() {
+        return keyFrameCount;
+    }
+
+    public long getPublishingInterval() {
+        return publishingInterval;
+    }
+
+    /**
+     * @param dataSetWriterId the DataSetWriterId of the first machine, written to the payload header;
+     *        the other machines follow it
+     */
+    public void setDataSetWriterId(int dataSetWriterId) {
+        this.dataSetWriterId = dataSetWriterId;
+    }
+
+    /**
+     * @param keyFrameCount number of messages between two key frames, 1 sends key frames only
+     */
+    public void setKeyFrameCount(int keyFrameCount) {
+        if (keyFrameCount < 1) {
+            throw new IllegalArgumentException("keyFrameCount must be at least 1");
+        }
+        this.keyFrameCount = keyFrameCount;
+    }
+
+    /**
+     * @param publishingInterval the publishing interval in milliseconds
+     */
+    public void setPublishingInterval(long publishingInterval) {
+        if (publishingInterval <= 0) {
+            throw new IllegalArgumentException("publishingInterval must be a positive value");
+        }
+        this.publishingInterval = publishingInterval;
+    }
+
+    public void setPublisherId(int publisherId) {
+        this.publisherId = publisherId;
+    }
+
+    public void setQos(int qos) {
+        this.qos = qos;
+    }
+
+    public void setWriterGroupId(int writerGroupId) {
+        this.writerGroupId = writerGroupId;
+    }
+
+    /**
+     * Connects to the broker and starts publishing at the configured publishing interval.
+     */
+    public void start() throws MqttException {
+        List<CncMachine> machines = nodeManager.getMachines();
+        if (dataSetWriterId + machines.size() - 1 > 0xFFFF) {
+            throw new IllegalStateException("The DataSetWriterIds of " + machines.size()
+                    + " machines starting from " + dataSetWriterId + " do not fit in UInt16");
+        }
+        // All machines have the same tags
+        fieldNames = machines.isEmpty() ? List.of() : machines.get(0).getTagNames();
+        writers = new Writer[machines.size()];
+        for (int m = 0; m < writers.length; m++) {
+            writers[m] = new Writer(machines.get(m), dataSetWriterId + m, fieldNames.size());
+        }
+        changedIndexes = new int[fieldNames.size()];
+        // The DataSet layout is fixed, so the configuration version does not change while running
+        encoder = new UadpNetworkMessageEncoder(publisherId, writerGroupId, 1, 1, 0);
+
+        client = new MqttClient(brokerUrl, "CncPubSub-" + publisherId, new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setAutomaticReconnect(true);
+        options.setCleanSession(true);
+        client.connect(options);
+        logger.info("PubSub publisher connected to {}, topic={}, writers={}, fields={}", brokerUrl, topic,
+                writers.length, fieldNames.size());
+
+        scheduler.scheduleAtFixedRate(this::publish, publishingInterval, publishingInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops publishing and disconnects from the broker.
+     */
+    public void stop() {
+        scheduler.shutdown();
+        if (client != null) {
+            try {
+                client.disconnect();
+                client.close();
+            } catch (MqttException e) {
+                logger.warn("PubSub publisher disconnect failed", e);
+            }
+        }
+    }
+
+    private void publish() {
+        long now = System.currentTimeMillis();
+        for (Writer writer : writers) {
+            try {
+                publish(writer, now);
+            } catch (Exception e) {
+                // Never let an exception cancel the scheduled task
+                logger.warn("PubSub publish failed: {}", e.toString());
+                writer.messagesSinceKeyFrame = 0;
+            }
+        }
+    }
+
+    private void publish(Writer writer, long now) throws MqttException {
+        Object[] fields = writer.fields;
+        Object[] lastSent = writer.lastSent;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = writer.machine.getTagValue(fieldNames.get(i));
+        }
+        byte[] payload;
+        boolean keepAlive = false;
+        if (writer.messagesSinceKeyFrame == 0) {
+            payload = encoder.encodeKeyFrame(writer.dataSetWriterId, writer.sequenceNumber, now, fields);
+            System.arraycopy(fields, 0, lastSent, 0, fields.length);
+        } else {
+            int changedCount = 0;
+            for (int i = 0; i < fields.length; i++) {
+                if (!Objects.equals(fields[i], lastSent[i])) {
+                    changedIndexes[changedCount++] = i;
+                    lastSent[i] = fields[i];
+                }
+            }
+            keepAlive = changedCount == 0;
+            payload = keepAlive
+                    ? encoder.encodeKeepAlive(writer.dataSetWriterId, writer.sequenceNumber, now)
+                    : encoder.encodeDeltaFrame(writer.dataSetWriterId, writer.sequenceNumber, now, fields,
+                    changedIndexes, changedCount);
+        }
+        writer.messagesSinceKeyFrame = (writer.messagesSinceKeyFrame + 1) % keyFrameCount;
+        // A keep alive carries the sequence number of the next data message without using it up
+        if (!keepAlive) {
+            writer.sequenceNumber = (writer.sequenceNumber + 1) & 0xFFFF;
+        }
+
+        if (client.isConnected()) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(qos);
+            client.publish(topic, message);
+        } else {
+            // Start the next connection with a key frame so that subscribers can resynchronize
+            writer.messagesSinceKeyFrame = 0;
+        }
+    }
+}
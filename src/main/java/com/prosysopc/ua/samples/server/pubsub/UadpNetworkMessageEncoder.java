@@ -0,0 +1,217 @@
+package com.prosysopc.ua.samples.server.pubsub;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes OPC UA PubSub UADP NetworkMessages (OPC 10000-14, 7.2.4) that carry exactly one
+ * DataSetMessage.
+ * <p>
+ * The NetworkMessage always contains a UInt16 PublisherId, a GroupHeader with WriterGroupId,
+ * GroupVersion, NetworkMessageNumber and SequenceNumber, a PayloadHeader and a timestamp. Fields
+ * are encoded as Variants. The encoder reuses its internal buffer, so it is not thread safe.
+ */
+public class UadpNetworkMessageEncoder {
+
+    // UADPFlags: version 1 in bits 0-3
+    private static final int UADP_VERSION = 0x01;
+    private static final int UADP_PUBLISHER_ID_ENABLED = 0x10;
+    private static final int UADP_GROUP_HEADER_ENABLED = 0x20;
+    private static final int UADP_PAYLOAD_HEADER_ENABLED = 0x40;
+    private static final int UADP_EXTENDED_FLAGS1_ENABLED = 0x80;
+
+    // ExtendedFlags1
+    private static final int EXT1_PUBLISHER_ID_UINT16 = 0x01;
+    private static final int EXT1_TIMESTAMP_ENABLED = 0x20;
+
+    // GroupFlags
+    private static final int GROUP_WRITER_GROUP_ID_ENABLED = 0x01;
+    private static final int GROUP_VERSION_ENABLED = 0x02;
+    private static final int GROUP_NETWORK_MESSAGE_NUMBER_ENABLED = 0x04;
+    private static final int GROUP_SEQUENCE_NUMBER_ENABLED = 0x08;
+
+    // DataSetFlags1 (field encoding bits 1-2 = 00 -> Variant)
+    private static final int DS1_VALID = 0x01;
+    private static final int DS1_SEQUENCE_NUMBER_ENABLED = 0x08;
+    private static final int DS1_STATUS_ENABLED = 0x10;
+    private static final int DS1_CONFIG_MAJOR_ENABLED = 0x20;
+    private static final int DS1_CONFIG_MINOR_ENABLED = 0x40;
+    private static final int DS1_FLAGS2_ENABLED = 0x80;
+
+    // DataSetFlags2
+    private static final int DS2_KEY_FRAME = 0x00;
+    private static final int DS2_DELTA_FRAME = 0x01;
+    private static final int DS2_KEEP_ALIVE = 0x03;
+    private static final int DS2_TIMESTAMP_ENABLED = 0x10;
+
+    // Built-in type ids used in the Variant encoding mask
+    private static final byte VARIANT_NULL = 0;
+    private static final byte VARIANT_BOOLEAN = 1;
+    private static final byte VARIANT_INT32 = 6;
+    private static final byte VARIANT_INT64 = 8;
+    private static final byte VARIANT_FLOAT = 10;
+    private static final byte VARIANT_DOUBLE = 11;
+    private static final byte VARIANT_STRING = 12;
+
+    // Milliseconds between 1601-01-01 and 1970-01-01, the epochs of DateTime and Java time
+    private static final long EPOCH_OFFSET_MILLIS = 11644473600000L;
+
+    private final int publisherId;
+    private final int writerGroupId;
+    private final long groupVersion;
+    private final long configVersionMajor;
+    private final long configVersionMinor;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+    private int networkSequenceNumber;
+
+    public UadpNetworkMessageEncoder(int publisherId, int writerGroupId, long groupVersion,
+                                     long configVersionMajor, long configVersionMinor) {
+        this.publisherId = publisherId;
+        this.writerGroupId = writerGroupId;
+        this.groupVersion = groupVersion;
+        this.configVersionMajor = configVersionMajor;
+        this.configVersionMinor = configVersionMinor;
+    }
+
+    /**
+     * Encodes a key frame that contains all fields of the DataSet.
+     */
+    public byte[] encodeKeyFrame(int dataSetWriterId, int sequenceNumber, long timestampMillis, Object[] fields) {
+        int networkSequence = nextNetworkSequenceNumber();
+        while (true) {
+            try {
+                writeHeaders(networkSequence, dataSetWriterId, sequenceNumber, timestampMillis, DS2_KEY_FRAME);
+                writeUInt16(fields.length);
+                for (Object field : fields) {
+                    writeVariant(field);
+                }
+                return toByteArray();
+            } catch (BufferOverflowException e) {
+                grow();
+            }
+        }
+    }
+
+    /**
+     * Encodes a delta frame that contains only the fields listed in changedIndexes.
+     *
+     * @param changedIndexes indexes of the changed fields, only the first changedCount are used
+     */
+    public byte[] encodeDeltaFrame(int dataSetWriterId, int sequenceNumber, long timestampMillis, Object[] fields,
+                                   int[] changedIndexes, int changedCount) {
+        int networkSequence = nextNetworkSequenceNumber();
+        while (true) {
+            try {
+                writeHeaders(networkSequence, dataSetWriterId, sequenceNumber, timestampMillis, DS2_DELTA_FRAME);
+                writeUInt16(changedCount);
+                for (int i = 0; i < changedCount; i++) {
+                    int index = changedIndexes[i];
+                    writeUInt16(index);
+                    writeVariant(fields[index]);
+                }
+                return toByteArray();
+            } catch (BufferOverflowException e) {
+                grow();
+            }
+        }
+    }
+
+    /**
+     * Encodes a keep alive message, sent when nothing has changed since the previous message.
+     *
+     * @param sequenceNumber the sequence number of the next data message of the writer
+     */
+    public byte[] encodeKeepAlive(int dataSetWriterId, int sequenceNumber, long timestampMillis) {
+        writeHeaders(nextNetworkSequenceNumber(), dataSetWriterId, sequenceNumber, timestampMillis, DS2_KEEP_ALIVE);
+        return toByteArray();
+    }
+
+    private int nextNetworkSequenceNumber() {
+        int sequence = networkSequenceNumber;
+        networkSequenceNumber = (networkSequenceNumber + 1) & 0xFFFF;
+        return sequence;
+    }
+
+    private void writeHeaders(int networkSequence, int dataSetWriterId, int sequenceNumber, long timestampMillis,
+                              int messageType) {
+        buffer.clear();
+        long timestamp = toUaDateTime(timestampMillis);
+
+        // NetworkMessage header
+        buffer.put((byte) (UADP_VERSION | UADP_PUBLISHER_ID_ENABLED | UADP_GROUP_HEADER_ENABLED
+                | UADP_PAYLOAD_HEADER_ENABLED | UADP_EXTENDED_FLAGS1_ENABLED));
+        buffer.put((byte) (EXT1_PUBLISHER_ID_UINT16 | EXT1_TIMESTAMP_ENABLED));
+        writeUInt16(publisherId);
+
+        // Group header
+        buffer.put((byte) (GROUP_WRITER_GROUP_ID_ENABLED | GROUP_VERSION_ENABLED
+                | GROUP_NETWORK_MESSAGE_NUMBER_ENABLED | GROUP_SEQUENCE_NUMBER_ENABLED));
+        writeUInt16(writerGroupId);
+        buffer.putInt((int) groupVersion);
+        writeUInt16(1);
+        writeUInt16(networkSequence);
+
+        // Payload header: one DataSetMessage, so no Sizes array follows
+        buffer.put((byte) 1);
+        writeUInt16(dataSetWriterId);
+
+        // Extended NetworkMessage header
+        buffer.putLong(timestamp);
+
+        // DataSetMessage header
+        buffer.put((byte) (DS1_VALID | DS1_SEQUENCE_NUMBER_ENABLED | DS1_STATUS_ENABLED
+                | DS1_CONFIG_MAJOR_ENABLED | DS1_CONFIG_MINOR_ENABLED | DS1_FLAGS2_ENABLED));
+        buffer.put((byte) (messageType | DS2_TIMESTAMP_ENABLED));
+        writeUInt16(sequenceNumber);
+        buffer.putLong(timestamp);
+        writeUInt16(0); // Good
+        buffer.putInt((int) configVersionMajor);
+        buffer.putInt((int) configVersionMinor);
+    }
+
+    private void writeVariant(Object value) {
+        if (value == null) {
+            buffer.put(VARIANT_NULL);
+        } else if (value instanceof Double) {
+            buffer.put(VARIANT_DOUBLE);
+            buffer.putDouble((Double) value);
+        } else if (value instanceof Float) {
+            buffer.put(VARIANT_FLOAT);
+            buffer.putFloat((Float) value);
+        } else if (value instanceof Integer) {
+            buffer.put(VARIANT_INT32);
+            buffer.putInt((Integer) value);
+        } else if (value instanceof Long) {
+            buffer.put(VARIANT_INT64);
+            buffer.putLong((Long) value);
+        } else if (value instanceof Boolean) {
+            buffer.put(VARIANT_BOOLEAN);
+            buffer.put((byte) (((Boolean) value) ? 1 : 0));
+        } else {
+            byte[] utf8 = value.toString().getBytes(StandardCharsets.UTF_8);
+            buffer.put(VARIANT_STRING);
+            buffer.putInt(utf8.length);
+            buffer.put(utf8);
+        }
+    }
+
+    private void writeUInt16(int value) {
+        buffer.putShort((short) (value & 0xFFFF));
+    }
+
+    private byte[] toByteArray() {
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void grow() {
+        buffer = ByteBuffer.allocate(buffer.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long toUaDateTime(long millis) {
+        return (millis + EPOCH_OFFSET_MILLIS) * 10000L;
+    }
+}
@@ -0,0 +1,48 @@
+%
+(DemoPart - face, circular pocket and contour of a 100 x 80 mm plate)
+G21 G17 G90
+T1 M6
+S8500 M3
+G0 X0 Y0 Z25
+G0 X-5 Y5 Z2
+(Facing)
+G1 Z-0.5 F400
+G1 X105 F1200
+G1 Y20
+G1 X-5
+G1 Y35
+G1 X105
+G1 Y50
+G1 X-5
+G1 Y65
+G1 X105
+G1 Y75
+G1 X-5
+G0 Z5
+(Circular pocket, helical entry)
+G0 X60 Y40
+G1 Z0 F400
+G2 X60 Y40 I-10 J0 Z-3 F600
+G2 X60 Y40 I-10 J0 Z-6
+G2 X60 Y40 I-10 J0 F1200
+G1 X65
+G2 X65 Y40 I-15 J0
+G1 X70
+G2 X70 Y40 I-20 J0
+G0 Z5
+(Contour with rounded corners)
+G0 X-6 Y10
+G1 Z-8 F400
+G1 Y70 F1200
+G2 X10 Y86 R16
+G1 X90
+G2 X106 Y70 R16
+G1 Y10
+G2 X90 Y-6 R16
+G1 X10
+G2 X-6 Y10 R16
+G0 Z25
+G0 X0 Y0
+M5
+M30
+%
@@ -0,0 +1,158 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * The memory and the read latency of the data items of {@link MyBigNodeManager}: the
+ * {@code DataItemStore} arrays indexed by the numeric NodeIds, against the previous layout of a
+ * {@code DataItem} object per item in a TreeMap by name.
+ * <p>
+ * A read finds the item of a random NodeId and fills a DataValue, like the IoManager of the node
+ * manager. The setup of each layout prints the heap used per item.
+ * <pre>
+ * mvn -P benchmarks test -Dbenchmark=BigAddressSpaceBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class BigAddressSpaceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ArrayLayout {
+
+        @Param({"1000000"})
+        int items;
+
+        MyBigNodeManager.DataItemStore store;
+        NodeId[] nodeIds;
+
+        @Setup
+        public void setUp() throws InterruptedException {
+            nodeIds = new NodeId[items];
+            for (int i = 0; i < items; i++) {
+                nodeIds[i] = new NodeId(2, UnsignedInteger.valueOf(i));
+            }
+            long heap = usedHeap();
+            store = new MyBigNodeManager.DataItemStore(items);
+            for (int i = 0; i < items; i++) {
+                store.setValue(i, i);
+            }
+            printHeap("DataItemStore", usedHeap() - heap, items);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class TreeMapLayout {
+
+        @Param({"1000000"})
+        int items;
+
+        Map<String, DataItem> dataItems;
+        NodeId[] nodeIds;
+
+        @Setup
+        public void setUp() throws InterruptedException {
+            nodeIds = new NodeId[items];
+            for (int i = 0; i < items; i++) {
+                nodeIds[i] = new NodeId(2, String.format("DataItem_%04d", i));
+            }
+            long heap = usedHeap();
+            dataItems = new TreeMap<String, DataItem>();
+            for (int i = 0; i < items; i++) {
+                String name = String.format("DataItem_%04d", i);
+                DataItem item = new DataItem(name);
+                item.setValue(i, StatusCode.GOOD);
+                dataItems.put(name, item);
+            }
+            printHeap("TreeMap of DataItems", usedHeap() - heap, items);
+        }
+    }
+
+    /**
+     * A data item of the previous layout, with all its fields, which take memory even where they
+     * are not read.
+     */
+    static class DataItem {
+        private NodeId dataType = Identifiers.Double;
+        private final String name;
+        private StatusCode status = StatusCode.valueOf(StatusCodes.Bad_WaitingForInitialData);
+        private DateTime timestamp;
+        private double value;
+
+        DataItem(String name) {
+            this.name = name;
+        }
+
+        synchronized void getDataValue(DataValue dataValue) {
+            dataValue.setValue(new Variant(value));
+            dataValue.setStatusCode(status);
+            dataValue.setServerTimestamp(DateTime.currentTime());
+            dataValue.setSourceTimestamp(timestamp);
+        }
+
+        synchronized void setValue(double value, StatusCode status) {
+            if ((this.value != value) || !this.status.equals(status)) {
+                this.value = value;
+                this.status = status;
+                this.timestamp = DateTime.currentTime();
+            }
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void printHeap(String layout, long bytes, int items) {
+        System.out.printf("%n[BigAddressSpace] %s: %d items in %.1f MB of heap, %d B per item%n", layout, items,
+                bytes / 1e6, bytes / items);
+    }
+
+    @Benchmark
+    public DataValue readArrays(ArrayLayout layout) {
+        NodeId nodeId = layout.nodeIds[ThreadLocalRandom.current().nextInt(layout.items)];
+        DataValue dataValue = new DataValue();
+        layout.store.getDataValue(layout.store.indexOf(nodeId.getValue()), dataValue);
+        return dataValue;
+    }
+
+    @Benchmark
+    public DataValue readTreeMap(TreeMapLayout layout) {
+        NodeId nodeId = layout.nodeIds[ThreadLocalRandom.current().nextInt(layout.items)];
+        DataValue dataValue = new DataValue();
+        layout.dataItems.get((String) nodeId.getValue()).getDataValue(dataValue);
+        return dataValue;
+    }
+}
@@ -0,0 +1,185 @@
+package com.prosysopc.ua.samples.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+
+/**
+ * The file format of {@link HistorySegment}: the records read back as they were appended, and a
+ * segment whose tail was lost in a crash is restored up to its last valid record.
+ */
+class HistorySegmentTest {
+
+    private static final long PARTITION = 1_000_000L;
+    private static final int CAPACITY = 100;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void roundTrip() throws IOException {
+        File file = new File(directory, "segment.seg");
+        HistorySegment segment = HistorySegment.create(file, PARTITION, 0, CAPACITY);
+        Object[] values = {1.5, 42, true, null, UnsignedInteger.valueOf(7), -3L};
+        for (int i = 0; i < values.length; i++) {
+            append(segment, PARTITION + i * 10, values[i]);
+        }
+        segment.close();
+
+        HistorySegment opened = HistorySegment.open(file, 5);
+        assertFalse(opened.isSealed());
+        assertEquals(values.length, opened.getCount());
+        assertEquals(5 + values.length, opened.getEndPosition());
+        assertEquals(PARTITION, opened.getPartition());
+        assertEquals(PARTITION, opened.getFirstTime());
+        assertEquals(PARTITION + (values.length - 1) * 10, opened.getLastTime());
+        ByteBuffer map = opened.map();
+        for (int i = 0; i < values.length; i++) {
+            DataValue value = HistorySegment.get(map, i);
+            assertEquals(PARTITION + i * 10, value.getSourceTimestamp().getValue());
+            assertEquals(values[i], value.getValue().getValue());
+        }
+        assertEquals(2, opened.search(map, PARTITION + 15, false));
+        assertEquals(2, opened.search(map, PARTITION + 20, false));
+        assertEquals(3, opened.search(map, PARTITION + 20, true));
+        assertEquals(values.length, opened.search(map, PARTITION + 1000, false));
+    }
+
+    @Test
+    void sealedRoundTrip() throws IOException {
+        File file = new File(directory, "segment.seg");
+        HistorySegment segment = HistorySegment.create(file, PARTITION, 0, CAPACITY);
+        for (int i = 0; i < 3 * HistorySegment.INDEX_INTERVAL / 2; i++) {
+            append(segment, PARTITION + i, (double) i);
+        }
+        int count = segment.getCount();
+        segment.seal();
+        assertEquals(segment.getSize(), file.length());
+
+        HistorySegment opened = HistorySegment.open(file, 0);
+        assertTrue(opened.isSealed());
+        assertEquals(count, opened.getCount());
+        ByteBuffer map = opened.map();
+        for (int i = 0; i < count; i++) {
+            assertEquals(PARTITION + i, HistorySegment.time(map, i));
+            assertEquals(i, HistorySegment.doubleValue(map, i));
+            assertTrue(HistorySegment.isGoodDouble(map, i));
+        }
+        assertEquals(HistorySegment.INDEX_INTERVAL + 1, opened.search(map, PARTITION + HistorySegment.INDEX_INTERVAL,
+                true));
+    }
+
+    @Test
+    void deletedRecordsStayDeleted() throws IOException {
+        File file = new File(directory, "segment.seg");
+        HistorySegment segment = HistorySegment.create(file, PARTITION, 0, CAPACITY);
+        for (int i = 0; i < 4; i++) {
+            append(segment, PARTITION + i, (double) i);
+        }
+        segment.delete(segment.buffer(), 1);
+        segment.close();
+
+        ByteBuffer map = HistorySegment.open(file, 0).map();
+        assertFalse(HistorySegment.isDeleted(map, 0));
+        assertTrue(HistorySegment.isDeleted(map, 1));
+        assertNull(HistorySegment.get(map, 1).getValue().getValue());
+    }
+
+    @Test
+    void lostTailIsTruncated() throws IOException {
+        File file = new File(directory, "segment.seg");
+        HistorySegment segment = HistorySegment.create(file, PARTITION, 0, CAPACITY);
+        for (int i = 0; i < 10; i++) {
+            append(segment, PARTITION + i, (double) i);
+        }
+        segment.force();
+        for (int i = 10; i < 20; i++) {
+            append(segment, PARTITION + i, (double) i);
+        }
+        // Records the first 10 as certainly on disk
+        segment.close();
+        // A crash of the operating system lost the pages of records 15 and up, which read as zeros,
+        // but the count of 20 reached the disk
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            for (int i = 15; i < 20; i++) {
+                f.seek(HistorySegment.HEADER_SIZE + (long) i * HistorySegment.RECORD_SIZE);
+                f.write(new byte[HistorySegment.RECORD_SIZE]);
+            }
+        }
+
+        HistorySegment opened = HistorySegment.open(file, 0);
+        assertEquals(15, opened.getCount());
+        assertEquals(PARTITION + 14, opened.getLastTime());
+
+        // Appending continues after the last valid record
+        opened.openForAppend();
+        append(opened, PARTITION + 100, 100.0);
+        opened.close();
+        HistorySegment reopened = HistorySegment.open(file, 0);
+        assertEquals(16, reopened.getCount());
+        assertEquals(PARTITION + 100, reopened.getLastTime());
+    }
+
+    @Test
+    void recordsOutOfOrderAfterTheSyncedCountAreDropped() throws IOException {
+        File file = new File(directory, "segment.seg");
+        HistorySegment segment = HistorySegment.create(file, PARTITION, 0, CAPACITY);
+        for (int i = 0; i < 10; i++) {
+            append(segment, PARTITION + i * 10, (double) i);
+        }
+        segment.force();
+        for (int i = 10; i < 20; i++) {
+            append(segment, PARTITION + i * 10, (double) i);
+        }
+        segment.close();
+        // Record 12 holds a stale time from an earlier use of the page
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(HistorySegment.HEADER_SIZE + 12L * HistorySegment.RECORD_SIZE);
+            f.writeLong(PARTITION + 5);
+        }
+
+        assertEquals(12, HistorySegment.open(file, 0).getCount());
+    }
+
+    @Test
+    void notASegment() throws IOException {
+        File file = new File(directory, "segment.seg");
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.write(new byte[HistorySegment.HEADER_SIZE + HistorySegment.RECORD_SIZE]);
+        }
+        assertThrows(IOException.class, () -> HistorySegment.open(file, 0));
+    }
+
+    @Test
+    void countBeyondTheFileIsRejected() throws IOException {
+        File file = new File(directory, "segment.seg");
+        HistorySegment segment = HistorySegment.create(file, PARTITION, 0, CAPACITY);
+        for (int i = 0; i < 10; i++) {
+            append(segment, PARTITION + i, (double) i);
+        }
+        segment.seal();
+        // The file was cut short after it was sealed
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(HistorySegment.HEADER_SIZE + 5L * HistorySegment.RECORD_SIZE);
+        }
+        assertThrows(IOException.class, () -> HistorySegment.open(file, 0));
+    }
+
+    private static void append(HistorySegment segment, long time, Object value) throws IOException {
+        byte kind = HistorySegment.kindOf(value);
+        segment.append(time, HistorySegment.toBits(kind, value), 0, kind);
+    }
+}
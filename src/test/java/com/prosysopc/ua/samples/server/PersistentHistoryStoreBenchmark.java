@@ -0,0 +1,158 @@
+package com.prosysopc.ua.samples.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.prosysopc.ua.server.NodeManagerUaNode;
+import com.prosysopc.ua.server.UaServer;
+import com.prosysopc.ua.server.nodes.PlainVariable;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.LocalizedText;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.QualifiedName;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.Identifiers;
+
+/**
+ * The persistent history of the CNC tags of a plant of {@value #PLANT_MACHINES} machines with
+ * {@value #TAGS} numeric tags each, changing once per second, with the store settings of
+ * {@link SampleConsoleServer} and its {@code -hf} force interval as a parameter.
+ * <p>
+ * {@code appendSecond} appends one second of the plant, a value to every history, and must stay well
+ * below a second; {@code readMinute} reads the last minute of a random tag. The setup appends
+ * {@code prefillSeconds} first, and the sizes are printed: the heap of the histories, the bytes per
+ * value on disk and the disk needed per day.
+ * <pre>
+ * mvn -P benchmarks test -Dbenchmark=PersistentHistoryStoreBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PersistentHistoryStoreBenchmark {
+
+    static final int PLANT_MACHINES = 1000;
+    static final int TAGS = 40;
+    private static final long TICKS_PER_SECOND = 10_000_000L;
+    private static final long PARTITION_MILLIS = 3_600_000;
+    private static final int SEGMENT_CAPACITY = 65536;
+
+    // Fewer machines than the plant give the same sizes per value in a shorter run
+    @Param({"1000"})
+    int machines;
+
+    @Param({"60"})
+    int prefillSeconds;
+
+    // Each force writes a page of every history that changed, and the next append to the page then
+    // takes a write fault, so the interval sets the disk writes per second of a plant
+    @Param({"1000", "60000"})
+    long forceIntervalMillis;
+
+    private File directory;
+    private PersistentHistoryStore store;
+    private PersistentValueHistory[] histories;
+    private long time;
+    private long values;
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("history-store").toFile();
+        store = new PersistentHistoryStore(directory, PARTITION_MILLIS, SEGMENT_CAPACITY, 0, 0,
+                forceIntervalMillis);
+        NodeManagerUaNode nodeManager =
+                new NodeManagerUaNode(new UaServer(), "http://example.com/PersistentHistoryStore");
+        int ns = nodeManager.getNamespaceIndex();
+        List<PlainVariable<Double>> variables = new ArrayList<>(machines * TAGS);
+        for (int m = 0; m < machines; m++) {
+            for (int t = 0; t < TAGS; t++) {
+                String name = "Machine" + m + ".Tag" + t;
+                PlainVariable<Double> variable = new PlainVariable<>(nodeManager, new NodeId(ns, name),
+                        new QualifiedName(ns, name), LocalizedText.english(name));
+                variable.setDataTypeId(Identifiers.Double);
+                variables.add(variable);
+            }
+        }
+
+        long heap = usedHeap();
+        histories = new PersistentValueHistory[variables.size()];
+        for (int i = 0; i < histories.length; i++) {
+            histories[i] = store.open(variables.get(i), false);
+        }
+        // Start at a partition, so that the partitions roll over like on a running server
+        time = store.partitionOf(DateTime.currentTime().getValue());
+        for (int s = 0; s < prefillSeconds; s++) {
+            appendSecond();
+        }
+        heap = usedHeap() - heap;
+        System.out.printf("%n[PersistentHistoryStore] %d histories with %d s of values: %.1f MB of heap,"
+                + " %d B per history%n", histories.length, prefillSeconds, heap / 1e6, heap / histories.length);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        long size = store.getSize();
+        long perSecond = (long) PLANT_MACHINES * TAGS;
+        double bytesPerValue = (double) size / values;
+        System.out.printf("[PersistentHistoryStore] %d values in %.1f MB: %.1f B per value; the plant of %d values/s"
+                + " writes %.1f MB/s, %.1f GB per day%n", values, size / 1e6, bytesPerValue, perSecond,
+                bytesPerValue * perSecond / 1e6, bytesPerValue * perSecond * 86_400 / 1e9);
+        store.close();
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    public void appendSecond() {
+        DateTime t = new DateTime(time);
+        for (int i = 0; i < histories.length; i++) {
+            histories[i].append(new DataValue(new Variant(Math.sin(i + time)), StatusCode.GOOD, t, t));
+        }
+        time += TICKS_PER_SECOND;
+        values += histories.length;
+    }
+
+    @Benchmark
+    public List<DataValue> readMinute() throws Exception {
+        PersistentValueHistory history = histories[ThreadLocalRandom.current().nextInt(histories.length)];
+        List<DataValue> minute = new ArrayList<>(60);
+        history.readRaw(new DateTime(time - 60 * TICKS_PER_SECOND), new DateTime(time), 0, false, null, minute);
+        return minute;
+    }
+}
@@ -0,0 +1,124 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.prosysopc.ua.server.NodeManagerUaNode;
+import com.prosysopc.ua.server.UaServer;
+import com.prosysopc.ua.server.nodes.PlainVariable;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.LocalizedText;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.QualifiedName;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.Identifiers;
+
+/**
+ * The history of the CNC tags of a plant of {@value #PLANT_MACHINES} machines with {@value #TAGS}
+ * numeric tags each, changing once per second, as {@code CncNodeManager.initHistory} registers it
+ * with {@link MyHistorian#addVariableHistories}: a {@link ValueHistory} per tag that keeps
+ * {@code capacity} values and is fed with {@link ValueHistory#append(DataValue)}. The default
+ * capacity is the one of the {@code -hc} option, ten minutes at 1 Hz.
+ * <p>
+ * {@code appendSecond} appends one second of the plant, a value to every history, and must stay well
+ * below a second; {@code readMinute} reads the last minute of a random tag. The setup fills the
+ * histories to their capacity and prints the heap that they take.
+ * <pre>
+ * mvn -P benchmarks test -Dbenchmark=PlantHistoryBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class PlantHistoryBenchmark {
+
+    static final int PLANT_MACHINES = 1000;
+    static final int TAGS = 40;
+    private static final long TICKS_PER_SECOND = 10_000_000L;
+
+    @Param({"1000"})
+    int machines;
+
+    @Param({"600"})
+    int capacity;
+
+    private ValueHistory[] histories;
+    private long time;
+
+    @Setup
+    public void setUp() throws Exception {
+        NodeManagerUaNode nodeManager = new NodeManagerUaNode(new UaServer(), "http://example.com/PlantHistory");
+        int ns = nodeManager.getNamespaceIndex();
+        List<PlainVariable<Double>> variables = new ArrayList<>(machines * TAGS);
+        for (int m = 0; m < machines; m++) {
+            for (int t = 0; t < TAGS; t++) {
+                String name = "Machine" + m + ".Tag" + t;
+                PlainVariable<Double> variable = new PlainVariable<>(nodeManager, new NodeId(ns, name),
+                        new QualifiedName(ns, name), LocalizedText.english(name));
+                variable.setDataTypeId(Identifiers.Double);
+                variables.add(variable);
+            }
+        }
+
+        long heap = usedHeap();
+        // The histories of MyHistorian.addVariableHistories, without the HA Configuration nodes
+        histories = new ValueHistory[variables.size()];
+        for (int i = 0; i < histories.length; i++) {
+            histories[i] = new ValueHistory(variables.get(i), false, capacity);
+        }
+        time = DateTime.currentTime().getValue();
+        for (int s = 0; s < capacity; s++) {
+            appendSecond();
+        }
+        heap = usedHeap() - heap;
+        long values = (long) histories.length * capacity;
+        System.out.printf("%n[PlantHistory] %d histories of %d values: %.1f MB of heap, %d B per value;"
+                + " the plant takes %.1f GB%n", histories.length, capacity, heap / 1e6, heap / values,
+                (double) heap / values * PLANT_MACHINES * TAGS * capacity / 1e9);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    public void appendSecond() {
+        DateTime t = new DateTime(time);
+        for (int i = 0; i < histories.length; i++) {
+            histories[i].append(new DataValue(new Variant(Math.sin(i + time)), StatusCode.GOOD, t, t));
+        }
+        time += TICKS_PER_SECOND;
+    }
+
+    @Benchmark
+    public List<DataValue> readMinute() {
+        ValueHistory history = histories[ThreadLocalRandom.current().nextInt(histories.length)];
+        List<DataValue> minute = new ArrayList<>(60);
+        history.readRaw(new DateTime(time - 60 * TICKS_PER_SECOND), new DateTime(time), 0, false, 0, minute);
+        return minute;
+    }
+}
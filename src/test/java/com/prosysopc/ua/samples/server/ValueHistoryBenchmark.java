@@ -0,0 +1,262 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.prosysopc.ua.server.NodeManagerUaNode;
+import com.prosysopc.ua.server.UaServer;
+import com.prosysopc.ua.server.nodes.PlainVariable;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.LocalizedText;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.QualifiedName;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * The appends and the reads of a full {@link ValueHistory} of a Double variable, against the
+ * previous implementation of a CopyOnWriteArrayList of DataValues with linear searches.
+ * <p>
+ * Each history holds {@code capacity} values one second apart. {@code append} adds a value and
+ * drops the oldest one, the reads look up random times: {@code readFirstBefore} one time,
+ * {@code readAtTimes} {@value #READ_TIMES} times and {@code readRaw} a range of
+ * {@value #RAW_VALUES} values.
+ * <pre>
+ * mvn -P benchmarks test -Dbenchmark=ValueHistoryBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValueHistoryBenchmark {
+
+    static final int READ_TIMES = 10;
+    static final int RAW_VALUES = 100;
+    private static final long TICKS_PER_SECOND = 10_000_000L;
+
+    @State(Scope.Benchmark)
+    public abstract static class Histories {
+
+        @Param({"10000"})
+        int capacity;
+
+        long start;
+        long time;
+
+        void fill() {
+            start = DateTime.currentTime().getValue();
+            time = start;
+            for (int i = 0; i < capacity; i++) {
+                append(nextValue());
+            }
+        }
+
+        DataValue nextValue() {
+            DateTime t = new DateTime(time);
+            time += TICKS_PER_SECOND;
+            return new DataValue(new Variant(Math.sin(time)), StatusCode.GOOD, t, t);
+        }
+
+        abstract void append(DataValue value);
+
+        DateTime randomTime() {
+            return new DateTime(ThreadLocalRandom.current().nextLong(time - capacity * TICKS_PER_SECOND, time));
+        }
+
+        DateTime[] randomTimes() {
+            DateTime[] times = new DateTime[READ_TIMES];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = randomTime();
+            }
+            return times;
+        }
+    }
+
+    public static class RingBuffer extends Histories {
+
+        ValueHistory history;
+
+        @Setup
+        public void setUp() {
+            NodeManagerUaNode nodeManager = new NodeManagerUaNode(new UaServer(), "http://example.com/ValueHistory");
+            int ns = nodeManager.getNamespaceIndex();
+            PlainVariable<Double> variable = new PlainVariable<>(nodeManager, new NodeId(ns, "Value"),
+                    new QualifiedName(ns, "Value"), LocalizedText.english("Value"));
+            variable.setDataTypeId(Identifiers.Double);
+            history = new ValueHistory(variable, false, capacity);
+            fill();
+        }
+
+        @Override
+        void append(DataValue value) {
+            history.append(value);
+        }
+    }
+
+    public static class CopyOnWrite extends Histories {
+
+        CopyOnWriteValueHistory history;
+
+        @Setup
+        public void setUp() {
+            history = new CopyOnWriteValueHistory(capacity);
+            fill();
+        }
+
+        @Override
+        void append(DataValue value) {
+            history.append(value);
+        }
+    }
+
+    /**
+     * The values and the searches of the previous ValueHistory.
+     */
+    static class CopyOnWriteValueHistory {
+        private final int capacity;
+        private final List<DataValue> values = new CopyOnWriteArrayList<DataValue>();
+
+        CopyOnWriteValueHistory(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void append(DataValue value) {
+            values.add(value);
+            while (values.size() > capacity) {
+                values.remove(0);
+            }
+        }
+
+        DataValue[] readAtTimes(DateTime[] reqTimes) {
+            DataValue[] values = new DataValue[reqTimes.length];
+            for (int i = 0; i < reqTimes.length; i++) {
+                DateTime t = reqTimes[i];
+                DataValue v = getValue(t);
+                values[i] = new DataValue(v == null ? null : v.getValue(),
+                        v == null ? StatusCode.valueOf(StatusCodes.Bad_NoData) : v.getStatusCode(), t,
+                        UnsignedShort.ZERO, null, null);
+            }
+            return values;
+        }
+
+        DataValue readFirstBeforeTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
+            int i = 0;
+            while ((i < values.size()) && ((values.get(i).getSourceTimestamp().compareTo(timeStamp) < 0)
+                    || includeValueAtTimestamp && (values.get(i).getSourceTimestamp().compareTo(timeStamp) == 0))) {
+                i++;
+            }
+            if (i == 0) {
+                return null;
+            } else {
+                return i == values.size() ? null : values.get(i - 1);
+            }
+        }
+
+        // The forward branch of the previous readRaw, for a start time before the end time
+        Integer readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds, int firstIndex,
+                List<DataValue> history) {
+            int i = 0;
+            for (DataValue value : values) {
+                DateTime t = value.getSourceTimestamp();
+                if (t == null) {
+                    t = value.getServerTimestamp();
+                }
+                final int compareToEnd = t.compareTo(endTime);
+                if ((compareToEnd > 0) || (!returnBounds && (compareToEnd == 0))) {
+                    break;
+                } else {
+                    final int compareToStart = t.compareTo(startTime);
+                    if ((compareToStart > 0) || (returnBounds && (compareToStart == 0))) {
+                        if (i >= firstIndex) {
+                            history.add(value);
+                        }
+                        i++;
+                        if (history.size() == maxValues) {
+                            return i;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        private DataValue getValue(DateTime requestedTime) {
+            int i = values.size() - 1;
+            while ((i >= 0) && (values.get(i).getSourceTimestamp().compareTo(requestedTime) > 0)) {
+                i--;
+            }
+            return i < 0 ? null : values.get(i);
+        }
+    }
+
+    private static DateTime rangeEnd(DateTime start) {
+        return new DateTime(start.getValue() + RAW_VALUES * TICKS_PER_SECOND);
+    }
+
+    @Benchmark
+    public void appendRingBuffer(RingBuffer state) {
+        state.append(state.nextValue());
+    }
+
+    @Benchmark
+    public void appendCopyOnWrite(CopyOnWrite state) {
+        state.append(state.nextValue());
+    }
+
+    @Benchmark
+    public DataValue readFirstBeforeRingBuffer(RingBuffer state) {
+        return state.history.readFirstBeforeTimestamp(state.randomTime(), false);
+    }
+
+    @Benchmark
+    public DataValue readFirstBeforeCopyOnWrite(CopyOnWrite state) {
+        return state.history.readFirstBeforeTimestamp(state.randomTime(), false);
+    }
+
+    @Benchmark
+    public DataValue[] readAtTimesRingBuffer(RingBuffer state) {
+        return state.history.readAtTimes(state.randomTimes());
+    }
+
+    @Benchmark
+    public DataValue[] readAtTimesCopyOnWrite(CopyOnWrite state) {
+        return state.history.readAtTimes(state.randomTimes());
+    }
+
+    @Benchmark
+    public List<DataValue> readRawRingBuffer(RingBuffer state) {
+        DateTime start = state.randomTime();
+        List<DataValue> values = new ArrayList<>(RAW_VALUES);
+        state.history.readRaw(start, rangeEnd(start), 0, false, 0, values);
+        return values;
+    }
+
+    @Benchmark
+    public List<DataValue> readRawCopyOnWrite(CopyOnWrite state) {
+        DateTime start = state.randomTime();
+        List<DataValue> values = new ArrayList<>(RAW_VALUES);
+        state.history.readRaw(start, rangeEnd(start), 0, false, 0, values);
+        return values;
+    }
+}
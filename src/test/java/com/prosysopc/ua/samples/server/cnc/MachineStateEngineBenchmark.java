@@ -0,0 +1,80 @@
+package com.prosysopc.ua.samples.server.cnc;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.prosysopc.ua.samples.server.cnc.MachineStateEngine.Command;
+
+/**
+ * Throughput of the StartMachine and StopMachine methods under hundreds of concurrent callers.
+ * <p>
+ * Each of the {@value #CALLERS} threads calls the method of a random machine and waits until its
+ * command has been processed, so the result is the number of commands that the state engines of
+ * all machines process per second, on one scheduler of {@value #SCHEDULER_THREADS} threads as in
+ * {@code CncNodeManager}; no thread is created per call.
+ * <pre>
+ * mvn -P benchmarks test -Dbenchmark=MachineStateEngineBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(MachineStateEngineBenchmark.CALLERS)
+public class MachineStateEngineBenchmark {
+
+    static final int CALLERS = 200;
+    private static final int SCHEDULER_THREADS = 2;
+    private static final long TRANSITION_MILLIS = 2000;
+
+    @Param({"10", "1000"})
+    int machines;
+
+    private ScheduledExecutorService scheduler;
+    private MachineStateEngine[] engines;
+
+    @Setup
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS);
+        engines = new MachineStateEngine[machines];
+        for (int i = 0; i < machines; i++) {
+            engines[i] = new MachineStateEngine(MachineStateEngine.State.STOPPED, scheduler, TRANSITION_MILLIS,
+                    state -> {
+                    });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public void startStop() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        MachineStateEngine engine = engines[random.nextInt(machines)];
+        CompletableFuture<Void> processed = new CompletableFuture<>();
+        engine.submit(random.nextBoolean() ? Command.START : Command.STOP);
+        engine.execute(() -> processed.complete(null));
+        processed.join();
+    }
+}